@@ -1,10 +1,10 @@
 package com.ikalagaming.event;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Tools for testing if events have been fired for use in test suites. This creates listeners as if
@@ -14,7 +14,8 @@ import java.util.Map.Entry;
  * @author Ches Burks
  */
 public class EventAssert {
-    private static Map<Class<? extends Event>, EventMonitor<?>> monitors = new HashMap<>();
+    private static Map<Class<? extends Event>, EventMonitor<?>> monitors =
+            new ConcurrentHashMap<>();
 
     /**
      * Returns the number of times the given event class has been recorded.
@@ -60,7 +61,22 @@ public class EventAssert {
      * @param eventClass The class of the event we want to listen for.
      */
     public static <T extends Event> void listenFor(Class<T> eventClass) {
-        EventMonitor<T> monitor = new EventMonitor<>(eventClass);
+        EventAssert.listenFor(eventClass, EventMonitor.UNBOUNDED);
+    }
+
+    /**
+     * Listen for a specific type of event, only remembering the most recent events. Every event is
+     * still counted, but only the last maxRecorded of them are returned by {@link
+     * #getRecordedEvents(Class)}. This keeps memory use flat when we expect a very large number of
+     * events.
+     *
+     * @param <T> The type of event we are trying to listen for.
+     * @param eventClass The class of the event we want to listen for.
+     * @param maxRecorded The maximum number of events to remember. If zero, events are only
+     *     counted. If negative, all events are remembered.
+     */
+    public static <T extends Event> void listenFor(Class<T> eventClass, int maxRecorded) {
+        EventMonitor<T> monitor = new EventMonitor<>(eventClass, maxRecorded);
         EventManager.getInstance().registerEventListeners(monitor);
         if (EventAssert.monitors.containsKey(eventClass)) {
             EventAssert.stopListeningFor(eventClass);
@@ -129,9 +145,8 @@ public class EventAssert {
 
     /**
      * Checks if the given event class has been fired since we started listening for it, or since
-     * the last time we reset the count. Causes the thread that calls this to sleep, and check every
-     * second until the event was fired or we reach the given wait timeout. If the timeout is less
-     * than a second, then that's how long it will wait. Defaults to a 10 ms poll time.
+     * the last time we reset the count. Blocks the calling thread until the event was fired or we
+     * reach the given wait timeout, returning as soon as the event arrives.
      *
      * @param <T> The type of event we are looking for.
      * @param eventClass The event class we want to check.
@@ -141,61 +156,59 @@ public class EventAssert {
      *     tracking it or it was not fired.
      * @see #wasFired(Class)
      * @see #resetFireCount(Class)
-     * @see #wasFired(Class, long, long)
+     * @see #wasFiredAtLeast(Class, int, long)
      */
     public static <T extends Event> boolean wasFired(Class<T> eventClass, long waitTimeout) {
-        return EventAssert.wasFired(eventClass, waitTimeout, 10);
+        return EventAssert.wasFiredAtLeast(eventClass, 1, waitTimeout);
     }
 
     /**
      * Checks if the given event class has been fired since we started listening for it, or since
-     * the last time we reset the count. Causes the thread that calls this to sleep, and check every
-     * second until the event was fired or we reach the given wait timeout. If the timeout is less
-     * than a second, then that's how long it will wait.
+     * the last time we reset the count. Blocks the calling thread until the event was fired or we
+     * reach the given wait timeout.
      *
      * @param <T> The type of event we are looking for.
      * @param eventClass The event class we want to check.
      * @param waitTimeout The longest time we will wait for the event to have been fired, in
      *     milliseconds.
-     * @param pollTime How many milliseconds to wait between checking if the event has been fired.
-     *     If less than 1, will be treated as 1.
+     * @param pollTime Ignored, waiting threads are woken up when the event is received instead of
+     *     polling.
      * @return True if the event was fired since we started listening or reset, False if we are not
      *     tracking it or it was not fired.
      * @see #wasFired(Class)
      * @see #resetFireCount(Class)
      * @see #wasFired(Class, long)
+     * @deprecated Polling is no longer used, use {@link #wasFired(Class, long)} instead.
      */
+    @Deprecated
     public static <T extends Event> boolean wasFired(
             Class<T> eventClass, long waitTimeout, long pollTime) {
-        if (!EventAssert.monitors.containsKey(eventClass)) {
-            return false;
-        }
-        if (waitTimeout < 0) {
-            return EventAssert.wasFired(eventClass);
-        }
-
-        final long poll = pollTime < 1 ? 1 : pollTime;
-
-        if (EventAssert.wasFired(eventClass)) {
-            return true;
-        }
+        return EventAssert.wasFired(eventClass, waitTimeout);
+    }
 
-        long nextWait = waitTimeout > poll ? poll : waitTimeout;
-        long totalWait = 0;
-
-        while (totalWait < waitTimeout) {
-            try {
-                Thread.sleep(nextWait);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-            if (EventAssert.wasFired(eventClass)) {
-                return true;
-            }
-            totalWait += nextWait;
-            nextWait = waitTimeout > poll ? poll : waitTimeout;
+    /**
+     * Checks if the given event class has been fired at least the given number of times since we
+     * started listening for it, or since the last time we reset the count. Blocks the calling
+     * thread until the Nth event was fired or we reach the given wait timeout, returning as soon as
+     * the count is reached.
+     *
+     * @param <T> The type of event we are looking for.
+     * @param eventClass The event class we want to check.
+     * @param count The number of times we expect the event to have fired.
+     * @param waitTimeout The longest time we will wait for the event to have been fired, in
+     *     milliseconds. If less than 1, we check without waiting.
+     * @return True if the event was fired at least count times since we started listening or
+     *     reset, False if we are not tracking it or it was not fired enough times.
+     * @see #getFireCount(Class)
+     * @see #resetFireCount(Class)
+     */
+    public static <T extends Event> boolean wasFiredAtLeast(
+            Class<T> eventClass, int count, long waitTimeout) {
+        EventMonitor<?> monitor = EventAssert.monitors.get(eventClass);
+        if (monitor == null) {
+            return false;
         }
-        return EventAssert.wasFired(eventClass);
+        return monitor.awaitHitCount(count, waitTimeout);
     }
 
     /** Private constructor so this class is not initialized. */
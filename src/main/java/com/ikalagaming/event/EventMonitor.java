@@ -1,19 +1,28 @@
 package com.ikalagaming.event;
 
 import lombok.Getter;
-import lombok.Synchronized;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Used to listen for events of a specific type, to see if those events were fired.
+ * Used to listen for events of a specific type, to see if those events were fired. Threads can
+ * wait on a monitor until a given number of events have been received, and are woken up as soon as
+ * that happens rather than having to poll.
  *
  * @author Ches Burks
  * @param <T> The type of event we are listening for.
  */
 class EventMonitor<T extends Event> implements Listener {
-    private List<T> events;
+    /** Passed as the capacity to record every event that is received. */
+    public static final int UNBOUNDED = -1;
+
+    /**
+     * The most recent events, oldest first. Only holds up to {@link #capacity} events if that is
+     * not {@link #UNBOUNDED}.
+     */
+    private final ArrayDeque<T> events;
 
     /**
      * The type of event we are tracking.
@@ -22,18 +31,75 @@ class EventMonitor<T extends Event> implements Listener {
      */
     @SuppressWarnings("javadoc")
     @Getter
-    private Class<T> eventType;
+    private final Class<T> eventType;
+
+    /**
+     * The maximum number of events we keep around, or {@link #UNBOUNDED} to keep all of them. If
+     * zero, we only count events.
+     */
+    private final int capacity;
 
     private int hitCount = 0;
 
+    /** The number of threads currently waiting on this monitor, so we only notify if required. */
+    private int waiting = 0;
+
+    /** Used to handle synchronization and waiting for events. */
+    private final Object syncObject = new Object();
+
     /**
-     * Create an event type for the given class.
+     * Create an event monitor for the given class, which records every event it receives.
      *
      * @param eventType The event class we are listening for.
      */
     public EventMonitor(Class<T> eventType) {
+        this(eventType, EventMonitor.UNBOUNDED);
+    }
+
+    /**
+     * Create an event monitor for the given class, which only remembers the most recent events.
+     *
+     * @param eventType The event class we are listening for.
+     * @param capacity The maximum number of events to remember, or {@link #UNBOUNDED} to remember
+     *     all of them. Older events are discarded once we reach the limit, but are still counted.
+     */
+    public EventMonitor(Class<T> eventType, int capacity) {
         this.eventType = eventType;
-        events = new ArrayList<>();
+        this.capacity = capacity < 0 ? EventMonitor.UNBOUNDED : capacity;
+        events = new ArrayDeque<>();
+    }
+
+    /**
+     * Wait until the event has been received at least the given number of times, or we time out.
+     * Returns immediately if the count has already been reached.
+     *
+     * @param count The number of events we are waiting for.
+     * @param timeout The longest time we will wait, in milliseconds. If zero or negative, we don't
+     *     wait at all.
+     * @return True if the event was received at least count times, false if we timed out or were
+     *     interrupted first.
+     */
+    public boolean awaitHitCount(int count, long timeout) {
+        synchronized (syncObject) {
+            if (hitCount >= count || timeout <= 0) {
+                return hitCount >= count;
+            }
+            final long deadline = System.nanoTime() + timeout * 1_000_000L;
+            ++waiting;
+            try {
+                long remaining = timeout;
+                while (hitCount < count && remaining > 0) {
+                    syncObject.wait(remaining);
+                    remaining = (deadline - System.nanoTime()) / 1_000_000L;
+                }
+            } catch (InterruptedException e) {
+                // Re-interrupt as per SonarLint java:S2142
+                Thread.currentThread().interrupt();
+            } finally {
+                --waiting;
+            }
+            return hitCount >= count;
+        }
     }
 
     /**
@@ -41,9 +107,10 @@ class EventMonitor<T extends Event> implements Listener {
      *
      * @return True if the event was received, false if it never was.
      */
-    @Synchronized
     public boolean eventReceived() {
-        return hitCount > 0;
+        synchronized (syncObject) {
+            return hitCount > 0;
+        }
     }
 
     /**
@@ -51,18 +118,22 @@ class EventMonitor<T extends Event> implements Listener {
      *
      * @return The total number of times the event was received.
      */
-    @Synchronized
     public int getHitCount() {
-        return this.hitCount;
+        synchronized (syncObject) {
+            return this.hitCount;
+        }
     }
 
     /**
-     * Returns all the events that have been recorded since we started listening or last reset.
+     * Returns the events that have been recorded since we started listening or last reset. If the
+     * monitor has a limited capacity, this only contains the most recent events.
      *
-     * @return A copy of the list of events.
+     * @return A copy of the list of events, oldest first.
      */
     public List<T> getRecordedEvents() {
-        return new ArrayList<>(events);
+        synchronized (syncObject) {
+            return new ArrayList<>(events);
+        }
     }
 
     /**
@@ -70,16 +141,26 @@ class EventMonitor<T extends Event> implements Listener {
      *
      * @param event The event that is fired.
      */
-    @Synchronized
     public void onEvent(T event) {
-        ++hitCount;
-        this.events.add(event);
+        synchronized (syncObject) {
+            ++hitCount;
+            if (capacity != 0) {
+                if (capacity != EventMonitor.UNBOUNDED && events.size() >= capacity) {
+                    events.pollFirst();
+                }
+                events.addLast(event);
+            }
+            if (waiting > 0) {
+                syncObject.notifyAll();
+            }
+        }
     }
 
     /** Reset the hit count to 0, as if the event was never received. */
-    @Synchronized
     public void resetHitCount() {
-        this.hitCount = 0;
-        this.events.clear();
+        synchronized (syncObject) {
+            this.hitCount = 0;
+            this.events.clear();
+        }
     }
 }
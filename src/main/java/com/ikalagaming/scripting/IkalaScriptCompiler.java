@@ -7,8 +7,13 @@ import com.ikalagaming.scripting.ast.visitors.NodeAnnotationPass;
 import com.ikalagaming.scripting.ast.visitors.OptimizationPass;
 import com.ikalagaming.scripting.ast.visitors.TreeValidator;
 import com.ikalagaming.scripting.ast.visitors.TypePreprocessor;
+import com.ikalagaming.scripting.interpreter.CompiledScript;
+import com.ikalagaming.scripting.interpreter.DataflowOptimizer;
 import com.ikalagaming.scripting.interpreter.Instruction;
 import com.ikalagaming.scripting.interpreter.InstructionGenerator;
+import com.ikalagaming.scripting.interpreter.LoopOptimizer;
+import com.ikalagaming.scripting.interpreter.PackedProgram;
+import com.ikalagaming.scripting.interpreter.PeepholeOptimizer;
 import com.ikalagaming.scripting.interpreter.ScriptRuntime;
 
 import org.antlr.v4.runtime.BufferedTokenStream;
@@ -26,12 +31,12 @@ import java.util.Optional;
 public class IkalaScriptCompiler {
 
     /**
-     * Handle the parsing of a character stream.
+     * Compile a character stream into a script that runtimes can be created from.
      *
      * @param input The input stream.
-     * @return The corresponding runtime.
+     * @return The compiled script, or an empty optional if it could not be compiled.
      */
-    public static Optional<ScriptRuntime> parse(CharStream input) {
+    public static Optional<CompiledScript> compile(CharStream input) {
         // Generate parse tree
         ParserErrorListener errorListener = new ParserErrorListener();
 
@@ -74,12 +79,49 @@ public class IkalaScriptCompiler {
 
         // Generate instructions
         InstructionGenerator gen = new InstructionGenerator();
-        List<Instruction> instructions = gen.process(ast);
-
-        // Convert to a runtime
-        ScriptRuntime runtime = new ScriptRuntime(instructions);
+        List<Instruction> generated = gen.process(ast);
+
+        // Clean up redundant instruction sequences, optimize loops, then use what we know about
+        // variables along each path through the program, and clean up what that leaves behind,
+        // fusing common sequences into superinstructions at the end
+        PeepholeOptimizer peephole = new PeepholeOptimizer();
+        LoopOptimizer loops = new LoopOptimizer();
+        DataflowOptimizer dataflow = new DataflowOptimizer();
+        PeepholeOptimizer cleanup = new PeepholeOptimizer(true);
+        List<Instruction> looped =
+                loops.optimize(peephole.optimize(generated), gen.getVariableNames());
+        List<String> variableNames = loops.getVariableNames();
+        List<Instruction> instructions =
+                cleanup.optimize(dataflow.optimize(looped, variableNames.size()));
+
+        // Pack the instructions so the loaded script takes less memory
+        List<Instruction> program =
+                PackedProgram.pack(instructions)
+                        .<List<Instruction>>map(packed -> packed)
+                        .orElse(instructions);
+
+        // Keep the argument types so static calls can be bound when runtimes are created, and the
+        // lines instructions came from for profiling
+        return Optional.of(
+                new CompiledScript(
+                        program,
+                        variableNames,
+                        cleanup.remapAddresses(
+                                loops.remapAddresses(
+                                        peephole.remapAddresses(gen.getCallArgumentTypes()))),
+                        cleanup.remapAddresses(
+                                loops.remapAddresses(
+                                        peephole.remapAddresses(gen.getInstructionLines())))));
+    }
 
-        return Optional.of(runtime);
+    /**
+     * Handle the parsing of a character stream.
+     *
+     * @param input The input stream.
+     * @return The corresponding runtime.
+     */
+    public static Optional<ScriptRuntime> parse(CharStream input) {
+        return IkalaScriptCompiler.compile(input).map(CompiledScript::createRuntime);
     }
 
     /** Private constructor so that this class is not instantiated. */
@@ -0,0 +1,323 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Synchronized;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs scripts on a pool of worker threads, so that large numbers of scripts can make use of
+ * multiple cores.
+ *
+ * <p>Each turn of a script, up to {@link #getInstructionQuantum() a fixed number of instructions}
+ * optionally limited by {@link #getTimeSlice() a time slice}, is a task in a work-stealing {@link
+ * ForkJoinPool}. When a turn ends without the script finishing or yielding, the task is submitted
+ * again from the worker thread, which places it at the back of that worker's own queue. Idle
+ * workers steal tasks from busy ones, so scripts spread out across the pool.
+ *
+ * <p>There is only ever one task for each script, and it is only ever in one queue or running on
+ * one worker at a time, so a script never runs on two threads at once.
+ *
+ * <p>Turns are also limited by the {@link ScriptLimits} of the script. A script that has used up
+ * its instructions for a tick is not submitted again until the next tick starts.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+class ParallelScriptRunner implements ScriptScheduler {
+    /**
+     * A script, along with its scheduling state. Running the task executes one turn of the script.
+     *
+     * @author Ches Burks
+     */
+    private class ScriptTask implements Runnable {
+        /** The script we are running. */
+        private final ScriptRuntime script;
+
+        /** The account of the script. */
+        private final ScriptAccount account;
+
+        /** The tag the script has yielded with, or null if it is not trying to yield. */
+        private volatile String yieldTag;
+
+        /** Whether the script is halted and waiting to be resumed. Guarded by the runner lock. */
+        private boolean halted;
+
+        /**
+         * The number of resumes that had been requested when the current turn started, so that a
+         * resume that happens during the turn the script yields in still resumes it.
+         */
+        private volatile long turnStart;
+
+        /**
+         * Create a task for the script.
+         *
+         * @param script The script to run.
+         * @param account The account of the script.
+         */
+        ScriptTask(@NonNull ScriptRuntime script, @NonNull ScriptAccount account) {
+            this.script = script;
+            this.account = account;
+        }
+
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            turnStart = resumeCount.get();
+            final int quantum = (int) account.admit(script, instructionQuantum);
+            if (quantum <= 0) {
+                if (script.hasTerminated()) {
+                    finishTurn(this);
+                } else {
+                    // Sit out the rest of the tick
+                    CompletableFuture.delayedExecutor(
+                                    ScriptAccount.nanosUntilNextTick(), TimeUnit.NANOSECONDS, pool)
+                            .execute(this);
+                }
+                return;
+            }
+            final long slice = timeSlice * 1000;
+            final long start = System.nanoTime();
+            final long deadline = slice > 0 ? start + slice : 0;
+            int executed = 0;
+            try {
+                while (executed < quantum && yieldTag == null && !script.hasTerminated()) {
+                    final int remaining = quantum - executed;
+                    executed +=
+                            script.run(
+                                    slice > 0
+                                            ? Math.min(
+                                                    remaining,
+                                                    ParallelScriptRunner.TIME_CHECK_INTERVAL)
+                                            : remaining);
+                    if (slice > 0 && System.nanoTime() - deadline >= 0) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                script.halt();
+                log.warn(
+                        SafeResourceLoader.getString(
+                                "EXCEPTION_IN_RUNTIME", ScriptManager.getResourceBundle()),
+                        e);
+            }
+            account.charge(quantum, executed, System.nanoTime() - start);
+            finishTurn(this);
+        }
+    }
+
+    /** The tag to use when not specified for halted scripts. */
+    private static final String DEFAULT_TAG = "";
+
+    /**
+     * How many instructions we execute between checking the time, when using a time slice, so that
+     * we don't check the clock after every instruction.
+     */
+    private static final int TIME_CHECK_INTERVAL = 64;
+
+    /** The worker threads. */
+    private final ForkJoinPool pool;
+
+    /** The task for each script that has not terminated yet, running or halted. */
+    private final Map<ScriptRuntime, ScriptTask> tasks;
+
+    /** The tasks for halted scripts, grouped by the tag they yielded with. */
+    private final Map<String, List<ScriptTask>> haltedScripts;
+
+    /** The number of resumes that have been requested, for any tag. */
+    private final AtomicLong resumeCount;
+
+    /**
+     * The value of {@link #resumeCount} when each tag was last resumed. Only resumes that happened
+     * during a turn that is still going on matter, so older entries are pruned. Guarded by the
+     * lock.
+     */
+    private final Map<String, Long> lastResumed;
+
+    /**
+     * The maximum number of instructions a script executes each turn before the worker moves on to
+     * the next script.
+     *
+     * @return The number of instructions each script runs per turn.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile int instructionQuantum;
+
+    /**
+     * The maximum amount of time a script can run each turn in microseconds, or 0 if we only limit
+     * the number of instructions.
+     *
+     * @return The time slice in microseconds, or 0 if there is no time limit.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long timeSlice;
+
+    /** Whether we are still accepting and running scripts. */
+    private volatile boolean running;
+
+    /**
+     * Create a new runner, with the given number of worker threads.
+     *
+     * @param threads The number of worker threads. Values less than 1 are treated as 1.
+     */
+    ParallelScriptRunner(int threads) {
+        pool =
+                new ForkJoinPool(
+                        Math.max(1, threads),
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                        null,
+                        true);
+        tasks = new ConcurrentHashMap<>();
+        haltedScripts = new HashMap<>();
+        resumeCount = new AtomicLong();
+        lastResumed = new HashMap<>();
+        instructionQuantum = ScriptRunner.DEFAULT_INSTRUCTION_QUANTUM;
+        timeSlice = 0;
+        running = true;
+    }
+
+    /**
+     * Called by a worker at the end of a turn. Decides whether the script is done, needs to halt,
+     * or gets another turn.
+     *
+     * @param task The task that just finished a turn.
+     */
+    private void finishTurn(@NonNull ScriptTask task) {
+        if (!running) {
+            return;
+        }
+        if (task.script.hasTerminated()) {
+            tasks.remove(task.script);
+            return;
+        }
+        if (task.yieldTag != null) {
+            haltScript(task);
+            return;
+        }
+        // Goes to the back of this worker's queue, where it may be stolen
+        pool.execute(task);
+    }
+
+    /**
+     * Park a script until its tag is resumed. If the tag was already resumed since the turn the
+     * script yielded in started, it keeps running instead.
+     *
+     * @param task The task for the script that yielded.
+     */
+    @Synchronized
+    private void haltScript(@NonNull ScriptTask task) {
+        if (lastResumed.getOrDefault(task.yieldTag, 0L) > task.turnStart) {
+            task.yieldTag = null;
+            pool.execute(task);
+            return;
+        }
+        task.halted = true;
+        haltedScripts.computeIfAbsent(task.yieldTag, tag -> new ArrayList<>()).add(task);
+    }
+
+    /**
+     * Remove the resumes that happened before every turn that is still going on started, since
+     * those can't apply to any script that yields from now on.
+     */
+    private void pruneResumes() {
+        long oldestTurn = Long.MAX_VALUE;
+        for (ScriptTask task : tasks.values()) {
+            if (!task.halted) {
+                oldestTurn = Math.min(oldestTurn, task.turnStart);
+            }
+        }
+        final long oldest = oldestTurn;
+        lastResumed.values().removeIf(resumed -> resumed <= oldest);
+    }
+
+    @Override
+    public void requestResume() {
+        this.requestResume(ParallelScriptRunner.DEFAULT_TAG);
+    }
+
+    @Override
+    @Synchronized
+    public void requestResume(@NonNull String tag) {
+        lastResumed.put(tag, resumeCount.incrementAndGet());
+        if (lastResumed.size() > tasks.size()) {
+            // Only prune once there are more tags than scripts, so it is rarely done
+            pruneResumes();
+        }
+        List<ScriptTask> toResume = haltedScripts.remove(tag);
+        if (toResume == null || !running) {
+            return;
+        }
+        for (ScriptTask task : toResume) {
+            task.halted = false;
+            task.yieldTag = null;
+            pool.execute(task);
+        }
+    }
+
+    @Override
+    public void requestYield(@NonNull ScriptRuntime runtime) {
+        this.requestYield(runtime, ParallelScriptRunner.DEFAULT_TAG);
+    }
+
+    @Override
+    @Synchronized
+    public void requestYield(@NonNull ScriptRuntime runtime, @NonNull String tag) {
+        ScriptTask task = tasks.get(runtime);
+        if (task == null || task.halted) {
+            return;
+        }
+        task.yieldTag = tag;
+    }
+
+    @Override
+    public void runScript(@NonNull ScriptRuntime script, @NonNull ScriptAccount account) {
+        if (!running) {
+            return;
+        }
+        ScriptTask task = new ScriptTask(script, account);
+        tasks.put(script, task);
+        pool.execute(task);
+    }
+
+    @Override
+    public void setInstructionQuantum(int instructions) {
+        this.instructionQuantum = Math.max(1, instructions);
+    }
+
+    @Override
+    public void setTimeSlice(long microseconds) {
+        this.timeSlice = Math.max(0, microseconds);
+    }
+
+    @Override
+    public void start() {
+        // The pool starts worker threads as tasks are submitted
+    }
+
+    @Override
+    @Synchronized
+    public void terminate() {
+        running = false;
+        pool.shutdownNow();
+        tasks.clear();
+        haltedScripts.clear();
+        lastResumed.clear();
+    }
+}
@@ -0,0 +1,346 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.ScriptLimits.Limit;
+import com.ikalagaming.scripting.events.ScriptLimitExceeded;
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps track of how many instructions a script, or all the scripts of a plugin, have executed
+ * and how long they spent running, and holds them to their {@link ScriptLimits}. The account of a
+ * script is charged to the account of the plugin that started it as well, if there is one, so the
+ * limits of the plugin apply to all of its scripts together.
+ *
+ * <p>Runners ask the account of a script how many instructions it may run before each turn, and
+ * charge it for what actually ran afterwards. The instructions a turn is allowed are reserved
+ * until it is charged, and whatever it did not use is given back then, so scripts of the same
+ * plugin that run at the same time on different threads can't go over its limits together.
+ * Accounts of plugins are shared between those threads, so they are synchronized.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+public class ScriptAccount {
+    /** Used to report the time scripts spent running in milliseconds. */
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    /**
+     * How long until the next tick starts, when descheduled scripts can run again.
+     *
+     * @return The time until the next tick, in nanoseconds.
+     */
+    static long nanosUntilNextTick() {
+        final long length = ScriptAccount.tickLength();
+        final long now = System.nanoTime();
+        return length - Math.floorMod(now, length);
+    }
+
+    /**
+     * Find which tick a point in time is part of. Ticks are counted from an arbitrary point, so
+     * they can only be compared to each other.
+     *
+     * @param now The time, from {@link System#nanoTime()}.
+     * @return The tick number.
+     */
+    private static long tick(long now) {
+        return Math.floorDiv(now, ScriptAccount.tickLength());
+    }
+
+    /**
+     * The current length of a tick.
+     *
+     * @return The length of a tick, in nanoseconds.
+     */
+    private static long tickLength() {
+        return ScriptManager.getTickLength() * ScriptAccount.NANOS_PER_MILLI;
+    }
+
+    /**
+     * The name of the plugin this is the account for, or that started the script this is the
+     * account for. Null if the script was not started by a plugin.
+     *
+     * @return The name of the plugin, or null if there isn't one.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private final String plugin;
+
+    /** The account of the plugin, if this is the account of a script started by one. */
+    private final ScriptAccount parent;
+
+    /**
+     * The limits this account is held to.
+     *
+     * @return The limits.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile ScriptLimits limits;
+
+    /** The number of instructions executed in total. */
+    private long instructions;
+
+    /** The time spent running in total, in nanoseconds. */
+    private long runTime;
+
+    /**
+     * The number of instructions that turns which have not been charged yet are allowed to run.
+     * These count against the limits as if they had already been executed.
+     */
+    private long reserved;
+
+    /** The tick we are counting instructions for, see {@link #tick(long)}. */
+    private long tick;
+
+    /** The number of instructions executed during the current tick. */
+    private long tickInstructions;
+
+    /**
+     * The last tick that a script was descheduled for, so we only report that once per tick. This
+     * is -1 if it has never happened.
+     */
+    private long descheduledTick = -1;
+
+    /**
+     * Create an account.
+     *
+     * @param plugin The name of the plugin the account is for, or that started the script. Null if
+     *     there is no plugin.
+     * @param limits The limits to hold the account to.
+     * @param parent The account of the plugin that started the script, or null if this is the
+     *     account of a plugin or there isn't one.
+     */
+    ScriptAccount(String plugin, @NonNull ScriptLimits limits, ScriptAccount parent) {
+        this.plugin = plugin;
+        this.limits = limits;
+        this.parent = parent;
+    }
+
+    /**
+     * Add to the totals of just this account, and give back the instructions that were reserved
+     * for the turn.
+     *
+     * @param admitted The number of instructions that were reserved for the turn.
+     * @param executed The number of instructions that were executed.
+     * @param nanos The time it took, in nanoseconds.
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    private synchronized void add(long admitted, long executed, long nanos, long now) {
+        rollOver(now);
+        reserved -= admitted;
+        instructions += executed;
+        tickInstructions += executed;
+        runTime += nanos;
+    }
+
+    /**
+     * Check if a script can run, and how far. Scripts that are over their total instructions or
+     * run time, or whose plugin is, are halted. Scripts that have used up their instructions for
+     * the current tick are descheduled until the next one. Either way, an event is fired the first
+     * time it happens in a tick.
+     *
+     * <p>The instructions that are allowed are reserved in this account and the account of the
+     * plugin, and must be passed to {@link #charge(long, long, long)} once the turn is over.
+     *
+     * @param script The script that wants to run.
+     * @param wanted The most instructions the script wants to run.
+     * @return The most instructions the script can run right now, which is 0 if it must not run.
+     */
+    long admit(@NonNull ScriptRuntime script, long wanted) {
+        final long now = System.nanoTime();
+        ScriptAccount offender = null;
+        Limit limit = null;
+        for (ScriptAccount account = this; account != null; account = account.parent) {
+            limit = account.exceeded();
+            if (limit != null) {
+                offender = account;
+                break;
+            }
+        }
+        if (offender != null) {
+            script.halt();
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "SCRIPT_LIMIT_HALTED", ScriptManager.getResourceBundle()),
+                    limit,
+                    offender.getInstructions(),
+                    offender.getRunTime() / ScriptAccount.NANOS_PER_MILLI);
+            new ScriptLimitExceeded(script, this, offender, limit, true).fire();
+            return 0;
+        }
+
+        final long allowed = reserve(wanted, now);
+        if (allowed == 0 && reportDeschedule(now)) {
+            offender = this;
+            while (offender.parent != null && offender.remaining(now) > 0) {
+                offender = offender.parent;
+            }
+            log.debug(
+                    SafeResourceLoader.getString(
+                            "SCRIPT_LIMIT_DESCHEDULED", ScriptManager.getResourceBundle()),
+                    offender.getLimits().instructionsPerTick());
+            new ScriptLimitExceeded(script, this, offender, Limit.INSTRUCTIONS_PER_TICK, false)
+                    .fire();
+        }
+        return allowed;
+    }
+
+    /**
+     * Charge the account, and the account of its plugin, for a turn of the script. Instructions
+     * that were admitted but not executed can be used by later turns again.
+     *
+     * @param admitted The number of instructions {@link #admit(ScriptRuntime, long)} allowed.
+     * @param executed The number of instructions that were executed.
+     * @param nanos The time it took, in nanoseconds.
+     */
+    void charge(long admitted, long executed, long nanos) {
+        final long now = System.nanoTime();
+        for (ScriptAccount account = this; account != null; account = account.parent) {
+            account.add(admitted, executed, nanos, now);
+        }
+    }
+
+    /**
+     * Check if this account is over a limit that halts scripts.
+     *
+     * @return The limit that was exceeded, or null if there isn't one.
+     */
+    private synchronized Limit exceeded() {
+        final ScriptLimits current = limits;
+        if (current.totalInstructions() > 0 && instructions >= current.totalInstructions()) {
+            return Limit.TOTAL_INSTRUCTIONS;
+        }
+        if (current.runTime() > 0 && runTime >= current.runTime() * ScriptAccount.NANOS_PER_MILLI) {
+            return Limit.RUN_TIME;
+        }
+        return null;
+    }
+
+    /**
+     * The number of instructions executed in total.
+     *
+     * @return The number of instructions.
+     */
+    public synchronized long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * The time spent running in total. This is the time between the start and end of each turn the
+     * scripts had, so it includes time spent in methods they called.
+     *
+     * @return The time spent running, in nanoseconds.
+     */
+    public synchronized long getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * Give back instructions that were reserved in just this account.
+     *
+     * @param unused The number of instructions to give back.
+     */
+    private synchronized void release(long unused) {
+        reserved -= unused;
+    }
+
+    /**
+     * The most instructions this account allows to run right now, ignoring its plugin. Reserved
+     * instructions are counted as already used.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return The number of instructions left this tick or in total, whichever is less, or {@link
+     *     Long#MAX_VALUE} if there is no limit.
+     */
+    private synchronized long remaining(long now) {
+        rollOver(now);
+        final ScriptLimits current = limits;
+        long result = Long.MAX_VALUE;
+        if (current.instructionsPerTick() > 0) {
+            result = Math.max(0, current.instructionsPerTick() - tickInstructions - reserved);
+        }
+        if (current.totalInstructions() > 0) {
+            result =
+                    Math.min(
+                            result,
+                            Math.max(0, current.totalInstructions() - instructions - reserved));
+        }
+        return result;
+    }
+
+    /**
+     * Check if we still need to report the script being descheduled this tick, and remember that
+     * we did.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return Whether this is the first time the script was descheduled this tick.
+     */
+    private synchronized boolean reportDeschedule(long now) {
+        final long current = ScriptAccount.tick(now);
+        if (descheduledTick == current) {
+            return false;
+        }
+        descheduledTick = current;
+        return true;
+    }
+
+    /**
+     * Reserve as many of the instructions we want as this account and the account of its plugin
+     * allow. Each account only keeps what all of them could give.
+     *
+     * @param wanted The most instructions to reserve.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return The number of instructions that were reserved.
+     */
+    private long reserve(long wanted, long now) {
+        final long granted = take(wanted, now);
+        if (parent == null || granted == 0) {
+            return granted;
+        }
+        final long shared = parent.reserve(granted, now);
+        if (shared < granted) {
+            release(granted - shared);
+        }
+        return shared;
+    }
+
+    /**
+     * Start counting instructions for a new tick, if the current one is over.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    private void rollOver(long now) {
+        final long current = ScriptAccount.tick(now);
+        if (current != tick) {
+            tick = current;
+            tickInstructions = 0;
+        }
+    }
+
+    /**
+     * Change the limits this account is held to. Usage so far still counts against the new
+     * limits.
+     *
+     * @param limits The new limits.
+     */
+    void setLimits(@NonNull ScriptLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Reserve as many of the instructions we want as just this account allows.
+     *
+     * @param wanted The most instructions to reserve.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return The number of instructions that were reserved.
+     */
+    private synchronized long take(long wanted, long now) {
+        final long granted = Math.min(wanted, remaining(now));
+        reserved += granted;
+        return granted;
+    }
+}
@@ -0,0 +1,327 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.CompiledScript;
+import com.ikalagaming.scripting.interpreter.InstructionType;
+import com.ikalagaming.scripting.interpreter.PackedProgram;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Reads and writes precompiled scripts, so that scripts which have not changed since they were
+ * last compiled can skip parsing and compilation entirely. Artifacts are stored next to the source
+ * file, with the {@link #EXTENSION} extension added to the full name of the source file.
+ *
+ * <p>An artifact starts with a header containing {@link #MAGIC}, the {@link #FORMAT_VERSION}, the
+ * {@link #COMPILER_VERSION}, the version of the build that wrote it, the number of instruction
+ * types the compiler knew about, and the size and SHA-256 hash of the source file it was compiled
+ * from. It is considered stale if any of those don't match. After the header are the variable
+ * names, the argument types for static calls, the line in the source that each instruction came
+ * from, and the {@link PackedProgram}.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+public class ScriptArtifact {
+    /** The file extension used for precompiled scripts. */
+    public static final String EXTENSION = ".iksc";
+
+    /** The first bytes of every artifact, the characters "IKSC". */
+    public static final int MAGIC = 0x494B5343;
+
+    /** The version of the artifact format. Increase this when the format changes. */
+    public static final int FORMAT_VERSION = 2;
+
+    /**
+     * The version of the compiler. Increase this when the compiler or optimizers change the
+     * instructions they generate for the same source, such as to fix a bug, so that artifacts
+     * written by older versions are compiled again.
+     */
+    public static final int COMPILER_VERSION = 1;
+
+    /**
+     * The version of the build we are running, so that artifacts are compiled again after an
+     * update even if nobody remembered to change the {@link #COMPILER_VERSION}.
+     */
+    private static final String BUILD_VERSION = ScriptArtifact.buildVersion();
+
+    /**
+     * Find where the artifact for a source file goes, which is the name of the source file with
+     * {@link #EXTENSION} added to the end. Sources that only differ by extension get different
+     * artifacts. The path is absolute, so that the artifact always has a parent folder to write
+     * temporary files in.
+     *
+     * @param source The script source file.
+     * @return The absolute path of the artifact for that source.
+     */
+    public static Path artifactPath(@NonNull Path source) {
+        final Path absolute = source.toAbsolutePath();
+        return absolute.resolveSibling(absolute.getFileName() + ScriptArtifact.EXTENSION);
+    }
+
+    /**
+     * Find the version of the build, from the manifest of the jar we were loaded from.
+     *
+     * @return The version, or an empty string if we are not running from a jar with a version.
+     */
+    private static String buildVersion() {
+        final String version = ScriptArtifact.class.getPackage().getImplementationVersion();
+        return version == null ? "" : version;
+    }
+
+    /**
+     * Load the precompiled version of a source file, if there is an artifact for it that is up to
+     * date. The artifact is read into memory all at once, rather than memory mapped, so that it
+     * can be replaced right away if it turns out to be stale.
+     *
+     * @param source The script source file.
+     * @return The compiled script, or an empty optional if there is no usable artifact.
+     */
+    public static Optional<CompiledScript> load(@NonNull Path source) {
+        final Path artifact = ScriptArtifact.artifactPath(source);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(artifact));
+            if (buffer.getInt() != ScriptArtifact.MAGIC
+                    || buffer.getInt() != ScriptArtifact.FORMAT_VERSION
+                    || buffer.getInt() != ScriptArtifact.COMPILER_VERSION
+                    || !ScriptArtifact.BUILD_VERSION.equals(ScriptArtifact.readString(buffer))
+                    || buffer.getInt() != InstructionType.values().length
+                    || buffer.getLong() != Files.size(source)
+                    || !ScriptCache.hash(Files.readAllBytes(source))
+                            .equals(ScriptArtifact.readString(buffer))) {
+                // Out of date, or written by a different version
+                return Optional.empty();
+            }
+            Optional<CompiledScript> script = ScriptArtifact.readScript(buffer);
+            if (script.isEmpty()) {
+                log.warn(
+                        SafeResourceLoader.getString(
+                                "ARTIFACT_INVALID", ScriptManager.getResourceBundle()),
+                        artifact);
+            }
+            return script;
+        } catch (NoSuchFileException e) {
+            // Not compiled yet
+            return Optional.empty();
+        } catch (IOException | BufferUnderflowException e) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "ARTIFACT_INVALID", ScriptManager.getResourceBundle()),
+                    artifact);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Read the body of an artifact, after the header.
+     *
+     * @param buffer The buffer to read from.
+     * @return The script, or an empty optional if the data is not valid.
+     */
+    private static Optional<CompiledScript> readScript(@NonNull ByteBuffer buffer) {
+        final int variableCount = buffer.getInt();
+        if (variableCount < 0 || variableCount > buffer.remaining() / Integer.BYTES) {
+            return Optional.empty();
+        }
+        List<String> variableNames = new ArrayList<>(variableCount);
+        for (int i = 0; i < variableCount; ++i) {
+            variableNames.add(ScriptArtifact.readString(buffer));
+        }
+
+        final int callCount = buffer.getInt();
+        if (callCount < 0 || callCount > buffer.remaining() / Integer.BYTES) {
+            return Optional.empty();
+        }
+        Map<Integer, List<Class<?>>> callArgumentTypes = new HashMap<>();
+        for (int i = 0; i < callCount; ++i) {
+            final int address = buffer.getInt();
+            final int argumentCount = buffer.getInt();
+            if (argumentCount < 0 || argumentCount > buffer.remaining() / Integer.BYTES) {
+                return Optional.empty();
+            }
+            List<Class<?>> types = new ArrayList<>(argumentCount);
+            for (int j = 0; j < argumentCount; ++j) {
+                ScriptArtifact.resolve(ScriptArtifact.readString(buffer)).ifPresent(types::add);
+            }
+            if (types.size() == argumentCount) {
+                callArgumentTypes.put(address, List.copyOf(types));
+            }
+            // Otherwise the call is left for the linker to figure out without the types
+        }
+
+        final int lineCount = buffer.getInt();
+        if (lineCount < 0 || lineCount > buffer.remaining() / Integer.BYTES) {
+            return Optional.empty();
+        }
+        int[] lines = new int[lineCount];
+        buffer.asIntBuffer().get(lines);
+        buffer.position(buffer.position() + lines.length * Integer.BYTES);
+
+        return PackedProgram.read(buffer)
+                .map(
+                        program ->
+                                new CompiledScript(
+                                        program,
+                                        List.copyOf(variableNames),
+                                        Map.copyOf(callArgumentTypes),
+                                        lines));
+    }
+
+    /**
+     * Read a string that was written as a length followed by UTF-8 bytes.
+     *
+     * @param buffer The buffer to read from.
+     * @return The string.
+     * @throws BufferUnderflowException If the buffer does not contain the whole string.
+     */
+    private static String readString(@NonNull ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check if a type will be found by {@link #resolve(String)} when the artifact is loaded again.
+     * Types from other class loaders, such as those of plugins, might not be.
+     *
+     * @param type The type to check.
+     * @return Whether the type can be stored in an artifact.
+     */
+    private static boolean resolvable(@NonNull Class<?> type) {
+        return ScriptArtifact.resolve(type.getName()).orElse(null) == type;
+    }
+
+    /**
+     * Find an argument type by name, using our own class loader.
+     *
+     * @param name The name of the class.
+     * @return The class, or an empty optional if it can't be found.
+     */
+    private static Optional<Class<?>> resolve(@NonNull String name) {
+        try {
+            return Optional.of(Class.forName(name, false, ScriptArtifact.class.getClassLoader()));
+        } catch (ClassNotFoundException | LinkageError e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write the artifact for a source file, replacing any existing one. The artifact is written to
+     * a temporary file first, so other threads or processes never see a partially written one.
+     *
+     * @param source The script source file.
+     * @param script The compiled version of that file.
+     * @return Whether the artifact was written. Scripts whose instructions could not be packed are
+     *     not written.
+     */
+    public static boolean write(@NonNull Path source, @NonNull CompiledScript script) {
+        if (!(script.getInstructions() instanceof PackedProgram program)) {
+            return false;
+        }
+        final Path artifact = ScriptArtifact.artifactPath(source);
+        Path temporary = null;
+        try {
+            final byte[] sourceBytes = Files.readAllBytes(source);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(ScriptArtifact.MAGIC);
+            header.writeInt(ScriptArtifact.FORMAT_VERSION);
+            header.writeInt(ScriptArtifact.COMPILER_VERSION);
+            ScriptArtifact.writeString(header, ScriptArtifact.BUILD_VERSION);
+            header.writeInt(InstructionType.values().length);
+            header.writeLong(sourceBytes.length);
+            ScriptArtifact.writeString(header, ScriptCache.hash(sourceBytes));
+
+            header.writeInt(script.getVariableNames().size());
+            for (String name : script.getVariableNames()) {
+                ScriptArtifact.writeString(header, name);
+            }
+            List<Map.Entry<Integer, List<Class<?>>>> calls = new ArrayList<>();
+            for (Map.Entry<Integer, List<Class<?>>> call :
+                    script.getCallArgumentTypes().entrySet()) {
+                if (call.getValue().stream().allMatch(ScriptArtifact::resolvable)) {
+                    calls.add(call);
+                }
+            }
+            header.writeInt(calls.size());
+            for (Map.Entry<Integer, List<Class<?>>> call : calls) {
+                header.writeInt(call.getKey());
+                header.writeInt(call.getValue().size());
+                for (Class<?> type : call.getValue()) {
+                    ScriptArtifact.writeString(header, type.getName());
+                }
+            }
+            header.writeInt(program.size());
+            for (int address = 0; address < program.size(); ++address) {
+                header.writeInt(script.getLine(address));
+            }
+            header.flush();
+
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.size() + program.serializedSize());
+            buffer.put(bytes.toByteArray());
+            program.write(buffer);
+
+            temporary = Files.createTempFile(artifact.getParent(), null, ScriptArtifact.EXTENSION);
+            Files.write(temporary, buffer.array());
+            Files.move(
+                    temporary,
+                    artifact,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "ARTIFACT_WRITE_FAILED", ScriptManager.getResourceBundle()),
+                    artifact);
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // We already warned about the artifact
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Write a string as a length followed by UTF-8 bytes.
+     *
+     * @param output The output to write to.
+     * @param string The string to write.
+     * @throws IOException If the string could not be written.
+     */
+    private static void writeString(@NonNull DataOutputStream output, @NonNull String string)
+            throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /** Private constructor so that this class is not instantiated. */
+    private ScriptArtifact() {
+        throw new UnsupportedOperationException("This utility class should not be instantiated");
+    }
+}
@@ -0,0 +1,230 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.CompiledScript;
+import com.ikalagaming.scripting.interpreter.PackedProgram;
+
+import lombok.Getter;
+import lombok.NonNull;
+import org.antlr.v4.runtime.CharStreams;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A cache of compiled scripts, keyed by a hash of the script source, so that running the same
+ * script text repeatedly only compiles it once. Compiled scripts are immutable and shared, each run
+ * gets its own runtime.
+ *
+ * <p>The least recently used scripts are evicted once there are more than {@link #getMaxEntries()}
+ * scripts, or their estimated size goes over {@link #getMaxBytes()}. Scripts that fail to compile
+ * are not cached.
+ *
+ * @author Ches Burks
+ */
+public class ScriptCache {
+    /** The default maximum number of scripts to keep. */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /** The default maximum estimated size of all cached scripts, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    /** The estimated size of an instruction that could not be packed, in bytes. */
+    private static final int UNPACKED_INSTRUCTION_SIZE = 128;
+
+    /**
+     * A cached script.
+     *
+     * @author Ches Burks
+     * @param script The compiled script.
+     * @param size The estimated size of the script in bytes.
+     */
+    private record Entry(CompiledScript script, long size) {}
+
+    /**
+     * Estimate how much memory a compiled script takes.
+     *
+     * @param script The script.
+     * @return The estimated size in bytes.
+     */
+    private static long estimateSize(@NonNull CompiledScript script) {
+        long size =
+                script.getInstructions() instanceof PackedProgram packed
+                        ? packed.serializedSize()
+                        : (long) script.getInstructions().size()
+                                * ScriptCache.UNPACKED_INSTRUCTION_SIZE;
+        for (String name : script.getVariableNames()) {
+            size += name.length() * 2L;
+        }
+        return size;
+    }
+
+    /**
+     * Hash the contents of a script source file.
+     *
+     * @param source The bytes of the script source.
+     * @return The SHA-256 hash of the source, as a hex string.
+     */
+    static String hash(@NonNull byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hash the source of a script.
+     *
+     * @param source The script source.
+     * @return The SHA-256 hash of the source, as a hex string.
+     */
+    static String hash(@NonNull String source) {
+        return ScriptCache.hash(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The cached scripts by source hash, in order from least to most recently used. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of times a script was found in the cache.
+     *
+     * @return The number of cache hits.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long hits;
+
+    /**
+     * The number of times a script was not in the cache and had to be compiled.
+     *
+     * @return The number of cache misses.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long misses;
+
+    /**
+     * The number of scripts that were removed to keep the cache within its limits.
+     *
+     * @return The number of evictions.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long evictions;
+
+    /**
+     * The estimated size of all cached scripts, in bytes.
+     *
+     * @return The estimated size of the cache.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long currentBytes;
+
+    /**
+     * The maximum number of scripts to keep.
+     *
+     * @return The maximum number of cached scripts.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile int maxEntries = ScriptCache.DEFAULT_MAX_ENTRIES;
+
+    /**
+     * The maximum estimated size of all cached scripts, in bytes.
+     *
+     * @return The maximum size of the cache.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long maxBytes = ScriptCache.DEFAULT_MAX_BYTES;
+
+    /** Remove all cached scripts. The hit, miss and eviction counts are kept. */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Fetch the compiled version of a script, compiling and caching it if it is not already cached.
+     *
+     * @param source The script source.
+     * @return The compiled script, or an empty optional if it could not be compiled.
+     */
+    public Optional<CompiledScript> compile(@NonNull String source) {
+        final String key = ScriptCache.hash(source);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                ++hits;
+                return Optional.of(entry.script());
+            }
+            ++misses;
+        }
+
+        Optional<CompiledScript> script =
+                IkalaScriptCompiler.compile(CharStreams.fromString(source));
+        if (script.isEmpty()) {
+            return script;
+        }
+        final Entry entry = new Entry(script.get(), ScriptCache.estimateSize(script.get()));
+        synchronized (this) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                // Someone else compiled it at the same time
+                currentBytes -= previous.size();
+            }
+            currentBytes += entry.size();
+            evict();
+        }
+        return script;
+    }
+
+    /** Remove the least recently used scripts until we are within our limits. */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && (entries.size() > maxEntries || currentBytes > maxBytes)) {
+            currentBytes -= iterator.next().getValue().size();
+            iterator.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Set the maximum estimated size of all cached scripts, evicting scripts if we are over the
+     * new limit.
+     *
+     * @param bytes The maximum size in bytes, or 0 to not cache anything.
+     */
+    public synchronized void setMaxBytes(long bytes) {
+        maxBytes = Math.max(0, bytes);
+        evict();
+    }
+
+    /**
+     * Set the maximum number of scripts to keep, evicting scripts if we are over the new limit.
+     *
+     * @param count The maximum number of scripts, or 0 to not cache anything.
+     */
+    public synchronized void setMaxEntries(int count) {
+        maxEntries = Math.max(0, count);
+        evict();
+    }
+
+    /**
+     * The number of scripts currently cached.
+     *
+     * @return The number of cached scripts.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
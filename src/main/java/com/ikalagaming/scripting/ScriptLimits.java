@@ -0,0 +1,41 @@
+package com.ikalagaming.scripting;
+
+/**
+ * Limits on how much a script, or all the scripts of a plugin together, can execute. A limit of 0
+ * (or less) means there is no limit of that kind.
+ *
+ * <p>Scripts that use up their instructions for a tick are descheduled until the next tick starts,
+ * so they can't slow down everything else, but keep running after that. Scripts that go over their
+ * total instructions or run time are halted.
+ *
+ * <p>Limits are checked between turns, so run time can go over by up to a time slice. Compiled
+ * scripts, and scripts of one plugin running on different threads at once, can also run slightly
+ * more instructions than their limits allow.
+ *
+ * @author Ches Burks
+ * @param instructionsPerTick The most instructions that can run each tick, see {@link
+ *     ScriptManager#setTickLength(long)}.
+ * @param totalInstructions The most instructions that can run in total.
+ * @param runTime The most time that can be spent running, in milliseconds. Time spent waiting to
+ *     run, or yielded, does not count.
+ * @see ScriptManager#setScriptLimits(ScriptLimits)
+ * @see ScriptManager#setPluginLimits(String, ScriptLimits)
+ */
+public record ScriptLimits(long instructionsPerTick, long totalInstructions, long runTime) {
+    /**
+     * The kinds of limits a script can go over.
+     *
+     * @author Ches Burks
+     */
+    public enum Limit {
+        /** The instructions that can run each tick. */
+        INSTRUCTIONS_PER_TICK,
+        /** The instructions that can run in total. */
+        TOTAL_INSTRUCTIONS,
+        /** The time that can be spent running. */
+        RUN_TIME;
+    }
+
+    /** No limits at all, which is the default. */
+    public static final ScriptLimits NONE = new ScriptLimits(0, 0, 0);
+}
@@ -1,6 +1,7 @@
 package com.ikalagaming.scripting;
 
 import com.ikalagaming.localization.Localization;
+import com.ikalagaming.scripting.interpreter.CompiledScript;
 import com.ikalagaming.scripting.interpreter.ScriptRuntime;
 import com.ikalagaming.util.SafeResourceLoader;
 
@@ -15,6 +16,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -22,6 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Handles scripting.
@@ -31,6 +35,9 @@ import java.util.ResourceBundle;
 @Slf4j
 public class ScriptManager {
 
+    /** The default length of a tick in milliseconds, which is 20 ticks per second. */
+    public static final long DEFAULT_TICK_LENGTH = 50;
+
     /**
      * The current resource bundle for the script manager.
      *
@@ -54,26 +61,168 @@ public class ScriptManager {
     private static Map<FunctionRegistration, Method> registeredMethods =
             Collections.synchronizedMap(new HashMap<>());
 
-    /** Runs scripts on a different thread. */
-    private static ScriptRunner runner;
+    /**
+     * Registered methods indexed by name, then by parameter count. This is an immutable snapshot
+     * that is replaced whenever classes are registered or unregistered, so looking up methods does
+     * not need to lock or allocate.
+     */
+    private static volatile Map<String, List<List<Method>>> methodIndex = Map.of();
+
+    /**
+     * Incremented every time the registered methods change, so that scripts which linked calls
+     * against older registrations know to link them again.
+     *
+     * @return The current version of the registered methods.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static volatile int registryVersion = 0;
+
+    /** Runs scripts on one or more other threads. */
+    private static volatile ScriptScheduler runner;
+
+    /**
+     * The number of threads scripts are run on. If more than one, scripts are spread across a pool
+     * of worker threads.
+     *
+     * @return The number of threads used to run scripts.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static int workerThreads = 1;
+
+    /**
+     * If not null, each script is run to completion on its own thread created by this factory,
+     * instead of scripts taking turns on the worker threads.
+     *
+     * @return The factory used to create a thread for each script, or null if scripts take turns.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static ThreadFactory scriptThreadFactory = null;
+
+    /**
+     * The maximum number of instructions each script runs per turn before the next script gets to
+     * run.
+     *
+     * @return The number of instructions each script runs per turn.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static int instructionQuantum = ScriptRunner.DEFAULT_INSTRUCTION_QUANTUM;
+
+    /**
+     * The maximum amount of time each script runs per turn in microseconds, or 0 if we only limit
+     * the number of instructions.
+     *
+     * @return The time slice in microseconds, or 0 if there is no time limit.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static long timeSlice = 0;
+
+    /**
+     * The number of backward jumps a script makes, which is roughly the number of loop iterations,
+     * before it is compiled to bytecode in the background. 0 if scripts are only ever interpreted.
+     *
+     * @return The number of backward jumps before a script is compiled.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static volatile int compileThreshold = ScriptRuntime.DEFAULT_COMPILE_THRESHOLD;
+
+    /**
+     * Whether scripts run from files are saved as precompiled artifacts next to the source file,
+     * and loaded from those artifacts instead of being compiled again while they are up to date.
+     *
+     * @return Whether precompiled script artifacts are used.
+     * @see ScriptArtifact
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static volatile boolean artifactsEnabled = true;
+
+    /**
+     * Compiled versions of scripts that were run as strings, so running the same text again does
+     * not compile it again.
+     *
+     * @return The cache of compiled scripts.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static final ScriptCache scriptCache = new ScriptCache();
+
+    /**
+     * The limits each script is held to on its own.
+     *
+     * @return The limits for each script.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static volatile ScriptLimits scriptLimits = ScriptLimits.NONE;
+
+    /**
+     * The length of a tick in milliseconds, which is how often the instructions each script can run
+     * per tick are given back to it.
+     *
+     * @return The length of a tick in milliseconds.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private static volatile long tickLength = ScriptManager.DEFAULT_TICK_LENGTH;
+
+    /** The accounts of plugins that have run scripts or have limits, indexed by plugin name. */
+    private static final Map<String, ScriptAccount> pluginAccounts = new ConcurrentHashMap<>();
 
     /**
      * Fetch a list of registered methods with the given name and parameter count.
      *
      * @param name The name of the method.
      * @param parameterCount The number of parameters.
-     * @return A list containing all matching registered methods, which may be empty.
+     * @return An unmodifiable list containing all matching registered methods, which may be empty.
      */
     public static List<Method> getMethods(@NonNull String name, int parameterCount) {
-        List<Method> methods = new ArrayList<>();
+        List<List<Method>> byParameterCount = ScriptManager.methodIndex.get(name);
+        if (byParameterCount == null
+                || parameterCount < 0
+                || parameterCount >= byParameterCount.size()) {
+            return List.of();
+        }
+        return byParameterCount.get(parameterCount);
+    }
+
+    /**
+     * Fetch the account of a plugin, which tracks what all the scripts it started have executed.
+     *
+     * @param plugin The name of the plugin.
+     * @return The account of the plugin, or an empty optional if it has not run any scripts or had
+     *     limits set.
+     */
+    public static Optional<ScriptAccount> getPluginAccount(@NonNull String plugin) {
+        return Optional.ofNullable(ScriptManager.pluginAccounts.get(plugin));
+    }
+
+    /**
+     * Rebuild the method index from the registered methods, and swap it in for the old one. Must be
+     * called after registered methods change.
+     */
+    private static void rebuildMethodIndex() {
+        Map<String, List<List<Method>>> index = new HashMap<>();
         for (var entry : ScriptManager.registeredMethods.entrySet()) {
-            if (!name.equals(entry.getKey().name())
-                    || (parameterCount != entry.getKey().parameterTypes().size())) {
-                continue;
+            List<List<Method>> byParameterCount =
+                    index.computeIfAbsent(entry.getKey().name(), name -> new ArrayList<>());
+            final int parameterCount = entry.getKey().parameterTypes().size();
+            while (byParameterCount.size() <= parameterCount) {
+                byParameterCount.add(new ArrayList<>());
             }
-            methods.add(entry.getValue());
+            byParameterCount.get(parameterCount).add(entry.getValue());
         }
-        return methods;
+        Map<String, List<List<Method>>> snapshot = new HashMap<>();
+        index.forEach(
+                (name, byParameterCount) ->
+                        snapshot.put(name, byParameterCount.stream().map(List::copyOf).toList()));
+        ScriptManager.methodIndex = Map.copyOf(snapshot);
+        ++ScriptManager.registryVersion;
     }
 
     /**
@@ -83,6 +232,7 @@ public class ScriptManager {
      *
      * @param clazz The class we are registering.
      */
+    @Synchronized
     public static void registerClass(Class<?> clazz) {
         if (ScriptManager.registeredClasses.contains(clazz)) {
             return;
@@ -102,6 +252,7 @@ public class ScriptManager {
             ScriptManager.registeredMethods.put(registration, method);
         }
         ScriptManager.classMethods.put(clazz.getSimpleName(), List.copyOf(funcs));
+        ScriptManager.rebuildMethodIndex();
     }
 
     /**
@@ -110,7 +261,10 @@ public class ScriptManager {
      * @see #yieldScript(ScriptRuntime)
      */
     public static void resume() {
-        ScriptManager.runner.requestResume();
+        ScriptScheduler current = ScriptManager.runner;
+        if (current != null) {
+            current.requestResume();
+        }
     }
 
     /**
@@ -120,41 +274,49 @@ public class ScriptManager {
      * @see #yieldScript(ScriptRuntime, String)
      */
     public static void resume(@NonNull String tag) {
-        ScriptManager.runner.requestResume(tag);
+        ScriptScheduler current = ScriptManager.runner;
+        if (current != null) {
+            current.requestResume(tag);
+        }
     }
 
     /**
-     * Actually run the script. Will start up a new thread if one does not exist.
+     * Execute a script as as string.
      *
-     * @param stream The stream to pass to the lexer.
-     * @return Whether we actually got back a program.
+     * @param script The file containing the script.
+     * @return Whether we successfully parsed and started to run the script.
      */
-    @Synchronized
-    private static boolean runScript(@NonNull CharStream stream) {
-        if (ScriptManager.runner == null) {
-            ScriptManager.runner = new ScriptRunner();
-            ScriptManager.runner.start();
-        }
-        Optional<ScriptRuntime> maybeScript = IkalaScriptCompiler.parse(stream);
-        if (maybeScript.isEmpty()) {
-            return false;
-        }
-        ScriptManager.runner.runScript(maybeScript.get());
-        return true;
+    public static boolean runScript(@NonNull File script) {
+        return ScriptManager.runScript(script, null);
     }
 
     /**
-     * Execute a script as as string.
+     * Execute a script from a file on behalf of a plugin, so that it counts against the limits of
+     * that plugin.
      *
      * @param script The file containing the script.
+     * @param plugin The name of the plugin running the script, or null if it is not run by one.
      * @return Whether we successfully parsed and started to run the script.
+     * @see #setPluginLimits(String, ScriptLimits)
      */
     @Synchronized
-    public static boolean runScript(@NonNull File script) {
+    public static boolean runScript(@NonNull File script, String plugin) {
         if (!script.exists() || !script.canRead()) {
             return false;
         }
 
+        final Path source = script.toPath();
+        final boolean useArtifact =
+                ScriptManager.artifactsEnabled
+                        && !source.toString().endsWith(ScriptArtifact.EXTENSION);
+        if (useArtifact) {
+            Optional<CompiledScript> precompiled = ScriptArtifact.load(source);
+            if (precompiled.isPresent()) {
+                ScriptManager.startScript(precompiled.get(), plugin);
+                return true;
+            }
+        }
+
         CharStream stream;
         try {
             stream = CharStreams.fromPath(script.toPath());
@@ -165,7 +327,15 @@ public class ScriptManager {
                     script.getAbsolutePath());
             return false;
         }
-        return ScriptManager.runScript(stream);
+        Optional<CompiledScript> maybeScript = IkalaScriptCompiler.compile(stream);
+        if (maybeScript.isEmpty()) {
+            return false;
+        }
+        if (useArtifact) {
+            ScriptArtifact.write(source, maybeScript.get());
+        }
+        ScriptManager.startScript(maybeScript.get(), plugin);
+        return true;
     }
 
     /**
@@ -173,20 +343,197 @@ public class ScriptManager {
      *
      * @param script The script to execute.
      * @return Whether we successfully parsed and started to run the script.
+     * @see #getScriptCache()
      */
     public static boolean runScript(@NonNull String script) {
-        CharStream stream = CharStreams.fromString(script);
-        return ScriptManager.runScript(stream);
+        return ScriptManager.runScript(script, null);
+    }
+
+    /**
+     * Execute a script as a string on behalf of a plugin, so that it counts against the limits of
+     * that plugin.
+     *
+     * @param script The script to execute.
+     * @param plugin The name of the plugin running the script, or null if it is not run by one.
+     * @return Whether we successfully parsed and started to run the script.
+     * @see #setPluginLimits(String, ScriptLimits)
+     */
+    @Synchronized
+    public static boolean runScript(@NonNull String script, String plugin) {
+        Optional<CompiledScript> maybeScript = ScriptManager.scriptCache.compile(script);
+        if (maybeScript.isEmpty()) {
+            return false;
+        }
+        ScriptManager.startScript(maybeScript.get(), plugin);
+        return true;
+    }
+
+    /**
+     * Set whether scripts run from files are saved as precompiled artifacts next to the source
+     * file, and loaded from them on later runs as long as the source has not changed. This skips
+     * parsing and compiling scripts that have already been compiled.
+     *
+     * @param enabled Whether to use precompiled script artifacts.
+     * @see ScriptArtifact
+     */
+    public static void setArtifactsEnabled(boolean enabled) {
+        ScriptManager.artifactsEnabled = enabled;
+    }
+
+    /**
+     * Set how many backward jumps a script makes, which is roughly the number of loop iterations,
+     * before it is compiled to bytecode in the background. Scripts keep being interpreted until
+     * compilation finishes, then switch over between instructions. Short scripts are never worth
+     * compiling, so they stay interpreted. Only affects scripts created after this is called.
+     *
+     * @param backwardJumps The number of backward jumps before compiling, or 0 (or less) to never
+     *     compile scripts automatically.
+     */
+    public static void setCompileThreshold(int backwardJumps) {
+        ScriptManager.compileThreshold = Math.max(0, backwardJumps);
+    }
+
+    /**
+     * Set the maximum number of instructions each script runs per turn before the next script gets
+     * to run. Larger values spend less time switching between scripts, smaller values let scripts
+     * take turns more often.
+     *
+     * @param instructions The number of instructions per turn. Values less than 1 are treated as 1.
+     */
+    @Synchronized
+    public static void setInstructionQuantum(int instructions) {
+        ScriptManager.instructionQuantum = Math.max(1, instructions);
+        if (ScriptManager.runner != null) {
+            ScriptManager.runner.setInstructionQuantum(ScriptManager.instructionQuantum);
+        }
+    }
+
+    /**
+     * Set the maximum amount of time each script runs per turn, in addition to the limit on the
+     * number of instructions.
+     *
+     * @param microseconds The time slice in microseconds, or 0 (or less) to only limit the number
+     *     of instructions.
+     */
+    @Synchronized
+    public static void setTimeSlice(long microseconds) {
+        ScriptManager.timeSlice = Math.max(0, microseconds);
+        if (ScriptManager.runner != null) {
+            ScriptManager.runner.setTimeSlice(ScriptManager.timeSlice);
+        }
+    }
+
+    /**
+     * Set the limits for all the scripts a plugin runs, taken together. These apply on top of the
+     * limits for each script, and what the scripts of the plugin have already executed counts
+     * against the new limits.
+     *
+     * @param plugin The name of the plugin.
+     * @param limits The limits for the plugin.
+     * @see #runScript(String, String)
+     * @see #runScript(File, String)
+     */
+    public static void setPluginLimits(@NonNull String plugin, @NonNull ScriptLimits limits) {
+        ScriptManager.pluginAccounts
+                .computeIfAbsent(plugin, name -> new ScriptAccount(name, limits, null))
+                .setLimits(limits);
+    }
+
+    /**
+     * Set the limits each script is held to on its own. Only affects scripts started after this is
+     * called.
+     *
+     * @param limits The limits for each script.
+     */
+    public static void setScriptLimits(@NonNull ScriptLimits limits) {
+        ScriptManager.scriptLimits = limits;
+    }
+
+    /**
+     * Run each script to completion on its own thread, created by the given factory. Scripts that
+     * yield block their thread until they are resumed, and slow native methods only block the
+     * script that called them. On Java 21 or later, passing {@code Thread.ofVirtual().factory()}
+     * allows very large numbers of mostly idle scripts. Overrides {@link #setWorkerThreads(int)}.
+     *
+     * <p>This only takes effect when the runner is started, which happens when the first script is
+     * run after startup or after a {@link #shutdown()}.
+     *
+     * @param factory The factory to create a thread for each script with, or null to have scripts
+     *     take turns on worker threads instead.
+     */
+    @Synchronized
+    public static void setScriptThreadFactory(ThreadFactory factory) {
+        ScriptManager.scriptThreadFactory = factory;
+    }
+
+    /**
+     * Set the length of a tick, which is how often the instructions each script can run per tick
+     * are given back to it. This should usually match the tick rate of the server, so that scripts
+     * can't use more than their share of each tick.
+     *
+     * @param milliseconds The length of a tick in milliseconds. Values less than 1 are treated as
+     *     1.
+     */
+    public static void setTickLength(long milliseconds) {
+        ScriptManager.tickLength = Math.max(1, milliseconds);
+    }
+
+    /**
+     * Set the number of threads that scripts are run on. With a single thread, scripts take turns
+     * on one runner thread. With more, scripts are spread across a pool of worker threads which
+     * balance the work between themselves.
+     *
+     * <p>This only takes effect when the runner is started, which happens when the first script is
+     * run after startup or after a {@link #shutdown()}.
+     *
+     * @param threads The number of threads to use. Values less than 1 are treated as 1.
+     */
+    @Synchronized
+    public static void setWorkerThreads(int threads) {
+        ScriptManager.workerThreads = Math.max(1, threads);
     }
 
     /**
      * Stop executing scripts, shut down the runner thread. This should be called while the program
      * is shutting down.
      */
+    @Synchronized
     public static void shutdown() {
         if (ScriptManager.runner != null) {
             ScriptManager.runner.terminate();
+            ScriptManager.runner = null;
+        }
+    }
+
+    /**
+     * Start running a compiled script. Will start up the script runner if it does not exist. Must
+     * be called while synchronized.
+     *
+     * @param script The script to run.
+     * @param plugin The name of the plugin running the script, or null if it is not run by one.
+     */
+    private static void startScript(@NonNull CompiledScript script, String plugin) {
+        if (ScriptManager.runner == null) {
+            if (ScriptManager.scriptThreadFactory != null) {
+                ScriptManager.runner =
+                        new ThreadPerScriptRunner(ScriptManager.scriptThreadFactory);
+            } else if (ScriptManager.workerThreads > 1) {
+                ScriptManager.runner = new ParallelScriptRunner(ScriptManager.workerThreads);
+            } else {
+                ScriptManager.runner = new ScriptRunner();
+            }
+            ScriptManager.runner.setInstructionQuantum(ScriptManager.instructionQuantum);
+            ScriptManager.runner.setTimeSlice(ScriptManager.timeSlice);
+            ScriptManager.runner.start();
         }
+        ScriptAccount pluginAccount =
+                plugin == null
+                        ? null
+                        : ScriptManager.pluginAccounts.computeIfAbsent(
+                                plugin, name -> new ScriptAccount(name, ScriptLimits.NONE, null));
+        ScriptManager.runner.runScript(
+                script.createRuntime(),
+                new ScriptAccount(plugin, ScriptManager.scriptLimits, pluginAccount));
     }
 
     /**
@@ -195,6 +542,7 @@ public class ScriptManager {
      *
      * @param clazz The class we are unregistering.
      */
+    @Synchronized
     public static void unregisterClass(Class<?> clazz) {
         if (!ScriptManager.registeredClasses.contains(clazz)) {
             return;
@@ -204,6 +552,7 @@ public class ScriptManager {
                 .get(clazz.getSimpleName())
                 .forEach(ScriptManager.registeredMethods::remove);
         ScriptManager.classMethods.remove(clazz.getSimpleName());
+        ScriptManager.rebuildMethodIndex();
     }
 
     /**
@@ -215,7 +564,10 @@ public class ScriptManager {
      * @see #resume()
      */
     public static void yieldScript(@NonNull ScriptRuntime runtime) {
-        ScriptManager.runner.requestYield(runtime);
+        ScriptScheduler current = ScriptManager.runner;
+        if (current != null) {
+            current.requestYield(runtime);
+        }
     }
 
     /**
@@ -228,7 +580,10 @@ public class ScriptManager {
      * @see #resume(String)
      */
     public static void yieldScript(@NonNull ScriptRuntime runtime, @NonNull String tag) {
-        ScriptManager.runner.requestYield(runtime, tag);
+        ScriptScheduler current = ScriptManager.runner;
+        if (current != null) {
+            current.requestYield(runtime, tag);
+        }
     }
 
     /** Private constructor so that this class is not instantiated. */
@@ -3,6 +3,7 @@ package com.ikalagaming.scripting;
 import com.ikalagaming.scripting.interpreter.ScriptRuntime;
 import com.ikalagaming.util.SafeResourceLoader;
 
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.Synchronized;
 import lombok.extern.slf4j.Slf4j;
@@ -10,18 +11,28 @@ import lombok.extern.slf4j.Slf4j;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Holds a a list of scripts and handles their execution.
  *
+ * <p>Scripts take turns in a round-robin fashion. Each turn, a script runs up to {@link
+ * #getInstructionQuantum() a fixed number of instructions}, optionally limited by {@link
+ * #getTimeSlice() a time slice}, unless it finishes or yields first. Turns are also limited by the
+ * {@link ScriptLimits} of the script, and scripts that have used up their instructions for a tick
+ * sit out until the next one.
+ *
  * @author Ches Burks
  */
 @Slf4j
-class ScriptRunner extends Thread {
+class ScriptRunner extends Thread implements ScriptScheduler {
 
     /**
      * The number of milliseconds to wait before timing out and checking if there are more items
@@ -32,8 +43,50 @@ class ScriptRunner extends Thread {
     /** The tag to use when not specified for halted scripts. */
     private static final String DEFAULT_TAG = "";
 
+    /** The default number of instructions a script runs each turn. */
+    static final int DEFAULT_INSTRUCTION_QUANTUM = 1000;
+
+    /**
+     * How many instructions we execute between checking the time, when using a time slice, so that
+     * we don't check the clock after every instruction.
+     */
+    private static final int TIME_CHECK_INTERVAL = 64;
+
+    /** The scripts that are currently running. Only used by the runner thread. */
     private List<ScriptRuntime> scripts;
 
+    /** Scripts that were submitted to run, but have not been picked up by the runner thread yet. */
+    private Queue<ScriptRuntime> newScripts;
+
+    /** The account of each script that has not terminated yet. */
+    private Map<ScriptRuntime, ScriptAccount> accounts;
+
+    /**
+     * The maximum number of instructions a script executes each turn before the next script gets to
+     * run.
+     *
+     * @return The number of instructions each script runs per turn.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile int instructionQuantum;
+
+    /**
+     * The maximum amount of time a script can run each turn in microseconds, or 0 if we only limit
+     * the number of instructions.
+     *
+     * @return The time slice in microseconds, or 0 if there is no time limit.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long timeSlice;
+
+    /** The script the runner thread is currently executing, if any. */
+    private volatile ScriptRuntime currentScript;
+
+    /** Set if the current script yields, so we can end its turn early. */
+    private volatile boolean currentScriptYielded;
+
     /** Tracks requests to halt scripts. */
     private Map<ScriptRuntime, String> yieldRequests;
 
@@ -52,6 +105,10 @@ class ScriptRunner extends Thread {
     public ScriptRunner() {
         setName("ScriptRunner");
         scripts = new ArrayList<>();
+        newScripts = new ConcurrentLinkedQueue<>();
+        accounts = new ConcurrentHashMap<>();
+        instructionQuantum = ScriptRunner.DEFAULT_INSTRUCTION_QUANTUM;
+        timeSlice = 0;
         yieldRequests = Collections.synchronizedMap(new HashMap<>());
         resumeRequests = Collections.synchronizedList(new ArrayList<>());
         haltedScripts = new HashMap<>();
@@ -59,9 +116,20 @@ class ScriptRunner extends Thread {
         syncObject = new Object();
     }
 
+    /** Start running any scripts that were submitted since we last checked. */
+    private void addNewScripts() {
+        ScriptRuntime script;
+        while ((script = newScripts.poll()) != null) {
+            scripts.add(script);
+        }
+    }
+
     /** Halt any scripts as required. */
     @Synchronized
     private void haltScripts() {
+        if (yieldRequests.isEmpty()) {
+            return;
+        }
         for (var entry : yieldRequests.entrySet()) {
             this.haltedScripts.put(entry.getKey(), entry.getValue());
             this.scripts.remove(entry.getKey());
@@ -70,6 +138,7 @@ class ScriptRunner extends Thread {
     }
 
     /** Request that we resume any scripts halted without a tag. */
+    @Override
     @Synchronized
     public void requestResume() {
         this.resumeRequests.add(ScriptRunner.DEFAULT_TAG);
@@ -81,6 +150,7 @@ class ScriptRunner extends Thread {
      *
      * @param tag The tag to resume.
      */
+    @Override
     @Synchronized
     public void requestResume(@NonNull String tag) {
         this.resumeRequests.add(tag);
@@ -95,9 +165,10 @@ class ScriptRunner extends Thread {
      * @see #requestYield(ScriptRuntime, String)
      * @see #requestResume()
      */
+    @Override
     @Synchronized
     public void requestYield(@NonNull ScriptRuntime runtime) {
-        this.yieldRequests.put(runtime, ScriptRunner.DEFAULT_TAG);
+        this.requestYield(runtime, ScriptRunner.DEFAULT_TAG);
     }
 
     /**
@@ -108,22 +179,31 @@ class ScriptRunner extends Thread {
      * @see #requestYield(ScriptRuntime)
      * @see #requestResume(String)
      */
+    @Override
     @Synchronized
     public void requestYield(@NonNull ScriptRuntime runtime, @NonNull String tag) {
         this.yieldRequests.put(runtime, tag);
+        if (runtime == currentScript) {
+            currentScriptYielded = true;
+        }
     }
 
     /** Resume any scripts as required. */
     @Synchronized
     private void resumeScripts() {
+        if (resumeRequests.isEmpty()) {
+            return;
+        }
         for (String tag : resumeRequests) {
-            List<ScriptRuntime> toResume =
-                    this.haltedScripts.entrySet().stream()
-                            .filter(entry -> entry.getValue().equals(tag))
-                            .map(Entry::getKey)
-                            .collect(Collectors.toCollection(ArrayList::new));
-            this.scripts.addAll(toResume);
-            toResume.forEach(this.haltedScripts::remove);
+            Iterator<Entry<ScriptRuntime, String>> iterator =
+                    this.haltedScripts.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry<ScriptRuntime, String> entry = iterator.next();
+                if (entry.getValue().equals(tag)) {
+                    this.scripts.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
         }
         this.resumeRequests.clear();
     }
@@ -135,6 +215,7 @@ class ScriptRunner extends Thread {
     @Override
     public void run() {
         while (running) {
+            addNewScripts();
             while (scripts.isEmpty()) {
                 synchronized (syncObject) {
                     try {
@@ -152,6 +233,7 @@ class ScriptRunner extends Thread {
                 if (!running) {
                     break;
                 }
+                addNewScripts();
                 resumeScripts();
             }
             if (!scripts.isEmpty()) {
@@ -162,48 +244,136 @@ class ScriptRunner extends Thread {
         }
         // Done running
         scripts.clear();
+        newScripts.clear();
+        accounts.clear();
     }
 
     /**
      * Adds the script to the list of currently running scripts.
      *
      * @param script The script to run.
+     * @param account The account of the script.
      */
-    @Synchronized
-    public void runScript(@NonNull ScriptRuntime script) {
-        this.scripts.add(script);
+    @Override
+    public void runScript(@NonNull ScriptRuntime script, @NonNull ScriptAccount account) {
+        this.accounts.put(script, account);
+        this.newScripts.add(script);
         this.wakeUp();
     }
 
     /**
-     * Go through and execute one instruction for each script. Any fatal exceptions will result in
-     * the script being halted. Any scripts that is terminated, naturally or not, will be removed
-     * from the list.
+     * Run a single script for one turn. The script runs until it has executed the instruction
+     * quantum, used up its time slice, terminated, or yielded. Any fatal exceptions will result in
+     * the script being halted. Scripts that are over their limits don't get a turn.
+     *
+     * @param script The script to run.
+     * @param quantum The maximum number of instructions to execute.
+     * @param slice The time slice in nanoseconds, or 0 if there is no time limit.
+     * @return Whether the script got to run.
+     */
+    private boolean runTurn(@NonNull ScriptRuntime script, final int quantum, final long slice) {
+        final ScriptAccount account = accounts.get(script);
+        final int turnQuantum = (int) account.admit(script, quantum);
+        if (turnQuantum <= 0) {
+            return false;
+        }
+        currentScript = script;
+        currentScriptYielded = false;
+        final long start = System.nanoTime();
+        final long deadline = slice > 0 ? start + slice : 0;
+        int executed = 0;
+        try {
+            while (executed < turnQuantum && !currentScriptYielded && !script.hasTerminated()) {
+                final int remaining = turnQuantum - executed;
+                executed +=
+                        script.run(
+                                slice > 0
+                                        ? Math.min(remaining, ScriptRunner.TIME_CHECK_INTERVAL)
+                                        : remaining);
+                if (slice > 0 && System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            script.halt();
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "EXCEPTION_IN_RUNTIME", ScriptManager.getResourceBundle()),
+                    e);
+        } finally {
+            currentScript = null;
+            account.charge(turnQuantum, executed, System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Set the maximum number of instructions each script executes per turn. Larger values mean
+     * less time spent switching between scripts, smaller values mean scripts take turns more
+     * often.
+     *
+     * @param instructions The number of instructions per turn. Values less than 1 are treated as 1.
+     */
+    @Override
+    public void setInstructionQuantum(int instructions) {
+        this.instructionQuantum = Math.max(1, instructions);
+    }
+
+    /**
+     * Set the maximum amount of time each script can run per turn, in addition to the limit on
+     * instructions.
+     *
+     * @param microseconds The time slice in microseconds, or 0 (or less) to only limit the number
+     *     of instructions.
+     */
+    @Override
+    public void setTimeSlice(long microseconds) {
+        this.timeSlice = Math.max(0, microseconds);
+    }
+
+    /**
+     * Go through and give each script a turn, in order. Any scripts that are terminated, naturally
+     * or not, will be removed from the list. If none of the scripts could run because they used
+     * up their instructions for this tick, we wait for the next tick.
      */
-    @Synchronized
     private void stepScripts() {
+        final int quantum = instructionQuantum;
+        final long slice = timeSlice * 1000;
+        boolean ran = false;
         for (ScriptRuntime script : this.scripts) {
-            try {
-                script.step();
-            } catch (Exception e) {
-                script.halt();
-                log.warn(
-                        SafeResourceLoader.getString(
-                                "EXCEPTION_IN_RUNTIME", ScriptManager.getResourceBundle()),
-                        e);
-            }
+            ran |= runTurn(script, quantum, slice);
         }
         this.scripts.removeIf(ScriptRuntime::hasTerminated);
+        this.accounts.keySet().removeIf(ScriptRuntime::hasTerminated);
+        if (!ran && !this.scripts.isEmpty()) {
+            waitForNextTick();
+        }
     }
 
     /**
      * Stops the thread from executing its run method in preparation for shutting down the thread.
      */
+    @Override
     public void terminate() {
         running = false;
         wakeUp();
     }
 
+    /** Sleep until the next tick starts, or we are woken up because there is something to do. */
+    private void waitForNextTick() {
+        synchronized (syncObject) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(syncObject, ScriptAccount.nanosUntilNextTick());
+            } catch (InterruptedException e) {
+                log.warn(
+                        SafeResourceLoader.getString(
+                                "THREAD_INTERRUPTED", ScriptManager.getResourceBundle()));
+                // Re-interrupt as per SonarLint java:S2142
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /** Wakes this thread up when it is sleeping */
     private void wakeUp() {
         synchronized (syncObject) {
@@ -0,0 +1,75 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+
+import lombok.NonNull;
+
+/**
+ * Decides when and on which thread scripts are executed, and handles scripts yielding and being
+ * resumed.
+ *
+ * @author Ches Burks
+ */
+interface ScriptScheduler {
+    /**
+     * Request that we resume any scripts halted without a tag.
+     *
+     * @see #requestYield(ScriptRuntime)
+     */
+    void requestResume();
+
+    /**
+     * Request that we resume any scripts halted using the given tag.
+     *
+     * @param tag The tag to resume.
+     * @see #requestYield(ScriptRuntime, String)
+     */
+    void requestResume(@NonNull String tag);
+
+    /**
+     * Request that we halt the given script without a tag. These will be resumed by {@link
+     * #requestResume()}.
+     *
+     * @param runtime The runtime to halt.
+     */
+    void requestYield(@NonNull ScriptRuntime runtime);
+
+    /**
+     * Request that we halt the given script, we resume using the same tag.
+     *
+     * @param runtime The runtime to halt.
+     * @param tag The tag that will be used to resume.
+     */
+    void requestYield(@NonNull ScriptRuntime runtime, @NonNull String tag);
+
+    /**
+     * Start running the given script. Before each turn, the script is checked against the limits
+     * of its account, and afterward the account is charged for what it ran.
+     *
+     * @param script The script to run.
+     * @param account The account of the script.
+     */
+    void runScript(@NonNull ScriptRuntime script, @NonNull ScriptAccount account);
+
+    /**
+     * Set the maximum number of instructions each script executes per turn.
+     *
+     * @param instructions The number of instructions per turn. Values less than 1 are treated as 1.
+     */
+    void setInstructionQuantum(int instructions);
+
+    /**
+     * Set the maximum amount of time each script can run per turn, in addition to the limit on
+     * instructions.
+     *
+     * @param microseconds The time slice in microseconds, or 0 (or less) to only limit the number
+     *     of instructions.
+     */
+    void setTimeSlice(long microseconds);
+
+    /** Start executing scripts, such as by starting up worker threads. */
+    void start();
+
+    /** Stop executing scripts in preparation for shutting down. */
+    void terminate();
+}
@@ -0,0 +1,360 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Synchronized;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs each script to completion on its own thread, rather than stepping scripts in turns.
+ *
+ * <p>A script that yields actually blocks its thread until the tag it yielded with is resumed, and
+ * a script that calls a slow native method only blocks itself. This works best with a factory for
+ * lightweight threads, such as virtual threads on Java 21 or later, so that large numbers of mostly
+ * idle scripts are cheap.
+ *
+ * <p>After each {@link #getInstructionQuantum() quantum of instructions}, or {@link #getTimeSlice()
+ * time slice} if one is set, the script thread gives other threads a chance to run. Turns are
+ * also limited by the {@link ScriptLimits} of the script, and a script that has used up its
+ * instructions for a tick sleeps until the next one.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+class ThreadPerScriptRunner implements ScriptScheduler {
+    /**
+     * The state of a running script.
+     *
+     * @author Ches Burks
+     */
+    private class ScriptState {
+        /** The script we are running. */
+        private final ScriptRuntime script;
+
+        /** The account of the script. */
+        private final ScriptAccount account;
+
+        /** The tag the script has yielded with, or null if it is not trying to yield. */
+        private volatile String yieldTag;
+
+        /**
+         * The number of resumes that had been requested when the current turn started, so that a
+         * resume that happens during the turn the script yields in still wakes it, like it would in
+         * the other runners.
+         */
+        private volatile long turnStart;
+
+        /** Whether the script is blocked waiting to be resumed. Guarded by the runner lock. */
+        private boolean parked;
+
+        /** The phase of the phaser the script is waiting on. Guarded by the runner lock. */
+        private int phase;
+
+        /**
+         * Create state for the script.
+         *
+         * @param script The script to run.
+         * @param account The account of the script.
+         */
+        ScriptState(@NonNull ScriptRuntime script, @NonNull ScriptAccount account) {
+            this.script = script;
+            this.account = account;
+        }
+
+        /** Run the script until it terminates, blocking whenever it yields. */
+        private void runToCompletion() {
+            try {
+                while (running && !script.hasTerminated()) {
+                    runTurn();
+                    final String tag = yieldTag;
+                    if (tag != null) {
+                        park(this, tag);
+                        yieldTag = null;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            } catch (Exception e) {
+                script.halt();
+                log.warn(
+                        SafeResourceLoader.getString(
+                                "EXCEPTION_IN_RUNTIME", ScriptManager.getResourceBundle()),
+                        e);
+            } finally {
+                scripts.remove(script);
+            }
+        }
+
+        /**
+         * Run one quantum of instructions, stopping early if we yield or terminate. If the script
+         * is over its limits, it either halts or sleeps until the next tick instead.
+         */
+        private void runTurn() {
+            turnStart = resumeCount.get();
+            final int quantum = (int) account.admit(script, instructionQuantum);
+            if (quantum <= 0) {
+                if (!script.hasTerminated()) {
+                    // Sit out the rest of the tick
+                    LockSupport.parkNanos(ScriptAccount.nanosUntilNextTick());
+                }
+                return;
+            }
+            final long slice = timeSlice * 1000;
+            final long start = System.nanoTime();
+            final long deadline = slice > 0 ? start + slice : 0;
+            int executed = 0;
+            try {
+                while (executed < quantum && yieldTag == null && !script.hasTerminated()) {
+                    final int remaining = quantum - executed;
+                    executed +=
+                            script.run(
+                                    slice > 0
+                                            ? Math.min(
+                                                    remaining,
+                                                    ThreadPerScriptRunner.TIME_CHECK_INTERVAL)
+                                            : remaining);
+                    if (slice > 0 && System.nanoTime() - deadline >= 0) {
+                        break;
+                    }
+                }
+            } finally {
+                account.charge(quantum, executed, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * The scripts waiting for a tag to be resumed.
+     *
+     * @author Ches Burks
+     */
+    private static class Waiters {
+        /** Advanced each time the tag is resumed, which releases every waiting script at once. */
+        private final Phaser phaser = new Phaser(1);
+
+        /** The number of scripts waiting. Guarded by the runner lock. */
+        private int count;
+    }
+
+    /** The tag to use when not specified for halted scripts. */
+    private static final String DEFAULT_TAG = "";
+
+    /**
+     * How many instructions we execute between checking the time, when using a time slice, so that
+     * we don't check the clock after every instruction.
+     */
+    private static final int TIME_CHECK_INTERVAL = 64;
+
+    /** Creates the thread each script runs on. */
+    private final ThreadFactory threadFactory;
+
+    /** The state for each script that has not terminated yet. */
+    private final Map<ScriptRuntime, ScriptState> scripts;
+
+    /**
+     * The scripts waiting for each tag. Tags are removed once nobody is waiting for them. Guarded
+     * by the lock.
+     */
+    private final Map<String, Waiters> waiting;
+
+    /** The number of resumes that have been requested, for any tag. */
+    private final AtomicLong resumeCount;
+
+    /**
+     * The value of {@link #resumeCount} when each tag was last resumed. Only resumes that happened
+     * during a turn that is still going on matter, so older entries are pruned. Guarded by the
+     * lock.
+     */
+    private final Map<String, Long> lastResumed;
+
+    /**
+     * The number of instructions a script executes before giving other threads a chance to run.
+     *
+     * @return The number of instructions each script runs per turn.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile int instructionQuantum;
+
+    /**
+     * The maximum amount of time a script runs before giving other threads a chance to run in
+     * microseconds, or 0 if we only limit the number of instructions.
+     *
+     * @return The time slice in microseconds, or 0 if there is no time limit.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private volatile long timeSlice;
+
+    /** Whether we are still accepting and running scripts. */
+    private volatile boolean running;
+
+    /**
+     * Create a new runner.
+     *
+     * @param threadFactory Used to create a thread for each script.
+     */
+    ThreadPerScriptRunner(@NonNull ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        scripts = new ConcurrentHashMap<>();
+        waiting = new HashMap<>();
+        resumeCount = new AtomicLong();
+        lastResumed = new HashMap<>();
+        instructionQuantum = ScriptRunner.DEFAULT_INSTRUCTION_QUANTUM;
+        timeSlice = 0;
+        running = true;
+    }
+
+    /**
+     * Block the current thread until the tag is resumed or we are shutting down. If the tag was
+     * already resumed since the turn the script yielded in started, we don't block at all. If the
+     * thread is interrupted, the script is halted.
+     *
+     * @param state The script that is waiting.
+     * @param tag The tag to wait for.
+     */
+    private void park(@NonNull ScriptState state, @NonNull String tag) {
+        final Waiters waiters = startWaiting(state, tag);
+        if (waiters == null) {
+            return;
+        }
+        try {
+            waiters.phaser.awaitAdvanceInterruptibly(state.phase);
+        } catch (InterruptedException e) {
+            // Re-interrupt as per SonarLint java:S2142
+            Thread.currentThread().interrupt();
+            state.script.halt();
+        } finally {
+            stopWaiting(state, tag, waiters);
+        }
+    }
+
+    /**
+     * Remove the resumes that happened before every turn that is still going on started, since
+     * those can't apply to any script that yields from now on.
+     */
+    private void pruneResumes() {
+        long oldestTurn = Long.MAX_VALUE;
+        for (ScriptState state : scripts.values()) {
+            if (!state.parked) {
+                oldestTurn = Math.min(oldestTurn, state.turnStart);
+            }
+        }
+        final long oldest = oldestTurn;
+        lastResumed.values().removeIf(resumed -> resumed <= oldest);
+    }
+
+    @Override
+    public void requestResume() {
+        this.requestResume(ThreadPerScriptRunner.DEFAULT_TAG);
+    }
+
+    @Override
+    @Synchronized
+    public void requestResume(@NonNull String tag) {
+        lastResumed.put(tag, resumeCount.incrementAndGet());
+        if (lastResumed.size() > scripts.size()) {
+            // Only prune once there are more tags than scripts, so it is rarely done
+            pruneResumes();
+        }
+        Waiters waiters = waiting.get(tag);
+        if (waiters != null) {
+            waiters.phaser.arrive();
+        }
+    }
+
+    @Override
+    public void requestYield(@NonNull ScriptRuntime runtime) {
+        this.requestYield(runtime, ThreadPerScriptRunner.DEFAULT_TAG);
+    }
+
+    @Override
+    public void requestYield(@NonNull ScriptRuntime runtime, @NonNull String tag) {
+        ScriptState state = scripts.get(runtime);
+        if (state == null) {
+            return;
+        }
+        state.yieldTag = tag;
+    }
+
+    @Override
+    public void runScript(@NonNull ScriptRuntime script, @NonNull ScriptAccount account) {
+        if (!running) {
+            return;
+        }
+        ScriptState state = new ScriptState(script, account);
+        scripts.put(script, state);
+        threadFactory.newThread(state::runToCompletion).start();
+    }
+
+    @Override
+    public void setInstructionQuantum(int instructions) {
+        this.instructionQuantum = Math.max(1, instructions);
+    }
+
+    @Override
+    public void setTimeSlice(long microseconds) {
+        this.timeSlice = Math.max(0, microseconds);
+    }
+
+    @Override
+    public void start() {
+        // Threads are started for each script as it is submitted
+    }
+
+    /**
+     * Start waiting for a tag, unless it was already resumed since the turn the script yielded in
+     * started or we are shutting down. The phase to wait for is stored in the state of the script.
+     *
+     * @param state The script that is waiting.
+     * @param tag The tag to wait for.
+     * @return What to wait on, or null if the script should not wait.
+     */
+    @Synchronized
+    private Waiters startWaiting(@NonNull ScriptState state, @NonNull String tag) {
+        if (!running || lastResumed.getOrDefault(tag, 0L) > state.turnStart) {
+            return null;
+        }
+        Waiters waiters = waiting.computeIfAbsent(tag, t -> new Waiters());
+        ++waiters.count;
+        state.parked = true;
+        state.phase = waiters.phaser.getPhase();
+        return waiters;
+    }
+
+    /**
+     * Stop waiting for a tag, removing it once nobody is waiting for it any more.
+     *
+     * @param state The script that was waiting.
+     * @param tag The tag it was waiting for.
+     * @param waiters What it was waiting on.
+     */
+    @Synchronized
+    private void stopWaiting(
+            @NonNull ScriptState state, @NonNull String tag, @NonNull Waiters waiters) {
+        state.parked = false;
+        if (--waiters.count == 0 && waiting.get(tag) == waiters) {
+            waiting.remove(tag);
+        }
+    }
+
+    @Override
+    @Synchronized
+    public void terminate() {
+        running = false;
+        waiting.values().forEach(waiters -> waiters.phaser.forceTermination());
+        waiting.clear();
+        lastResumed.clear();
+    }
+}
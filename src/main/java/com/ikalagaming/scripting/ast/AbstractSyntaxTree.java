@@ -67,6 +67,7 @@ import com.ikalagaming.util.SafeResourceLoader;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 /**
@@ -79,6 +80,21 @@ public class AbstractSyntaxTree {
     private static final String UNKNOWN_STATEMENT = "UNKNOWN_STATEMENT";
     private static final String UNKNOWN_UNARY_EXPRESSION = "UNKNOWN_UNARY_EXPRESSION";
 
+    /**
+     * Record the line in the source that a node starts on, so that instructions can be traced back
+     * to it.
+     *
+     * @param result The parsed node, may be null.
+     * @param node The context it was parsed from.
+     * @return The parsed node.
+     */
+    private static Node atLine(Node result, @NonNull ParserRuleContext node) {
+        if (result != null) {
+            result.setLine(node.getStart().getLine());
+        }
+        return result;
+    }
+
     /**
      * Fetch the base type of a primitive type.
      *
@@ -345,14 +361,16 @@ public class AbstractSyntaxTree {
      */
     private static Node process(BlockStatementContext node) {
         if (node.localVariableDeclarationStatement() != null) {
-            return AbstractSyntaxTree.process(
-                    node.localVariableDeclarationStatement().localVariableDeclaration());
+            return AbstractSyntaxTree.atLine(
+                    AbstractSyntaxTree.process(
+                            node.localVariableDeclarationStatement().localVariableDeclaration()),
+                    node);
         }
         if (node.statement() != null) {
-            return AbstractSyntaxTree.process(node.statement());
+            return AbstractSyntaxTree.atLine(AbstractSyntaxTree.process(node.statement()), node);
         }
         if (node.label() != null) {
-            return AbstractSyntaxTree.process(node.label());
+            return AbstractSyntaxTree.atLine(AbstractSyntaxTree.process(node.label()), node);
         }
 
         log.warn(
@@ -1173,7 +1191,10 @@ public class AbstractSyntaxTree {
             return AbstractSyntaxTree.process(node.block());
         }
         if (node.expressionStatement() != null) {
-            return AbstractSyntaxTree.process(node.expressionStatement().statementExpression());
+            // Bodies of loops and ifs without braces may be on a line of their own
+            return AbstractSyntaxTree.atLine(
+                    AbstractSyntaxTree.process(node.expressionStatement().statementExpression()),
+                    node);
         }
         if (node.emptyStatement() != null) {
             return new EmptyStatement();
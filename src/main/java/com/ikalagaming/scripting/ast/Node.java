@@ -23,6 +23,9 @@ public abstract class Node {
     /** The type of the node. */
     protected Type type;
 
+    /** The line in the source that the node starts on, or 0 if we don't know. */
+    protected int line;
+
     /**
      * Add a child to the list of children.
      *
@@ -0,0 +1,57 @@
+package com.ikalagaming.scripting.events;
+
+import com.ikalagaming.event.Event;
+import com.ikalagaming.scripting.ScriptAccount;
+import com.ikalagaming.scripting.ScriptLimits;
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Fired when a script goes over its {@link ScriptLimits}, or the limits of the plugin that started
+ * it. Scripts that go over their instructions for a tick are descheduled until the next tick, and
+ * this is fired once for each tick that happens in. Scripts that go over any other limit are
+ * halted.
+ *
+ * @author Ches Burks
+ */
+@Getter
+@AllArgsConstructor
+public class ScriptLimitExceeded extends Event {
+    /**
+     * The script that went over a limit.
+     *
+     * @return The script.
+     */
+    private final ScriptRuntime script;
+
+    /**
+     * The account of the script, with what it has executed so far.
+     *
+     * @return The account of the script.
+     */
+    private final ScriptAccount account;
+
+    /**
+     * The account whose limit was exceeded, which is either the account of the script or of the
+     * plugin that started it.
+     *
+     * @return The account that is over its limit.
+     */
+    private final ScriptAccount exceeded;
+
+    /**
+     * The limit that was exceeded.
+     *
+     * @return The limit.
+     */
+    private final ScriptLimits.Limit limit;
+
+    /**
+     * Whether the script was halted, rather than descheduled until the next tick.
+     *
+     * @return True if the script was halted, false if it was descheduled.
+     */
+    private final boolean halted;
+}
@@ -0,0 +1,2 @@
+/** Events fired by the scripting system. */
+package com.ikalagaming.scripting.events;
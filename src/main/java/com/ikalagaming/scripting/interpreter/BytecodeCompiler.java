@@ -0,0 +1,1048 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Compiles a program to JVM bytecode, loaded as a hidden class, so that the JIT can optimize it
+ * like any other Java code.
+ *
+ * <p>Each instruction is translated to bytecode that does the same thing as the interpreter, with
+ * the memory locations resolved ahead of time and jumps turned into branches. Variables and the
+ * stack stay in the runtime, so the compiled program can be entered at any instruction and can
+ * hand any instruction back to the interpreter. Calls, casts, string concatenation and anything
+ * else that isn't simple arithmetic or control flow are executed by the interpreter in the middle
+ * of the compiled code, which also makes every instruction a point we can resume from after a
+ * yield.
+ *
+ * <p>Instructions that the {@link ProgramVerifier} proved safe read variables directly, and don't
+ * check whether the program halted while loading their operands.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+class BytecodeCompiler {
+    /** The internal name of the runtime class. */
+    private static final String RUNTIME = "com/ikalagaming/scripting/interpreter/ScriptRuntime";
+
+    /** The internal name of the value store class. */
+    private static final String STORE = "com/ikalagaming/scripting/interpreter/ValueStore";
+
+    /** The internal name we give the compiled class. */
+    private static final String CLASS_NAME = "com/ikalagaming/scripting/interpreter/CompiledScript";
+
+    /** The internal name of the interface compiled classes implement. */
+    private static final String PROGRAM = "com/ikalagaming/scripting/interpreter/CompiledProgram";
+
+    /** The local variable holding the runtime. */
+    private static final int RUNTIME_LOCAL = 1;
+
+    /** The local variable holding the instruction budget. */
+    private static final int BUDGET_LOCAL = 2;
+
+    /** The local variable counting executed instructions. */
+    private static final int EXECUTED_LOCAL = 3;
+
+    /** A temporary local for the first int operand. */
+    private static final int FIRST_INT = 4;
+
+    /** A temporary local for the second int operand. */
+    private static final int SECOND_INT = 5;
+
+    /** A temporary local for the first double operand, which takes two slots. */
+    private static final int FIRST_DOUBLE = 6;
+
+    /** A temporary local for the second double operand, which takes two slots. */
+    private static final int SECOND_DOUBLE = 8;
+
+    /** The number of local variable slots the run method uses. */
+    private static final int MAX_LOCALS = 10;
+
+    /** The deepest the operand stack gets for any instruction. */
+    private static final int MAX_STACK = 8;
+
+    /** The largest method the JVM allows. */
+    private static final int MAX_CODE_LENGTH = 65_535;
+
+    /**
+     * Compiles hot programs one at a time in the background, so scripts don't wait for the
+     * compiler.
+     */
+    private static final ExecutorService BACKGROUND =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        Thread thread = new Thread(task, "Script Compiler");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    /** The program we are compiling. */
+    private final List<Instruction> instructions;
+
+    /** The number of variable slots the program uses. */
+    private final int variableCount;
+
+    /** The addresses of instructions that are proven to pass the runtime's checks. */
+    private final BitSet verified;
+
+    /** Whether the instruction being compiled needs its operands checked. */
+    private boolean checked;
+
+    /** The class we are generating. */
+    private final ClassFileWriter writer;
+
+    /** The body of the run method. */
+    private final ClassFileWriter.Code code;
+
+    /** The start of the code for each instruction. */
+    private final ClassFileWriter.Code.Label[] labels;
+
+    /** Returns the executed instruction count, leaving the program counter alone. */
+    private final ClassFileWriter.Code.Label exit;
+
+    /** Set the program counter to an address and return, indexed by that address. */
+    private final Map<Integer, ClassFileWriter.Code.Label> exits;
+
+    /**
+     * Set up to compile a program.
+     *
+     * @param instructions The program.
+     * @param variableCount The number of variable slots the program uses.
+     * @param verified The addresses of instructions that are proven to pass the runtime's checks.
+     */
+    private BytecodeCompiler(
+            @NonNull List<Instruction> instructions, int variableCount, @NonNull BitSet verified) {
+        this.instructions = instructions;
+        this.variableCount = variableCount;
+        this.verified = verified;
+        writer =
+                new ClassFileWriter(
+                        BytecodeCompiler.CLASS_NAME, "java/lang/Object", BytecodeCompiler.PROGRAM);
+        code = new ClassFileWriter.Code();
+        labels = new ClassFileWriter.Code.Label[instructions.size()];
+        for (int address = 0; address < labels.length; ++address) {
+            labels[address] = new ClassFileWriter.Code.Label();
+        }
+        exit = new ClassFileWriter.Code.Label();
+        exits = new TreeMap<>();
+    }
+
+    /**
+     * Compile a program to bytecode and load it.
+     *
+     * @param instructions The program.
+     * @param variableCount The number of variable slots the program uses.
+     * @param verified The addresses of instructions that are proven to pass the runtime's checks.
+     * @return The compiled program, or null if it could not be compiled, in which case it should
+     *     just be interpreted.
+     */
+    static CompiledProgram compile(
+            @NonNull List<Instruction> instructions, int variableCount, @NonNull BitSet verified) {
+        if (instructions.isEmpty()) {
+            return null;
+        }
+        final byte[] bytes = new BytecodeCompiler(instructions, variableCount, verified).generate();
+        if (bytes == null) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "PROGRAM_TOO_LARGE_TO_COMPILE", ScriptManager.getResourceBundle()),
+                    instructions.size());
+            return null;
+        }
+        try {
+            // As a nestmate of the runtime we can use its private members directly
+            final Class<?> compiled =
+                    MethodHandles.privateLookupIn(ScriptRuntime.class, MethodHandles.lookup())
+                            .defineHiddenClass(
+                                    bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE)
+                            .lookupClass();
+            return (CompiledProgram) compiled.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "COMPILATION_FAILED", ScriptManager.getResourceBundle()),
+                    e);
+            return null;
+        }
+    }
+
+    /**
+     * Compile a program on the background compiler thread. Programs that can't be compiled just
+     * keep being interpreted.
+     *
+     * @param instructions The program.
+     * @param variableCount The number of variable slots the program uses.
+     * @param verified The addresses of instructions that are proven to pass the runtime's checks.
+     * @param whenDone Called on the compiler thread with the compiled program, if we succeed.
+     */
+    static void compileInBackground(
+            @NonNull List<Instruction> instructions,
+            int variableCount,
+            @NonNull BitSet verified,
+            @NonNull Consumer<CompiledProgram> whenDone) {
+        BytecodeCompiler.BACKGROUND.execute(
+                () -> {
+                    CompiledProgram program =
+                            BytecodeCompiler.compile(instructions, variableCount, verified);
+                    if (program != null) {
+                        whenDone.accept(program);
+                    }
+                });
+    }
+
+    /**
+     * Check if a location holds a number, as far as the interpreter's type checks go.
+     *
+     * @param location The location.
+     * @return Whether the location is a character, integer, or double.
+     */
+    private static boolean isNumeric(@NonNull MemLocation location) {
+        return location.isChar() || location.isInt() || location.isDouble();
+    }
+
+    /**
+     * Find the conditional jump that does the opposite of the given one.
+     *
+     * @param opcode A conditional jump opcode that compares against zero.
+     * @return The opcode for the opposite condition.
+     */
+    private static int opposite(int opcode) {
+        return switch (opcode) {
+            case ClassFileWriter.IFEQ -> ClassFileWriter.IFNE;
+            case ClassFileWriter.IFNE -> ClassFileWriter.IFEQ;
+            case ClassFileWriter.IFLT -> ClassFileWriter.IFGE;
+            case ClassFileWriter.IFGE -> ClassFileWriter.IFLT;
+            case ClassFileWriter.IFGT -> ClassFileWriter.IFLE;
+            default -> ClassFileWriter.IFGT;
+        };
+    }
+
+    /**
+     * Start storing a value, emitting whatever needs to be on the operand stack before the value.
+     * The value should be pushed after this, followed by {@link #endStore(MemLocation, String)}.
+     *
+     * @param target The location we are storing to, which must be storable.
+     * @see #canStore(MemLocation)
+     */
+    private void beginStore(@NonNull MemLocation target) {
+        loadRuntime();
+        if (target.area() == MemArea.VARIABLE) {
+            getField("variables", "L" + BytecodeCompiler.STORE + ";");
+            pushInt((Integer) target.value());
+        }
+    }
+
+    /**
+     * Compile a logical operation on two booleans.
+     *
+     * @param i The instruction.
+     * @param opcode The bytecode for the operation.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean boolLogic(@NonNull Instruction i, int opcode) {
+        if (!i.firstLocation().isBoolean()
+                || !i.secondLocation().isBoolean()
+                || !canStore(i.targetLocation())) {
+            return false;
+        }
+        loadBoolean(i.firstLocation());
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        loadBoolean(i.secondLocation());
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.SECOND_INT);
+        exitIfHalted();
+        beginStore(i.targetLocation());
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.SECOND_INT);
+        code.op(opcode);
+        endStore(i.targetLocation(), "Boolean");
+        return true;
+    }
+
+    /**
+     * Check if we can store to a location without halting, which is true for the stack and valid
+     * variable slots.
+     *
+     * @param target The location we are storing to.
+     * @return Whether the store is always valid.
+     */
+    private boolean canStore(@NonNull MemLocation target) {
+        if (target.area() == MemArea.STACK) {
+            return true;
+        }
+        return target.area() == MemArea.VARIABLE
+                && target.value() instanceof Integer slot
+                && slot >= 0
+                && slot < variableCount;
+    }
+
+    /**
+     * Compile a math operation on two characters.
+     *
+     * @param i The instruction.
+     * @param opcode The bytecode for the operation.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean charMath(@NonNull Instruction i, int opcode) {
+        if (!i.firstLocation().isChar()
+                || !i.secondLocation().isChar()
+                || !canStore(i.targetLocation())) {
+            return false;
+        }
+        loadInt(i.firstLocation());
+        code.op(ClassFileWriter.I2C);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        loadInt(i.secondLocation());
+        code.op(ClassFileWriter.I2C);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.SECOND_INT);
+        exitIfHalted();
+        beginStore(i.targetLocation());
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.SECOND_INT);
+        code.op(opcode);
+        code.op(ClassFileWriter.I2C);
+        endStore(i.targetLocation(), "Char");
+        return true;
+    }
+
+    /**
+     * Compile a numeric comparison. Comparisons of anything else are left to the interpreter.
+     *
+     * @param i The instruction.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean compare(@NonNull Instruction i) {
+        if (!BytecodeCompiler.isNumeric(i.firstLocation())
+                || !BytecodeCompiler.isNumeric(i.secondLocation())) {
+            return false;
+        }
+        loadDouble(i.firstLocation());
+        code.op1(ClassFileWriter.DSTORE, BytecodeCompiler.FIRST_DOUBLE);
+        loadDouble(i.secondLocation());
+        code.op1(ClassFileWriter.DSTORE, BytecodeCompiler.SECOND_DOUBLE);
+        exitIfHalted();
+        loadRuntime();
+        code.op1(ClassFileWriter.DLOAD, BytecodeCompiler.FIRST_DOUBLE);
+        code.op1(ClassFileWriter.DLOAD, BytecodeCompiler.SECOND_DOUBLE);
+        invokeRuntime("compareNumbers", "(DD)V");
+        return true;
+    }
+
+    /**
+     * Compile a numeric comparison followed by a jump to the target address. Comparisons of
+     * anything else are left to the interpreter.
+     *
+     * @param i The instruction.
+     * @param address The address of the instruction.
+     * @param opcode The bytecode for the condition.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean compareAndJump(@NonNull Instruction i, int address, int opcode) {
+        if (!isValidJump(i.targetLocation())) {
+            return false;
+        }
+        return compare(i) && jump(i.targetLocation(), address, opcode);
+    }
+
+    /**
+     * Compile a single instruction, if it is one we can compile.
+     *
+     * @param address The address of the instruction.
+     * @return Whether we could compile the instruction, false if it should be interpreted.
+     */
+    private boolean compileInstruction(int address) {
+        final Instruction i = instructions.get(address);
+        return switch (i.type()) {
+            case ADD_CHAR -> charMath(i, ClassFileWriter.IADD);
+            case ADD_DOUBLE -> doubleMath(i, ClassFileWriter.DADD);
+            case ADD_INT -> intMath(i, ClassFileWriter.IADD);
+            case AND -> boolLogic(i, ClassFileWriter.IAND);
+            case CMP -> compare(i);
+            case CMP_JEQ -> compareAndJump(i, address, ClassFileWriter.IFEQ);
+            case CMP_JGE -> compareAndJump(i, address, ClassFileWriter.IFGE);
+            case CMP_JGT -> compareAndJump(i, address, ClassFileWriter.IFGT);
+            case CMP_JLE -> compareAndJump(i, address, ClassFileWriter.IFLE);
+            case CMP_JLT -> compareAndJump(i, address, ClassFileWriter.IFLT);
+            case CMP_JNE -> compareAndJump(i, address, ClassFileWriter.IFNE);
+            case DIV_CHAR -> charMath(i, ClassFileWriter.IDIV);
+            case DIV_DOUBLE -> doubleMath(i, ClassFileWriter.DDIV);
+            case DIV_INT -> intMath(i, ClassFileWriter.IDIV);
+            case INC_JLE -> incrementAndJump(i, address, ClassFileWriter.IFLE);
+            case INC_JLT -> incrementAndJump(i, address, ClassFileWriter.IFLT);
+            case JEQ -> jump(i.firstLocation(), address, ClassFileWriter.IFEQ);
+            case JGE -> jump(i.firstLocation(), address, ClassFileWriter.IFGE);
+            case JGT -> jump(i.firstLocation(), address, ClassFileWriter.IFGT);
+            case JLE -> jump(i.firstLocation(), address, ClassFileWriter.IFLE);
+            case JLT -> jump(i.firstLocation(), address, ClassFileWriter.IFLT);
+            case JMP -> jump(i.firstLocation(), address, ClassFileWriter.GOTO);
+            case JMP_LOOKUP -> switchJump(i, address, false);
+            case JMP_TABLE -> switchJump(i, address, true);
+            case JNE -> jump(i.firstLocation(), address, ClassFileWriter.IFNE);
+            case MOD_CHAR -> charMath(i, ClassFileWriter.IREM);
+            case MOD_DOUBLE -> doubleMath(i, ClassFileWriter.DREM);
+            case MOD_INT -> intMath(i, ClassFileWriter.IREM);
+            case MOV -> move(i);
+            case MUL_CHAR -> charMath(i, ClassFileWriter.IMUL);
+            case MUL_DOUBLE -> doubleMath(i, ClassFileWriter.DMUL);
+            case MUL_INT -> intMath(i, ClassFileWriter.IMUL);
+            case NEG_CHAR -> negate(i, "Char");
+            case NEG_DOUBLE -> negate(i, "Double");
+            case NEG_INT -> negate(i, "Int");
+            case NOP -> true;
+            case NOT -> not(i);
+            case OR -> boolLogic(i, ClassFileWriter.IOR);
+            case SET_EQ -> set(i, ClassFileWriter.IFEQ);
+            case SET_GE -> set(i, ClassFileWriter.IFGE);
+            case SET_GT -> set(i, ClassFileWriter.IFGT);
+            case SET_LE -> set(i, ClassFileWriter.IFLE);
+            case SET_LT -> set(i, ClassFileWriter.IFLT);
+            case SET_NE -> set(i, ClassFileWriter.IFNE);
+            case SUB_CHAR -> charMath(i, ClassFileWriter.ISUB);
+            case SUB_DOUBLE -> doubleMath(i, ClassFileWriter.DSUB);
+            case SUB_INT -> intMath(i, ClassFileWriter.ISUB);
+            default -> false;
+        };
+    }
+
+    /**
+     * Compile a math operation on two doubles.
+     *
+     * @param i The instruction.
+     * @param opcode The bytecode for the operation.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean doubleMath(@NonNull Instruction i, int opcode) {
+        if (!BytecodeCompiler.isNumeric(i.firstLocation())
+                || !BytecodeCompiler.isNumeric(i.secondLocation())
+                || !canStore(i.targetLocation())) {
+            return false;
+        }
+        loadDouble(i.firstLocation());
+        code.op1(ClassFileWriter.DSTORE, BytecodeCompiler.FIRST_DOUBLE);
+        loadDouble(i.secondLocation());
+        code.op1(ClassFileWriter.DSTORE, BytecodeCompiler.SECOND_DOUBLE);
+        exitIfHalted();
+        beginStore(i.targetLocation());
+        code.op1(ClassFileWriter.DLOAD, BytecodeCompiler.FIRST_DOUBLE);
+        code.op1(ClassFileWriter.DLOAD, BytecodeCompiler.SECOND_DOUBLE);
+        code.op(opcode);
+        endStore(i.targetLocation(), "Double");
+        return true;
+    }
+
+    /**
+     * Finish storing a value that is on the operand stack.
+     *
+     * @param target The location we are storing to.
+     * @param kind The kind of value, one of Boolean, Char, Double or Int.
+     * @see #beginStore(MemLocation)
+     */
+    private void endStore(@NonNull MemLocation target, @NonNull String kind) {
+        final String descriptor =
+                switch (kind) {
+                    case "Boolean" -> "Z";
+                    case "Char" -> "C";
+                    case "Double" -> "D";
+                    default -> "I";
+                };
+        if (target.area() == MemArea.VARIABLE) {
+            code.op2(
+                    ClassFileWriter.INVOKEVIRTUAL,
+                    writer.methodRef(
+                            BytecodeCompiler.STORE, "set" + kind, "(I" + descriptor + ")V"));
+        } else {
+            invokeRuntime("push" + kind, "(" + descriptor + ")V");
+        }
+    }
+
+    /**
+     * Find or create the label that sets the program counter and returns.
+     *
+     * @param address The address to leave the program counter at.
+     * @return The label to jump to.
+     */
+    private ClassFileWriter.Code.Label exitAt(int address) {
+        return exits.computeIfAbsent(address, a -> new ClassFileWriter.Code.Label());
+    }
+
+    /**
+     * Return if the program has halted, which loading values may do. Verified instructions can't
+     * halt while loading, so nothing is needed for them.
+     */
+    private void exitIfHalted() {
+        if (!checked) {
+            return;
+        }
+        loadRuntime();
+        getField("fatalError", "Z");
+        code.jump(ClassFileWriter.IFNE, exit);
+    }
+
+    /**
+     * Let the interpreter execute an instruction, then return unless it just moved on to the next
+     * instruction.
+     *
+     * @param address The address of the instruction.
+     */
+    private void fallback(int address) {
+        loadRuntime();
+        pushInt(address);
+        invokeRuntime("interpret", "(I)V");
+        loadRuntime();
+        getField("programCounter", "I");
+        pushInt(address + 1);
+        code.jump(ClassFileWriter.IF_ICMPNE, exit);
+        loadRuntime();
+        getField("yielded", "Z");
+        code.jump(ClassFileWriter.IFNE, exit);
+    }
+
+    /**
+     * Generate the class file.
+     *
+     * @return The class file, or null if the program is too large for a single method.
+     */
+    private byte[] generate() {
+        ClassFileWriter.Code constructor = new ClassFileWriter.Code();
+        constructor.op1(ClassFileWriter.ALOAD, 0);
+        constructor.op2(
+                ClassFileWriter.INVOKESPECIAL,
+                writer.methodRef("java/lang/Object", "<init>", "()V"));
+        constructor.op(ClassFileWriter.RETURN);
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1, constructor.resolve());
+
+        code.op(ClassFileWriter.ICONST_0);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.EXECUTED_LOCAL);
+        // Start at whatever instruction the runtime is on
+        loadRuntime();
+        getField("programCounter", "I");
+        code.tableSwitch(0, exit, labels);
+
+        for (int address = 0; address < instructions.size(); ++address) {
+            code.mark(labels[address]);
+            code.iinc(BytecodeCompiler.EXECUTED_LOCAL, 1);
+            checked = !verified.get(address);
+            if (!compileInstruction(address)) {
+                fallback(address);
+            }
+            if (code.length() > BytecodeCompiler.MAX_CODE_LENGTH) {
+                return null;
+            }
+        }
+        // Ran off the end of the program
+        code.jump(ClassFileWriter.GOTO, exitAt(instructions.size()));
+
+        code.mark(exit);
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.EXECUTED_LOCAL);
+        code.op(ClassFileWriter.IRETURN);
+        for (Map.Entry<Integer, ClassFileWriter.Code.Label> entry : exits.entrySet()) {
+            code.mark(entry.getValue());
+            loadRuntime();
+            pushInt(entry.getKey());
+            putField("programCounter", "I");
+            code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.EXECUTED_LOCAL);
+            code.op(ClassFileWriter.IRETURN);
+        }
+
+        final byte[] body = code.resolve();
+        if (body == null || body.length > BytecodeCompiler.MAX_CODE_LENGTH) {
+            return null;
+        }
+        writer.addMethod(
+                ClassFileWriter.ACC_PUBLIC,
+                "run",
+                "(L" + BytecodeCompiler.RUNTIME + ";I)I",
+                BytecodeCompiler.MAX_STACK,
+                BytecodeCompiler.MAX_LOCALS,
+                body);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Read a field of the runtime, which must already be on the operand stack.
+     *
+     * @param name The name of the field.
+     * @param descriptor The type descriptor of the field.
+     */
+    private void getField(@NonNull String name, @NonNull String descriptor) {
+        code.op2(
+                ClassFileWriter.GETFIELD,
+                writer.fieldRef(BytecodeCompiler.RUNTIME, name, descriptor));
+    }
+
+    /**
+     * Compile adding one to an integer variable, comparing it with a bound, and jumping to the
+     * target address.
+     *
+     * @param i The instruction.
+     * @param address The address of the instruction.
+     * @param opcode The bytecode for the condition.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean incrementAndJump(@NonNull Instruction i, int address, int opcode) {
+        final MemLocation counter = i.firstLocation();
+        final MemLocation bound = i.secondLocation();
+        if (counter.area() != MemArea.VARIABLE
+                || !counter.isInt()
+                || !canStore(counter)
+                || !(bound.isChar() || bound.isInt())
+                || !isValidJump(i.targetLocation())) {
+            return false;
+        }
+        loadInt(counter);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        exitIfHalted();
+        code.iinc(BytecodeCompiler.FIRST_INT, 1);
+        beginStore(counter);
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        endStore(counter, "Int");
+        loadInt(bound);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.SECOND_INT);
+        exitIfHalted();
+        loadRuntime();
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        code.op(ClassFileWriter.I2D);
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.SECOND_INT);
+        code.op(ClassFileWriter.I2D);
+        invokeRuntime("compareNumbers", "(DD)V");
+        return jump(i.targetLocation(), address, opcode);
+    }
+
+    /**
+     * Compile a math operation on two integers.
+     *
+     * @param i The instruction.
+     * @param opcode The bytecode for the operation.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean intMath(@NonNull Instruction i, int opcode) {
+        if (!(i.firstLocation().isChar() || i.firstLocation().isInt())
+                || !(i.secondLocation().isChar() || i.secondLocation().isInt())
+                || !canStore(i.targetLocation())) {
+            return false;
+        }
+        loadInt(i.firstLocation());
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        loadInt(i.secondLocation());
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.SECOND_INT);
+        exitIfHalted();
+        beginStore(i.targetLocation());
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.SECOND_INT);
+        code.op(opcode);
+        endStore(i.targetLocation(), "Int");
+        return true;
+    }
+
+    /**
+     * Call a method on the runtime, with the runtime and arguments already on the operand stack.
+     *
+     * @param name The name of the method.
+     * @param descriptor The method descriptor.
+     */
+    private void invokeRuntime(@NonNull String name, @NonNull String descriptor) {
+        code.op2(
+                ClassFileWriter.INVOKEVIRTUAL,
+                writer.methodRef(BytecodeCompiler.RUNTIME, name, descriptor));
+    }
+
+    /**
+     * Check if a location holds an address that a jump can go to, including the end of the
+     * program.
+     *
+     * @param destination The location holding the address.
+     * @return Whether the address is valid.
+     */
+    private boolean isValidJump(@NonNull MemLocation destination) {
+        return destination.value() instanceof Integer location
+                && location >= 0
+                && location <= instructions.size();
+    }
+
+    /**
+     * Compile a jump, which checks the instruction budget if it jumps backwards.
+     *
+     * @param destination The location holding the address to jump to.
+     * @param address The address of the instruction.
+     * @param opcode The bytecode for the condition, or goto for unconditional jumps.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean jump(@NonNull MemLocation destination, int address, int opcode) {
+        if (!isValidJump(destination)) {
+            return false;
+        }
+        final int location = (Integer) destination.value();
+        ClassFileWriter.Code.Label notTaken = null;
+        if (opcode != ClassFileWriter.GOTO) {
+            notTaken = new ClassFileWriter.Code.Label();
+            loadRuntime();
+            getField("lastComparison", "I");
+            code.jump(BytecodeCompiler.opposite(opcode), notTaken);
+        }
+        if (location <= address) {
+            // Loops are where we might run for a long time, so check the budget
+            code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.EXECUTED_LOCAL);
+            code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.BUDGET_LOCAL);
+            code.jump(ClassFileWriter.IF_ICMPGE, exitAt(location));
+        }
+        if (location == instructions.size()) {
+            code.jump(ClassFileWriter.GOTO, exitAt(location));
+        } else {
+            code.jump(ClassFileWriter.GOTO, labels[location]);
+        }
+        if (notTaken != null) {
+            code.mark(notTaken);
+        }
+        return true;
+    }
+
+    /**
+     * Push a boolean operand onto the operand stack as an int.
+     *
+     * @param from The location to read from.
+     */
+    private void loadBoolean(@NonNull MemLocation from) {
+        switch (from.area()) {
+            case IMMEDIATE -> pushInt(Boolean.TRUE.equals(from.value()) ? 1 : 0);
+            case STACK -> {
+                loadRuntime();
+                invokeRuntime("popBoolean", "()Z");
+            }
+            default -> loadVariable(from, "Boolean", "Z");
+        }
+    }
+
+    /**
+     * Push a double operand onto the operand stack.
+     *
+     * @param from The location to read from.
+     */
+    private void loadDouble(@NonNull MemLocation from) {
+        switch (from.area()) {
+            case IMMEDIATE -> pushDouble(ValueStore.doubleValue(from.value()));
+            case STACK -> {
+                loadRuntime();
+                invokeRuntime("popDouble", "()D");
+            }
+            default -> loadVariable(from, "Double", "D");
+        }
+    }
+
+    /**
+     * Push an int operand onto the operand stack.
+     *
+     * @param from The location to read from.
+     */
+    private void loadInt(@NonNull MemLocation from) {
+        switch (from.area()) {
+            case IMMEDIATE -> pushInt(ValueStore.intValue(from.value()));
+            case STACK -> {
+                loadRuntime();
+                invokeRuntime("popInt", "()I");
+            }
+            default -> loadVariable(from, "Int", "I");
+        }
+    }
+
+    /** Push the runtime onto the operand stack. */
+    private void loadRuntime() {
+        code.op1(ClassFileWriter.ALOAD, BytecodeCompiler.RUNTIME_LOCAL);
+    }
+
+    /**
+     * Push the value of a variable onto the operand stack. Verified instructions read it straight
+     * from the variables, since it is known to be set, and anything else has the runtime check it.
+     *
+     * @param from The variable to read.
+     * @param kind The kind of value, one of Boolean, Double or Int.
+     * @param descriptor The type descriptor of the value.
+     */
+    private void loadVariable(
+            @NonNull MemLocation from, @NonNull String kind, @NonNull String descriptor) {
+        loadRuntime();
+        if (checked) {
+            pushInt((Integer) from.value());
+            invokeRuntime("read" + kind, "(I)" + descriptor);
+            return;
+        }
+        getField("variables", "L" + BytecodeCompiler.STORE + ";");
+        pushInt((Integer) from.value());
+        code.op2(
+                ClassFileWriter.INVOKEVIRTUAL,
+                writer.methodRef(BytecodeCompiler.STORE, "get" + kind, "(I)" + descriptor));
+    }
+
+    /**
+     * Compile a move. Immediate values that aren't primitives, and moves within the stack, are left
+     * to the interpreter.
+     *
+     * @param i The instruction.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean move(@NonNull Instruction i) {
+        final MemLocation from = i.firstLocation();
+        final MemLocation to = i.targetLocation();
+        if (!canStore(to)) {
+            return false;
+        }
+        switch (from.area()) {
+            case IMMEDIATE:
+                return moveImmediate(from.value(), to);
+            case VARIABLE:
+                loadRuntime();
+                pushInt((Integer) from.value());
+                if (to.area() == MemArea.VARIABLE) {
+                    pushInt((Integer) to.value());
+                    invokeRuntime("copyVariable", "(II)V");
+                } else {
+                    invokeRuntime("pushVariable", "(I)V");
+                }
+                exitIfHalted();
+                return true;
+            case STACK:
+                if (to.area() != MemArea.VARIABLE) {
+                    return false;
+                }
+                loadRuntime();
+                pushInt((Integer) to.value());
+                invokeRuntime("popToVariable", "(I)V");
+                exitIfHalted();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compile a move of an immediate primitive value.
+     *
+     * @param value The value to move.
+     * @param to The location we are storing to.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean moveImmediate(Object value, @NonNull MemLocation to) {
+        if (value instanceof Integer integer) {
+            beginStore(to);
+            pushInt(integer);
+            endStore(to, "Int");
+        } else if (value instanceof Double doub) {
+            beginStore(to);
+            pushDouble(doub);
+            endStore(to, "Double");
+        } else if (value instanceof Character character) {
+            beginStore(to);
+            pushInt(character);
+            endStore(to, "Char");
+        } else if (value instanceof Boolean bool) {
+            beginStore(to);
+            pushInt(Boolean.TRUE.equals(bool) ? 1 : 0);
+            endStore(to, "Boolean");
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compile negating a number.
+     *
+     * @param i The instruction.
+     * @param kind The kind of number, one of Char, Double or Int.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean negate(@NonNull Instruction i, @NonNull String kind) {
+        final MemLocation from = i.firstLocation();
+        final boolean valid =
+                switch (kind) {
+                    case "Char" -> from.isChar();
+                    case "Double" -> BytecodeCompiler.isNumeric(from);
+                    default -> from.isChar() || from.isInt();
+                };
+        if (!valid || !canStore(i.targetLocation())) {
+            return false;
+        }
+        if ("Double".equals(kind)) {
+            loadDouble(from);
+            code.op1(ClassFileWriter.DSTORE, BytecodeCompiler.FIRST_DOUBLE);
+            exitIfHalted();
+            beginStore(i.targetLocation());
+            code.op1(ClassFileWriter.DLOAD, BytecodeCompiler.FIRST_DOUBLE);
+            code.op(ClassFileWriter.DNEG);
+        } else {
+            loadInt(from);
+            code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+            exitIfHalted();
+            beginStore(i.targetLocation());
+            code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+            if ("Char".equals(kind)) {
+                code.op(ClassFileWriter.I2C);
+            }
+            code.op(ClassFileWriter.INEG);
+            if ("Char".equals(kind)) {
+                code.op(ClassFileWriter.I2C);
+            }
+        }
+        endStore(i.targetLocation(), kind);
+        return true;
+    }
+
+    /**
+     * Compile a logical not.
+     *
+     * @param i The instruction.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean not(@NonNull Instruction i) {
+        if (!i.firstLocation().isBoolean() || !canStore(i.targetLocation())) {
+            return false;
+        }
+        loadBoolean(i.firstLocation());
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        exitIfHalted();
+        beginStore(i.targetLocation());
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        pushInt(1);
+        code.op(ClassFileWriter.IXOR);
+        endStore(i.targetLocation(), "Boolean");
+        return true;
+    }
+
+    /**
+     * Push a double constant onto the operand stack.
+     *
+     * @param value The value.
+     */
+    private void pushDouble(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            code.op(ClassFileWriter.DCONST_0);
+        } else if (value == 1.0) {
+            code.op(ClassFileWriter.DCONST_1);
+        } else {
+            code.op2(ClassFileWriter.LDC2_W, writer.doubleConstant(value));
+        }
+    }
+
+    /**
+     * Push an int constant onto the operand stack.
+     *
+     * @param value The value.
+     */
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ClassFileWriter.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op1(ClassFileWriter.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op2(ClassFileWriter.SIPUSH, value);
+        } else {
+            code.op2(ClassFileWriter.LDC_W, writer.integerConstant(value));
+        }
+    }
+
+    /**
+     * Write a field of the runtime, with the runtime and value already on the operand stack.
+     *
+     * @param name The name of the field.
+     * @param descriptor The type descriptor of the field.
+     */
+    private void putField(@NonNull String name, @NonNull String descriptor) {
+        code.op2(
+                ClassFileWriter.PUTFIELD,
+                writer.fieldRef(BytecodeCompiler.RUNTIME, name, descriptor));
+    }
+
+    /**
+     * Compile storing the result of testing the last comparison.
+     *
+     * @param i The instruction.
+     * @param opcode The bytecode for the condition.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean set(@NonNull Instruction i, int opcode) {
+        if (!canStore(i.targetLocation())) {
+            return false;
+        }
+        ClassFileWriter.Code.Label isFalse = new ClassFileWriter.Code.Label();
+        ClassFileWriter.Code.Label done = new ClassFileWriter.Code.Label();
+        loadRuntime();
+        getField("lastComparison", "I");
+        code.jump(BytecodeCompiler.opposite(opcode), isFalse);
+        pushInt(1);
+        code.jump(ClassFileWriter.GOTO, done);
+        code.mark(isFalse);
+        pushInt(0);
+        code.mark(done);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        beginStore(i.targetLocation());
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        endStore(i.targetLocation(), "Boolean");
+        return true;
+    }
+
+    /**
+     * Compile a table or lookup jump on an integer or character to a JVM table or lookup switch,
+     * which goes to the entry that matches.
+     *
+     * @param i The instruction.
+     * @param address The address of the instruction.
+     * @param table True for a table jump, false for a lookup jump.
+     * @return Whether we could compile the instruction.
+     */
+    private boolean switchJump(@NonNull Instruction i, int address, boolean table) {
+        final MemLocation from = i.firstLocation();
+        if (!(from.isChar() || from.isInt())
+                || !(i.secondLocation().value() instanceof Integer count)
+                || count <= 0
+                || address + 2 + count > instructions.size()) {
+            return false;
+        }
+        // Keep the first entry for each key, like the interpreter does
+        TreeMap<Integer, ClassFileWriter.Code.Label> entries = new TreeMap<>();
+        for (int entry = address + 2; entry < address + 2 + count; ++entry) {
+            final MemLocation key = instructions.get(entry).secondLocation();
+            if (key == null
+                    || !(key.value() instanceof Integer || key.value() instanceof Character)) {
+                return false;
+            }
+            entries.putIfAbsent(ValueStore.intValue(key.value()), labels[entry]);
+        }
+        final int low = ValueStore.intValue(instructions.get(address + 2).secondLocation().value());
+        if (table && (long) low + count - 1 > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        loadInt(from);
+        code.op1(ClassFileWriter.ISTORE, BytecodeCompiler.FIRST_INT);
+        exitIfHalted();
+        code.op1(ClassFileWriter.ILOAD, BytecodeCompiler.FIRST_INT);
+        if (table) {
+            ClassFileWriter.Code.Label[] targets = new ClassFileWriter.Code.Label[count];
+            for (int entry = 0; entry < count; ++entry) {
+                targets[entry] = labels[address + 2 + entry];
+            }
+            code.tableSwitch(low, labels[address + 1], targets);
+        } else {
+            int[] keys = new int[entries.size()];
+            ClassFileWriter.Code.Label[] targets = new ClassFileWriter.Code.Label[entries.size()];
+            int index = 0;
+            for (Map.Entry<Integer, ClassFileWriter.Code.Label> entry : entries.entrySet()) {
+                keys[index] = entry.getKey();
+                targets[index] = entry.getValue();
+                ++index;
+            }
+            code.lookupSwitch(labels[address + 1], keys, targets);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,177 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+
+import lombok.NonNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binds static calls to registered functions ahead of time, so that we don't have to search for
+ * an overload by name every time the call is executed.
+ *
+ * <p>Each static call is linked to a method if exactly one registered method with that name and
+ * number of parameters can accept the argument types the compiler determined. Calls that can't be
+ * linked, because there are no matches or more than one, are left for the runtime to resolve.
+ *
+ * <p>Links are made against a specific version of the registered functions. If classes are
+ * registered or unregistered, every call is linked again before any of them are used, so we never
+ * invoke a method that is no longer registered.
+ *
+ * <p>A linker is shared by every runtime for a script, so links are published as a single
+ * immutable snapshot. Runtimes that notice the links are out of date at the same time may both
+ * link the program again, which is harmless.
+ *
+ * @author Ches Burks
+ */
+class CallLinker {
+    /**
+     * A static call that has been bound to a method.
+     *
+     * @author Ches Burks
+     * @param method The method we are calling.
+     * @param invoker The method handle to call, see {@link CallSiteCache#invoker(Method)}.
+     */
+    record LinkedCall(@NonNull Method method, @NonNull MethodHandle invoker) {}
+
+    /**
+     * The links for every call in the program, made against one version of the registered
+     * functions.
+     *
+     * @author Ches Burks
+     * @param calls The linked method for each instruction address, null where a call is not
+     *     linked.
+     * @param version The version of the registered functions that we linked against.
+     */
+    private record Links(@NonNull LinkedCall[] calls, int version) {}
+
+    /** Used before we have linked anything, which never matches a registry version. */
+    private static final int UNLINKED = -1;
+
+    /** The program we are linking. */
+    private final List<Instruction> instructions;
+
+    /** The argument types the compiler determined for static calls, indexed by call address. */
+    private final Map<Integer, List<Class<?>>> argumentTypes;
+
+    /** The current links, replaced whenever we link the program again. */
+    private volatile Links links;
+
+    /**
+     * Create a linker for a program. Nothing is linked until {@link #link()} or {@link #get(int)}
+     * is called.
+     *
+     * @param instructions The program.
+     * @param argumentTypes The argument types the compiler determined for static calls, indexed by
+     *     the address of the call. Calls that are missing are linked as if every argument could be
+     *     of any type.
+     */
+    CallLinker(
+            @NonNull List<Instruction> instructions,
+            @NonNull Map<Integer, List<Class<?>>> argumentTypes) {
+        this.instructions = instructions;
+        this.argumentTypes = argumentTypes;
+        links = new Links(new LinkedCall[instructions.size()], CallLinker.UNLINKED);
+    }
+
+    /**
+     * Check if a method can accept arguments of the types the compiler determined.
+     *
+     * @param method The method to check.
+     * @param types The argument types, where {@code Object} means we don't know. May be null if
+     *     we don't know any of the types.
+     * @return Whether the method might be callable with those arguments.
+     */
+    private static boolean compatible(@NonNull Method method, List<Class<?>> types) {
+        if (types == null) {
+            return true;
+        }
+        Class<?>[] params = method.getParameterTypes();
+        for (int i = 0; i < params.length; ++i) {
+            final Class<?> type = types.get(i);
+            if (type != Object.class && !ScriptRuntime.canAssign(params[i], type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the only registered method that a static call could refer to.
+     *
+     * @param call The call instruction.
+     * @param types The argument types the compiler determined, may be null.
+     * @param linked The calls we have already linked, by method, so that every call to the same
+     *     method shares one method handle.
+     * @return The linked call, or null if there is not exactly one method we could call.
+     */
+    private static LinkedCall resolve(
+            @NonNull Instruction call,
+            List<Class<?>> types,
+            @NonNull Map<Method, LinkedCall> linked) {
+        final String methodName = call.firstLocation().value().toString();
+        final int numParams = (Integer) call.secondLocation().value();
+
+        Method match = null;
+        for (Method option : ScriptManager.getMethods(methodName, numParams)) {
+            if (!CallLinker.compatible(option, types)) {
+                continue;
+            }
+            if (match != null) {
+                // Ambiguous until we see the actual arguments
+                return null;
+            }
+            match = option;
+        }
+        if (match == null) {
+            return null;
+        }
+        LinkedCall existing = linked.get(match);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            LinkedCall result = new LinkedCall(match, CallSiteCache.invoker(match));
+            linked.put(match, result);
+            return result;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fetch the method a call is linked to, linking the program again first if the registered
+     * functions have changed.
+     *
+     * @param address The address of the call instruction.
+     * @return The linked call, or null if the call could not be linked.
+     */
+    LinkedCall get(int address) {
+        Links current = links;
+        if (current.version() != ScriptManager.getRegistryVersion()) {
+            link();
+            current = links;
+        }
+        return current.calls()[address];
+    }
+
+    /** Link every static call in the program against the currently registered functions. */
+    void link() {
+        final int registryVersion = ScriptManager.getRegistryVersion();
+        LinkedCall[] result = new LinkedCall[instructions.size()];
+        Map<Method, LinkedCall> linked = new HashMap<>();
+        for (int address = 0; address < instructions.size(); ++address) {
+            Instruction current = instructions.get(address);
+            if (current.type() != InstructionType.CALL
+                    || current.firstLocation().area() != MemArea.IMMEDIATE) {
+                continue;
+            }
+            result[address] = CallLinker.resolve(current, argumentTypes.get(address), linked);
+        }
+        links = new Links(result, registryVersion);
+    }
+}
@@ -0,0 +1,114 @@
+package com.ikalagaming.scripting.interpreter;
+
+import lombok.NonNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An inline cache for a single call instruction. Remembers which method a call resolved to for the
+ * last few combinations of receiver class and argument types, so that repeated calls can skip
+ * searching for an overload and invoke a method handle directly.
+ *
+ * <p>Most call sites only ever see one receiver class, in which case the cache is monomorphic and
+ * costs a class check per call. If a call site sees more than {@link #MAX_ENTRIES} different
+ * combinations of types, it is megamorphic and we stop adding entries.
+ *
+ * @author Ches Burks
+ */
+class CallSiteCache {
+    /**
+     * A resolved method for a specific combination of types.
+     *
+     * @author Ches Burks
+     * @param receiver The class of the object the method is called on, null for static methods.
+     * @param argumentTypes The types of the arguments.
+     * @param invoker The method handle to call, see {@link CallSiteCache#invoker(Method)}.
+     */
+    private record Entry(Class<?> receiver, Class<?>[] argumentTypes, MethodHandle invoker) {}
+
+    /** The maximum number of entries we cache before giving up on the call site. */
+    static final int MAX_ENTRIES = 4;
+
+    /** No entries, shared so that empty caches don't allocate. */
+    private static final Entry[] EMPTY = new Entry[0];
+
+    /** The cached entries, most recently added last. */
+    private Entry[] entries = CallSiteCache.EMPTY;
+
+    /**
+     * Create a method handle for a method that takes a single object array and returns an object.
+     * The first element of the array is the receiver, which is ignored (and may be null) for
+     * static methods, followed by the arguments. Void methods return null.
+     *
+     * @param method The method to create an invoker for.
+     * @return The method handle.
+     * @throws IllegalAccessException If we do not have access to the method.
+     */
+    static MethodHandle invoker(@NonNull Method method) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        final int arity = method.getParameterCount() + 1;
+        return handle.asType(MethodType.genericMethodType(arity)).asSpreader(Object[].class, arity);
+    }
+
+    /**
+     * Check if the arguments have exactly the types an entry was resolved for.
+     *
+     * @param entry The entry to check.
+     * @param arguments The arguments we are calling with.
+     * @return Whether the entry applies to these arguments.
+     */
+    private static boolean matches(@NonNull Entry entry, @NonNull List<MemoryItem> arguments) {
+        final Class<?>[] types = entry.argumentTypes();
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] != arguments.get(i).type()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a resolved method to the cache, unless the call site is already megamorphic.
+     *
+     * @param receiver The class of the object the method is called on, null for static methods.
+     * @param arguments The arguments the method was resolved for.
+     * @param invoker The method handle to call, see {@link #invoker(Method)}.
+     */
+    void add(
+            Class<?> receiver, @NonNull List<MemoryItem> arguments, @NonNull MethodHandle invoker) {
+        if (entries.length >= CallSiteCache.MAX_ENTRIES) {
+            return;
+        }
+        Class<?>[] types = new Class<?>[arguments.size()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = arguments.get(i).type();
+        }
+        entries = Arrays.copyOf(entries, entries.length + 1);
+        entries[entries.length - 1] = new Entry(receiver, types, invoker);
+    }
+
+    /**
+     * Look up the method for the given types.
+     *
+     * @param receiver The class of the object the method is called on, null for static methods.
+     * @param arguments The arguments we are calling with.
+     * @return The cached method handle, or null if we have not seen these types before.
+     */
+    MethodHandle find(Class<?> receiver, @NonNull List<MemoryItem> arguments) {
+        for (Entry entry : entries) {
+            if (entry.receiver() == receiver && CallSiteCache.matches(entry, arguments)) {
+                return entry.invoker();
+            }
+        }
+        return null;
+    }
+}
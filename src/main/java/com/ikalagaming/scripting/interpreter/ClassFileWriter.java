@@ -0,0 +1,556 @@
+package com.ikalagaming.scripting.interpreter;
+
+import lombok.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, with just enough support to generate classes for compiled
+ * scripts. Classes are written using an old class file version so that the JVM verifies them by
+ * inference and we do not need to calculate stack map frames.
+ *
+ * @author Ches Burks
+ */
+class ClassFileWriter {
+    /**
+     * Builds up the bytecode for a single method, including jumps to labels that have not been
+     * placed yet.
+     *
+     * @author Ches Burks
+     */
+    static class Code {
+        /**
+         * A position in the code that can be jumped to.
+         *
+         * @author Ches Burks
+         */
+        static class Label {
+            /** The offset of the label in the code, or -1 if it has not been placed yet. */
+            private int offset = -1;
+        }
+
+        /**
+         * A reference to a label that needs to be filled in once all labels are placed.
+         *
+         * @author Ches Burks
+         * @param label The label we are jumping to.
+         * @param instruction The offset of the instruction the jump is relative to.
+         * @param position The offset where the jump offset is written.
+         * @param wide Whether the offset is 4 bytes instead of 2.
+         */
+        private record Fixup(Label label, int instruction, int position, boolean wide) {}
+
+        /** The bytecode we have written so far. */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /** Jumps that still need their offsets filled in. */
+        private final List<Fixup> fixups = new ArrayList<>();
+
+        /**
+         * Increment an int local variable.
+         *
+         * @param local The index of the local variable.
+         * @param amount The amount to add, which must fit in a byte.
+         */
+        void iinc(int local, int amount) {
+            bytes.write(ClassFileWriter.IINC);
+            bytes.write(local);
+            bytes.write(amount);
+        }
+
+        /**
+         * Emit a conditional or unconditional jump to a label.
+         *
+         * @param opcode The jump opcode.
+         * @param label The label to jump to.
+         */
+        void jump(int opcode, @NonNull Label label) {
+            final int instruction = bytes.size();
+            op(opcode);
+            fixups.add(new Fixup(label, instruction, bytes.size(), false));
+            u2(0);
+        }
+
+        /**
+         * The number of bytes of code written so far.
+         *
+         * @return The current length of the code.
+         */
+        int length() {
+            return bytes.size();
+        }
+
+        /**
+         * Emit a lookup switch.
+         *
+         * @param defaultLabel Where to jump for values that are not keys.
+         * @param keys The keys, which must be sorted in increasing order with no duplicates.
+         * @param labels Where to jump for each key.
+         */
+        void lookupSwitch(
+                @NonNull Label defaultLabel, @NonNull int[] keys, @NonNull Label[] labels) {
+            final int instruction = bytes.size();
+            op(ClassFileWriter.LOOKUPSWITCH);
+            while (bytes.size() % 4 != 0) {
+                bytes.write(0);
+            }
+            wideJump(instruction, defaultLabel);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; ++i) {
+                u4(keys[i]);
+                wideJump(instruction, labels[i]);
+            }
+        }
+
+        /**
+         * Place a label at the current position in the code.
+         *
+         * @param label The label to place.
+         */
+        void mark(@NonNull Label label) {
+            label.offset = bytes.size();
+        }
+
+        /**
+         * Emit an opcode with no operands.
+         *
+         * @param opcode The opcode.
+         */
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        /**
+         * Emit an opcode with a one byte operand.
+         *
+         * @param opcode The opcode.
+         * @param operand The operand.
+         */
+        void op1(int opcode, int operand) {
+            bytes.write(opcode);
+            bytes.write(operand);
+        }
+
+        /**
+         * Emit an opcode with a two byte operand.
+         *
+         * @param opcode The opcode.
+         * @param operand The operand.
+         */
+        void op2(int opcode, int operand) {
+            bytes.write(opcode);
+            u2(operand);
+        }
+
+        /**
+         * Fill in all of the jump offsets.
+         *
+         * @return The finished bytecode, or null if a label was never placed or a jump is too far.
+         */
+        byte[] resolve() {
+            byte[] result = bytes.toByteArray();
+            for (Fixup fixup : fixups) {
+                if (fixup.label().offset < 0) {
+                    return null;
+                }
+                final int offset = fixup.label().offset - fixup.instruction();
+                if (fixup.wide()) {
+                    result[fixup.position()] = (byte) (offset >>> 24);
+                    result[fixup.position() + 1] = (byte) (offset >>> 16);
+                    result[fixup.position() + 2] = (byte) (offset >>> 8);
+                    result[fixup.position() + 3] = (byte) offset;
+                } else {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        return null;
+                    }
+                    result[fixup.position()] = (byte) (offset >>> 8);
+                    result[fixup.position() + 1] = (byte) offset;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Emit a table switch over the values from low to low plus the number of labels minus one.
+         *
+         * @param low The value that jumps to the first label.
+         * @param defaultLabel Where to jump for values outside the table.
+         * @param labels Where to jump for each value.
+         */
+        void tableSwitch(int low, @NonNull Label defaultLabel, @NonNull Label[] labels) {
+            final int instruction = bytes.size();
+            op(ClassFileWriter.TABLESWITCH);
+            while (bytes.size() % 4 != 0) {
+                bytes.write(0);
+            }
+            wideJump(instruction, defaultLabel);
+            u4(low);
+            u4(low + labels.length - 1);
+            for (Label label : labels) {
+                wideJump(instruction, label);
+            }
+        }
+
+        /**
+         * Write a two byte value.
+         *
+         * @param value The value to write.
+         */
+        private void u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+        }
+
+        /**
+         * Write a four byte value.
+         *
+         * @param value The value to write.
+         */
+        private void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        /**
+         * Write a placeholder for a four byte jump offset.
+         *
+         * @param instruction The offset of the instruction the jump is relative to.
+         * @param label The label to jump to.
+         */
+        private void wideJump(int instruction, @NonNull Label label) {
+            fixups.add(new Fixup(label, instruction, bytes.size(), true));
+            u4(0);
+        }
+    }
+
+    /**
+     * A method we have added to the class.
+     *
+     * @author Ches Burks
+     * @param access The access flags.
+     * @param name The constant pool index of the name.
+     * @param descriptor The constant pool index of the descriptor.
+     * @param maxStack The maximum depth of the operand stack.
+     * @param maxLocals The number of local variable slots, including parameters.
+     * @param code The bytecode.
+     */
+    private record MethodInfo(
+            int access, int name, int descriptor, int maxStack, int maxLocals, byte[] code) {}
+
+    /** Public access flag. */
+    static final int ACC_PUBLIC = 0x0001;
+
+    /** Final access flag. */
+    static final int ACC_FINAL = 0x0010;
+
+    /** Treat superclass methods specially when invoked by invokespecial. */
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes, named as in the JVM specification
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int IADD = 0x60;
+    static final int DADD = 0x63;
+    static final int ISUB = 0x64;
+    static final int DSUB = 0x67;
+    static final int IMUL = 0x68;
+    static final int DMUL = 0x6b;
+    static final int IDIV = 0x6c;
+    static final int DDIV = 0x6f;
+    static final int IREM = 0x70;
+    static final int DREM = 0x73;
+    static final int INEG = 0x74;
+    static final int DNEG = 0x77;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IINC = 0x84;
+    static final int I2D = 0x87;
+    static final int I2C = 0x92;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPGE = 0xa2;
+    static final int GOTO = 0xa7;
+    static final int TABLESWITCH = 0xaa;
+    static final int LOOKUPSWITCH = 0xab;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+
+    /** Java 5, the last version that does not require stack map frames. */
+    private static final int CLASS_VERSION = 49;
+
+    /** The constant pool, already serialized, not including the count. */
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+    /** Used to write to the constant pool. */
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+
+    /** Entries already in the constant pool, so we don't add duplicates. */
+    private final Map<String, Integer> poolEntries = new HashMap<>();
+
+    /** The next index in the constant pool. */
+    private int poolSize = 1;
+
+    /** The constant pool index of this class. */
+    private final int thisClass;
+
+    /** The constant pool index of the superclass. */
+    private final int superClass;
+
+    /** The constant pool indices of the interfaces we implement. */
+    private final int[] interfaces;
+
+    /** The methods in the class. */
+    private final List<MethodInfo> methods = new ArrayList<>();
+
+    /**
+     * Start writing a class.
+     *
+     * @param name The internal name of the class, like {@code java/lang/Object}.
+     * @param superName The internal name of the superclass.
+     * @param interfaceNames The internal names of any interfaces the class implements.
+     */
+    ClassFileWriter(
+            @NonNull String name, @NonNull String superName, @NonNull String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; ++i) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    /**
+     * Add a method to the class.
+     *
+     * @param access The access flags.
+     * @param name The name of the method.
+     * @param descriptor The method descriptor.
+     * @param maxStack The maximum depth of the operand stack.
+     * @param maxLocals The number of local variable slots, including parameters.
+     * @param code The bytecode, see {@link Code#resolve()}.
+     */
+    void addMethod(
+            int access,
+            @NonNull String name,
+            @NonNull String descriptor,
+            int maxStack,
+            int maxLocals,
+            @NonNull byte[] code) {
+        methods.add(
+                new MethodInfo(access, utf8(name), utf8(descriptor), maxStack, maxLocals, code));
+    }
+
+    /**
+     * Add a class reference to the constant pool.
+     *
+     * @param internalName The internal name of the class.
+     * @return The constant pool index.
+     */
+    int classRef(@NonNull String internalName) {
+        final int nameIndex = utf8(internalName);
+        return constant("Class:" + internalName, 7, out -> out.writeShort(nameIndex));
+    }
+
+    /**
+     * Add an entry to the constant pool if it is not already there.
+     *
+     * @param key A unique key for the entry, used to avoid duplicates.
+     * @param tag The constant pool tag.
+     * @param contents Writes the contents of the entry after the tag.
+     * @return The constant pool index.
+     */
+    private int constant(@NonNull String key, int tag, @NonNull PoolContents contents) {
+        Integer existing = poolEntries.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            poolOut.writeByte(tag);
+            contents.write(poolOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final int index = poolSize;
+        // Doubles take up two entries
+        poolSize += tag == 6 ? 2 : 1;
+        poolEntries.put(key, index);
+        return index;
+    }
+
+    /**
+     * Add a double to the constant pool, for use with ldc2_w.
+     *
+     * @param value The value.
+     * @return The constant pool index.
+     */
+    int doubleConstant(double value) {
+        final long bits = Double.doubleToRawLongBits(value);
+        return constant("Double:" + bits, 6, out -> out.writeLong(bits));
+    }
+
+    /**
+     * Add a field reference to the constant pool.
+     *
+     * @param owner The internal name of the class the field is in.
+     * @param name The name of the field.
+     * @param descriptor The type descriptor of the field.
+     * @return The constant pool index.
+     */
+    int fieldRef(@NonNull String owner, @NonNull String name, @NonNull String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    /**
+     * Add an integer to the constant pool, for use with ldc_w.
+     *
+     * @param value The value.
+     * @return The constant pool index.
+     */
+    int integerConstant(int value) {
+        return constant("Integer:" + value, 3, out -> out.writeInt(value));
+    }
+
+    /**
+     * Add a field or method reference to the constant pool.
+     *
+     * @param tag The constant pool tag for the kind of reference.
+     * @param owner The internal name of the class the member is in.
+     * @param name The name of the member.
+     * @param descriptor The descriptor of the member.
+     * @return The constant pool index.
+     */
+    private int memberRef(
+            int tag, @NonNull String owner, @NonNull String name, @NonNull String descriptor) {
+        final int ownerIndex = classRef(owner);
+        final int nameIndex = utf8(name);
+        final int descriptorIndex = utf8(descriptor);
+        final int nameAndType =
+                constant(
+                        "NameAndType:" + name + ":" + descriptor,
+                        12,
+                        out -> {
+                            out.writeShort(nameIndex);
+                            out.writeShort(descriptorIndex);
+                        });
+        return constant(
+                tag + ":" + owner + "." + name + ":" + descriptor,
+                tag,
+                out -> {
+                    out.writeShort(ownerIndex);
+                    out.writeShort(nameAndType);
+                });
+    }
+
+    /**
+     * Add a method reference to the constant pool.
+     *
+     * @param owner The internal name of the class the method is in.
+     * @param name The name of the method.
+     * @param descriptor The method descriptor.
+     * @return The constant pool index.
+     */
+    int methodRef(@NonNull String owner, @NonNull String name, @NonNull String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    /**
+     * Write out the finished class file.
+     *
+     * @return The bytes of the class file.
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            final int codeName = utf8("Code");
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(ClassFileWriter.CLASS_VERSION);
+            out.writeShort(poolSize);
+            pool.writeTo(out);
+            out.writeShort(ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            // Fields
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (MethodInfo method : methods) {
+                out.writeShort(method.access());
+                out.writeShort(method.name());
+                out.writeShort(method.descriptor());
+                // One attribute, the code
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + method.code().length);
+                out.writeShort(method.maxStack());
+                out.writeShort(method.maxLocals());
+                out.writeInt(method.code().length);
+                out.write(method.code());
+                // No exception table or attributes
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+            // Class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Add a string to the constant pool in modified UTF-8.
+     *
+     * @param value The string.
+     * @return The constant pool index.
+     */
+    int utf8(@NonNull String value) {
+        return constant("Utf8:" + value, 1, out -> out.writeUTF(value));
+    }
+
+    /**
+     * Writes the contents of a constant pool entry.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface PoolContents {
+        /**
+         * Write the entry.
+         *
+         * @param out Where to write the entry.
+         * @throws IOException If there is a problem writing.
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,22 @@
+package com.ikalagaming.scripting.interpreter;
+
+/**
+ * A program that has been compiled to JVM bytecode by the {@link BytecodeCompiler}. Compiled
+ * programs work directly on the state of a {@link ScriptRuntime}, so execution can switch between
+ * the compiled program and the interpreter at any instruction.
+ *
+ * @author Ches Burks
+ */
+interface CompiledProgram {
+    /**
+     * Execute the program starting at the current program counter of the runtime. Stops when the
+     * program terminates or yields, or at the next jump once at least the budgeted number of
+     * instructions have been executed. The program counter is left at the next instruction to
+     * execute.
+     *
+     * @param runtime The runtime whose state we are executing with.
+     * @param budget The number of instructions we would like to execute before returning.
+     * @return The number of instructions actually executed.
+     */
+    int run(ScriptRuntime runtime, int budget);
+}
@@ -0,0 +1,379 @@
+package com.ikalagaming.scripting.interpreter;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A script that has been compiled, with everything needed to create runtimes for it. This is
+ * immutable apart from caches that are safe to share, so one compiled script can be used by any
+ * number of runtimes on any number of threads. Each runtime only holds the state of one execution
+ * of the script, such as the stack, variables, and program counter.
+ *
+ * <p>Work that only depends on the program, like preparing instructions for the interpreter,
+ * linking static calls, and compiling to bytecode, is done once here and shared by every runtime.
+ *
+ * @author Ches Burks
+ */
+@Getter
+public class CompiledScript {
+    /**
+     * Find the line in the source each instruction came from. Instructions we don't know the line
+     * of, like ones the optimizers created, are treated as being on the same line as the closest
+     * instruction before them that we do know the line of.
+     *
+     * @param size The number of instructions.
+     * @param instructionLines The known lines, indexed by the address of the instruction.
+     * @return The line of each instruction, or 0 where none is known.
+     */
+    private static int[] lines(int size, @NonNull Map<Integer, Integer> instructionLines) {
+        int[] lines = new int[size];
+        int line = 0;
+        for (int address = 0; address < size; ++address) {
+            line = instructionLines.getOrDefault(address, line);
+            lines[address] = line;
+        }
+        return lines;
+    }
+
+    /**
+     * Find the most items the program could have on the stack at once, by following every path
+     * through the program.
+     *
+     * @param instructions The program.
+     * @return The maximum stack depth.
+     */
+    private static int maxStackDepth(@NonNull List<Instruction> instructions) {
+        final int size = instructions.size();
+        int[] depth = new int[size];
+        Arrays.fill(depth, -1);
+        Deque<Integer> pending = new ArrayDeque<>();
+        if (size > 0) {
+            depth[0] = 0;
+            pending.push(0);
+        }
+        int max = 0;
+        while (!pending.isEmpty()) {
+            final int address = pending.pop();
+            final Instruction instruction = instructions.get(address);
+            final int after = Math.max(0, depth[address] + CompiledScript.stackEffect(instruction));
+            max = Math.max(max, after);
+
+            final InstructionType type = instruction.type();
+            MemLocation destination = null;
+            if (PeepholeOptimizer.isJump(type)) {
+                destination = instruction.firstLocation();
+            } else if (PeepholeOptimizer.isFusedJump(type)) {
+                destination = instruction.targetLocation();
+            }
+            if (destination != null
+                    && destination.value() instanceof Integer target
+                    && target >= 0
+                    && target < size
+                    && depth[target] < 0) {
+                depth[target] = after;
+                pending.push(target);
+            }
+            final int next = address + 1;
+            if (type != InstructionType.JMP && next < size && depth[next] < 0) {
+                depth[next] = after;
+                pending.push(next);
+            }
+            if ((type == InstructionType.JMP_TABLE || type == InstructionType.JMP_LOOKUP)
+                    && instruction.secondLocation().value() instanceof Integer count) {
+                // Each entry after the default is a jump that can be taken
+                for (int entry = next + 1; entry <= next + count && entry < size; ++entry) {
+                    if (depth[entry] < 0) {
+                        depth[entry] = after;
+                        pending.push(entry);
+                    }
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The number of items an instruction leaves on the stack, minus the number it takes off.
+     *
+     * @param instruction The instruction.
+     * @return The change in stack depth.
+     */
+    private static int stackEffect(@NonNull Instruction instruction) {
+        final MemLocation first = instruction.firstLocation();
+        final MemLocation second = instruction.secondLocation();
+        final MemLocation target = instruction.targetLocation();
+        int effect = 0;
+        if (instruction.type() == InstructionType.CALL) {
+            // Parameters come off the stack, and any result goes on it
+            if (second.value() instanceof Integer parameters) {
+                effect -= parameters;
+            }
+            if (first.area() == MemArea.STACK) {
+                --effect;
+            }
+            return effect + 1;
+        }
+        if (first != null && first.area() == MemArea.STACK) {
+            --effect;
+        }
+        if (second != null && second.area() == MemArea.STACK) {
+            --effect;
+        }
+        if (target != null && target.area() == MemArea.STACK) {
+            ++effect;
+        }
+        return effect;
+    }
+
+    /**
+     * The instructions that make up the program.
+     *
+     * @return The instructions.
+     */
+    @SuppressWarnings("javadoc")
+    private final List<Instruction> instructions;
+
+    /**
+     * The names of each variable slot the instructions use, indexed by slot number.
+     *
+     * @return The variable names.
+     */
+    @SuppressWarnings("javadoc")
+    private final List<String> variableNames;
+
+    /**
+     * The argument types the compiler determined for each static call, indexed by the address of
+     * the call instruction.
+     *
+     * @return The argument types for static calls.
+     */
+    @SuppressWarnings("javadoc")
+    private final Map<Integer, List<Class<?>>> callArgumentTypes;
+
+    /** The line of every instruction, or 0 where none is known, indexed by address. */
+    @Getter(value = AccessLevel.NONE)
+    private final int[] lines;
+
+    /**
+     * The most items the program can have on the stack at once, used to size the stack of each
+     * runtime.
+     *
+     * @return The maximum stack depth.
+     */
+    @SuppressWarnings("javadoc")
+    private final int maxStackDepth;
+
+    /**
+     * The addresses of instructions that are proven to pass the runtime's checks on their
+     * operands, so the checks can be skipped.
+     */
+    @Getter(value = AccessLevel.NONE)
+    private final BitSet verified;
+
+    /**
+     * The instructions if they are packed, so that they can be read without decoding them, or null
+     * if they are not packed.
+     */
+    @Getter(value = AccessLevel.NONE)
+    private final PackedProgram packed;
+
+    /** The instructions prepared for the interpreter, indexed by address. */
+    @Getter(value = AccessLevel.NONE)
+    final Node[] nodes;
+
+    /** Binds static calls to registered functions, shared by every runtime. */
+    @Getter(value = AccessLevel.NONE)
+    final CallLinker linker;
+
+    /**
+     * The program compiled to JVM bytecode, or null if it has not been compiled. May be set from
+     * the background compiler thread.
+     */
+    @Getter(value = AccessLevel.PACKAGE)
+    private volatile CompiledProgram compiled;
+
+    /** Whether we have already asked for the program to be compiled in the background. */
+    @Getter(value = AccessLevel.NONE)
+    private boolean compileRequested;
+
+    /**
+     * Create a compiled script. The program is verified and static calls are linked right away.
+     *
+     * @param instructions The instructions that make up the program.
+     * @param variableNames The names of each variable slot the instructions use, indexed by slot
+     *     number.
+     * @param callArgumentTypes The argument types the compiler determined for each static call,
+     *     indexed by the address of the call instruction.
+     */
+    public CompiledScript(
+            @NonNull List<Instruction> instructions,
+            @NonNull List<String> variableNames,
+            @NonNull Map<Integer, List<Class<?>>> callArgumentTypes) {
+        this(instructions, variableNames, callArgumentTypes, Map.of());
+    }
+
+    /**
+     * Create a compiled script that knows which lines of the source its instructions came from.
+     * The program is verified and static calls are linked right away.
+     *
+     * @param instructions The instructions that make up the program.
+     * @param variableNames The names of each variable slot the instructions use, indexed by slot
+     *     number.
+     * @param callArgumentTypes The argument types the compiler determined for each static call,
+     *     indexed by the address of the call instruction.
+     * @param instructionLines The line in the source each instruction came from, indexed by the
+     *     address of the instruction.
+     */
+    public CompiledScript(
+            @NonNull List<Instruction> instructions,
+            @NonNull List<String> variableNames,
+            @NonNull Map<Integer, List<Class<?>>> callArgumentTypes,
+            @NonNull Map<Integer, Integer> instructionLines) {
+        this(
+                instructions,
+                variableNames,
+                callArgumentTypes,
+                CompiledScript.lines(instructions.size(), instructionLines));
+    }
+
+    /**
+     * Create a compiled script with the line of every instruction already worked out, as returned
+     * by {@link #getLine(int)}. The program is verified and static calls are linked right away.
+     *
+     * @param instructions The instructions that make up the program.
+     * @param variableNames The names of each variable slot the instructions use, indexed by slot
+     *     number.
+     * @param callArgumentTypes The argument types the compiler determined for each static call,
+     *     indexed by the address of the call instruction.
+     * @param lines The line of every instruction, or 0 where none is known, indexed by address.
+     *     Missing lines are treated as unknown.
+     */
+    public CompiledScript(
+            @NonNull List<Instruction> instructions,
+            @NonNull List<String> variableNames,
+            @NonNull Map<Integer, List<Class<?>>> callArgumentTypes,
+            @NonNull int[] lines) {
+        this.instructions = instructions;
+        packed = instructions instanceof PackedProgram program ? program : null;
+        this.variableNames = List.copyOf(variableNames);
+        this.callArgumentTypes = Map.copyOf(callArgumentTypes);
+        this.lines = Arrays.copyOf(lines, instructions.size());
+        maxStackDepth = CompiledScript.maxStackDepth(instructions);
+        verified = ProgramVerifier.verify(instructions, variableNames.size());
+        nodes = NodeCompiler.compile(instructions, variableNames.size());
+        linker = new CallLinker(instructions, this.callArgumentTypes);
+        linker.link();
+    }
+
+    /**
+     * Compile the program to JVM bytecode, if it has not been already. Every runtime for this
+     * script uses the compiled program from then on.
+     *
+     * @return Whether the program is compiled.
+     */
+    public boolean compile() {
+        if (compiled == null) {
+            CompiledProgram program =
+                    BytecodeCompiler.compile(instructions, variableNames.size(), verified);
+            if (program != null) {
+                compiled = program;
+            }
+        }
+        return compiled != null;
+    }
+
+    /**
+     * Compile the program to JVM bytecode in the background, unless it is already compiled or
+     * being compiled.
+     */
+    synchronized void compileInBackground() {
+        if (compiled != null || compileRequested) {
+            return;
+        }
+        compileRequested = true;
+        BytecodeCompiler.compileInBackground(
+                instructions, variableNames.size(), verified, program -> compiled = program);
+    }
+
+    /**
+     * Create a new runtime to execute the script. This is cheap, since the runtime only holds the
+     * state of the execution.
+     *
+     * @return The new runtime.
+     */
+    public ScriptRuntime createRuntime() {
+        return new ScriptRuntime(this);
+    }
+
+    /**
+     * The line in the source an instruction came from. Instructions that were not generated
+     * directly from the source are treated as being on the line of the closest instruction before
+     * them that was.
+     *
+     * @param address The address of the instruction.
+     * @return The line number, or 0 if it is not known.
+     */
+    public int getLine(int address) {
+        return address >= 0 && address < lines.length ? lines[address] : 0;
+    }
+
+    /**
+     * The number of variable slots the program uses.
+     *
+     * @return The number of variable slots.
+     */
+    public int getVariableCount() {
+        return variableNames.size();
+    }
+
+    /**
+     * Read the value of one of the locations of an instruction as an int, without decoding packed
+     * instructions.
+     *
+     * @param address The address of the instruction, which must be valid.
+     * @param index Which location we want, 0 for the first, 1 for the second, 2 for the target.
+     * @return The numeric value of the location.
+     * @throws ClassCastException If the location does not hold a primitive value.
+     */
+    int intValue(int address, int index) {
+        if (packed != null) {
+            return packed.intValue(address, index);
+        }
+        final Instruction instruction = instructions.get(address);
+        final MemLocation location =
+                switch (index) {
+                    case 0 -> instruction.firstLocation();
+                    case 1 -> instruction.secondLocation();
+                    default -> instruction.targetLocation();
+                };
+        return ValueStore.intValue(location.value());
+    }
+
+    /**
+     * Check if an instruction is proven to pass the runtime's checks on its operands.
+     *
+     * @param address The address of the instruction.
+     * @return Whether the instruction is verified.
+     */
+    boolean isVerified(int address) {
+        return verified.get(address);
+    }
+
+    /**
+     * Read the type of an instruction, without decoding packed instructions.
+     *
+     * @param address The address of the instruction, which must be valid.
+     * @return The instruction type.
+     */
+    InstructionType type(int address) {
+        return packed != null ? packed.type(address) : instructions.get(address).type();
+    }
+}
@@ -0,0 +1,483 @@
+package com.ikalagaming.scripting.interpreter;
+
+import lombok.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The control flow graph of a program, where each instruction is a node. Used by optimizers to
+ * find which instructions can run after which, which instructions dominate others, where the loops
+ * are, and which variables might be read later.
+ *
+ * <p>The graph is built for one version of a program, and has to be built again after the program
+ * changes.
+ *
+ * @author Ches Burks
+ */
+class ControlFlowGraph {
+    /**
+     * A natural loop, the instructions that can reach a back edge to the header without going
+     * through the header.
+     *
+     * @author Ches Burks
+     * @param header The address of the header, which dominates every instruction in the loop.
+     * @param body The addresses of every instruction in the loop, including the header.
+     */
+    record Loop(int header, @NonNull BitSet body) {}
+
+    /**
+     * Check if an instruction is a conditional jump.
+     *
+     * @param type The instruction type.
+     * @return Whether the instruction jumps based on the last comparison.
+     */
+    static boolean isConditionalJump(@NonNull InstructionType type) {
+        return switch (type) {
+            case JEQ, JGE, JGT, JLE, JLT, JNE -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Check if an instruction reads the comparison register.
+     *
+     * @param type The instruction type.
+     * @return Whether the instruction reads the last comparison.
+     */
+    static boolean readsComparison(@NonNull InstructionType type) {
+        return switch (type) {
+            case SET_EQ, SET_GE, SET_GT, SET_LE, SET_LT, SET_NE -> true;
+            default -> ControlFlowGraph.isConditionalJump(type);
+        };
+    }
+
+    /**
+     * Find where execution can go after an instruction, following every branch.
+     *
+     * @param program The program.
+     * @param address The address of the instruction.
+     * @return The addresses that might run next, which may include the end of the program.
+     */
+    static int[] successors(@NonNull Instruction[] program, int address) {
+        final Instruction instruction = program[address];
+        final InstructionType type = instruction.type();
+        if (type == InstructionType.HALT) {
+            return new int[0];
+        }
+        if (type == InstructionType.JMP) {
+            return new int[] {(Integer) instruction.firstLocation().value()};
+        }
+        if (ControlFlowGraph.isConditionalJump(type)) {
+            return new int[] {address + 1, (Integer) instruction.firstLocation().value()};
+        }
+        if (PeepholeOptimizer.isFusedJump(type)) {
+            return new int[] {address + 1, (Integer) instruction.targetLocation().value()};
+        }
+        if (type == InstructionType.JMP_TABLE || type == InstructionType.JMP_LOOKUP) {
+            // The default, then each entry
+            final int count = (Integer) instruction.secondLocation().value();
+            int[] entries = new int[count + 1];
+            for (int entry = 0; entry <= count; ++entry) {
+                entries[entry] = address + 1 + entry;
+            }
+            return entries;
+        }
+        return new int[] {address + 1};
+    }
+
+    /**
+     * Check that every jump in a program goes somewhere valid, every switch jump has all of its
+     * entries, and every variable slot exists, so that a graph can be built for it.
+     *
+     * @param program The program.
+     * @param variableCount The number of variable slots the program uses.
+     * @return Whether the program is valid.
+     */
+    static boolean validate(@NonNull Instruction[] program, int variableCount) {
+        final int size = program.length;
+        for (int address = 0; address < size; ++address) {
+            final Instruction instruction = program[address];
+            final InstructionType type = instruction.type();
+            if ((type == InstructionType.JMP || ControlFlowGraph.isConditionalJump(type))
+                    && !(instruction.firstLocation().value() instanceof Integer target
+                            && target >= 0
+                            && target <= size)) {
+                return false;
+            }
+            if (PeepholeOptimizer.isFusedJump(type)
+                    && !(instruction.targetLocation().value() instanceof Integer target
+                            && target >= 0
+                            && target <= size)) {
+                return false;
+            }
+            if ((type == InstructionType.JMP_TABLE || type == InstructionType.JMP_LOOKUP)
+                    && !(instruction.secondLocation().value() instanceof Integer count
+                            && count >= 0
+                            && address + 1 + count < size)) {
+                return false;
+            }
+            if (type == InstructionType.CALL
+                    && !(instruction.secondLocation().value() instanceof Integer)) {
+                return false;
+            }
+            if (!ControlFlowGraph.validSlot(instruction.firstLocation(), variableCount)
+                    || !ControlFlowGraph.validSlot(instruction.secondLocation(), variableCount)
+                    || !ControlFlowGraph.validSlot(instruction.targetLocation(), variableCount)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that a location refers to a valid variable slot, if it is a variable.
+     *
+     * @param location The location, may be null.
+     * @param variableCount The number of variable slots.
+     * @return Whether the location is valid.
+     */
+    private static boolean validSlot(MemLocation location, int variableCount) {
+        if (location == null || location.area() != MemArea.VARIABLE) {
+            return true;
+        }
+        return location.value() instanceof Integer slot && slot >= 0 && slot < variableCount;
+    }
+
+    /** The program the graph is for. */
+    private final Instruction[] program;
+
+    /** The number of variable slots the program uses. */
+    private final int variableCount;
+
+    /** The successors of each instruction, not including the end of the program. */
+    private final int[][] successors;
+
+    /** The predecessors of each instruction. */
+    private final List<List<Integer>> predecessors;
+
+    /** The position of each reachable instruction in reverse postorder, -1 if unreachable. */
+    private final int[] order;
+
+    /** The immediate dominator of each reachable instruction, -1 if unreachable. */
+    private final int[] dominators;
+
+    /** The variables that might be read before being changed, at the start of each instruction. */
+    private BitSet[] liveIn;
+
+    /**
+     * Build the graph for a program, which must be {@link #validate(Instruction[], int) valid}.
+     *
+     * @param program The program.
+     * @param variableCount The number of variable slots the program uses.
+     */
+    ControlFlowGraph(@NonNull Instruction[] program, int variableCount) {
+        this.program = program;
+        this.variableCount = variableCount;
+        final int size = program.length;
+        successors = new int[size][];
+        predecessors = new ArrayList<>(size);
+        for (int address = 0; address < size; ++address) {
+            predecessors.add(new ArrayList<>());
+        }
+        for (int address = 0; address < size; ++address) {
+            successors[address] =
+                    Arrays.stream(ControlFlowGraph.successors(program, address))
+                            .filter(successor -> successor < size)
+                            .distinct()
+                            .toArray();
+            for (int successor : successors[address]) {
+                predecessors.get(successor).add(address);
+            }
+        }
+        order = new int[size];
+        Arrays.fill(order, -1);
+        dominators = new int[size];
+        Arrays.fill(dominators, -1);
+        if (size > 0) {
+            computeDominators(reversePostorder());
+        }
+    }
+
+    /**
+     * Find the immediate dominator of each reachable instruction, using the iterative algorithm
+     * from Cooper, Harvey and Kennedy.
+     *
+     * @param reversePostorder The reachable instructions in reverse postorder.
+     */
+    private void computeDominators(@NonNull int[] reversePostorder) {
+        dominators[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int index = 1; index < reversePostorder.length; ++index) {
+                final int address = reversePostorder[index];
+                int dominator = -1;
+                for (int predecessor : predecessors.get(address)) {
+                    if (dominators[predecessor] < 0) {
+                        continue;
+                    }
+                    dominator =
+                            dominator < 0 ? predecessor : intersect(predecessor, dominator);
+                }
+                if (dominators[address] != dominator) {
+                    dominators[address] = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if every path from the start of the program to an instruction goes through another.
+     *
+     * @param dominator The instruction that might dominate.
+     * @param address The instruction that might be dominated.
+     * @return Whether the first instruction dominates the second. Every instruction dominates
+     *     itself.
+     */
+    boolean dominates(int dominator, int address) {
+        if (dominators[address] < 0 || dominators[dominator] < 0) {
+            return false;
+        }
+        int current = address;
+        while (current != dominator) {
+            if (current == 0) {
+                return false;
+            }
+            current = dominators[current];
+        }
+        return true;
+    }
+
+    /**
+     * Find the closest common dominator of two instructions.
+     *
+     * @param first The first instruction.
+     * @param second The second instruction.
+     * @return The common dominator.
+     */
+    private int intersect(int first, int second) {
+        int a = first;
+        int b = second;
+        while (a != b) {
+            while (order[a] > order[b]) {
+                a = dominators[a];
+            }
+            while (order[b] > order[a]) {
+                b = dominators[b];
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Check if an instruction can be reached from the start of the program.
+     *
+     * @param address The address of the instruction.
+     * @return Whether the instruction is reachable.
+     */
+    boolean isReachable(int address) {
+        return order[address] >= 0;
+    }
+
+    /**
+     * Check if an instruction is the target of a jump, or can be reached other than by falling
+     * through from the instruction before it.
+     *
+     * @param address The address of the instruction.
+     * @return Whether something other than the previous instruction leads to it.
+     */
+    boolean isJoin(int address) {
+        for (int predecessor : predecessors.get(address)) {
+            if (predecessor != address - 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the variables that might be read before being changed, at the start of an instruction.
+     * The comparison register is the bit after the last variable.
+     *
+     * @param address The address of the instruction, or the length of the program for the end.
+     * @return The live variables, which must not be modified.
+     */
+    BitSet liveIn(int address) {
+        if (liveIn == null) {
+            computeLiveness();
+        }
+        return address < program.length ? liveIn[address] : new BitSet();
+    }
+
+    /**
+     * Find the variables that might be read before being changed, after an instruction. The
+     * comparison register is the bit after the last variable.
+     *
+     * @param address The address of the instruction.
+     * @return The live variables.
+     */
+    BitSet liveOut(int address) {
+        BitSet out = new BitSet();
+        for (int successor : successors[address]) {
+            out.or(liveIn(successor));
+        }
+        return out;
+    }
+
+    /**
+     * Find which variables, and whether the comparison register, are live at the start of each
+     * instruction.
+     */
+    private void computeLiveness() {
+        liveIn = new BitSet[program.length];
+        for (int address = 0; address < program.length; ++address) {
+            liveIn[address] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int address = program.length - 1; address >= 0; --address) {
+                final Instruction instruction = program[address];
+                BitSet in = new BitSet();
+                for (int successor : successors[address]) {
+                    in.or(liveIn[successor]);
+                }
+                final MemLocation target = instruction.targetLocation();
+                if (target != null && target.area() == MemArea.VARIABLE) {
+                    in.clear((Integer) target.value());
+                }
+                final InstructionType type = instruction.type();
+                if (type == InstructionType.CMP) {
+                    in.clear(variableCount);
+                }
+                markRead(instruction.firstLocation(), in);
+                markRead(instruction.secondLocation(), in);
+                if (ControlFlowGraph.readsComparison(type)
+                        || (type == InstructionType.CMP
+                                && (instruction.firstLocation().isDouble()
+                                        || instruction.secondLocation().isDouble()))) {
+                    // Comparing with NaN leaves the last comparison alone
+                    in.set(variableCount);
+                }
+                if (!in.equals(liveIn[address])) {
+                    liveIn[address] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the natural loops in the program. Loops that share a header are combined.
+     *
+     * @return The loops, smallest first so that inner loops come before the loops containing
+     *     them.
+     */
+    List<Loop> loops() {
+        Map<Integer, BitSet> bodies = new LinkedHashMap<>();
+        for (int address = 0; address < program.length; ++address) {
+            for (int successor : successors[address]) {
+                if (!dominates(successor, address)) {
+                    continue;
+                }
+                // A back edge, so everything that reaches it without the header is in the loop
+                BitSet body = bodies.computeIfAbsent(successor, header -> new BitSet());
+                body.set(successor);
+                Deque<Integer> pending = new ArrayDeque<>();
+                if (!body.get(address)) {
+                    body.set(address);
+                    pending.push(address);
+                }
+                while (!pending.isEmpty()) {
+                    for (int predecessor : predecessors.get(pending.pop())) {
+                        if (!body.get(predecessor) && isReachable(predecessor)) {
+                            body.set(predecessor);
+                            pending.push(predecessor);
+                        }
+                    }
+                }
+            }
+        }
+        List<Loop> loops = new ArrayList<>();
+        bodies.forEach((header, body) -> loops.add(new Loop(header, body)));
+        loops.sort(Comparator.comparingInt(loop -> loop.body().cardinality()));
+        return loops;
+    }
+
+    /**
+     * Mark a variable as read, if the location is a variable.
+     *
+     * @param location The location that is read, may be null.
+     * @param live The set of live variables.
+     */
+    private void markRead(MemLocation location, @NonNull BitSet live) {
+        if (location != null && location.area() == MemArea.VARIABLE) {
+            live.set((Integer) location.value());
+        }
+    }
+
+    /**
+     * The instructions that can run right before an instruction.
+     *
+     * @param address The address of the instruction.
+     * @return The predecessors, which must not be modified.
+     */
+    List<Integer> predecessors(int address) {
+        return predecessors.get(address);
+    }
+
+    /**
+     * Find the reachable instructions in reverse postorder, recording the position of each.
+     *
+     * @return The reachable instructions.
+     */
+    private int[] reversePostorder() {
+        final int size = program.length;
+        int[] postorder = new int[size];
+        int count = 0;
+        boolean[] visited = new boolean[size];
+        int[] next = new int[size];
+        Deque<Integer> path = new ArrayDeque<>();
+        visited[0] = true;
+        path.push(0);
+        while (!path.isEmpty()) {
+            final int address = path.peek();
+            if (next[address] < successors[address].length) {
+                final int successor = successors[address][next[address]++];
+                if (!visited[successor]) {
+                    visited[successor] = true;
+                    path.push(successor);
+                }
+            } else {
+                path.pop();
+                postorder[count++] = address;
+            }
+        }
+        int[] result = new int[count];
+        for (int index = 0; index < count; ++index) {
+            result[index] = postorder[count - 1 - index];
+            order[result[index]] = index;
+        }
+        return result;
+    }
+
+    /**
+     * The instructions that can run right after an instruction, not including the end of the
+     * program.
+     *
+     * @param address The address of the instruction.
+     * @return The successors, which must not be modified.
+     */
+    int[] successors(int address) {
+        return successors[address];
+    }
+}
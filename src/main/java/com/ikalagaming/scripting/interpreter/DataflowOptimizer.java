@@ -0,0 +1,766 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Optimizes a program using what is known about the values of variables along every path through
+ * it. The analysis walks the control flow graph of the instructions, only following branches that
+ * can actually be taken, and tracks which variables hold a known constant and which are copies of
+ * other variables at each instruction.
+ *
+ * <ul>
+ *   <li>Reads of variables with a known constant value are replaced with the constant, and
+ *       instructions whose inputs are all constant are replaced with a move of the result.
+ *   <li>Reads of a variable that was copied from another one, which has not changed since, read the
+ *       original instead.
+ *   <li>Conditional jumps on a known comparison become unconditional, or are removed.
+ *   <li>Instructions that can never be reached are removed.
+ *   <li>Stores to variables that are never read afterwards are removed.
+ * </ul>
+ *
+ * Instructions are removed by replacing them with {@link InstructionType#NOP}, so addresses don't
+ * change. The {@link PeepholeOptimizer} removes them afterwards.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+public class DataflowOptimizer {
+    /**
+     * What is known about the variables and comparison register before an instruction runs, along
+     * every path that reaches it.
+     *
+     * @author Ches Burks
+     */
+    private static class State {
+        /** The constant value of each variable slot, or {@link #VARYING}. */
+        final Object[] values;
+
+        /** The slot each variable slot is a copy of, or -1 if it is not a known copy. */
+        final int[] copies;
+
+        /** The constant result of the last comparison, or {@link #VARYING}. */
+        Object comparison;
+
+        /**
+         * Create a state where nothing is known.
+         *
+         * @param variableCount The number of variable slots.
+         */
+        State(int variableCount) {
+            values = new Object[variableCount];
+            Arrays.fill(values, DataflowOptimizer.VARYING);
+            copies = new int[variableCount];
+            Arrays.fill(copies, -1);
+            comparison = DataflowOptimizer.VARYING;
+        }
+
+        /**
+         * Create a copy of another state.
+         *
+         * @param other The state to copy.
+         */
+        State(@NonNull State other) {
+            values = other.values.clone();
+            copies = other.copies.clone();
+            comparison = other.comparison;
+        }
+
+        /**
+         * Record that a variable was changed, so it no longer holds a copy and nothing is a copy
+         * of it anymore.
+         *
+         * @param slot The slot that was changed.
+         * @param value The new constant value, or {@link #VARYING}.
+         */
+        void define(int slot, Object value) {
+            values[slot] = value;
+            copies[slot] = -1;
+            for (int i = 0; i < copies.length; ++i) {
+                if (copies[i] == slot) {
+                    copies[i] = -1;
+                }
+            }
+        }
+
+        /**
+         * Combine another state that reaches the same instruction into this one, keeping only what
+         * is true for both.
+         *
+         * @param other The other state.
+         * @return Whether this state changed.
+         */
+        boolean merge(@NonNull State other) {
+            boolean changed = false;
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] != DataflowOptimizer.VARYING
+                        && !DataflowOptimizer.sameConstant(values[i], other.values[i])) {
+                    values[i] = DataflowOptimizer.VARYING;
+                    changed = true;
+                }
+                if (copies[i] >= 0 && copies[i] != other.copies[i]) {
+                    copies[i] = -1;
+                    changed = true;
+                }
+            }
+            if (comparison != DataflowOptimizer.VARYING
+                    && !DataflowOptimizer.sameConstant(comparison, other.comparison)) {
+                comparison = DataflowOptimizer.VARYING;
+                changed = true;
+            }
+            return changed;
+        }
+    }
+
+    /** Stands for a value that is not known to be constant. */
+    private static final Object VARYING = new Object();
+
+    /** The most times we look for dead stores, since removing one can make others dead. */
+    private static final int MAX_DEAD_STORE_PASSES = 8;
+
+    /** Numbers closer than this are equal when compared, matching the runtime. */
+    private static final double TOLERANCE = 0.000_01;
+
+    /**
+     * Whether a jump or set instruction is true for a comparison result.
+     *
+     * @param type The jump or set instruction type.
+     * @param comparison The result of the last comparison.
+     * @return Whether the jump is taken, or the value that is set.
+     */
+    static boolean condition(@NonNull InstructionType type, int comparison) {
+        return switch (type) {
+            case JEQ, SET_EQ -> comparison == 0;
+            case JGE, SET_GE -> comparison >= 0;
+            case JGT, SET_GT -> comparison > 0;
+            case JLE, SET_LE -> comparison <= 0;
+            case JLT, SET_LT -> comparison < 0;
+            case JNE, SET_NE -> comparison != 0;
+            default -> true;
+        };
+    }
+
+    /**
+     * Create an immediate location that holds a constant.
+     *
+     * @param value The constant.
+     * @return The immediate location.
+     */
+    private static MemLocation immediate(@NonNull Object value) {
+        return new MemLocation(MemArea.IMMEDIATE, value.getClass(), value);
+    }
+
+    /**
+     * Check if an instruction can be removed when its result is not used, because it does nothing
+     * else and can't halt the program.
+     *
+     * @param instruction The instruction.
+     * @return Whether the instruction only stores a result.
+     */
+    static boolean isRemovable(@NonNull Instruction instruction) {
+        return switch (instruction.type()) {
+            case DIV_INT, MOD_INT, DIV_CHAR, MOD_CHAR ->
+                    // Might divide by zero otherwise
+                    instruction.secondLocation().area() == MemArea.IMMEDIATE
+                            && ValueStore.intValue(instruction.secondLocation().value()) != 0;
+            case MOV, ADD_INT, SUB_INT, MUL_INT, ADD_CHAR, SUB_CHAR, MUL_CHAR, AND, OR, NOT -> true;
+            case ADD_DOUBLE, SUB_DOUBLE, MUL_DOUBLE, DIV_DOUBLE, MOD_DOUBLE -> true;
+            case NEG_CHAR, NEG_DOUBLE, NEG_INT, CONCAT_STRING -> true;
+            case SET_EQ, SET_GE, SET_GT, SET_LE, SET_LT, SET_NE -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Check if an instruction only uses the values of the variables it reads, so they can be
+     * replaced with constants or other variables.
+     *
+     * @param type The instruction type.
+     * @return True if the values are only used as numbers, false if they are used as they are
+     *     stored, or null if the variables themselves might be used.
+     */
+    private static Boolean readsAsNumber(@NonNull InstructionType type) {
+        return switch (type) {
+            case ADD_DOUBLE, SUB_DOUBLE, MUL_DOUBLE, DIV_DOUBLE, MOD_DOUBLE -> true;
+            case ADD_INT, SUB_INT, MUL_INT, DIV_INT, MOD_INT -> true;
+            case ADD_CHAR, SUB_CHAR, MUL_CHAR, DIV_CHAR, MOD_CHAR -> true;
+            case CMP, NEG_CHAR, NEG_DOUBLE, NEG_INT -> true;
+            case AND, CONCAT_STRING, MOV, NOT, OR -> false;
+            default -> null;
+        };
+    }
+
+    /**
+     * Check if two values are the same constant, including the type.
+     *
+     * @param first The first value.
+     * @param second The second value.
+     * @return Whether they are the same constant.
+     */
+    private static boolean sameConstant(Object first, Object second) {
+        return first != DataflowOptimizer.VARYING
+                && second != DataflowOptimizer.VARYING
+                && Objects.equals(first, second);
+    }
+
+    /**
+     * The number of variable reads that were replaced with a constant.
+     *
+     * @return The number of propagated constants.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int constantsPropagated;
+
+    /**
+     * The number of variable reads that were replaced with a read of the variable they were copied
+     * from.
+     *
+     * @return The number of propagated copies.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int copiesPropagated;
+
+    /**
+     * The number of instructions that were replaced with a move of their constant result.
+     *
+     * @return The number of folded instructions.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int instructionsFolded;
+
+    /**
+     * The number of conditional jumps that were made unconditional or removed.
+     *
+     * @return The number of folded branches.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int branchesFolded;
+
+    /**
+     * The number of instructions that could never be reached and were removed.
+     *
+     * @return The number of unreachable instructions.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int unreachableRemoved;
+
+    /**
+     * The number of stores to variables that were never read and were removed.
+     *
+     * @return The number of dead stores.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int deadStoresRemoved;
+
+    /** The program being optimized. */
+    private Instruction[] program;
+
+    /** The number of variable slots the program uses. */
+    private int variableCount;
+
+    /**
+     * Find what is known before each instruction, following only the branches that can be taken.
+     *
+     * @return The state before each instruction, or null for instructions that are never reached.
+     */
+    private State[] analyze() {
+        State[] states = new State[program.length];
+        if (program.length == 0) {
+            return states;
+        }
+        states[0] = new State(variableCount);
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(0);
+        while (!pending.isEmpty()) {
+            final int address = pending.pop();
+            final State before = states[address];
+            final State after = transfer(program[address], before);
+            for (int successor : successors(address, before)) {
+                if (successor >= program.length) {
+                    continue;
+                }
+                if (states[successor] == null) {
+                    states[successor] = new State(after);
+                    pending.push(successor);
+                } else if (states[successor].merge(after)) {
+                    pending.push(successor);
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Compare two constants the way the runtime does.
+     *
+     * @param instruction The comparison instruction.
+     * @param state The state before the comparison.
+     * @return The result of the comparison, or {@link #VARYING} if it is not known.
+     */
+    private Object compare(@NonNull Instruction instruction, @NonNull State state) {
+        final MemLocation firstLocation = instruction.firstLocation();
+        final MemLocation secondLocation = instruction.secondLocation();
+        final Object first = valueOf(firstLocation, state);
+        final Object second = valueOf(secondLocation, state);
+        if (first == DataflowOptimizer.VARYING || second == DataflowOptimizer.VARYING) {
+            return DataflowOptimizer.VARYING;
+        }
+        if ((firstLocation.isChar() || firstLocation.isDouble() || firstLocation.isInt())
+                && (secondLocation.isChar()
+                        || secondLocation.isDouble()
+                        || secondLocation.isInt())) {
+            final double a = ValueStore.doubleValue(first);
+            final double b = ValueStore.doubleValue(second);
+            if (Math.abs(a - b) < DataflowOptimizer.TOLERANCE) {
+                return 0;
+            }
+            if (a < b) {
+                return -1;
+            }
+            if (a > b) {
+                return 1;
+            }
+            // Comparing with NaN leaves the last comparison alone
+            return state.comparison;
+        }
+        return first.equals(second) ? 0 : 1;
+    }
+
+    /**
+     * Calculate the result of an instruction if all of its inputs are known. Instructions that
+     * would halt the program, like dividing an integer by zero or using the wrong types, are never
+     * calculated.
+     *
+     * @param instruction The instruction.
+     * @param state The state before the instruction.
+     * @return The value stored to the target, or {@link #VARYING} if it is not known.
+     */
+    private Object evaluate(@NonNull Instruction instruction, @NonNull State state) {
+        final MemLocation firstLocation = instruction.firstLocation();
+        final MemLocation secondLocation = instruction.secondLocation();
+        final Object first = firstLocation == null ? null : valueOf(firstLocation, state);
+        final Object second = secondLocation == null ? null : valueOf(secondLocation, state);
+        if (first == DataflowOptimizer.VARYING || second == DataflowOptimizer.VARYING) {
+            return DataflowOptimizer.VARYING;
+        }
+        final InstructionType type = instruction.type();
+        switch (type) {
+            case ADD_INT, SUB_INT, MUL_INT, DIV_INT, MOD_INT:
+                if (!isIntegerLocation(firstLocation) || !isIntegerLocation(secondLocation)) {
+                    return DataflowOptimizer.VARYING;
+                }
+                return integerMath(
+                        type, ValueStore.intValue(first), ValueStore.intValue(second));
+            case ADD_CHAR, SUB_CHAR, MUL_CHAR, DIV_CHAR, MOD_CHAR:
+                if (!firstLocation.isChar() || !secondLocation.isChar()) {
+                    return DataflowOptimizer.VARYING;
+                }
+                Object result =
+                        integerMath(
+                                type,
+                                (char) ValueStore.intValue(first),
+                                (char) ValueStore.intValue(second));
+                return result instanceof Integer number ? (char) number.intValue() : result;
+            case ADD_DOUBLE, SUB_DOUBLE, MUL_DOUBLE, DIV_DOUBLE, MOD_DOUBLE:
+                if (!isNumberLocation(firstLocation) || !isNumberLocation(secondLocation)) {
+                    return DataflowOptimizer.VARYING;
+                }
+                final double a = ValueStore.doubleValue(first);
+                final double b = ValueStore.doubleValue(second);
+                return switch (type) {
+                    case ADD_DOUBLE -> a + b;
+                    case SUB_DOUBLE -> a - b;
+                    case MUL_DOUBLE -> a * b;
+                    case DIV_DOUBLE -> a / b;
+                    default -> a % b;
+                };
+            case AND, OR:
+                if (!firstLocation.isBoolean()
+                        || !secondLocation.isBoolean()
+                        || !(first instanceof Boolean left)
+                        || !(second instanceof Boolean right)) {
+                    return DataflowOptimizer.VARYING;
+                }
+                return type == InstructionType.AND ? left && right : left || right;
+            case NOT:
+                if (!firstLocation.isBoolean() || !(first instanceof Boolean value)) {
+                    return DataflowOptimizer.VARYING;
+                }
+                return !value;
+            case NEG_INT:
+                return isIntegerLocation(firstLocation)
+                        ? -ValueStore.intValue(first)
+                        : DataflowOptimizer.VARYING;
+            case NEG_CHAR:
+                return firstLocation.isChar()
+                        ? (char) -(char) ValueStore.intValue(first)
+                        : DataflowOptimizer.VARYING;
+            case NEG_DOUBLE:
+                return isNumberLocation(firstLocation)
+                        ? -ValueStore.doubleValue(first)
+                        : DataflowOptimizer.VARYING;
+            case CONCAT_STRING:
+                return String.valueOf(first) + second;
+            case SET_EQ, SET_GE, SET_GT, SET_LE, SET_LT, SET_NE:
+                return state.comparison instanceof Integer comparison
+                        ? DataflowOptimizer.condition(type, comparison)
+                        : DataflowOptimizer.VARYING;
+            case MOV:
+                if (firstLocation.area() == MemArea.IMMEDIATE
+                        && first.getClass() != firstLocation.type()) {
+                    // Stored with a type that doesn't match the value
+                    return DataflowOptimizer.VARYING;
+                }
+                return first;
+            default:
+                return DataflowOptimizer.VARYING;
+        }
+    }
+
+    /**
+     * Replace any conditional jumps on a known comparison, and any instructions with a known
+     * result, and remove instructions that are never reached.
+     *
+     * @param states The state before each instruction.
+     */
+    private void fold(@NonNull State[] states) {
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction instruction = program[address];
+            final State state = states[address];
+            if (state == null) {
+                if (instruction.type() != InstructionType.NOP) {
+                    program[address] = nop();
+                    ++unreachableRemoved;
+                }
+                continue;
+            }
+            final InstructionType type = instruction.type();
+            if (ControlFlowGraph.isConditionalJump(type)) {
+                if (state.comparison instanceof Integer comparison) {
+                    program[address] =
+                            DataflowOptimizer.condition(type, comparison)
+                                    ? new Instruction(
+                                            InstructionType.JMP,
+                                            instruction.firstLocation(),
+                                            null,
+                                            null)
+                                    : nop();
+                    ++branchesFolded;
+                }
+                continue;
+            }
+            final MemLocation target = instruction.targetLocation();
+            if (type == InstructionType.MOV
+                    || target == null
+                    || hasStackInput(instruction)
+                    || !(target.area() == MemArea.VARIABLE || target.area() == MemArea.STACK)) {
+                continue;
+            }
+            final Object result = evaluate(instruction, state);
+            if (result != DataflowOptimizer.VARYING && result != null) {
+                program[address] =
+                        new Instruction(
+                                InstructionType.MOV,
+                                DataflowOptimizer.immediate(result),
+                                null,
+                                target);
+                ++instructionsFolded;
+            }
+        }
+    }
+
+    /**
+     * Check if an instruction reads any of its inputs from the stack.
+     *
+     * @param instruction The instruction.
+     * @return Whether an input is on the stack.
+     */
+    private boolean hasStackInput(@NonNull Instruction instruction) {
+        final MemLocation first = instruction.firstLocation();
+        final MemLocation second = instruction.secondLocation();
+        return (first != null && first.area() == MemArea.STACK)
+                || (second != null && second.area() == MemArea.STACK);
+    }
+
+    /**
+     * Do integer math the way the runtime does, without dividing by zero.
+     *
+     * @param type The instruction type.
+     * @param a The first input.
+     * @param b The second input.
+     * @return The result, or {@link #VARYING} for division by zero.
+     */
+    private Object integerMath(@NonNull InstructionType type, int a, int b) {
+        return switch (type) {
+            case ADD_INT, ADD_CHAR -> a + b;
+            case SUB_INT, SUB_CHAR -> a - b;
+            case MUL_INT, MUL_CHAR -> a * b;
+            case DIV_INT, DIV_CHAR -> b == 0 ? DataflowOptimizer.VARYING : a / b;
+            default -> b == 0 ? DataflowOptimizer.VARYING : a % b;
+        };
+    }
+
+    /**
+     * Check if a location is read as an integer without halting.
+     *
+     * @param location The location.
+     * @return Whether the location is an integer or character.
+     */
+    private boolean isIntegerLocation(@NonNull MemLocation location) {
+        return location.isInt() || location.isChar();
+    }
+
+    /**
+     * Check if a location is read as a double without halting.
+     *
+     * @param location The location.
+     * @return Whether the location is a number.
+     */
+    private boolean isNumberLocation(@NonNull MemLocation location) {
+        return location.isInt() || location.isChar() || location.isDouble();
+    }
+
+
+    /**
+     * Create an instruction that does nothing, to replace a removed one.
+     *
+     * @return The new instruction.
+     */
+    private Instruction nop() {
+        return new Instruction(InstructionType.NOP, null, null, null);
+    }
+
+    /**
+     * Optimize a program. The statistics are reset, then updated with what was changed.
+     *
+     * @param instructions The program, with labels and variables already resolved.
+     * @param variableCount The number of variable slots the program uses.
+     * @return The optimized program, with the same number of instructions.
+     */
+    public List<Instruction> optimize(@NonNull List<Instruction> instructions, int variableCount) {
+        program = instructions.toArray(new Instruction[0]);
+        this.variableCount = variableCount;
+        constantsPropagated = 0;
+        copiesPropagated = 0;
+        instructionsFolded = 0;
+        branchesFolded = 0;
+        unreachableRemoved = 0;
+        deadStoresRemoved = 0;
+
+        if (!ControlFlowGraph.validate(program, variableCount)) {
+            return instructions;
+        }
+
+        State[] states = analyze();
+        propagate(states);
+        fold(states);
+        for (int pass = 0; pass < DataflowOptimizer.MAX_DEAD_STORE_PASSES; ++pass) {
+            if (!removeDeadStores()) {
+                break;
+            }
+        }
+
+        log.debug(
+                SafeResourceLoader.getString(
+                        "DATAFLOW_STATISTICS", ScriptManager.getResourceBundle()),
+                constantsPropagated,
+                copiesPropagated,
+                instructionsFolded,
+                branchesFolded,
+                unreachableRemoved,
+                deadStoresRemoved);
+        return new ArrayList<>(Arrays.asList(program));
+    }
+
+    /**
+     * Replace reads of variables with constants or the variables they were copied from, where that
+     * is known.
+     *
+     * @param states The state before each instruction.
+     */
+    private void propagate(@NonNull State[] states) {
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction instruction = program[address];
+            final State state = states[address];
+            if (state == null) {
+                continue;
+            }
+            final Boolean numeric = DataflowOptimizer.readsAsNumber(instruction.type());
+            if (numeric == null) {
+                // Anything else might use the variable itself, not just its value
+                continue;
+            }
+            final boolean exact = instruction.type() == InstructionType.MOV;
+            final MemLocation first =
+                    replacement(instruction.firstLocation(), state, numeric, exact);
+            final MemLocation second =
+                    replacement(instruction.secondLocation(), state, numeric, exact);
+            if (first != instruction.firstLocation() || second != instruction.secondLocation()) {
+                program[address] =
+                        new Instruction(
+                                instruction.type(), first, second, instruction.targetLocation());
+            }
+        }
+    }
+
+    /**
+     * Remove stores to variables and comparisons that are never read afterwards, as long as they
+     * don't take anything off the stack and can't halt the program.
+     *
+     * @return Whether anything was removed.
+     */
+    private boolean removeDeadStores() {
+        final ControlFlowGraph graph = new ControlFlowGraph(program, variableCount);
+        boolean changed = false;
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction instruction = program[address];
+            if (hasStackInput(instruction)) {
+                continue;
+            }
+            final MemLocation target = instruction.targetLocation();
+            final boolean dead;
+            if (instruction.type() == InstructionType.CMP) {
+                dead = !graph.liveOut(address).get(variableCount);
+            } else {
+                dead =
+                        target != null
+                                && target.area() == MemArea.VARIABLE
+                                && DataflowOptimizer.isRemovable(instruction)
+                                && !graph.liveOut(address).get((Integer) target.value());
+            }
+            if (dead) {
+                program[address] = nop();
+                ++deadStoresRemoved;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Find what to read instead of a variable, if anything.
+     *
+     * @param location The location that is read, may be null.
+     * @param state The state before the instruction.
+     * @param numeric Whether the instruction only uses the value as a number, so an integer
+     *     constant can be read as a double.
+     * @param exact Whether the value is copied as is, keeping the type it was stored with.
+     * @return The location to read instead, or the original location.
+     */
+    private MemLocation replacement(
+            MemLocation location, @NonNull State state, boolean numeric, boolean exact) {
+        if (location == null || location.area() != MemArea.VARIABLE) {
+            return location;
+        }
+        final int slot = (Integer) location.value();
+        final Object value = state.values[slot];
+        if (value != DataflowOptimizer.VARYING && value != null) {
+            if (exact || value.getClass() == location.type()) {
+                ++constantsPropagated;
+                return DataflowOptimizer.immediate(value);
+            }
+            if (numeric
+                    && location.isDouble()
+                    && (value instanceof Integer || value instanceof Character)) {
+                ++constantsPropagated;
+                return new MemLocation(
+                        MemArea.IMMEDIATE, Double.class, ValueStore.doubleValue(value));
+            }
+        }
+        if (state.copies[slot] >= 0) {
+            ++copiesPropagated;
+            return new MemLocation(MemArea.VARIABLE, location.type(), state.copies[slot]);
+        }
+        return location;
+    }
+
+    /**
+     * Find where execution can go after an instruction.
+     *
+     * @param address The address of the instruction.
+     * @param state The state before the instruction.
+     * @return The addresses that might run next, which may include the end of the program.
+     */
+    private int[] successors(int address, @NonNull State state) {
+        final Instruction instruction = program[address];
+        final InstructionType type = instruction.type();
+        if (ControlFlowGraph.isConditionalJump(type)
+                && state.comparison instanceof Integer comparison) {
+            return new int[] {
+                DataflowOptimizer.condition(type, comparison)
+                        ? (Integer) instruction.firstLocation().value()
+                        : address + 1
+            };
+        }
+        return ControlFlowGraph.successors(program, address);
+    }
+
+    /**
+     * Find what is known after an instruction runs.
+     *
+     * @param instruction The instruction.
+     * @param before The state before the instruction.
+     * @return The state after the instruction.
+     */
+    private State transfer(@NonNull Instruction instruction, @NonNull State before) {
+        final InstructionType type = instruction.type();
+        final MemLocation target = instruction.targetLocation();
+        final boolean changesComparison = type == InstructionType.CMP;
+        final boolean changesVariable = target != null && target.area() == MemArea.VARIABLE;
+        if (!changesComparison && !changesVariable) {
+            return before;
+        }
+        State after = new State(before);
+        if (changesComparison) {
+            after.comparison = compare(instruction, before);
+            return after;
+        }
+        final int slot = (Integer) target.value();
+        final Object value = evaluate(instruction, before);
+        after.define(slot, value == null ? DataflowOptimizer.VARYING : value);
+        final MemLocation source = instruction.firstLocation();
+        if (type == InstructionType.MOV
+                && source.area() == MemArea.VARIABLE
+                && (Integer) source.value() != slot) {
+            // The target now holds exactly what the source does
+            final int copied = (Integer) source.value();
+            final int original = before.copies[copied];
+            after.copies[slot] = original >= 0 && original != slot ? original : copied;
+        }
+        return after;
+    }
+
+    /**
+     * Find the constant value read from a location.
+     *
+     * @param location The location.
+     * @param state The state before the instruction that reads it.
+     * @return The constant value, or {@link #VARYING} if it is not known.
+     */
+    private Object valueOf(@NonNull MemLocation location, @NonNull State state) {
+        return switch (location.area()) {
+            case IMMEDIATE -> location.value() == null
+                    ? DataflowOptimizer.VARYING
+                    : location.value();
+            case VARIABLE -> state.values[(Integer) location.value()];
+            default -> DataflowOptimizer.VARYING;
+        };
+    }
+}
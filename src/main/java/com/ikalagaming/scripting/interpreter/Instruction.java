@@ -10,7 +10,7 @@ import lombok.NonNull;
  * @param firstLocation The first location to read. Null if we don't have any operands.
  * @param secondLocation The second location to read. Null if we have zero or one operand.
  * @param targetLocation The location to write results to. Null if we don't have output. In the case
- *     of variable storage, the value will be the name of the variable as a string.
+ *     of variable storage, the value will be the slot number of the variable as an integer.
  */
 public record Instruction(
         @NonNull InstructionType type,
@@ -32,6 +32,7 @@ import com.ikalagaming.scripting.ast.Node;
 import com.ikalagaming.scripting.ast.SwitchBlockGroup;
 import com.ikalagaming.scripting.ast.SwitchLabel;
 import com.ikalagaming.scripting.ast.SwitchStatement;
+import com.ikalagaming.scripting.ast.Type;
 import com.ikalagaming.scripting.ast.Type.Base;
 import com.ikalagaming.scripting.ast.VarDeclaration;
 import com.ikalagaming.scripting.ast.While;
@@ -42,6 +43,9 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +57,17 @@ import java.util.Map;
  */
 @Slf4j
 public class InstructionGenerator implements ASTVisitor {
+    /**
+     * The fewest cases a switch needs before we use a single table or lookup jump rather than
+     * comparing against each case in turn.
+     */
+    private static final int MIN_SWITCH_TABLE_CASES = 3;
+
+    /**
+     * How many table entries we allow per case before a switch is considered sparse and uses a
+     * lookup instead of a table.
+     */
+    private static final int MAX_SWITCH_TABLE_SPREAD = 3;
 
     /** Where we need to jump to in order to break out of the current, most proximal, loop. */
     private String breakLabel;
@@ -75,6 +90,46 @@ public class InstructionGenerator implements ASTVisitor {
      */
     private List<Instruction> tempInstructions;
 
+    /**
+     * The slot index assigned to each variable name, including temporary variables. Variables are
+     * given slots in the order they first show up in the program.
+     */
+    private Map<String, Integer> variableSlots;
+
+    /**
+     * The names of variables, indexed by their slot.
+     *
+     * @see #getVariableNames()
+     */
+    private List<String> variableNames = new ArrayList<>();
+
+    /**
+     * The argument types the compiler determined for each static call instruction, used while we
+     * are generating instructions before we know their final addresses.
+     */
+    private Map<Instruction, List<Class<?>>> staticCallTypes;
+
+    /**
+     * The argument types for static calls, indexed by the address of the call instruction.
+     *
+     * @see #getCallArgumentTypes()
+     */
+    private Map<Integer, List<Class<?>>> callArgumentTypes = new HashMap<>();
+
+    /** The line in the source of the node we are generating instructions for, or 0 if unknown. */
+    private int currentLine;
+
+    /** The line in the source of each temporary instruction, in the same order. */
+    private List<Integer> tempLines;
+
+    /**
+     * The line in the source each instruction came from, indexed by the address of the
+     * instruction.
+     *
+     * @see #getInstructionLines()
+     */
+    private Map<Integer, Integer> instructionLines = new HashMap<>();
+
     /**
      * Calculate and emit a jump based on the opposite expression provided. This does not emit the
      * expression itself, only calculates which jump expression is appropriate based on what we
@@ -324,60 +379,130 @@ public class InstructionGenerator implements ASTVisitor {
     }
 
     /**
-     * Generates and emits the jump table for a switch statement. It returns the label that
-     * corresponds to the default case, if it exists.
+     * Emit an entry for a table or lookup jump, which is a jump that also holds the key it is for.
+     *
+     * @param target The name of the label to jump to.
+     * @param key The key for the entry.
+     * @param type The type of the key.
+     */
+    private void emitSwitchEntry(
+            @NonNull final String target, @NonNull final Object key, @NonNull Class<?> type) {
+        tempInstructions.add(
+                new Instruction(
+                        InstructionType.JMP,
+                        new MemLocation(MemArea.IMMEDIATE, String.class, target),
+                        new MemLocation(MemArea.IMMEDIATE, type, key),
+                        null));
+    }
+
+    /**
+     * Generates and emits a comparison and jump for each case of a switch statement, which we use
+     * when the cases are not all constants.
      *
-     * @param body The body of the switch statement.
-     * @param targetTable Where expressions and pseudo-label nodes will be stored. This will later
-     *     be used to generate actual labels and expressions to jump to.
+     * @param caseExpressions The expression for each case label.
+     * @param caseTargets The name of the label to jump to for each case.
      * @param expressionResult The name of the variable that contains the results of the switch
      *     expression.
-     * @return The name of the label that the default case jumps to, will be null if there is no
-     *     default.
      */
-    private String generateSwitchJumpTable(
-            @NonNull Node body, @NonNull List<Node> targetTable, @NonNull String expressionResult) {
-        String defaultLabel = null;
-        // statement groups are first, then loose switch labels
-        for (Node child : body.getChildren()) {
-            if (!(child instanceof SwitchBlockGroup)) {
-                continue;
-            }
-            final String sharedLabel = getNextLabelName();
-
-            // Just used to store the label name in the target table
-            Label fakeLabel = new Label();
-            fakeLabel.setName(sharedLabel);
-            targetTable.add(fakeLabel);
+    private void generateSwitchJumpTable(
+            @NonNull List<Node> caseExpressions,
+            @NonNull List<String> caseTargets,
+            @NonNull String expressionResult) {
+        for (int i = 0; i < caseExpressions.size(); ++i) {
+            Node labelExpression = caseExpressions.get(i);
+            processTree(labelExpression);
+            tempInstructions.add(
+                    new Instruction(
+                            InstructionType.CMP,
+                            new MemLocation(
+                                    MemArea.STACK,
+                                    labelExpression.getType().getBase().getCorrespondingClass()),
+                            new MemLocation(MemArea.VARIABLE, String.class, expressionResult),
+                            null));
+            emitJump(InstructionType.JEQ, caseTargets.get(i));
+        }
+    }
 
-            for (Node subChild : child.getChildren()) {
-                if (subChild instanceof SwitchLabel label) {
-                    if (label.isDefault()) {
-                        defaultLabel = sharedLabel;
-                    } else {
-                        Node labelExpression = label.getChildren().get(0);
-                        processTree(labelExpression);
-                        tempInstructions.add(
-                                new Instruction(
-                                        InstructionType.CMP,
-                                        new MemLocation(
-                                                MemArea.STACK,
-                                                labelExpression
-                                                        .getType()
-                                                        .getBase()
-                                                        .getCorrespondingClass()),
-                                        new MemLocation(
-                                                MemArea.VARIABLE, String.class, expressionResult),
-                                        null));
-                        emitJump(InstructionType.JEQ, sharedLabel);
-                    }
-                } else {
-                    // block statement
-                    targetTable.add(subChild);
-                }
+    /**
+     * Generates and emits a single table or lookup jump for a switch statement whose cases are all
+     * constants. Dense integer and character cases get a table, anything else gets a lookup.
+     *
+     * @param keys The constant value of each case label, in order.
+     * @param caseTargets The name of the label to jump to for each case.
+     * @param defaultLabel The name of the label to jump to if no case matches.
+     * @param value Where the result of the switch expression is stored.
+     */
+    private void generateSwitchLookup(
+            @NonNull List<Object> keys,
+            @NonNull List<String> caseTargets,
+            @NonNull String defaultLabel,
+            @NonNull MemLocation value) {
+        // Like the comparisons, the first case with a given value wins
+        Map<Object, String> targets = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); ++i) {
+            targets.putIfAbsent(keys.get(i), caseTargets.get(i));
+        }
+
+        long low = Long.MAX_VALUE;
+        long high = Long.MIN_VALUE;
+        for (Object key : targets.keySet()) {
+            final int number = ValueStore.intValue(key);
+            low = Math.min(low, number);
+            high = Math.max(high, number);
+        }
+
+        final boolean table =
+                high - low + 1
+                        <= (long) targets.size() * InstructionGenerator.MAX_SWITCH_TABLE_SPREAD;
+        if (table) {
+            final int count = (int) (high - low + 1);
+            tempInstructions.add(
+                    new Instruction(
+                            InstructionType.JMP_TABLE,
+                            value,
+                            new MemLocation(MemArea.IMMEDIATE, Integer.class, count),
+                            null));
+            emitJump(InstructionType.JMP, defaultLabel);
+            for (long number = low; number <= high; ++number) {
+                final Object key =
+                        value.isChar() ? (Object) (char) number : (Object) (int) number;
+                emitSwitchEntry(targets.getOrDefault(key, defaultLabel), key, value.type());
             }
+            return;
         }
-        return defaultLabel;
+
+        tempInstructions.add(
+                new Instruction(
+                        InstructionType.JMP_LOOKUP,
+                        value,
+                        new MemLocation(MemArea.IMMEDIATE, Integer.class, targets.size()),
+                        null));
+        emitJump(InstructionType.JMP, defaultLabel);
+        for (Map.Entry<Object, String> entry : targets.entrySet()) {
+            emitSwitchEntry(entry.getValue(), entry.getKey(), value.type());
+        }
+    }
+
+    /**
+     * The argument types the compiler determined for each static call in the last program we
+     * processed, indexed by the address of the call instruction. Arguments whose type could not be
+     * determined ahead of time, such as the results of other calls, are {@code Object}.
+     *
+     * @return An unmodifiable map from call addresses to the types of the arguments, in order.
+     */
+    public Map<Integer, List<Class<?>>> getCallArgumentTypes() {
+        return Map.copyOf(callArgumentTypes);
+    }
+
+    /**
+     * The line in the source that each instruction in the last program we processed came from,
+     * indexed by the address of the instruction. Instructions we don't know the line of are left
+     * out.
+     *
+     * @return An unmodifiable map from addresses to line numbers.
+     */
+    public Map<Integer, Integer> getInstructionLines() {
+        return Map.copyOf(instructionLines);
     }
 
     /**
@@ -425,6 +550,17 @@ public class InstructionGenerator implements ASTVisitor {
         }
     }
 
+    /**
+     * The names of each variable slot used by the last program we processed, indexed by slot
+     * number. The runtime only needs this for error messages, since instructions refer to variables
+     * by slot.
+     *
+     * @return An unmodifiable list of the variable names, where the index is the slot number.
+     */
+    public List<String> getVariableNames() {
+        return List.copyOf(variableNames);
+    }
+
     /**
      * Calculate the instruction type based on the operator.
      *
@@ -650,6 +786,13 @@ public class InstructionGenerator implements ASTVisitor {
         }
     }
 
+    /** Mark the instructions emitted since we last checked as coming from the current line. */
+    private void markLines() {
+        while (tempLines.size() < tempInstructions.size()) {
+            tempLines.add(currentLine);
+        }
+    }
+
     /**
      * Handles {@link ExprEquality} and {@link ExprRelation}, since they use the exact same logic
      * due to a common {@link InstructionType#CMP} instruction.
@@ -707,11 +850,42 @@ public class InstructionGenerator implements ASTVisitor {
      */
     public List<Instruction> process(@NonNull CompilationUnit ast) {
         tempInstructions = new LinkedList<>();
+        variableSlots = new HashMap<>();
+        variableNames = new ArrayList<>();
+        staticCallTypes = new IdentityHashMap<>();
+        callArgumentTypes = new HashMap<>();
+        tempLines = new ArrayList<>();
+        instructionLines = new HashMap<>();
+        currentLine = 0;
         processTree(ast);
+        markLines();
 
         // generate temporary instructions
 
-        return processJumps();
+        List<Instruction> result = processJumps();
+        processVariableSlots(result);
+
+        for (int address = 0; address < result.size(); ++address) {
+            List<Class<?>> types = staticCallTypes.get(result.get(address));
+            if (types != null) {
+                callArgumentTypes.put(address, types);
+            }
+        }
+
+        // Labels are stripped out, so skip their lines too
+        int address = 0;
+        Iterator<Integer> lines = tempLines.iterator();
+        for (Instruction i : tempInstructions) {
+            final int line = lines.next();
+            if (i.type() == InstructionType.NOP) {
+                continue;
+            }
+            if (line > 0) {
+                instructionLines.put(address, line);
+            }
+            ++address;
+        }
+        return result;
     }
 
     /**
@@ -826,8 +1000,8 @@ public class InstructionGenerator implements ASTVisitor {
                                         MemArea.IMMEDIATE,
                                         Integer.class,
                                         labelLocations.get(current.firstLocation().value())),
-                                null,
-                                null);
+                                current.secondLocation(),
+                                current.targetLocation());
                 result.set(i, replacement);
             }
         }
@@ -841,6 +1015,13 @@ public class InstructionGenerator implements ASTVisitor {
      * @param node The node to start processing from.
      */
     private void processTree(Node node) {
+        // Anything emitted so far belongs to the node we are inside of
+        markLines();
+        final int outerLine = currentLine;
+        if (node.getLine() > 0) {
+            currentLine = node.getLine();
+        }
+
         if (shouldSkipChildren(node)) {
             /*
              * Skip processing children because the visitor handles processing
@@ -857,6 +1038,56 @@ public class InstructionGenerator implements ASTVisitor {
             }
         }
         node.process(this);
+
+        markLines();
+        currentLine = outerLine;
+    }
+
+    /**
+     * Replace variable names in a memory location with the slot number for that variable, assigning
+     * a new slot if we have not seen the variable yet.
+     *
+     * @param location The location to convert, may be null.
+     * @return The location referring to a variable slot, or the original location if it does not
+     *     refer to a variable.
+     */
+    private MemLocation processVariableSlot(MemLocation location) {
+        if (location == null
+                || location.area() != MemArea.VARIABLE
+                || !(location.value() instanceof String name)) {
+            return location;
+        }
+        Integer slot =
+                variableSlots.computeIfAbsent(
+                        name,
+                        variable -> {
+                            variableNames.add(variable);
+                            return variableNames.size() - 1;
+                        });
+        return new MemLocation(MemArea.VARIABLE, location.type(), slot);
+    }
+
+    /**
+     * Assign every variable a slot number, and replace the variable names in instructions with
+     * those slots so that the runtime can store variables in a flat array instead of looking them
+     * up by name.
+     *
+     * @param instructions The instructions to update, modified in place.
+     */
+    private void processVariableSlots(List<Instruction> instructions) {
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction current = instructions.get(i);
+            Instruction updated =
+                    new Instruction(
+                            current.type(),
+                            processVariableSlot(current.firstLocation()),
+                            processVariableSlot(current.secondLocation()),
+                            processVariableSlot(current.targetLocation()));
+            if (!updated.equals(current)) {
+                // Keep unchanged instructions so we can still find them by identity
+                instructions.set(i, updated);
+            }
+        }
     }
 
     /**
@@ -959,30 +1190,90 @@ public class InstructionGenerator implements ASTVisitor {
 
     /**
      * Handle creating the jump table and calculating targets for the jump table, for switch
-     * statements.
+     * statements. Statement groups are first, then loose switch labels, which jump to the end of
+     * the switch. If there is no default, values that match no case also jump to the end.
      *
      * @param body The block that contains the statements.
      * @param targetTable Where we store the labels and expressions to emit later.
-     * @param expressionResult The name of the variable where the expression result is stored.
+     * @param value Where the result of the switch expression is stored.
+     * @param endLabel The name of the label at the end of the switch.
      */
-    private void switchBody(Node body, List<Node> targetTable, String expressionResult) {
-        String defaultLabel = generateSwitchJumpTable(body, targetTable, expressionResult);
-        /** Used for all trailing labels. */
-        final String endLabel = getNextLabelName();
+    private void switchBody(
+            @NonNull Node body,
+            @NonNull List<Node> targetTable,
+            @NonNull MemLocation value,
+            @NonNull String endLabel) {
+        String defaultLabel = null;
+        List<Node> caseExpressions = new ArrayList<>();
+        List<String> caseTargets = new ArrayList<>();
+        for (Node child : body.getChildren()) {
+            if (!(child instanceof SwitchBlockGroup)) {
+                continue;
+            }
+            final String sharedLabel = getNextLabelName();
+
+            // Just used to store the label name in the target table
+            Label fakeLabel = new Label();
+            fakeLabel.setName(sharedLabel);
+            targetTable.add(fakeLabel);
+
+            for (Node subChild : child.getChildren()) {
+                if (subChild instanceof SwitchLabel label) {
+                    if (label.isDefault()) {
+                        defaultLabel = sharedLabel;
+                    } else {
+                        caseExpressions.add(label.getChildren().get(0));
+                        caseTargets.add(sharedLabel);
+                    }
+                } else {
+                    // block statement
+                    targetTable.add(subChild);
+                }
+            }
+        }
         for (Node child : body.getChildren()) {
             if (child instanceof SwitchLabel label) {
                 if (label.isDefault()) {
                     defaultLabel = endLabel;
                 } else {
-                    Node labelExpression = label.getChildren().get(0);
-                    processTree(labelExpression);
-                    emitJump(InstructionType.JEQ, endLabel);
+                    caseExpressions.add(label.getChildren().get(0));
+                    caseTargets.add(endLabel);
                 }
             }
         }
-        if (defaultLabel != null) {
-            emitJump(InstructionType.JMP, defaultLabel);
+        if (defaultLabel == null) {
+            defaultLabel = endLabel;
+        }
+
+        List<Object> keys = switchKeys(caseExpressions, value.type());
+        if (keys != null && keys.size() >= InstructionGenerator.MIN_SWITCH_TABLE_CASES) {
+            generateSwitchLookup(keys, caseTargets, defaultLabel, value);
+            return;
+        }
+        generateSwitchJumpTable(caseExpressions, caseTargets, (String) value.value());
+        emitJump(InstructionType.JMP, defaultLabel);
+    }
+
+    /**
+     * Find the constant value of each case of a switch, if they are all constants of the same
+     * type as the switch expression.
+     *
+     * @param caseExpressions The expression for each case label.
+     * @param type The type of the switch expression.
+     * @return The value of each case, or null if any of them are not a constant of the right type.
+     */
+    private List<Object> switchKeys(@NonNull List<Node> caseExpressions, @NonNull Class<?> type) {
+        List<Object> keys = new ArrayList<>();
+        for (Node expression : caseExpressions) {
+            if (type == Integer.class && expression instanceof ConstInt constant) {
+                keys.add(constant.getValue());
+            } else if (type == Character.class && expression instanceof ConstChar constant) {
+                keys.add(constant.getValue());
+            } else {
+                return null;
+            }
         }
+        return keys;
     }
 
     @Override
@@ -1034,12 +1325,28 @@ public class InstructionGenerator implements ASTVisitor {
                         Integer.class,
                         params == null ? 0 : params.getChildren().size());
 
-        tempInstructions.add(
+        Instruction call =
                 new Instruction(
                         InstructionType.CALL,
                         object,
                         paramCount,
-                        new MemLocation(MemArea.STACK, Void.class)));
+                        new MemLocation(MemArea.STACK, Void.class));
+        tempInstructions.add(call);
+
+        if (!node.isPrimary()) {
+            List<Class<?>> types = new ArrayList<>();
+            if (params != null) {
+                for (Node param : params.getChildren()) {
+                    final Type type = param.getType();
+                    if (type == null || type.getDimensions() > 0) {
+                        types.add(Object.class);
+                    } else {
+                        types.add(type.getBase().getCorrespondingClass());
+                    }
+                }
+            }
+            staticCallTypes.put(call, List.copyOf(types));
+        }
     }
 
     @Override
@@ -1137,6 +1444,10 @@ public class InstructionGenerator implements ASTVisitor {
         Node body = node.getChildren().get(0);
         Node conditional = node.getChildren().get(1);
 
+        // Nested loops and switches put these back when they are done
+        final String outerBreakLabel = breakLabel;
+        final String outerContinueLabel = continueLabel;
+
         final String topOfLoopLabel = getNextLabelName();
         final String conditionLabel = getNextLabelName();
         continueLabel = conditionLabel;
@@ -1156,6 +1467,8 @@ public class InstructionGenerator implements ASTVisitor {
         if (containsBreak) {
             emitLabel(breakLabel);
         }
+        breakLabel = outerBreakLabel;
+        continueLabel = outerContinueLabel;
     }
 
     @Override
@@ -1386,7 +1699,12 @@ public class InstructionGenerator implements ASTVisitor {
         }
         Node body = node.getChildren().get(position);
 
+        // Nested loops and switches put these back when they are done
+        final String outerBreakLabel = breakLabel;
+        final String outerContinueLabel = continueLabel;
+
         final String topOfLoopLabel = getNextLabelName();
+        final String updateLabel = getNextLabelName();
         final String conditionLabel = getNextLabelName();
 
         final boolean containsBreak = containsBreak(body);
@@ -1394,7 +1712,8 @@ public class InstructionGenerator implements ASTVisitor {
             breakLabel = getNextLabelName();
         }
 
-        continueLabel = conditionLabel;
+        // Continuing still runs the update
+        continueLabel = updateLabel;
 
         if (init != null) {
             processTree(init);
@@ -1402,6 +1721,7 @@ public class InstructionGenerator implements ASTVisitor {
         emitJump(InstructionType.JMP, conditionLabel);
         emitLabel(topOfLoopLabel);
         processTree(body);
+        emitLabel(updateLabel);
         if (update != null) {
             processTree(update);
         }
@@ -1415,6 +1735,8 @@ public class InstructionGenerator implements ASTVisitor {
         if (containsBreak) {
             emitLabel(breakLabel);
         }
+        breakLabel = outerBreakLabel;
+        continueLabel = outerContinueLabel;
     }
 
     @Override
@@ -1468,11 +1790,12 @@ public class InstructionGenerator implements ASTVisitor {
         Node body = node.getChildren().get(1);
 
         final String expressionResult = getNextVariableName();
+        final Class<?> expressionType = expression.getType().getBase().getCorrespondingClass();
 
-        final boolean containsBreak = containsBreak(body);
-        if (containsBreak) {
-            breakLabel = getNextLabelName();
-        }
+        // Breaks inside the switch leave the switch, not any loop around it
+        final String outerBreakLabel = breakLabel;
+        final String endLabel = getNextLabelName();
+        breakLabel = endLabel;
 
         /*
          * Emit the expression and store the result in a temporary variable. We
@@ -1487,9 +1810,7 @@ public class InstructionGenerator implements ASTVisitor {
         tempInstructions.add(
                 new Instruction(
                         InstructionType.MOV,
-                        new MemLocation(
-                                MemArea.STACK,
-                                expression.getType().getBase().getCorrespondingClass()),
+                        new MemLocation(MemArea.STACK, expressionType),
                         null,
                         new MemLocation(MemArea.VARIABLE, String.class, expressionResult)));
 
@@ -1500,7 +1821,11 @@ public class InstructionGenerator implements ASTVisitor {
          */
         List<Node> targetTable = new ArrayList<>();
 
-        switchBody(body, targetTable, expressionResult);
+        switchBody(
+                body,
+                targetTable,
+                new MemLocation(MemArea.VARIABLE, expressionType, expressionResult),
+                endLabel);
 
         // Then emit targets and contents
 
@@ -1512,9 +1837,8 @@ public class InstructionGenerator implements ASTVisitor {
             }
         }
 
-        if (containsBreak) {
-            emitLabel(breakLabel);
-        }
+        emitLabel(endLabel);
+        breakLabel = outerBreakLabel;
     }
 
     @Override
@@ -1588,6 +1912,10 @@ public class InstructionGenerator implements ASTVisitor {
         Node conditional = node.getChildren().get(0);
         Node body = node.getChildren().get(1);
 
+        // Nested loops and switches put these back when they are done
+        final String outerBreakLabel = breakLabel;
+        final String outerContinueLabel = continueLabel;
+
         final String topOfLoopLabel = getNextLabelName();
         final String conditionLabel = getNextLabelName();
         continueLabel = conditionLabel;
@@ -1609,5 +1937,7 @@ public class InstructionGenerator implements ASTVisitor {
         if (containsBreak) {
             emitLabel(breakLabel);
         }
+        breakLabel = outerBreakLabel;
+        continueLabel = outerContinueLabel;
     }
 }
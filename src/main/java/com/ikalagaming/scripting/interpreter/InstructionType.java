@@ -67,6 +67,100 @@ public enum InstructionType {
      * <b>Output:</b> None, but does set the comparison register.
      */
     CMP,
+    /**
+     * Compare two values like {@link #CMP}, then jump if the values are equal, like {@link #JEQ}.
+     * This is a superinstruction made by the last optimization pass. <br>
+     * <br>
+     * <b>Input 1:</b> Any value.<br>
+     * <b>Input 2:</b> Any value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    CMP_JEQ,
+    /**
+     * Compare two values like {@link #CMP}, then jump if the first value is greater than or equal
+     * to the second, like {@link #JGE}. This is a superinstruction made by the last optimization
+     * pass. <br>
+     * <br>
+     * <b>Input 1:</b> Any value.<br>
+     * <b>Input 2:</b> Any value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    CMP_JGE,
+    /**
+     * Compare two values like {@link #CMP}, then jump if the first value is strictly greater than
+     * the second, like {@link #JGT}. This is a superinstruction made by the last optimization pass.
+     * <br>
+     * <br>
+     * <b>Input 1:</b> Any value.<br>
+     * <b>Input 2:</b> Any value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    CMP_JGT,
+    /**
+     * Compare two values like {@link #CMP}, then jump if the first value is less than or equal to
+     * the second, like {@link #JLE}. This is a superinstruction made by the last optimization pass.
+     * <br>
+     * <br>
+     * <b>Input 1:</b> Any value.<br>
+     * <b>Input 2:</b> Any value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    CMP_JLE,
+    /**
+     * Compare two values like {@link #CMP}, then jump if the first value is strictly less than the
+     * second, like {@link #JLT}. This is a superinstruction made by the last optimization pass.
+     * <br>
+     * <br>
+     * <b>Input 1:</b> Any value.<br>
+     * <b>Input 2:</b> Any value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    CMP_JLT,
+    /**
+     * Compare two values like {@link #CMP}, then jump if the values are not equal, like {@link
+     * #JNE}. This is a superinstruction made by the last optimization pass. <br>
+     * <br>
+     * <b>Input 1:</b> Any value.<br>
+     * <b>Input 2:</b> Any value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    CMP_JNE,
+    /**
+     * Add a string to the builder that the previous step of a concatenation chain left on the
+     * stack, leaving the builder on the stack for the next step. This is made by the last
+     * optimization pass, from a {@link #CONCAT_STRING} in the middle of a chain. <br>
+     * <br>
+     * <b>Input 1:</b> The string builder.<br>
+     * <b>Input 2:</b> A string value.<br>
+     * <b>Output:</b> The same string builder, on the stack.
+     */
+    CONCAT_APPEND,
+    /**
+     * Add one string to another in a new string builder, which is left on the stack for the next
+     * step of a concatenation chain. This is made by the last optimization pass, from the {@link
+     * #CONCAT_STRING} that starts a chain. <br>
+     * <br>
+     * <b>Input 1:</b> A string value.<br>
+     * <b>Input 2:</b> A string value.<br>
+     * <b>Output:</b> The new string builder, on the stack.
+     */
+    CONCAT_BEGIN,
+    /**
+     * Add a string to the builder that the previous step of a concatenation chain left on the
+     * stack, and output the finished string. This is made by the last optimization pass, from the
+     * {@link #CONCAT_STRING} that ends a chain. <br>
+     * <br>
+     * <b>Input 1:</b> The string builder.<br>
+     * <b>Input 2:</b> A string value.<br>
+     * <b>Output:</b> The resulting string.
+     */
+    CONCAT_END,
     /**
      * Add one string to another. <br>
      * <br>
@@ -107,6 +201,28 @@ public enum InstructionType {
      * <b>Output:</b> None.
      */
     HALT,
+    /**
+     * Add one to an integer variable, compare the result with a bound like {@link #CMP}, then jump
+     * if it is less than or equal to the bound, like {@link #JLE}. This ends most counting loops,
+     * and is a superinstruction made by the last optimization pass. <br>
+     * <br>
+     * <b>Input 1:</b> An integer variable, which is updated.<br>
+     * <b>Input 2:</b> An integer or character value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    INC_JLE,
+    /**
+     * Add one to an integer variable, compare the result with a bound like {@link #CMP}, then jump
+     * if it is strictly less than the bound, like {@link #JLT}. This ends most counting loops, and
+     * is a superinstruction made by the last optimization pass. <br>
+     * <br>
+     * <b>Input 1:</b> An integer variable, which is updated.<br>
+     * <b>Input 2:</b> An integer or character value.<br>
+     * <b>Output:</b> None, but does set the comparison register. The target is the immediate
+     * address to jump to.
+     */
+    INC_JLT,
     /**
      * Jump if two values are equal. <br>
      * <br>
@@ -155,6 +271,28 @@ public enum InstructionType {
      * <b>Output:</b> None.
      */
     JMP,
+    /**
+     * Jump based on which key a value matches, as for a switch with sparse cases. This
+     * is followed by a {@link #JMP} taken when nothing matches, then one {@link #JMP} per entry
+     * with its key as the second input. When several entries have the same key, the first one
+     * wins. <br>
+     * <br>
+     * <b>Input 1:</b> An integer or character value.<br>
+     * <b>Input 2:</b> The number of entries, an immediate integer.<br>
+     * <b>Output:</b> None.
+     */
+    JMP_LOOKUP,
+    /**
+     * Jump to an entry in a table using a value as the index, as for a switch with dense integer or
+     * character cases. This is followed by a {@link #JMP} taken when the value is outside the
+     * table, then one {@link #JMP} per consecutive value starting from the key of the first entry,
+     * which is stored as its second input. <br>
+     * <br>
+     * <b>Input 1:</b> An integer or character value.<br>
+     * <b>Input 2:</b> The number of entries, an immediate integer.<br>
+     * <b>Output:</b> None.
+     */
+    JMP_TABLE,
     /**
      * Jump if two values are not equal. <br>
      * <br>
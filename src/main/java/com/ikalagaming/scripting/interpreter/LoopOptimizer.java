@@ -0,0 +1,577 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+import com.ikalagaming.scripting.interpreter.ControlFlowGraph.Loop;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Optimizes the natural loops in a program, found using the {@link ControlFlowGraph}.
+ *
+ * <ul>
+ *   <li>Loops that count a variable up or down to a constant a small number of times, with no
+ *       branches in the body, are fully unrolled. This removes the comparison and jump on every
+ *       iteration, and lets the {@link DataflowOptimizer} treat the counter as a constant in each
+ *       copy of the body.
+ *   <li>Instructions that calculate the same value on every iteration are moved into a preheader
+ *       that runs once before the loop. Values that were passed on the stack are stored in a new
+ *       variable instead.
+ * </ul>
+ *
+ * This runs after the first {@link PeepholeOptimizer} pass, so that the operands of instructions
+ * are already read directly from variables where possible. Since instructions are added and
+ * removed, any information kept by address has to be {@link #remapAddresses(Map) remapped}.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+public class LoopOptimizer {
+    /** The most changes we make to one program, since each one means analyzing it again. */
+    private static final int MAX_CHANGES = 64;
+
+    /** The most iterations of a loop that we unroll. */
+    private static final int MAX_UNROLLED_TRIPS = 16;
+
+    /** The most instructions that a fully unrolled loop can turn into. */
+    private static final int MAX_UNROLLED_SIZE = 64;
+
+    /** The start of the names of variables we create to hold invariant values. */
+    private static final String TEMPORARY_PREFIX = "$invariant";
+
+    /**
+     * Create an instruction that does nothing, to replace a removed one.
+     *
+     * @return The new instruction.
+     */
+    private static Instruction nop() {
+        return new Instruction(InstructionType.NOP, null, null, null);
+    }
+
+    /**
+     * Build the replacement for an instruction that pops a value from the stack, reading it from a
+     * variable instead. The first input is read before the second, so it gets the top of the stack
+     * if both are on the stack.
+     *
+     * @param consumer The instruction that pops the value.
+     * @param slot The variable slot the value is stored in.
+     * @return The replacement instruction, or null if it does not read from the stack.
+     */
+    private static Instruction readFromVariable(@NonNull Instruction consumer, int slot) {
+        final MemLocation first = consumer.firstLocation();
+        final MemLocation second = consumer.secondLocation();
+        if (first != null && first.area() == MemArea.STACK) {
+            return new Instruction(
+                    consumer.type(),
+                    new MemLocation(MemArea.VARIABLE, first.type(), slot),
+                    second,
+                    consumer.targetLocation());
+        }
+        if (second != null && second.area() == MemArea.STACK) {
+            return new Instruction(
+                    consumer.type(),
+                    first,
+                    new MemLocation(MemArea.VARIABLE, second.type(), slot),
+                    consumer.targetLocation());
+        }
+        return null;
+    }
+
+    /**
+     * The number of loops found in the last program before it was optimized.
+     *
+     * @return The number of loops.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int loopsFound;
+
+    /**
+     * The number of instructions moved out of loops.
+     *
+     * @return The number of hoisted instructions.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int instructionsHoisted;
+
+    /**
+     * The number of loops that were fully unrolled.
+     *
+     * @return The number of unrolled loops.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int loopsUnrolled;
+
+    /** The program being optimized. */
+    private Instruction[] program;
+
+    /** The address in the original program that each instruction came from. */
+    private int[] origins;
+
+    /** The names of each variable slot, including any we created. */
+    private List<String> variableNames;
+
+    /**
+     * The names of the variable slots used by the last program after it was optimized, which
+     * includes any variables created to hold invariant values.
+     *
+     * @return The variable names, indexed by slot number.
+     */
+    public List<String> getVariableNames() {
+        return List.copyOf(variableNames);
+    }
+
+    /**
+     * Move instructions that calculate the same value on every iteration of a loop into a
+     * preheader that runs once before the loop.
+     *
+     * <p>An instruction can be moved if it can't halt the program, doesn't read the last
+     * comparison, and nothing in the loop changes the variables it reads. If it stores to a
+     * variable, that must be the only store to it in the loop, and the variable can't be read
+     * before the store in the loop or after leaving the loop. If it pushes onto the stack, the next
+     * instruction must pop it, and the value is passed through a new variable instead.
+     *
+     * @param graph The control flow graph of the program.
+     * @param loop The loop.
+     * @return Whether anything was moved.
+     */
+    private boolean hoist(@NonNull ControlFlowGraph graph, @NonNull Loop loop) {
+        final int header = loop.header();
+        final BitSet body = loop.body();
+        final BitSet entries = tableEntries();
+
+        // The preheader goes right before the header, unless part of the loop falls through to it
+        int insertAt = -1;
+        boolean keepBackEdges = false;
+        if (!entries.get(header)
+                && (header == 0 || !body.get(header - 1) || !fallsThrough(header - 1))) {
+            insertAt = header;
+            keepBackEdges = true;
+        } else {
+            List<Integer> outside =
+                    graph.predecessors(header).stream().filter(p -> !body.get(p)).toList();
+            if (outside.size() == 1
+                    && program[outside.get(0)].type() == InstructionType.JMP
+                    && !entries.get(outside.get(0))) {
+                // The only way in is a jump, so the preheader goes before that
+                insertAt = outside.get(0);
+            }
+        }
+        if (insertAt < 0) {
+            return false;
+        }
+
+        int[] stores = new int[variableNames.size()];
+        BitSet changed = new BitSet();
+        for (int address = body.nextSetBit(0);
+                address >= 0;
+                address = body.nextSetBit(address + 1)) {
+            final MemLocation target = program[address].targetLocation();
+            if (target != null && target.area() == MemArea.VARIABLE) {
+                changed.set((Integer) target.value());
+                ++stores[(Integer) target.value()];
+            }
+        }
+        final BitSet liveAtHeader = graph.liveIn(header);
+
+        List<Instruction> hoisted = new ArrayList<>();
+        List<Integer> hoistedOrigins = new ArrayList<>();
+        for (int address = body.nextSetBit(0);
+                address >= 0;
+                address = body.nextSetBit(address + 1)) {
+            final Instruction instruction = program[address];
+            if (!DataflowOptimizer.isRemovable(instruction)
+                    || ControlFlowGraph.readsComparison(instruction.type())
+                    || !isInvariantInput(instruction.firstLocation(), changed)
+                    || !isInvariantInput(instruction.secondLocation(), changed)) {
+                continue;
+            }
+            final MemLocation target = instruction.targetLocation();
+            if (target.area() == MemArea.VARIABLE) {
+                final int slot = (Integer) target.value();
+                if (stores[slot] != 1
+                        || liveAtHeader.get(slot)
+                        || isLiveOnExit(graph, body, slot)) {
+                    continue;
+                }
+                hoisted.add(instruction);
+            } else if (target.area() == MemArea.STACK
+                    && instruction.type() != InstructionType.MOV) {
+                final int next = address + 1;
+                if (next >= program.length
+                        || !body.get(next)
+                        || graph.isJoin(next)
+                        || program[next].type() == InstructionType.CAST
+                        || !PeepholeOptimizer.consumesStack(program[next].type())) {
+                    continue;
+                }
+                final int slot = variableNames.size();
+                final Instruction consumer = LoopOptimizer.readFromVariable(program[next], slot);
+                if (consumer == null) {
+                    continue;
+                }
+                variableNames.add(LoopOptimizer.TEMPORARY_PREFIX + slot);
+                program[next] = consumer;
+                hoisted.add(
+                        new Instruction(
+                                instruction.type(),
+                                instruction.firstLocation(),
+                                instruction.secondLocation(),
+                                new MemLocation(MemArea.VARIABLE, target.type(), slot)));
+            } else {
+                continue;
+            }
+            hoistedOrigins.add(origins[address]);
+            program[address] = LoopOptimizer.nop();
+        }
+        if (hoisted.isEmpty()) {
+            return false;
+        }
+        splice(insertAt, insertAt, hoisted, hoistedOrigins, keepBackEdges ? body : null);
+        instructionsHoisted += hoisted.size();
+        return true;
+    }
+
+    /**
+     * Check if an instruction can continue on to the one after it.
+     *
+     * @param address The address of the instruction.
+     * @return Whether the next instruction might run after it without a jump.
+     */
+    private boolean fallsThrough(int address) {
+        return switch (program[address].type()) {
+            case HALT, JMP, JMP_LOOKUP, JMP_TABLE -> false;
+            default -> true;
+        };
+    }
+
+    /**
+     * Find the constant value a variable is set to before a loop, by looking back from the jump
+     * into the loop through instructions that always run right before it.
+     *
+     * @param graph The control flow graph of the program.
+     * @param entry The address of the jump into the loop.
+     * @param slot The variable slot.
+     * @return The integer value the variable is set to, or null if it is not known.
+     */
+    private Integer initialValue(@NonNull ControlFlowGraph graph, int entry, int slot) {
+        for (int address = entry; !graph.isJoin(address) && address > 0; --address) {
+            final Instruction previous = program[address - 1];
+            if (!fallsThrough(address - 1)
+                    || ControlFlowGraph.isConditionalJump(previous.type())) {
+                return null;
+            }
+            final MemLocation target = previous.targetLocation();
+            if (target != null
+                    && target.area() == MemArea.VARIABLE
+                    && (Integer) target.value() == slot) {
+                return previous.type() == InstructionType.MOV
+                                && previous.firstLocation().area() == MemArea.IMMEDIATE
+                                && previous.firstLocation().value() instanceof Integer value
+                        ? value
+                        : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if an input has the same value on every iteration of a loop.
+     *
+     * @param location The location that is read, may be null.
+     * @param changed The variables that are changed in the loop.
+     * @return Whether the input is invariant.
+     */
+    private boolean isInvariantInput(MemLocation location, @NonNull BitSet changed) {
+        if (location == null) {
+            return true;
+        }
+        return switch (location.area()) {
+            case IMMEDIATE -> true;
+            case VARIABLE -> !changed.get((Integer) location.value());
+            default -> false;
+        };
+    }
+
+    /**
+     * Check if a variable might be read after leaving a loop.
+     *
+     * @param graph The control flow graph of the program.
+     * @param body The instructions in the loop.
+     * @param slot The variable slot.
+     * @return Whether the variable is live at any exit from the loop.
+     */
+    private boolean isLiveOnExit(@NonNull ControlFlowGraph graph, @NonNull BitSet body, int slot) {
+        for (int address = body.nextSetBit(0);
+                address >= 0;
+                address = body.nextSetBit(address + 1)) {
+            for (int successor : graph.successors(address)) {
+                if (!body.get(successor) && graph.liveIn(successor).get(slot)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Optimize the loops in a program. The statistics are reset, then updated with what was
+     * changed.
+     *
+     * @param instructions The program, with labels and variables already resolved.
+     * @param variableNames The names of each variable slot the program uses.
+     * @return The optimized program.
+     * @see #getVariableNames()
+     */
+    public List<Instruction> optimize(
+            @NonNull List<Instruction> instructions, @NonNull List<String> variableNames) {
+        program = instructions.toArray(new Instruction[0]);
+        origins = IntStream.range(0, program.length).toArray();
+        this.variableNames = new ArrayList<>(variableNames);
+        loopsFound = 0;
+        instructionsHoisted = 0;
+        loopsUnrolled = 0;
+
+        if (!ControlFlowGraph.validate(program, variableNames.size())) {
+            return instructions;
+        }
+
+        for (int change = 0; change < LoopOptimizer.MAX_CHANGES; ++change) {
+            ControlFlowGraph graph = new ControlFlowGraph(program, this.variableNames.size());
+            List<Loop> loops = graph.loops();
+            if (change == 0) {
+                loopsFound = loops.size();
+            }
+            boolean changed = false;
+            for (Loop loop : loops) {
+                // Inner loops come first, and anything we change means building the graph again
+                if (unroll(graph, loop) || hoist(graph, loop)) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+        }
+
+        log.debug(
+                SafeResourceLoader.getString("LOOP_STATISTICS", ScriptManager.getResourceBundle()),
+                loopsFound,
+                instructionsHoisted,
+                loopsUnrolled);
+        return new ArrayList<>(Arrays.asList(program));
+    }
+
+    /**
+     * Update a map keyed by the addresses of instructions in the last program to use their
+     * addresses in the optimized program. Instructions that were copied have an entry for each
+     * copy, and entries for instructions that were removed are dropped.
+     *
+     * @param <T> The type of values in the map.
+     * @param byAddress The map keyed by original address.
+     * @return A map keyed by optimized address.
+     */
+    public <T> Map<Integer, T> remapAddresses(@NonNull Map<Integer, T> byAddress) {
+        Map<Integer, T> result = new HashMap<>();
+        if (origins == null) {
+            result.putAll(byAddress);
+            return result;
+        }
+        for (int address = 0; address < origins.length; ++address) {
+            final T value = byAddress.get(origins[address]);
+            if (value != null && program[address].type() != InstructionType.NOP) {
+                result.put(address, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replace a range of instructions, moving everything after it and updating jumps to match.
+     * Jumps into the replaced range go to the start of the replacement.
+     *
+     * @param from The first address to replace.
+     * @param to The address after the last one to replace, the same as from to insert.
+     * @param replacement The instructions to put in place of the range, which must not jump.
+     * @param replacementOrigins The original address of each replacement instruction.
+     * @param keep When inserting, the instructions whose jumps to the insertion point should skip
+     *     over the inserted instructions, or null if every jump should run them.
+     */
+    private void splice(
+            int from,
+            int to,
+            @NonNull List<Instruction> replacement,
+            @NonNull List<Integer> replacementOrigins,
+            BitSet keep) {
+        final int delta = replacement.size() - (to - from);
+        List<Instruction> result = new ArrayList<>(program.length + delta);
+        int[] resultOrigins = new int[program.length + delta];
+        for (int address = 0; address <= program.length; ++address) {
+            if (address == from) {
+                for (int index = 0; index < replacement.size(); ++index) {
+                    resultOrigins[result.size()] = replacementOrigins.get(index);
+                    result.add(replacement.get(index));
+                }
+            }
+            if (address == program.length) {
+                break;
+            }
+            if (address >= from && address < to) {
+                continue;
+            }
+            Instruction instruction = program[address];
+            if (PeepholeOptimizer.isJump(instruction.type())) {
+                final int target = (Integer) instruction.firstLocation().value();
+                final int relocated;
+                if (target >= from && target < to) {
+                    relocated = from;
+                } else if (target == to && from == to && (keep == null || !keep.get(address))) {
+                    relocated = from;
+                } else {
+                    relocated = target < from ? target : target + delta;
+                }
+                instruction = PeepholeOptimizer.withTarget(instruction, relocated);
+            }
+            resultOrigins[result.size()] = origins[address];
+            result.add(instruction);
+        }
+        program = result.toArray(new Instruction[0]);
+        origins = resultOrigins;
+    }
+
+    /**
+     * Find the jumps that make up the default and entries of switch jumps, which have to stay
+     * right after the switch jump.
+     *
+     * @return The addresses of the table entries.
+     */
+    private BitSet tableEntries() {
+        BitSet entries = new BitSet();
+        for (int address = 0; address < program.length; ++address) {
+            final InstructionType type = program[address].type();
+            if (type == InstructionType.JMP_TABLE || type == InstructionType.JMP_LOOKUP) {
+                final int count = (Integer) program[address].secondLocation().value();
+                entries.set(address + 1, address + 2 + count);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Fully unroll a loop that counts a variable to a constant a small number of times. The loop
+     * must be laid out the way the instruction generator lays out for and while loops: a jump to
+     * the condition, a body with no branches, then a comparison of the counter against a constant
+     * and a conditional jump back to the start of the body. The counter must be set to a constant
+     * right before the loop and changed by a constant once in the body.
+     *
+     * @param graph The control flow graph of the program.
+     * @param loop The loop.
+     * @return Whether the loop was unrolled.
+     */
+    private boolean unroll(@NonNull ControlFlowGraph graph, @NonNull Loop loop) {
+        final int header = loop.header();
+        final int back = header + 1;
+        if (back >= program.length
+                || program[header].type() != InstructionType.CMP
+                || !ControlFlowGraph.isConditionalJump(program[back].type())) {
+            return false;
+        }
+        final Instruction compare = program[header];
+        final Instruction jump = program[back];
+        final int start = (Integer) jump.firstLocation().value();
+        final int entry = start - 1;
+        final BitSet body = loop.body();
+        if (entry < 0
+                || start > header
+                || body.nextSetBit(0) != start
+                || body.cardinality() != back - start + 1
+                || program[entry].type() != InstructionType.JMP
+                || (Integer) program[entry].firstLocation().value() != header
+                || tableEntries().get(entry)) {
+            return false;
+        }
+
+        final MemLocation counter = compare.firstLocation();
+        final MemLocation limit = compare.secondLocation();
+        if (counter.area() != MemArea.VARIABLE
+                || !counter.isInt()
+                || limit.area() != MemArea.IMMEDIATE
+                || !(limit.value() instanceof Integer bound)) {
+            return false;
+        }
+        final int slot = (Integer) counter.value();
+        Integer step = null;
+        for (int address = start; address < header; ++address) {
+            final Instruction instruction = program[address];
+            if (!fallsThrough(address) || ControlFlowGraph.isConditionalJump(instruction.type())) {
+                return false;
+            }
+            final MemLocation target = instruction.targetLocation();
+            if (target == null
+                    || target.area() != MemArea.VARIABLE
+                    || (Integer) target.value() != slot) {
+                continue;
+            }
+            final MemLocation first = instruction.firstLocation();
+            final MemLocation second = instruction.secondLocation();
+            if (step != null
+                    || (instruction.type() != InstructionType.ADD_INT
+                            && instruction.type() != InstructionType.SUB_INT)
+                    || first.area() != MemArea.VARIABLE
+                    || (Integer) first.value() != slot
+                    || second.area() != MemArea.IMMEDIATE
+                    || !(second.value() instanceof Integer change)) {
+                return false;
+            }
+            step = instruction.type() == InstructionType.ADD_INT ? change : -change;
+        }
+        final Integer initial = initialValue(graph, entry, slot);
+        if (step == null
+                || initial == null
+                || graph.liveIn(start).get(variableNames.size())) {
+            // The body can't read the comparison, since it won't be made before each copy
+            return false;
+        }
+
+        // Count the iterations the same way the loop would
+        int value = initial;
+        int trips = 0;
+        while (DataflowOptimizer.condition(jump.type(), Integer.compare(value, bound))) {
+            if (++trips > LoopOptimizer.MAX_UNROLLED_TRIPS) {
+                return false;
+            }
+            value += step;
+        }
+        if (trips * (header - start) + 1 > LoopOptimizer.MAX_UNROLLED_SIZE) {
+            return false;
+        }
+
+        List<Instruction> unrolled = new ArrayList<>();
+        List<Integer> unrolledOrigins = new ArrayList<>();
+        for (int trip = 0; trip < trips; ++trip) {
+            for (int address = start; address < header; ++address) {
+                unrolled.add(program[address]);
+                unrolledOrigins.add(origins[address]);
+            }
+        }
+        // Leave the comparison register the way the loop would
+        unrolled.add(compare);
+        unrolledOrigins.add(origins[header]);
+        splice(entry, back + 1, unrolled, unrolledOrigins, null);
+        ++loopsUnrolled;
+        return true;
+    }
+}
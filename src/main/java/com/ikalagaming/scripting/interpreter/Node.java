@@ -0,0 +1,18 @@
+package com.ikalagaming.scripting.interpreter;
+
+/**
+ * A single instruction prepared for execution, with its operands already resolved. The
+ * interpreter executes a program by repeatedly running the node at the program counter.
+ *
+ * @author Ches Burks
+ * @see NodeCompiler
+ */
+@FunctionalInterface
+interface Node {
+    /**
+     * Execute the instruction, leaving the program counter at the next instruction to execute.
+     *
+     * @param runtime The runtime we are executing in.
+     */
+    void exec(ScriptRuntime runtime);
+}
@@ -0,0 +1,940 @@
+package com.ikalagaming.scripting.interpreter;
+
+import lombok.NonNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Turns each instruction of a program into a {@link Node} ahead of time, so that the interpreter
+ * does not have to switch on the instruction type and the memory area of every operand each time
+ * an instruction is executed.
+ *
+ * <p>Arithmetic, comparisons, moves and jumps get nodes specialized for where their operands come
+ * from and where the result goes. Anything else, and any instruction the interpreter would reject,
+ * gets a node that just hands the instruction to the interpreter.
+ *
+ * @author Ches Burks
+ */
+class NodeCompiler {
+    /**
+     * Reads a boolean operand.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface BooleanOperand {
+        /**
+         * Read the value, which may halt the program.
+         *
+         * @param runtime The runtime we are executing in.
+         * @return The value.
+         */
+        boolean load(ScriptRuntime runtime);
+    }
+
+    /**
+     * Stores a boolean result.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface BooleanTarget {
+        /**
+         * Store the value.
+         *
+         * @param runtime The runtime we are executing in.
+         * @param value The value to store.
+         */
+        void store(ScriptRuntime runtime, boolean value);
+    }
+
+    /**
+     * Stores a character result.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface CharTarget {
+        /**
+         * Store the value.
+         *
+         * @param runtime The runtime we are executing in.
+         * @param value The value to store.
+         */
+        void store(ScriptRuntime runtime, char value);
+    }
+
+    /**
+     * Reads a numeric operand as a double.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface DoubleOperand {
+        /**
+         * Read the value, which may halt the program.
+         *
+         * @param runtime The runtime we are executing in.
+         * @return The value.
+         */
+        double load(ScriptRuntime runtime);
+    }
+
+    /**
+     * Stores a double result.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface DoubleTarget {
+        /**
+         * Store the value.
+         *
+         * @param runtime The runtime we are executing in.
+         * @param value The value to store.
+         */
+        void store(ScriptRuntime runtime, double value);
+    }
+
+    /**
+     * Reads an integer or character operand as an int.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface IntOperand {
+        /**
+         * Read the value, which may halt the program.
+         *
+         * @param runtime The runtime we are executing in.
+         * @return The value.
+         */
+        int load(ScriptRuntime runtime);
+    }
+
+    /**
+     * Stores an int result.
+     *
+     * @author Ches Burks
+     */
+    @FunctionalInterface
+    private interface IntTarget {
+        /**
+         * Store the value.
+         *
+         * @param runtime The runtime we are executing in.
+         * @param value The value to store.
+         */
+        void store(ScriptRuntime runtime, int value);
+    }
+
+    /**
+     * Hands the instruction to the interpreter. This is shared by every instruction the interpreter
+     * handles, since the program counter is already at the instruction when a node is executed.
+     */
+    private static final Node INTERPRET = runtime -> runtime.interpret(runtime.getProgramCounter());
+
+    /**
+     * Create a node for a logical operation on two booleans.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param and True for a logical and, false for a logical or.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node boolLogic(
+            @NonNull Instruction i, int next, int variableCount, boolean and) {
+        if (!i.firstLocation().isBoolean()
+                || !i.secondLocation().isBoolean()
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final BooleanOperand first = NodeCompiler.booleanOperand(i.firstLocation());
+        final BooleanOperand second = NodeCompiler.booleanOperand(i.secondLocation());
+        final BooleanTarget target = NodeCompiler.booleanTarget(i.targetLocation());
+        return runtime -> {
+            final boolean a = first.load(runtime);
+            final boolean b = second.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, and ? a && b : a || b);
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Resolve a boolean operand.
+     *
+     * @param from The location to read from.
+     * @return The operand.
+     */
+    private static BooleanOperand booleanOperand(@NonNull MemLocation from) {
+        switch (from.area()) {
+            case IMMEDIATE:
+                final boolean value = Boolean.TRUE.equals(from.value());
+                return runtime -> value;
+            case STACK:
+                return ScriptRuntime::popBoolean;
+            default:
+                final int slot = (Integer) from.value();
+                return runtime -> runtime.readBoolean(slot);
+        }
+    }
+
+    /**
+     * Resolve where a boolean result goes.
+     *
+     * @param to The location to store to, which must be storable.
+     * @return The target.
+     */
+    private static BooleanTarget booleanTarget(@NonNull MemLocation to) {
+        if (to.area() == MemArea.STACK) {
+            return ScriptRuntime::pushBoolean;
+        }
+        final int slot = (Integer) to.value();
+        return (runtime, value) -> runtime.writeBoolean(slot, value);
+    }
+
+    /**
+     * Check if we can store to a location without halting, which is true for the stack and valid
+     * variable slots.
+     *
+     * @param target The location we are storing to.
+     * @param variableCount The number of variable slots the program uses.
+     * @return Whether the store is always valid.
+     */
+    private static boolean canStore(@NonNull MemLocation target, int variableCount) {
+        if (target.area() == MemArea.STACK) {
+            return true;
+        }
+        return target.area() == MemArea.VARIABLE
+                && target.value() instanceof Integer slot
+                && slot >= 0
+                && slot < variableCount;
+    }
+
+    /**
+     * Resolve where a character result goes.
+     *
+     * @param to The location to store to, which must be storable.
+     * @return The target.
+     */
+    private static CharTarget charTarget(@NonNull MemLocation to) {
+        if (to.area() == MemArea.STACK) {
+            return ScriptRuntime::pushChar;
+        }
+        final int slot = (Integer) to.value();
+        return (runtime, value) -> runtime.writeChar(slot, value);
+    }
+
+    /**
+     * Create a node for a math operation on two characters.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param operation The operation to perform.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node charMath(
+            @NonNull Instruction i,
+            int next,
+            int variableCount,
+            @NonNull IntBinaryOperator operation) {
+        if (!i.firstLocation().isChar()
+                || !i.secondLocation().isChar()
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final IntOperand first = NodeCompiler.intOperand(i.firstLocation());
+        final IntOperand second = NodeCompiler.intOperand(i.secondLocation());
+        final CharTarget target = NodeCompiler.charTarget(i.targetLocation());
+        return runtime -> {
+            final char a = (char) first.load(runtime);
+            final char b = (char) second.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, (char) operation.applyAsInt(a, b));
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a node for a numeric comparison.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node compare(@NonNull Instruction i, int next) {
+        if (!NodeCompiler.isNumeric(i.firstLocation())
+                || !NodeCompiler.isNumeric(i.secondLocation())) {
+            return null;
+        }
+        final DoubleOperand first = NodeCompiler.doubleOperand(i.firstLocation());
+        final DoubleOperand second = NodeCompiler.doubleOperand(i.secondLocation());
+        return runtime -> {
+            final double a = first.load(runtime);
+            final double b = second.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            runtime.compareNumbers(a, b);
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a node for a numeric comparison followed by a jump to the target address.
+     *
+     * @param i The instruction.
+     * @param address The address of the instruction.
+     * @param programSize The number of instructions in the program.
+     * @param condition Whether to jump, given the result of the comparison.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node compareAndJump(
+            @NonNull Instruction i, int address, int programSize, @NonNull IntPredicate condition) {
+        if (!NodeCompiler.isNumeric(i.firstLocation())
+                || !NodeCompiler.isNumeric(i.secondLocation())
+                || !(i.targetLocation().value() instanceof Integer location)
+                || location < 0
+                || location > programSize) {
+            return null;
+        }
+        final DoubleOperand first = NodeCompiler.doubleOperand(i.firstLocation());
+        final DoubleOperand second = NodeCompiler.doubleOperand(i.secondLocation());
+        final int next = address + 1;
+        return runtime -> {
+            final double a = first.load(runtime);
+            final double b = second.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            runtime.compareNumbers(a, b);
+            if (condition.test(runtime.getLastComparison())) {
+                runtime.takeJump(address, location);
+            } else {
+                runtime.setProgramCounter(next);
+            }
+        };
+    }
+
+    /**
+     * Create the nodes for a program.
+     *
+     * @param instructions The program.
+     * @param variableCount The number of variable slots the program uses.
+     * @return A node for each instruction, indexed by address.
+     */
+    static Node[] compile(@NonNull List<Instruction> instructions, int variableCount) {
+        Node[] nodes = new Node[instructions.size()];
+        for (int address = 0; address < nodes.length; ++address) {
+            Node node = NodeCompiler.specialize(instructions, address, variableCount);
+            if (node == null) {
+                node = NodeCompiler.INTERPRET;
+            }
+            nodes[address] = node;
+        }
+        return nodes;
+    }
+
+    /**
+     * Create a node for a math operation on two doubles.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param operation The operation to perform.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node doubleMath(
+            @NonNull Instruction i,
+            int next,
+            int variableCount,
+            @NonNull DoubleBinaryOperator operation) {
+        if (!NodeCompiler.isNumeric(i.firstLocation())
+                || !NodeCompiler.isNumeric(i.secondLocation())
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final DoubleOperand first = NodeCompiler.doubleOperand(i.firstLocation());
+        final DoubleOperand second = NodeCompiler.doubleOperand(i.secondLocation());
+        final DoubleTarget target = NodeCompiler.doubleTarget(i.targetLocation());
+        return runtime -> {
+            final double a = first.load(runtime);
+            final double b = second.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, operation.applyAsDouble(a, b));
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Resolve a numeric operand, read as a double.
+     *
+     * @param from The location to read from.
+     * @return The operand.
+     */
+    private static DoubleOperand doubleOperand(@NonNull MemLocation from) {
+        switch (from.area()) {
+            case IMMEDIATE:
+                final double value = ValueStore.doubleValue(from.value());
+                return runtime -> value;
+            case STACK:
+                return ScriptRuntime::popDouble;
+            default:
+                final int slot = (Integer) from.value();
+                return runtime -> runtime.readDouble(slot);
+        }
+    }
+
+    /**
+     * Resolve where a double result goes.
+     *
+     * @param to The location to store to, which must be storable.
+     * @return The target.
+     */
+    private static DoubleTarget doubleTarget(@NonNull MemLocation to) {
+        if (to.area() == MemArea.STACK) {
+            return ScriptRuntime::pushDouble;
+        }
+        final int slot = (Integer) to.value();
+        return (runtime, value) -> runtime.writeDouble(slot, value);
+    }
+
+    /**
+     * Create a node that adds one to an integer variable, compares it with a bound, and jumps to
+     * the target address.
+     *
+     * @param i The instruction.
+     * @param address The address of the instruction.
+     * @param programSize The number of instructions in the program.
+     * @param variableCount The number of variable slots the program uses.
+     * @param condition Whether to jump, given the result of the comparison.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node incrementAndJump(
+            @NonNull Instruction i,
+            int address,
+            int programSize,
+            int variableCount,
+            @NonNull IntPredicate condition) {
+        final MemLocation counter = i.firstLocation();
+        if (counter.area() != MemArea.VARIABLE
+                || !counter.isInt()
+                || !NodeCompiler.canStore(counter, variableCount)
+                || !(i.secondLocation().isChar() || i.secondLocation().isInt())
+                || !(i.targetLocation().value() instanceof Integer location)
+                || location < 0
+                || location > programSize) {
+            return null;
+        }
+        final int slot = (Integer) counter.value();
+        final IntOperand bound = NodeCompiler.intOperand(i.secondLocation());
+        final int next = address + 1;
+        return runtime -> {
+            final int value = runtime.readInt(slot) + 1;
+            if (runtime.isFatalError()) {
+                return;
+            }
+            runtime.writeInt(slot, value);
+            final int limit = bound.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            runtime.compareNumbers(value, limit);
+            if (condition.test(runtime.getLastComparison())) {
+                runtime.takeJump(address, location);
+            } else {
+                runtime.setProgramCounter(next);
+            }
+        };
+    }
+
+    /**
+     * Create a node for a math operation on two integers.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param operation The operation to perform.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node intMath(
+            @NonNull Instruction i,
+            int next,
+            int variableCount,
+            @NonNull IntBinaryOperator operation) {
+        if (!(i.firstLocation().isChar() || i.firstLocation().isInt())
+                || !(i.secondLocation().isChar() || i.secondLocation().isInt())
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final IntOperand first = NodeCompiler.intOperand(i.firstLocation());
+        final IntOperand second = NodeCompiler.intOperand(i.secondLocation());
+        final IntTarget target = NodeCompiler.intTarget(i.targetLocation());
+        return runtime -> {
+            final int a = first.load(runtime);
+            final int b = second.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, operation.applyAsInt(a, b));
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Resolve an integer or character operand, read as an int.
+     *
+     * @param from The location to read from.
+     * @return The operand.
+     */
+    private static IntOperand intOperand(@NonNull MemLocation from) {
+        switch (from.area()) {
+            case IMMEDIATE:
+                final int value = ValueStore.intValue(from.value());
+                return runtime -> value;
+            case STACK:
+                return ScriptRuntime::popInt;
+            default:
+                final int slot = (Integer) from.value();
+                return runtime -> runtime.readInt(slot);
+        }
+    }
+
+    /**
+     * Resolve where an int result goes.
+     *
+     * @param to The location to store to, which must be storable.
+     * @return The target.
+     */
+    private static IntTarget intTarget(@NonNull MemLocation to) {
+        if (to.area() == MemArea.STACK) {
+            return ScriptRuntime::pushInt;
+        }
+        final int slot = (Integer) to.value();
+        return (runtime, value) -> runtime.writeInt(slot, value);
+    }
+
+    /**
+     * Check if a location holds a number, as far as the interpreter's type checks go.
+     *
+     * @param location The location.
+     * @return Whether the location is a character, integer, or double.
+     */
+    private static boolean isNumeric(@NonNull MemLocation location) {
+        return location.isChar() || location.isInt() || location.isDouble();
+    }
+
+    /**
+     * Create a node for a jump.
+     *
+     * @param i The instruction.
+     * @param address The address of the instruction.
+     * @param programSize The number of instructions in the program.
+     * @param condition Whether to jump, given the last comparison.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node jump(
+            @NonNull Instruction i, int address, int programSize, IntPredicate condition) {
+        if (!(i.firstLocation().value() instanceof Integer location)
+                || location < 0
+                || location > programSize) {
+            return null;
+        }
+        if (condition == null) {
+            return runtime -> runtime.takeJump(address, location);
+        }
+        final int next = address + 1;
+        return runtime -> {
+            if (condition.test(runtime.getLastComparison())) {
+                runtime.takeJump(address, location);
+            } else {
+                runtime.setProgramCounter(next);
+            }
+        };
+    }
+
+    /**
+     * Create a node for a move. Immediate values that aren't primitives, and moves within the
+     * stack, are left to the interpreter.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node move(@NonNull Instruction i, int next, int variableCount) {
+        final MemLocation from = i.firstLocation();
+        final MemLocation to = i.targetLocation();
+        if (!NodeCompiler.canStore(to, variableCount)) {
+            return null;
+        }
+        switch (from.area()) {
+            case IMMEDIATE:
+                return NodeCompiler.moveImmediate(from.value(), to, next);
+            case VARIABLE:
+                final int source = (Integer) from.value();
+                if (to.area() == MemArea.VARIABLE) {
+                    final int target = (Integer) to.value();
+                    return runtime -> {
+                        runtime.copyVariable(source, target);
+                        if (!runtime.isFatalError()) {
+                            runtime.setProgramCounter(next);
+                        }
+                    };
+                }
+                return runtime -> {
+                    runtime.pushVariable(source);
+                    if (!runtime.isFatalError()) {
+                        runtime.setProgramCounter(next);
+                    }
+                };
+            case STACK:
+                if (to.area() != MemArea.VARIABLE) {
+                    return null;
+                }
+                final int target = (Integer) to.value();
+                return runtime -> {
+                    runtime.popToVariable(target);
+                    if (!runtime.isFatalError()) {
+                        runtime.setProgramCounter(next);
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Create a node for a move of an immediate primitive value.
+     *
+     * @param value The value to move.
+     * @param to The location we are storing to.
+     * @param next The address of the next instruction.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node moveImmediate(Object value, @NonNull MemLocation to, int next) {
+        if (value instanceof Integer integer) {
+            final int unboxed = integer;
+            final IntTarget target = NodeCompiler.intTarget(to);
+            return runtime -> {
+                target.store(runtime, unboxed);
+                runtime.setProgramCounter(next);
+            };
+        }
+        if (value instanceof Double doub) {
+            final double unboxed = doub;
+            final DoubleTarget target = NodeCompiler.doubleTarget(to);
+            return runtime -> {
+                target.store(runtime, unboxed);
+                runtime.setProgramCounter(next);
+            };
+        }
+        if (value instanceof Character character) {
+            final char unboxed = character;
+            final CharTarget target = NodeCompiler.charTarget(to);
+            return runtime -> {
+                target.store(runtime, unboxed);
+                runtime.setProgramCounter(next);
+            };
+        }
+        if (value instanceof Boolean bool) {
+            final boolean unboxed = bool;
+            final BooleanTarget target = NodeCompiler.booleanTarget(to);
+            return runtime -> {
+                target.store(runtime, unboxed);
+                runtime.setProgramCounter(next);
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Create a node for negating a character.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node negateChar(@NonNull Instruction i, int next, int variableCount) {
+        if (!i.firstLocation().isChar()
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final IntOperand first = NodeCompiler.intOperand(i.firstLocation());
+        final CharTarget target = NodeCompiler.charTarget(i.targetLocation());
+        return runtime -> {
+            final char value = (char) first.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, (char) -value);
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a node for negating a double.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param operation The negation.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node negateDouble(
+            @NonNull Instruction i,
+            int next,
+            int variableCount,
+            @NonNull DoubleUnaryOperator operation) {
+        if (!NodeCompiler.isNumeric(i.firstLocation())
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final DoubleOperand first = NodeCompiler.doubleOperand(i.firstLocation());
+        final DoubleTarget target = NodeCompiler.doubleTarget(i.targetLocation());
+        return runtime -> {
+            final double value = first.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, operation.applyAsDouble(value));
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a node for negating an integer.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param operation The negation.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node negateInt(
+            @NonNull Instruction i,
+            int next,
+            int variableCount,
+            @NonNull IntUnaryOperator operation) {
+        if (!(i.firstLocation().isChar() || i.firstLocation().isInt())
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final IntOperand first = NodeCompiler.intOperand(i.firstLocation());
+        final IntTarget target = NodeCompiler.intTarget(i.targetLocation());
+        return runtime -> {
+            final int value = first.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, operation.applyAsInt(value));
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a node for a logical not.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node not(@NonNull Instruction i, int next, int variableCount) {
+        if (!i.firstLocation().isBoolean()
+                || !NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final BooleanOperand first = NodeCompiler.booleanOperand(i.firstLocation());
+        final BooleanTarget target = NodeCompiler.booleanTarget(i.targetLocation());
+        return runtime -> {
+            final boolean value = first.load(runtime);
+            if (runtime.isFatalError()) {
+                return;
+            }
+            target.store(runtime, !value);
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a node that stores the result of testing the last comparison.
+     *
+     * @param i The instruction.
+     * @param next The address of the next instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @param condition The test to apply to the last comparison.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node set(
+            @NonNull Instruction i, int next, int variableCount, @NonNull IntPredicate condition) {
+        if (!NodeCompiler.canStore(i.targetLocation(), variableCount)) {
+            return null;
+        }
+        final BooleanTarget target = NodeCompiler.booleanTarget(i.targetLocation());
+        return runtime -> {
+            target.store(runtime, condition.test(runtime.getLastComparison()));
+            runtime.setProgramCounter(next);
+        };
+    }
+
+    /**
+     * Create a specialized node for an instruction, if it is one we handle.
+     *
+     * @param instructions The program.
+     * @param address The address of the instruction.
+     * @param variableCount The number of variable slots the program uses.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node specialize(
+            @NonNull List<Instruction> instructions, int address, int variableCount) {
+        final Instruction i = instructions.get(address);
+        final int programSize = instructions.size();
+        final int next = address + 1;
+        return switch (i.type()) {
+            case ADD_CHAR -> NodeCompiler.charMath(i, next, variableCount, (a, b) -> a + b);
+            case ADD_DOUBLE -> NodeCompiler.doubleMath(i, next, variableCount, (a, b) -> a + b);
+            case ADD_INT -> NodeCompiler.intMath(i, next, variableCount, (a, b) -> a + b);
+            case AND -> NodeCompiler.boolLogic(i, next, variableCount, true);
+            case CMP -> NodeCompiler.compare(i, next);
+            case CMP_JEQ -> NodeCompiler.compareAndJump(i, address, programSize, cmp -> cmp == 0);
+            case CMP_JGE -> NodeCompiler.compareAndJump(i, address, programSize, cmp -> cmp >= 0);
+            case CMP_JGT -> NodeCompiler.compareAndJump(i, address, programSize, cmp -> cmp > 0);
+            case CMP_JLE -> NodeCompiler.compareAndJump(i, address, programSize, cmp -> cmp <= 0);
+            case CMP_JLT -> NodeCompiler.compareAndJump(i, address, programSize, cmp -> cmp < 0);
+            case CMP_JNE -> NodeCompiler.compareAndJump(i, address, programSize, cmp -> cmp != 0);
+            case DIV_CHAR -> NodeCompiler.charMath(i, next, variableCount, (a, b) -> a / b);
+            case DIV_DOUBLE -> NodeCompiler.doubleMath(i, next, variableCount, (a, b) -> a / b);
+            case DIV_INT -> NodeCompiler.intMath(i, next, variableCount, (a, b) -> a / b);
+            case INC_JLE ->
+                    NodeCompiler.incrementAndJump(
+                            i, address, programSize, variableCount, cmp -> cmp <= 0);
+            case INC_JLT ->
+                    NodeCompiler.incrementAndJump(
+                            i, address, programSize, variableCount, cmp -> cmp < 0);
+            case JEQ -> NodeCompiler.jump(i, address, programSize, comp -> comp == 0);
+            case JGE -> NodeCompiler.jump(i, address, programSize, comp -> comp >= 0);
+            case JGT -> NodeCompiler.jump(i, address, programSize, comp -> comp > 0);
+            case JLE -> NodeCompiler.jump(i, address, programSize, comp -> comp <= 0);
+            case JLT -> NodeCompiler.jump(i, address, programSize, comp -> comp < 0);
+            case JMP -> NodeCompiler.jump(i, address, programSize, null);
+            case JMP_LOOKUP -> NodeCompiler.switchJump(instructions, address, false);
+            case JMP_TABLE -> NodeCompiler.switchJump(instructions, address, true);
+            case JNE -> NodeCompiler.jump(i, address, programSize, comp -> comp != 0);
+            case MOD_CHAR -> NodeCompiler.charMath(i, next, variableCount, (a, b) -> a % b);
+            case MOD_DOUBLE -> NodeCompiler.doubleMath(i, next, variableCount, (a, b) -> a % b);
+            case MOD_INT -> NodeCompiler.intMath(i, next, variableCount, (a, b) -> a % b);
+            case MOV -> NodeCompiler.move(i, next, variableCount);
+            case MUL_CHAR -> NodeCompiler.charMath(i, next, variableCount, (a, b) -> a * b);
+            case MUL_DOUBLE -> NodeCompiler.doubleMath(i, next, variableCount, (a, b) -> a * b);
+            case MUL_INT -> NodeCompiler.intMath(i, next, variableCount, (a, b) -> a * b);
+            case NEG_CHAR -> NodeCompiler.negateChar(i, next, variableCount);
+            case NEG_DOUBLE -> NodeCompiler.negateDouble(i, next, variableCount, a -> -a);
+            case NEG_INT -> NodeCompiler.negateInt(i, next, variableCount, a -> -a);
+            case NOP -> runtime -> runtime.setProgramCounter(next);
+            case NOT -> NodeCompiler.not(i, next, variableCount);
+            case OR -> NodeCompiler.boolLogic(i, next, variableCount, false);
+            case SET_EQ -> NodeCompiler.set(i, next, variableCount, cmp -> cmp == 0);
+            case SET_GE -> NodeCompiler.set(i, next, variableCount, cmp -> cmp >= 0);
+            case SET_GT -> NodeCompiler.set(i, next, variableCount, cmp -> cmp > 0);
+            case SET_LE -> NodeCompiler.set(i, next, variableCount, cmp -> cmp <= 0);
+            case SET_LT -> NodeCompiler.set(i, next, variableCount, cmp -> cmp < 0);
+            case SET_NE -> NodeCompiler.set(i, next, variableCount, cmp -> cmp != 0);
+            case SUB_CHAR -> NodeCompiler.charMath(i, next, variableCount, (a, b) -> a - b);
+            case SUB_DOUBLE -> NodeCompiler.doubleMath(i, next, variableCount, (a, b) -> a - b);
+            case SUB_INT -> NodeCompiler.intMath(i, next, variableCount, (a, b) -> a - b);
+            default -> null;
+        };
+    }
+
+    /**
+     * Create a node for a table or lookup jump, which goes straight to the target of the matching
+     * entry rather than through the entry's own jump. Lookups use a hash map of the keys.
+     *
+     * @param instructions The program.
+     * @param address The address of the table or lookup jump.
+     * @param table True for a table jump, false for a lookup jump.
+     * @return The node, or null if the interpreter should handle the instruction.
+     */
+    private static Node switchJump(
+            @NonNull List<Instruction> instructions, int address, boolean table) {
+        final Instruction i = instructions.get(address);
+        final MemLocation from = i.firstLocation();
+        if (!(i.secondLocation().value() instanceof Integer count)
+                || count < 0
+                || address + 2 + count > instructions.size()
+                || from.area() == MemArea.IMMEDIATE
+                || !(from.isInt() || from.isChar())) {
+            return null;
+        }
+        // The default target comes first, then one per entry
+        int[] targets = new int[count + 1];
+        int[] keys = new int[count];
+        for (int entry = 0; entry <= count; ++entry) {
+            final Instruction jump = instructions.get(address + 1 + entry);
+            if (jump.type() != InstructionType.JMP
+                    || !(jump.firstLocation().value() instanceof Integer target)
+                    || target < 0
+                    || target > instructions.size()) {
+                return null;
+            }
+            targets[entry] = target;
+            if (entry == 0) {
+                continue;
+            }
+            final Object key = jump.secondLocation() == null ? null : jump.secondLocation().value();
+            if (!(key instanceof Integer || key instanceof Character)) {
+                return null;
+            }
+            keys[entry - 1] = ValueStore.intValue(key);
+        }
+        final int defaultTarget = targets[0];
+
+        if (table) {
+            final IntOperand value = NodeCompiler.intOperand(from);
+            final int low = count > 0 ? keys[0] : 0;
+            return runtime -> {
+                final long index = (long) value.load(runtime) - low;
+                if (!runtime.isFatalError()) {
+                    runtime.takeJump(
+                            address,
+                            index >= 0 && index < count ? targets[(int) index + 1] : defaultTarget);
+                }
+            };
+        }
+
+        Map<Integer, Integer> lookup = new HashMap<>();
+        for (int entry = 0; entry < count; ++entry) {
+            lookup.putIfAbsent(keys[entry], targets[entry + 1]);
+        }
+        final IntOperand value = NodeCompiler.intOperand(from);
+        return runtime -> {
+            final int key = value.load(runtime);
+            if (!runtime.isFatalError()) {
+                runtime.takeJump(address, lookup.getOrDefault(key, defaultTarget));
+            }
+        };
+    }
+
+    /** Private constructor so that this class is not instantiated. */
+    private NodeCompiler() {
+        throw new UnsupportedOperationException("This utility class should not be instantiated");
+    }
+}
@@ -0,0 +1,463 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+import com.ikalagaming.scripting.ast.Type;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.RandomAccess;
+
+/**
+ * A program stored as a flat array of ints, with a constant pool for doubles and strings, instead
+ * of a list of instruction records. Each instruction takes a fixed {@link #WORDS_PER_INSTRUCTION}
+ * ints, so an address still indexes an instruction directly.
+ *
+ * <p>The first word of an instruction holds the instruction type in the low byte, followed by a
+ * byte describing each of the first, second, and target locations. A location byte holds the
+ * memory area in the low 2 bits (0 if there is no location), the type in the next 3, and the kind
+ * of value in the top 3. The remaining three words hold the value of each location, which is the
+ * value itself for ints, chars and booleans, and an index into the constant pool for doubles and
+ * strings.
+ *
+ * <p>This is a read-only list, so it can be executed directly by a {@link ScriptRuntime}.
+ * Instructions are decoded as they are requested, and are not kept around. Code that only needs
+ * the type or a numeric operand of an instruction can read it straight from the packed words
+ * instead.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+public class PackedProgram extends AbstractList<Instruction> implements RandomAccess {
+    /** The number of ints used for each instruction. */
+    public static final int WORDS_PER_INSTRUCTION = 4;
+
+    /** The types a memory location can have, indexed by the type bits of a location. */
+    private static final Class<?>[] TYPES = {
+        Object.class,
+        Boolean.class,
+        Character.class,
+        Double.class,
+        Integer.class,
+        String.class,
+        Void.class
+    };
+
+    /** The memory areas, indexed by the area bits of a location minus one. */
+    private static final MemArea[] AREAS = MemArea.values();
+
+    /** The instruction types, indexed by the low byte of an instruction. */
+    private static final InstructionType[] INSTRUCTION_TYPES = InstructionType.values();
+
+    /**
+     * Locations without a value, like the stack, indexed by area and then type. Locations are
+     * immutable, so decoding shares these instead of creating new ones.
+     */
+    private static final MemLocation[][] UNVALUED = PackedProgram.unvalued();
+
+    /** The value kind for locations without a value. */
+    private static final int VALUE_NONE = 0;
+
+    /** The value kind for integer values. */
+    private static final int VALUE_INT = 1;
+
+    /** The value kind for character values. */
+    private static final int VALUE_CHAR = 2;
+
+    /** The value kind for boolean values. */
+    private static final int VALUE_BOOLEAN = 3;
+
+    /** The value kind for double values, which are stored in the constant pool. */
+    private static final int VALUE_DOUBLE = 4;
+
+    /** The value kind for string values, which are stored in the constant pool. */
+    private static final int VALUE_STRING = 5;
+
+    /**
+     * Decode a memory area from the low bits of a location byte.
+     *
+     * @param location The location byte.
+     * @return The area, or null if there is no location.
+     */
+    private static MemArea area(int location) {
+        final int area = location & 0x3;
+        return area == 0 ? null : PackedProgram.AREAS[area - 1];
+    }
+
+    /**
+     * Encode a memory location.
+     *
+     * @param location The location, may be null.
+     * @param word Where to store the value of the location.
+     * @param doubles The double constant pool we are building.
+     * @param strings The string constant pool we are building.
+     * @return The location byte, or -1 if the location can't be encoded.
+     */
+    private static int encode(
+            MemLocation location,
+            int[] word,
+            Map<Long, Integer> doubles,
+            Map<String, Integer> strings) {
+        if (location == null) {
+            word[0] = 0;
+            return 0;
+        }
+        int type = -1;
+        for (int i = 0; i < PackedProgram.TYPES.length; ++i) {
+            if (PackedProgram.TYPES[i] == location.type()) {
+                type = i;
+                break;
+            }
+        }
+        if (type < 0) {
+            return -1;
+        }
+        final Object value = location.value();
+        final int kind;
+        if (value == null) {
+            kind = PackedProgram.VALUE_NONE;
+            word[0] = 0;
+        } else if (value instanceof Integer integer) {
+            kind = PackedProgram.VALUE_INT;
+            word[0] = integer;
+        } else if (value instanceof Character character) {
+            kind = PackedProgram.VALUE_CHAR;
+            word[0] = character;
+        } else if (value instanceof Boolean bool) {
+            kind = PackedProgram.VALUE_BOOLEAN;
+            word[0] = Boolean.TRUE.equals(bool) ? 1 : 0;
+        } else if (value instanceof Double doub) {
+            kind = PackedProgram.VALUE_DOUBLE;
+            word[0] =
+                    doubles.computeIfAbsent(
+                            Double.doubleToRawLongBits(doub), bits -> doubles.size());
+        } else if (value instanceof String string) {
+            kind = PackedProgram.VALUE_STRING;
+            word[0] = strings.computeIfAbsent(string, s -> strings.size());
+        } else {
+            return -1;
+        }
+        return (location.area().ordinal() + 1) | (type << 2) | (kind << 5);
+    }
+
+    /**
+     * Pack a program.
+     *
+     * @param instructions The program to pack.
+     * @return The packed program, or an empty optional if it contains values that can't be packed.
+     */
+    public static Optional<PackedProgram> pack(@NonNull List<Instruction> instructions) {
+        if (instructions instanceof PackedProgram packed) {
+            return Optional.of(packed);
+        }
+        final int[] code = new int[instructions.size() * PackedProgram.WORDS_PER_INSTRUCTION];
+        Map<Long, Integer> doubles = new HashMap<>();
+        Map<String, Integer> strings = new HashMap<>();
+        final int[] word = new int[1];
+
+        for (int address = 0; address < instructions.size(); ++address) {
+            final Instruction instruction = instructions.get(address);
+            final int base = address * PackedProgram.WORDS_PER_INSTRUCTION;
+            int header = instruction.type().ordinal();
+            final MemLocation[] locations = {
+                instruction.firstLocation(),
+                instruction.secondLocation(),
+                instruction.targetLocation()
+            };
+            for (int i = 0; i < locations.length; ++i) {
+                final int location = PackedProgram.encode(locations[i], word, doubles, strings);
+                if (location < 0) {
+                    log.warn(
+                            SafeResourceLoader.getString(
+                                    "PROGRAM_NOT_PACKABLE", ScriptManager.getResourceBundle()),
+                            instruction);
+                    return Optional.empty();
+                }
+                header |= location << (8 * (i + 1));
+                code[base + i + 1] = word[0];
+            }
+            code[base] = header;
+        }
+
+        double[] doublePool = new double[doubles.size()];
+        doubles.forEach((bits, index) -> doublePool[index] = Double.longBitsToDouble(bits));
+        String[] stringPool = new String[strings.size()];
+        strings.forEach((string, index) -> stringPool[index] = string.intern());
+        return Optional.of(new PackedProgram(code, doublePool, stringPool));
+    }
+
+    /**
+     * Read a program that was written with {@link #write(ByteBuffer)}, starting at the current
+     * position of the buffer. The position is left after the end of the program.
+     *
+     * @param buffer The buffer to read from.
+     * @return The program, or an empty optional if the data is not a valid program.
+     */
+    public static Optional<PackedProgram> read(@NonNull ByteBuffer buffer) {
+        try {
+            final int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining() / PackedProgram.WORDS_PER_INSTRUCTION) {
+                throw new BufferUnderflowException();
+            }
+            int[] code = new int[size * PackedProgram.WORDS_PER_INSTRUCTION];
+            buffer.asIntBuffer().get(code);
+            buffer.position(buffer.position() + code.length * Integer.BYTES);
+
+            final int doubleCount = buffer.getInt();
+            if (doubleCount < 0 || doubleCount > buffer.remaining() / Double.BYTES) {
+                throw new BufferUnderflowException();
+            }
+            double[] doubles = new double[doubleCount];
+            buffer.asDoubleBuffer().get(doubles);
+            buffer.position(buffer.position() + doubles.length * Double.BYTES);
+
+            final int stringCount = buffer.getInt();
+            if (stringCount < 0 || stringCount > buffer.remaining() / Integer.BYTES) {
+                throw new BufferUnderflowException();
+            }
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; ++i) {
+                final int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8).intern();
+            }
+
+            PackedProgram program = new PackedProgram(code, doubles, strings);
+            if (program.isValid()) {
+                return Optional.of(program);
+            }
+        } catch (BufferUnderflowException e) {
+            // Falls through to the warning below
+        }
+        log.warn(
+                SafeResourceLoader.getString(
+                        "CORRUPT_PACKED_PROGRAM", ScriptManager.getResourceBundle()));
+        return Optional.empty();
+    }
+
+    /**
+     * Create every location that does not have a value.
+     *
+     * @return The locations, indexed by area and then type.
+     */
+    private static MemLocation[][] unvalued() {
+        MemLocation[][] result =
+                new MemLocation[PackedProgram.AREAS.length][PackedProgram.TYPES.length];
+        for (int area = 0; area < PackedProgram.AREAS.length; ++area) {
+            for (int type = 0; type < PackedProgram.TYPES.length; ++type) {
+                result[area][type] =
+                        new MemLocation(PackedProgram.AREAS[area], PackedProgram.TYPES[type]);
+            }
+        }
+        return result;
+    }
+
+    /** The instructions, {@link #WORDS_PER_INSTRUCTION} ints for each. */
+    private final int[] code;
+
+    /** The double constants, indexed by the value of locations that hold doubles. */
+    private final double[] doubles;
+
+    /**
+     * The string constants, indexed by the value of locations that hold strings. These are
+     * interned, so equal constants in every loaded script share one string.
+     */
+    private final String[] strings;
+
+    /** The string constants encoded as UTF-8, created the first time they are needed. */
+    private byte[][] encodedStrings;
+
+    /**
+     * Create a packed program.
+     *
+     * @param code The instructions.
+     * @param doubles The double constant pool.
+     * @param strings The string constant pool.
+     */
+    private PackedProgram(int[] code, double[] doubles, String[] strings) {
+        this.code = code;
+        this.doubles = doubles;
+        this.strings = strings;
+    }
+
+    /**
+     * Decode one of the locations of an instruction.
+     *
+     * @param base The index of the first word of the instruction.
+     * @param index Which location we want, 0 for the first, 1 for the second, 2 for the target.
+     * @return The location, or null if the instruction does not have that location.
+     */
+    private MemLocation decode(int base, int index) {
+        final int location = (code[base] >>> (8 * (index + 1))) & 0xFF;
+        final MemArea area = PackedProgram.area(location);
+        if (area == null) {
+            return null;
+        }
+        final int type = (location >>> 2) & 0x7;
+        if (location >>> 5 == PackedProgram.VALUE_NONE) {
+            return PackedProgram.UNVALUED[area.ordinal()][type];
+        }
+        final int word = code[base + index + 1];
+        final Object value =
+                switch (location >>> 5) {
+                    case PackedProgram.VALUE_INT -> word;
+                    case PackedProgram.VALUE_CHAR -> (char) word;
+                    case PackedProgram.VALUE_BOOLEAN -> word != 0;
+                    case PackedProgram.VALUE_DOUBLE -> doubles[word];
+                    case PackedProgram.VALUE_STRING -> strings[word];
+                    default -> null;
+                };
+        return new MemLocation(area, PackedProgram.TYPES[type], value);
+    }
+
+    @Override
+    public Instruction get(int address) {
+        if (address < 0 || address >= size()) {
+            throw new IndexOutOfBoundsException(address);
+        }
+        final int base = address * PackedProgram.WORDS_PER_INSTRUCTION;
+        return new Instruction(
+                PackedProgram.INSTRUCTION_TYPES[code[base] & 0xFF],
+                decode(base, 0),
+                decode(base, 1),
+                decode(base, 2));
+    }
+
+    /**
+     * Read the value of one of the locations of an instruction as an int, without decoding the
+     * instruction.
+     *
+     * @param address The address of the instruction.
+     * @param index Which location we want, 0 for the first, 1 for the second, 2 for the target.
+     * @return The numeric value of the location.
+     * @throws ClassCastException If the location does not hold a primitive value.
+     * @see ValueStore#intValue(Object)
+     */
+    int intValue(int address, int index) {
+        final int base = address * PackedProgram.WORDS_PER_INSTRUCTION;
+        final int location = (code[base] >>> (8 * (index + 1))) & 0xFF;
+        final int word = code[base + index + 1];
+        return switch (location >>> 5) {
+            case PackedProgram.VALUE_INT, PackedProgram.VALUE_CHAR, PackedProgram.VALUE_BOOLEAN ->
+                    word;
+            case PackedProgram.VALUE_DOUBLE -> (int) doubles[word];
+            default -> throw new ClassCastException(Type.Base.INT.toString());
+        };
+    }
+
+    /**
+     * Check that every instruction can be decoded, for programs that were read in from somewhere.
+     *
+     * @return Whether the instruction types, locations, and constant pool references are valid.
+     */
+    private boolean isValid() {
+        final int types = PackedProgram.INSTRUCTION_TYPES.length;
+        for (int base = 0; base < code.length; base += PackedProgram.WORDS_PER_INSTRUCTION) {
+            if ((code[base] & 0xFF) >= types) {
+                return false;
+            }
+            for (int index = 0; index < 3; ++index) {
+                final int location = (code[base] >>> (8 * (index + 1))) & 0xFF;
+                if (location == 0) {
+                    continue;
+                }
+                final int word = code[base + index + 1];
+                final boolean valid =
+                        switch (location >>> 5) {
+                            case PackedProgram.VALUE_NONE,
+                                    PackedProgram.VALUE_INT,
+                                    PackedProgram.VALUE_CHAR,
+                                    PackedProgram.VALUE_BOOLEAN -> true;
+                            case PackedProgram.VALUE_DOUBLE -> word >= 0 && word < doubles.length;
+                            case PackedProgram.VALUE_STRING -> word >= 0 && word < strings.length;
+                            default -> false;
+                        };
+                if (!valid
+                        || PackedProgram.area(location) == null
+                        || ((location >>> 2) & 0x7) >= PackedProgram.TYPES.length) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of bytes {@link #write(ByteBuffer)} will use.
+     *
+     * @return The size of the serialized program in bytes.
+     */
+    public int serializedSize() {
+        int total = Integer.BYTES * 3 + code.length * Integer.BYTES + doubles.length * Double.BYTES;
+        for (byte[] string : utf8Strings()) {
+            total += Integer.BYTES + string.length;
+        }
+        return total;
+    }
+
+    @Override
+    public int size() {
+        return code.length / PackedProgram.WORDS_PER_INSTRUCTION;
+    }
+
+    /**
+     * Read the type of an instruction, without decoding the rest of it.
+     *
+     * @param address The address of the instruction.
+     * @return The instruction type.
+     */
+    InstructionType type(int address) {
+        final int header = code[address * PackedProgram.WORDS_PER_INSTRUCTION];
+        return PackedProgram.INSTRUCTION_TYPES[header & 0xFF];
+    }
+
+    /**
+     * Get the string constants encoded as UTF-8.
+     *
+     * @return The encoded strings, indexed the same as the string constant pool.
+     */
+    private byte[][] utf8Strings() {
+        if (encodedStrings == null) {
+            byte[][] encoded = new byte[strings.length][];
+            for (int i = 0; i < strings.length; ++i) {
+                encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            }
+            encodedStrings = encoded;
+        }
+        return encodedStrings;
+    }
+
+    /**
+     * Write the program to a buffer, starting at the current position. The buffer must have at
+     * least {@link #serializedSize()} bytes remaining.
+     *
+     * @param buffer The buffer to write to.
+     * @see #read(ByteBuffer)
+     */
+    public void write(@NonNull ByteBuffer buffer) {
+        buffer.putInt(size());
+        buffer.asIntBuffer().put(code);
+        buffer.position(buffer.position() + code.length * Integer.BYTES);
+        buffer.putInt(doubles.length);
+        buffer.asDoubleBuffer().put(doubles);
+        buffer.position(buffer.position() + doubles.length * Double.BYTES);
+        buffer.putInt(strings.length);
+        for (byte[] string : utf8Strings()) {
+            buffer.putInt(string.length);
+            buffer.put(string);
+        }
+    }
+}
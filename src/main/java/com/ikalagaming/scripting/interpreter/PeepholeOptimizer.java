@@ -0,0 +1,962 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cleans up the instructions produced by the {@link InstructionGenerator} by looking at short
+ * sequences of instructions and replacing them with fewer, equivalent ones. This runs after labels
+ * and variables have been resolved, and before the program is packed.
+ *
+ * <ul>
+ *   <li>Instructions that do nothing are removed.
+ *   <li>Jumps to unconditional jumps go straight to the final target.
+ *   <li>Jumps to the next instruction are removed.
+ *   <li>A value moved onto the stack and immediately used by the next instruction is read directly
+ *       from where it came from, and a result pushed onto the stack and immediately moved into a
+ *       variable is stored to the variable directly.
+ *   <li>A comparison result that is stored as a boolean, only to be compared against true and
+ *       branched on, becomes a single conditional jump on the original comparison.
+ * </ul>
+ *
+ * The last pass over a program can also fuse the most common pairs of instructions into
+ * superinstructions, so that the interpreter dispatches fewer of them. A comparison followed by
+ * a conditional jump becomes one instruction, as does adding one to a counter, comparing it, and
+ * jumping back to the start of a loop. A jump into a loop that goes straight to its condition is
+ * replaced with a copy of the condition that jumps out of the loop, so that the condition at the
+ * end can be fused with the increment before it. Chains of string concatenations, where each one
+ * adds to the result of the one before, are changed to build the whole string in one builder
+ * instead of creating a new string at every step. Nothing before the last pass understands
+ * superinstructions or these chains, so they are only created when asked for.
+ *
+ * Counts of each change made to the last program are kept so they can be reported.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+public class PeepholeOptimizer {
+    /** The most times we go over the program, since each change can expose more. */
+    private static final int MAX_PASSES = 8;
+
+    /**
+     * How many instructions we follow looking for something that reads the last comparison before
+     * assuming that it does.
+     */
+    private static final int COMPARISON_SCAN_LIMIT = 32;
+
+    /**
+     * The conditional jump that is taken when a set instruction would store true.
+     *
+     * @param set The set instruction type.
+     * @return The matching jump, or null if the type is not a set instruction.
+     */
+    private static InstructionType branchFor(@NonNull InstructionType set) {
+        return switch (set) {
+            case SET_EQ -> InstructionType.JEQ;
+            case SET_GE -> InstructionType.JGE;
+            case SET_GT -> InstructionType.JGT;
+            case SET_LE -> InstructionType.JLE;
+            case SET_LT -> InstructionType.JLT;
+            case SET_NE -> InstructionType.JNE;
+            default -> null;
+        };
+    }
+
+    /**
+     * The superinstruction that compares and then jumps like the given conditional jump.
+     *
+     * @param jump The conditional jump type.
+     * @return The matching superinstruction, or null if the type is not a conditional jump.
+     */
+    private static InstructionType compareAndJumpFor(@NonNull InstructionType jump) {
+        return switch (jump) {
+            case JEQ -> InstructionType.CMP_JEQ;
+            case JGE -> InstructionType.CMP_JGE;
+            case JGT -> InstructionType.CMP_JGT;
+            case JLE -> InstructionType.CMP_JLE;
+            case JLT -> InstructionType.CMP_JLT;
+            case JNE -> InstructionType.CMP_JNE;
+            default -> null;
+        };
+    }
+
+    /**
+     * Check if an instruction reads its first and then second input, popping any that are on the
+     * stack in that order, without doing anything else with the stack.
+     *
+     * @param type The instruction type.
+     * @return Whether an input on the stack could be read from somewhere else instead.
+     */
+    static boolean consumesStack(@NonNull InstructionType type) {
+        return switch (type) {
+            case ADD_CHAR, ADD_DOUBLE, ADD_INT, AND, CAST, CMP, CONCAT_STRING -> true;
+            case DIV_CHAR, DIV_DOUBLE, DIV_INT, MOD_CHAR, MOD_DOUBLE, MOD_INT -> true;
+            case MOV, MUL_CHAR, MUL_DOUBLE, MUL_INT, NEG_CHAR, NEG_DOUBLE, NEG_INT -> true;
+            case NOT, OR, SUB_CHAR, SUB_DOUBLE, SUB_INT -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * The superinstruction that increments a counter, compares it, and then jumps like the given
+     * conditional jump.
+     *
+     * @param jump The conditional jump type.
+     * @return The matching superinstruction, or null if there isn't one for that condition.
+     */
+    private static InstructionType incrementAndJumpFor(@NonNull InstructionType jump) {
+        return switch (jump) {
+            case JLE -> InstructionType.INC_JLE;
+            case JLT -> InstructionType.INC_JLT;
+            default -> null;
+        };
+    }
+
+    /**
+     * Check if an instruction is a superinstruction that ends in a conditional jump.
+     *
+     * @param type The instruction type.
+     * @return Whether the target of the instruction is a jump target.
+     */
+    static boolean isFusedJump(@NonNull InstructionType type) {
+        return switch (type) {
+            case CMP_JEQ, CMP_JGE, CMP_JGT, CMP_JLE, CMP_JLT, CMP_JNE -> true;
+            case INC_JLE, INC_JLT -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Check if an instruction adds the immediate integer one to an integer variable, storing the
+     * result back in the same variable.
+     *
+     * @param instruction The instruction.
+     * @return Whether the instruction increments a variable.
+     */
+    private static boolean isIncrement(@NonNull Instruction instruction) {
+        final MemLocation first = instruction.firstLocation();
+        final MemLocation second = instruction.secondLocation();
+        final MemLocation target = instruction.targetLocation();
+        return instruction.type() == InstructionType.ADD_INT
+                && first.area() == MemArea.VARIABLE
+                && first.isInt()
+                && second.area() == MemArea.IMMEDIATE
+                && second.isInt()
+                && Integer.valueOf(1).equals(second.value())
+                && target.area() == MemArea.VARIABLE
+                && target.isInt()
+                && first.value().equals(target.value());
+    }
+
+    /**
+     * Check if an instruction is a conditional or unconditional jump to an address.
+     *
+     * @param type The instruction type.
+     * @return Whether the first input of the instruction is a jump target.
+     */
+    static boolean isJump(@NonNull InstructionType type) {
+        return switch (type) {
+            case JEQ, JGE, JGT, JLE, JLT, JMP, JNE -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * The conditional jump with the opposite condition.
+     *
+     * @param jump The conditional jump type.
+     * @return The jump taken exactly when the given one is not.
+     */
+    private static InstructionType opposite(@NonNull InstructionType jump) {
+        return switch (jump) {
+            case JEQ -> InstructionType.JNE;
+            case JNE -> InstructionType.JEQ;
+            case JGE -> InstructionType.JLT;
+            case JLT -> InstructionType.JGE;
+            case JGT -> InstructionType.JLE;
+            case JLE -> InstructionType.JGT;
+            default -> jump;
+        };
+    }
+
+    /**
+     * Check if an instruction stores its result to the target location the same way regardless of
+     * where that is, so that it could store directly to a variable instead of the stack.
+     *
+     * @param instruction The instruction.
+     * @return Whether the result could be stored somewhere else.
+     */
+    private static boolean storesAnywhere(@NonNull Instruction instruction) {
+        return switch (instruction.type()) {
+            case ADD_CHAR, ADD_DOUBLE, ADD_INT, AND, CONCAT_STRING -> true;
+            case DIV_CHAR, DIV_DOUBLE, DIV_INT, MOD_CHAR, MOD_DOUBLE, MOD_INT -> true;
+            case MUL_CHAR, MUL_DOUBLE, MUL_INT, NEG_CHAR, NEG_DOUBLE, NEG_INT -> true;
+            case NOT, OR, SUB_CHAR, SUB_DOUBLE, SUB_INT -> true;
+            case SET_EQ, SET_GE, SET_GT, SET_LE, SET_LT, SET_NE -> true;
+            case MOV -> instruction.firstLocation().area() != MemArea.STACK;
+            default -> false;
+        };
+    }
+
+    /**
+     * Create a copy of a superinstruction that ends in a jump, with a different jump target.
+     *
+     * @param jump The superinstruction.
+     * @param target The new target address.
+     * @return The new superinstruction.
+     */
+    private static Instruction withFusedTarget(@NonNull Instruction jump, int target) {
+        return new Instruction(
+                jump.type(),
+                jump.firstLocation(),
+                jump.secondLocation(),
+                new MemLocation(MemArea.IMMEDIATE, Integer.class, target));
+    }
+
+    /**
+     * Create a copy of a jump with a different target.
+     *
+     * @param jump The jump instruction.
+     * @param target The new target address.
+     * @return The new jump.
+     */
+    static Instruction withTarget(@NonNull Instruction jump, int target) {
+        return new Instruction(
+                jump.type(),
+                new MemLocation(MemArea.IMMEDIATE, Integer.class, target),
+                jump.secondLocation(),
+                jump.targetLocation());
+    }
+
+    /**
+     * The number of instructions in the last program before it was optimized.
+     *
+     * @return The original instruction count.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int instructionsBefore;
+
+    /**
+     * The number of instructions in the last program after it was optimized.
+     *
+     * @return The optimized instruction count.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int instructionsAfter;
+
+    /**
+     * The number of jumps that were changed to skip over other jumps.
+     *
+     * @return The number of threaded jumps.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int jumpsThreaded;
+
+    /**
+     * The number of jumps to the next instruction that were removed.
+     *
+     * @return The number of removed jumps.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int jumpsRemoved;
+
+    /**
+     * The number of moves through the stack that were removed.
+     *
+     * @return The number of forwarded moves.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int movesForwarded;
+
+    /**
+     * The number of stored comparison results that were replaced by a conditional jump.
+     *
+     * @return The number of fused branches.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int branchesFused;
+
+    /**
+     * The number of superinstructions that replaced sequences of instructions.
+     *
+     * @return The number of superinstructions.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int superinstructionsFused;
+
+    /**
+     * The number of chains of string concatenations that were changed to use one builder.
+     *
+     * @return The number of concatenation chains.
+     */
+    @SuppressWarnings("javadoc")
+    @Getter
+    private int concatenationChains;
+
+    /** Whether to fuse sequences of instructions into superinstructions after the other changes. */
+    private final boolean superinstructions;
+
+    /** The program being optimized, indexed by original address, with null for removed ones. */
+    private Instruction[] program;
+
+    /** Addresses of instructions that must stay where they are, like table jump entries. */
+    private boolean[] pinned;
+
+    /** The new address for each original address, once the program has been optimized. */
+    private int[] addressMap;
+
+    /** Create an optimizer that does not create superinstructions. */
+    public PeepholeOptimizer() {
+        this(false);
+    }
+
+    /**
+     * Create an optimizer.
+     *
+     * @param superinstructions Whether to fuse common sequences of instructions into
+     *     superinstructions. Only the last pass should do this, since no other passes understand
+     *     them.
+     */
+    public PeepholeOptimizer(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+    }
+
+    /**
+     * Check that every jump target is valid, so that we know where all the jumps go.
+     *
+     * @return Whether the program can be safely optimized.
+     */
+    private boolean analyze() {
+        final int size = program.length;
+        pinned = new boolean[size];
+        for (int address = 0; address < size; ++address) {
+            final Instruction instruction = program[address];
+            final InstructionType type = instruction.type();
+            if (PeepholeOptimizer.isJump(type)
+                    && !(instruction.firstLocation().value() instanceof Integer target
+                            && target >= 0
+                            && target <= size)) {
+                return false;
+            }
+            if (type == InstructionType.JMP_TABLE || type == InstructionType.JMP_LOOKUP) {
+                if (!(instruction.secondLocation().value() instanceof Integer count)
+                        || count < 0
+                        || address + 1 + count >= size) {
+                    return false;
+                }
+                // The default and each entry are found by their position
+                for (int entry = address + 1; entry <= address + 1 + count; ++entry) {
+                    pinned[entry] = true;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turn a stored comparison result that is compared against true and branched on into a
+     * conditional jump on the comparison itself.
+     *
+     * @return Whether anything changed.
+     */
+    private boolean fuseBranches() {
+        final boolean[] targeted = jumpTargets();
+        boolean changed = false;
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction set = program[address];
+            if (set == null
+                    || PeepholeOptimizer.branchFor(set.type()) == null
+                    || set.targetLocation().area() != MemArea.STACK) {
+                continue;
+            }
+            final int compareAddress = liveAtOrAfter(address + 1);
+            final int jumpAddress = liveAtOrAfter(compareAddress + 1);
+            if (jumpAddress >= program.length
+                    || targeted[compareAddress]
+                    || targeted[jumpAddress]
+                    || pinned[compareAddress]
+                    || pinned[jumpAddress]) {
+                continue;
+            }
+            final Instruction compare = program[compareAddress];
+            final Instruction jump = program[jumpAddress];
+            if (compare.type() != InstructionType.CMP
+                    || !isCompareToTrue(compare)
+                    || (jump.type() != InstructionType.JEQ && jump.type() != InstructionType.JNE)) {
+                continue;
+            }
+            // The comparison register keeps the original comparison now, so nothing can read it
+            final int target = (Integer) jump.firstLocation().value();
+            if (readsComparison(jumpAddress + 1) || readsComparison(target)) {
+                continue;
+            }
+            final InstructionType branch = PeepholeOptimizer.branchFor(set.type());
+            program[address] = null;
+            program[compareAddress] = null;
+            program[jumpAddress] =
+                    new Instruction(
+                            jump.type() == InstructionType.JEQ
+                                    ? branch
+                                    : PeepholeOptimizer.opposite(branch),
+                            jump.firstLocation(),
+                            null,
+                            null);
+            ++branchesFused;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Fuse a comparison and the conditional jump after it into one superinstruction.
+     *
+     * @param address The address of the comparison.
+     * @param targeted Whether each address is a jump target.
+     */
+    private void fuseCompare(int address, boolean[] targeted) {
+        final int jumpAddress = liveAtOrAfter(address + 1);
+        if (jumpAddress >= program.length || targeted[jumpAddress] || pinned[jumpAddress]) {
+            return;
+        }
+        final Instruction compare = program[address];
+        final Instruction jump = program[jumpAddress];
+        final InstructionType fused = PeepholeOptimizer.compareAndJumpFor(jump.type());
+        if (fused == null) {
+            return;
+        }
+        program[address] =
+                new Instruction(
+                        fused,
+                        compare.firstLocation(),
+                        compare.secondLocation(),
+                        jump.firstLocation());
+        program[jumpAddress] = null;
+        ++superinstructionsFused;
+    }
+
+    /**
+     * Change a chain of string concatenations, where each one pops the result of the one before
+     * it, to build the string in one builder.
+     *
+     * @param address The address of the first concatenation.
+     * @param targeted Whether each address is a jump target.
+     * @return The address of the last concatenation in the chain.
+     */
+    private int fuseConcatenation(int address, boolean[] targeted) {
+        int end = address;
+        int next = liveAtOrAfter(address + 1);
+        while (next < program.length
+                && !targeted[next]
+                && !pinned[next]
+                && program[end].targetLocation().area() == MemArea.STACK
+                && program[next].type() == InstructionType.CONCAT_STRING
+                && program[next].firstLocation().area() == MemArea.STACK) {
+            end = next;
+            next = liveAtOrAfter(end + 1);
+        }
+        if (end == address) {
+            return address;
+        }
+        for (int step = address; step <= end; step = liveAtOrAfter(step + 1)) {
+            final Instruction concat = program[step];
+            InstructionType type = InstructionType.CONCAT_APPEND;
+            if (step == address) {
+                type = InstructionType.CONCAT_BEGIN;
+            } else if (step == end) {
+                type = InstructionType.CONCAT_END;
+            }
+            program[step] =
+                    new Instruction(
+                            type,
+                            concat.firstLocation(),
+                            concat.secondLocation(),
+                            concat.targetLocation());
+        }
+        ++concatenationChains;
+        return end;
+    }
+
+    /**
+     * Fuse an increment, a comparison of the incremented variable, and the conditional jump after
+     * that into one superinstruction.
+     *
+     * @param address The address of the increment.
+     * @param targeted Whether each address is a jump target.
+     * @return Whether the instructions were fused.
+     */
+    private boolean fuseIncrement(int address, boolean[] targeted) {
+        final int compareAddress = liveAtOrAfter(address + 1);
+        final int jumpAddress = liveAtOrAfter(compareAddress + 1);
+        if (jumpAddress >= program.length
+                || targeted[compareAddress]
+                || targeted[jumpAddress]
+                || pinned[compareAddress]
+                || pinned[jumpAddress]) {
+            return false;
+        }
+        final MemLocation counter = program[address].firstLocation();
+        final Instruction compare = program[compareAddress];
+        final Instruction jump = program[jumpAddress];
+        final InstructionType fused = PeepholeOptimizer.incrementAndJumpFor(jump.type());
+        if (fused == null
+                || compare.type() != InstructionType.CMP
+                || compare.firstLocation().area() != MemArea.VARIABLE
+                || !compare.firstLocation().isInt()
+                || !counter.value().equals(compare.firstLocation().value())
+                || !(compare.secondLocation().isChar() || compare.secondLocation().isInt())) {
+            return false;
+        }
+        program[address] =
+                new Instruction(fused, counter, compare.secondLocation(), jump.firstLocation());
+        program[compareAddress] = null;
+        program[jumpAddress] = null;
+        ++superinstructionsFused;
+        return true;
+    }
+
+    /**
+     * Fuse the most common sequences of instructions into superinstructions, and join chains of
+     * string concatenations, once nothing else is going to change.
+     */
+    private void fuseSuperinstructions() {
+        invertLoopEntries();
+        final boolean[] targeted = jumpTargets();
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction instruction = program[address];
+            if (instruction == null || pinned[address]) {
+                continue;
+            }
+            if (PeepholeOptimizer.isIncrement(instruction) && fuseIncrement(address, targeted)) {
+                continue;
+            }
+            if (instruction.type() == InstructionType.CMP) {
+                fuseCompare(address, targeted);
+            } else if (instruction.type() == InstructionType.CONCAT_STRING) {
+                address = fuseConcatenation(address, targeted);
+            }
+        }
+    }
+
+    /**
+     * Read a value from where it was moved from instead of the stack.
+     *
+     * @param source Where the value was moved onto the stack from.
+     * @param stack The stack location it is read as.
+     * @param exact Whether the value is copied as is, rather than being read as a specific type.
+     * @return The location to read from, or null if it can't be read from there.
+     */
+    private MemLocation forwardedLocation(
+            @NonNull MemLocation source, @NonNull MemLocation stack, boolean exact) {
+        if (exact) {
+            return source;
+        }
+        if (source.area() == MemArea.VARIABLE) {
+            return new MemLocation(MemArea.VARIABLE, stack.type(), source.value());
+        }
+        if (source.value() == null) {
+            return null;
+        }
+        if (source.type() == stack.type()) {
+            return source;
+        }
+        if (stack.type() == Double.class
+                && (source.value() instanceof Integer || source.value() instanceof Character)) {
+            return new MemLocation(
+                    MemArea.IMMEDIATE, Double.class, ValueStore.doubleValue(source.value()));
+        }
+        return null;
+    }
+
+    /**
+     * Remove moves through the stack, where a value is pushed and then immediately popped.
+     *
+     * @return Whether anything changed.
+     */
+    private boolean forwardMoves() {
+        final boolean[] targeted = jumpTargets();
+        boolean changed = false;
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction first = program[address];
+            final int next = liveAtOrAfter(address + 1);
+            if (first == null
+                    || next >= program.length
+                    || targeted[next]
+                    || pinned[address]
+                    || pinned[next]
+                    || first.targetLocation() == null
+                    || first.targetLocation().area() != MemArea.STACK) {
+                continue;
+            }
+            final Instruction second = program[next];
+
+            if (first.type() == InstructionType.MOV
+                    && first.firstLocation().area() != MemArea.STACK
+                    && PeepholeOptimizer.consumesStack(second.type())) {
+                // Read the value directly instead of pushing it
+                Instruction replacement = readFrom(first.firstLocation(), second);
+                if (replacement != null) {
+                    program[address] = null;
+                    program[next] = replacement;
+                    ++movesForwarded;
+                    changed = true;
+                    continue;
+                }
+            }
+
+            if (second.type() == InstructionType.MOV
+                    && second.firstLocation().area() == MemArea.STACK
+                    && second.targetLocation().area() == MemArea.VARIABLE
+                    && PeepholeOptimizer.storesAnywhere(first)) {
+                // Store the result directly instead of pushing it
+                program[address] =
+                        new Instruction(
+                                first.type(),
+                                first.firstLocation(),
+                                first.secondLocation(),
+                                second.targetLocation());
+                program[next] = null;
+                ++movesForwarded;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Replace jumps to a comparison and conditional jump, where the condition being true goes to
+     * the instruction right after the original jump, with a superinstruction that does the
+     * comparison and jumps past the conditional jump if it is false. This is how loops are entered,
+     * and it leaves the condition at the end of the loop free to be fused with the increment
+     * before it. The stack is the same at both places, so the comparison reads the same values.
+     */
+    private void invertLoopEntries() {
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction entry = program[address];
+            if (entry == null || pinned[address] || entry.type() != InstructionType.JMP) {
+                continue;
+            }
+            final int compareAddress = liveAtOrAfter((Integer) entry.firstLocation().value());
+            final int jumpAddress = liveAtOrAfter(compareAddress + 1);
+            if (jumpAddress >= program.length
+                    || program[compareAddress].type() != InstructionType.CMP
+                    || PeepholeOptimizer.compareAndJumpFor(program[jumpAddress].type()) == null) {
+                continue;
+            }
+            final Instruction compare = program[compareAddress];
+            final Instruction jump = program[jumpAddress];
+            if (liveAtOrAfter((Integer) jump.firstLocation().value())
+                    != liveAtOrAfter(address + 1)) {
+                continue;
+            }
+            program[address] =
+                    new Instruction(
+                            PeepholeOptimizer.compareAndJumpFor(
+                                    PeepholeOptimizer.opposite(jump.type())),
+                            compare.firstLocation(),
+                            compare.secondLocation(),
+                            new MemLocation(MemArea.IMMEDIATE, Integer.class, jumpAddress + 1));
+            ++superinstructionsFused;
+        }
+    }
+
+    /**
+     * Check if a comparison compares a boolean on the stack against true, in either order.
+     *
+     * @param compare The comparison instruction.
+     * @return Whether the comparison is against an immediate true.
+     */
+    private boolean isCompareToTrue(@NonNull Instruction compare) {
+        final MemLocation first = compare.firstLocation();
+        final MemLocation second = compare.secondLocation();
+        if (first.area() == MemArea.STACK && first.isBoolean()) {
+            return second.area() == MemArea.IMMEDIATE && Boolean.TRUE.equals(second.value());
+        }
+        if (second.area() == MemArea.STACK && second.isBoolean()) {
+            return first.area() == MemArea.IMMEDIATE && Boolean.TRUE.equals(first.value());
+        }
+        return false;
+    }
+
+    /**
+     * Find which instructions something jumps to.
+     *
+     * @return Whether each address is a jump target, including one past the end of the program.
+     */
+    private boolean[] jumpTargets() {
+        boolean[] targeted = new boolean[program.length + 1];
+        for (Instruction instruction : program) {
+            if (instruction == null) {
+                continue;
+            }
+            if (PeepholeOptimizer.isJump(instruction.type())) {
+                targeted[liveAtOrAfter((Integer) instruction.firstLocation().value())] = true;
+            } else if (PeepholeOptimizer.isFusedJump(instruction.type())) {
+                targeted[liveAtOrAfter((Integer) instruction.targetLocation().value())] = true;
+            }
+        }
+        return targeted;
+    }
+
+    /**
+     * Find the first instruction that has not been removed, starting at an address.
+     *
+     * @param address The address to start from.
+     * @return The address of the instruction, or the length of the program if there are none.
+     */
+    private int liveAtOrAfter(int address) {
+        int current = address;
+        while (current < program.length && program[current] == null) {
+            ++current;
+        }
+        return current;
+    }
+
+    /**
+     * Optimize a program. The statistics are reset, then updated with what was changed.
+     *
+     * @param instructions The program, with labels and variables already resolved.
+     * @return The optimized program.
+     */
+    public List<Instruction> optimize(@NonNull List<Instruction> instructions) {
+        program = instructions.toArray(new Instruction[0]);
+        instructionsBefore = program.length;
+        jumpsThreaded = 0;
+        jumpsRemoved = 0;
+        movesForwarded = 0;
+        branchesFused = 0;
+        superinstructionsFused = 0;
+        concatenationChains = 0;
+
+        if (analyze()) {
+            for (int pass = 0; pass < PeepholeOptimizer.MAX_PASSES; ++pass) {
+                boolean changed = removeNops();
+                changed |= threadJumps();
+                changed |= removeJumpsToNext();
+                changed |= forwardMoves();
+                changed |= fuseBranches();
+                if (!changed) {
+                    break;
+                }
+            }
+            if (superinstructions) {
+                fuseSuperinstructions();
+            }
+        }
+
+        addressMap = new int[program.length + 1];
+        int live = 0;
+        for (int address = 0; address <= program.length; ++address) {
+            addressMap[address] = live;
+            if (address < program.length && program[address] != null) {
+                ++live;
+            }
+        }
+        List<Instruction> result = new ArrayList<>(live);
+        for (Instruction instruction : program) {
+            if (instruction == null) {
+                continue;
+            }
+            if (PeepholeOptimizer.isJump(instruction.type())) {
+                final int target = (Integer) instruction.firstLocation().value();
+                result.add(PeepholeOptimizer.withTarget(instruction, addressMap[target]));
+            } else if (PeepholeOptimizer.isFusedJump(instruction.type())) {
+                final int target = (Integer) instruction.targetLocation().value();
+                result.add(PeepholeOptimizer.withFusedTarget(instruction, addressMap[target]));
+            } else {
+                result.add(instruction);
+            }
+        }
+        instructionsAfter = result.size();
+
+        log.debug(
+                SafeResourceLoader.getString(
+                        "PEEPHOLE_STATISTICS", ScriptManager.getResourceBundle()),
+                instructionsBefore,
+                instructionsAfter,
+                jumpsThreaded,
+                jumpsRemoved,
+                movesForwarded,
+                branchesFused,
+                superinstructionsFused,
+                concatenationChains);
+        return result;
+    }
+
+    /**
+     * Build the replacement for an instruction that pops a value which was just moved onto the
+     * stack, reading it from the original location instead. The first input is read before the
+     * second, so it gets the top of the stack if both are on the stack.
+     *
+     * @param source Where the value was moved onto the stack from.
+     * @param consumer The instruction that pops the value.
+     * @return The replacement instruction, or null if it can't read from the source.
+     */
+    private Instruction readFrom(@NonNull MemLocation source, @NonNull Instruction consumer) {
+        final MemLocation first = consumer.firstLocation();
+        final MemLocation second = consumer.secondLocation();
+        final boolean exact = consumer.type() == InstructionType.MOV;
+        if (first != null && first.area() == MemArea.STACK) {
+            MemLocation location = forwardedLocation(source, first, exact);
+            return location == null
+                    ? null
+                    : new Instruction(consumer.type(), location, second, consumer.targetLocation());
+        }
+        if (second != null && second.area() == MemArea.STACK) {
+            MemLocation location = forwardedLocation(source, second, exact);
+            return location == null
+                    ? null
+                    : new Instruction(consumer.type(), first, location, consumer.targetLocation());
+        }
+        return null;
+    }
+
+    /**
+     * Check if the last comparison might be read starting from an address, before another
+     * comparison replaces it.
+     *
+     * @param start The address to start looking from.
+     * @return Whether the last comparison might be read.
+     */
+    private boolean readsComparison(int start) {
+        int address = start;
+        for (int step = 0; step < PeepholeOptimizer.COMPARISON_SCAN_LIMIT; ++step) {
+            address = liveAtOrAfter(address);
+            if (address >= program.length) {
+                return false;
+            }
+            final Instruction instruction = program[address];
+            switch (instruction.type()) {
+                case CMP, HALT:
+                    return false;
+                case JMP:
+                    address = (Integer) instruction.firstLocation().value();
+                    break;
+                case CALL, CAST, CONCAT_STRING, MOV, NOP:
+                case ADD_CHAR, ADD_DOUBLE, ADD_INT, AND, OR, NOT:
+                case DIV_CHAR, DIV_DOUBLE, DIV_INT, MOD_CHAR, MOD_DOUBLE, MOD_INT:
+                case MUL_CHAR, MUL_DOUBLE, MUL_INT, NEG_CHAR, NEG_DOUBLE, NEG_INT:
+                case SUB_CHAR, SUB_DOUBLE, SUB_INT:
+                    ++address;
+                    break;
+                default:
+                    // Conditional jumps and sets, or something we don't know about
+                    return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update a map keyed by the addresses of instructions in the last program to use their
+     * addresses in the optimized program. Entries for instructions that were removed are dropped.
+     *
+     * @param <T> The type of values in the map.
+     * @param byAddress The map keyed by original address.
+     * @return A map keyed by optimized address.
+     */
+    public <T> Map<Integer, T> remapAddresses(@NonNull Map<Integer, T> byAddress) {
+        Map<Integer, T> result = new HashMap<>();
+        for (Map.Entry<Integer, T> entry : byAddress.entrySet()) {
+            final int address = entry.getKey();
+            if (addressMap == null) {
+                result.put(address, entry.getValue());
+            } else if (address >= 0 && address < program.length && program[address] != null) {
+                result.put(addressMap[address], entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove jumps that go to the instruction right after them.
+     *
+     * @return Whether anything changed.
+     */
+    private boolean removeJumpsToNext() {
+        boolean changed = false;
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction jump = program[address];
+            if (jump == null || pinned[address] || !PeepholeOptimizer.isJump(jump.type())) {
+                continue;
+            }
+            final int target = liveAtOrAfter((Integer) jump.firstLocation().value());
+            if (target == liveAtOrAfter(address + 1)) {
+                program[address] = null;
+                ++jumpsRemoved;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Remove instructions that do nothing, such as ones left behind by other optimizations.
+     *
+     * @return Whether anything changed.
+     */
+    private boolean removeNops() {
+        boolean changed = false;
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction instruction = program[address];
+            if (instruction != null
+                    && !pinned[address]
+                    && instruction.type() == InstructionType.NOP) {
+                program[address] = null;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Make jumps that go to an unconditional jump go straight to where that one goes.
+     *
+     * @return Whether anything changed.
+     */
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (int address = 0; address < program.length; ++address) {
+            final Instruction jump = program[address];
+            if (jump == null || !PeepholeOptimizer.isJump(jump.type())) {
+                continue;
+            }
+            final int original = liveAtOrAfter((Integer) jump.firstLocation().value());
+            int target = original;
+            // Limit the steps so that jumps in a cycle don't keep us here forever
+            for (int step = 0; step < program.length; ++step) {
+                if (target >= program.length
+                        || target == address
+                        || program[target].type() != InstructionType.JMP) {
+                    break;
+                }
+                final int next = liveAtOrAfter((Integer) program[target].firstLocation().value());
+                if (next == target) {
+                    break;
+                }
+                target = next;
+            }
+            if (target != original) {
+                program[address] = PeepholeOptimizer.withTarget(jump, target);
+                ++jumpsThreaded;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
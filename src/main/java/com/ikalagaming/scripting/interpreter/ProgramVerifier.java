@@ -0,0 +1,235 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ScriptManager;
+import com.ikalagaming.util.SafeResourceLoader;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Proves ahead of time that instructions can't fail the checks the runtime makes on their
+ * operands, so that those checks can be skipped. This runs once when a script is loaded, and the
+ * result is shared by every runtime for it.
+ *
+ * <p>An instruction is verified when:
+ *
+ * <ul>
+ *   <li>The types of its operands are the ones the runtime checks for, like characters for
+ *       character math or booleans for logic.
+ *   <li>Every variable it reads has been assigned along every path that reaches it.
+ *   <li>The stack holds at least as many entries as it pops along every path that reaches it.
+ * </ul>
+ *
+ * Calls only push a result if the method returned one, so they are treated as pushing nothing.
+ * Instructions that use the results of calls are left unverified and keep their checks, as is
+ * every instruction of a program whose jumps or variable slots are not valid.
+ *
+ * @author Ches Burks
+ */
+@Slf4j
+class ProgramVerifier {
+    /**
+     * Check if the types of an instruction's operands are the ones the runtime expects.
+     *
+     * @param instruction The instruction.
+     * @return Whether the runtime's type checks would pass.
+     */
+    private static boolean hasValidTypes(@NonNull Instruction instruction) {
+        final MemLocation first = instruction.firstLocation();
+        final MemLocation second = instruction.secondLocation();
+        return switch (instruction.type()) {
+            case ADD_CHAR, DIV_CHAR, MOD_CHAR, MUL_CHAR, SUB_CHAR ->
+                    first.isChar() && second.isChar();
+            case ADD_DOUBLE, DIV_DOUBLE, MOD_DOUBLE, MUL_DOUBLE, SUB_DOUBLE ->
+                    ProgramVerifier.isNumeric(first) && ProgramVerifier.isNumeric(second);
+            case ADD_INT, DIV_INT, MOD_INT, MUL_INT, SUB_INT ->
+                    ProgramVerifier.isInteger(first) && ProgramVerifier.isInteger(second);
+            case AND, OR -> first.isBoolean() && second.isBoolean();
+            case INC_JLE, INC_JLT -> ProgramVerifier.isInteger(first);
+            case NEG_CHAR -> first.isChar();
+            case NEG_DOUBLE -> ProgramVerifier.isNumeric(first);
+            case NEG_INT -> ProgramVerifier.isInteger(first);
+            case NOT -> first.isBoolean();
+            default -> true;
+        };
+    }
+
+    /**
+     * Check that a location can be read without finding an unassigned variable.
+     *
+     * @param location The location, may be null.
+     * @param assigned The variables that are assigned.
+     * @return Whether the location is not a variable, or is an assigned one.
+     */
+    private static boolean isAssigned(MemLocation location, @NonNull BitSet assigned) {
+        return location == null
+                || location.area() != MemArea.VARIABLE
+                || assigned.get((Integer) location.value());
+    }
+
+    /**
+     * Check if a location holds an integer or character, as far as the runtime's type checks go.
+     *
+     * @param location The location.
+     * @return Whether the location is an integer or character.
+     */
+    private static boolean isInteger(@NonNull MemLocation location) {
+        return location.isChar() || location.isInt();
+    }
+
+    /**
+     * Check if a location holds a number, as far as the runtime's type checks go.
+     *
+     * @param location The location.
+     * @return Whether the location is a character, integer, or double.
+     */
+    private static boolean isNumeric(@NonNull MemLocation location) {
+        return location.isChar() || location.isInt() || location.isDouble();
+    }
+
+    /**
+     * Check if an instruction is proven safe, given what we know before it runs.
+     *
+     * @param instruction The instruction.
+     * @param assigned The variables that are assigned along every path to the instruction.
+     * @param depth The fewest entries the stack has along any path to the instruction.
+     * @return Whether the instruction is verified.
+     */
+    private static boolean isProven(
+            @NonNull Instruction instruction, @NonNull BitSet assigned, int depth) {
+        if (!ProgramVerifier.hasValidTypes(instruction)
+                || ProgramVerifier.pops(instruction) > depth) {
+            return false;
+        }
+        if (instruction.type() == InstructionType.CALL) {
+            // The first operand is the method name, not a value
+            return true;
+        }
+        return ProgramVerifier.isAssigned(instruction.firstLocation(), assigned)
+                && ProgramVerifier.isAssigned(instruction.secondLocation(), assigned);
+    }
+
+    /**
+     * The number of entries an instruction takes off the stack.
+     *
+     * @param instruction The instruction.
+     * @return The number of entries popped.
+     */
+    private static int pops(@NonNull Instruction instruction) {
+        final MemLocation first = instruction.firstLocation();
+        final MemLocation second = instruction.secondLocation();
+        int pops = 0;
+        if (first != null && first.area() == MemArea.STACK) {
+            ++pops;
+        }
+        if (instruction.type() == InstructionType.CALL) {
+            return pops + (Integer) second.value();
+        }
+        if (second != null && second.area() == MemArea.STACK) {
+            ++pops;
+        }
+        return pops;
+    }
+
+    /**
+     * The fewest entries an instruction puts on the stack.
+     *
+     * @param instruction The instruction.
+     * @return The number of entries pushed, which is 0 for calls since they may not return
+     *     anything.
+     */
+    private static int pushes(@NonNull Instruction instruction) {
+        final MemLocation target = instruction.targetLocation();
+        return instruction.type() != InstructionType.CALL
+                        && target != null
+                        && target.area() == MemArea.STACK
+                ? 1
+                : 0;
+    }
+
+    /**
+     * Find the instructions of a program that are proven to pass the runtime's checks on their
+     * operands.
+     *
+     * @param instructions The program.
+     * @param variableCount The number of variable slots the program uses.
+     * @return The addresses of the verified instructions.
+     */
+    static BitSet verify(@NonNull List<Instruction> instructions, int variableCount) {
+        BitSet verified = new BitSet();
+        final Instruction[] program = instructions.toArray(new Instruction[0]);
+        final int size = program.length;
+        if (size == 0 || !ControlFlowGraph.validate(program, variableCount)) {
+            log.debug(
+                    SafeResourceLoader.getString(
+                            "VERIFIER_STATISTICS", ScriptManager.getResourceBundle()),
+                    0,
+                    size);
+            return verified;
+        }
+
+        // What we know before each instruction, null until it is reached
+        BitSet[] assigned = new BitSet[size];
+        int[] depth = new int[size];
+        assigned[0] = new BitSet();
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(0);
+        while (!pending.isEmpty()) {
+            final int address = pending.pop();
+            final Instruction instruction = program[address];
+            BitSet assignedAfter = (BitSet) assigned[address].clone();
+            final MemLocation target = instruction.targetLocation();
+            if (target != null && target.area() == MemArea.VARIABLE) {
+                assignedAfter.set((Integer) target.value());
+            }
+            final int depthAfter =
+                    Math.max(0, depth[address] - ProgramVerifier.pops(instruction))
+                            + ProgramVerifier.pushes(instruction);
+
+            for (int successor : ControlFlowGraph.successors(program, address)) {
+                if (successor >= size) {
+                    continue;
+                }
+                if (assigned[successor] == null) {
+                    assigned[successor] = (BitSet) assignedAfter.clone();
+                    depth[successor] = depthAfter;
+                    pending.push(successor);
+                    continue;
+                }
+                // Only what holds along every path is known where paths join
+                BitSet merged = (BitSet) assigned[successor].clone();
+                merged.and(assignedAfter);
+                final int mergedDepth = Math.min(depth[successor], depthAfter);
+                if (!merged.equals(assigned[successor]) || mergedDepth != depth[successor]) {
+                    assigned[successor] = merged;
+                    depth[successor] = mergedDepth;
+                    pending.push(successor);
+                }
+            }
+        }
+
+        for (int address = 0; address < size; ++address) {
+            if (assigned[address] != null
+                    && ProgramVerifier.isProven(
+                            program[address], assigned[address], depth[address])) {
+                verified.set(address);
+            }
+        }
+        log.debug(
+                SafeResourceLoader.getString(
+                        "VERIFIER_STATISTICS", ScriptManager.getResourceBundle()),
+                verified.cardinality(),
+                size);
+        return verified;
+    }
+
+    /** Private constructor so that this class is not instantiated. */
+    private ProgramVerifier() {
+        throw new UnsupportedOperationException("This utility class should not be instantiated");
+    }
+}
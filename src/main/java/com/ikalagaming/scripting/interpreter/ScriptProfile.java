@@ -0,0 +1,184 @@
+package com.ikalagaming.scripting.interpreter;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts how often each instruction of a script runs, and how long its calls take, while a
+ * runtime is profiling. See {@link ScriptRuntime#startProfiling()}.
+ *
+ * <p>Counts are kept per address and per {@link InstructionType}. Reports group them by the line
+ * in the source each instruction came from, in the folded stack format that flame graph tools
+ * read, where each line is a list of frames separated by semicolons followed by a count.
+ *
+ * <p>A profile is updated by the thread running the script without any synchronization, so it
+ * should only be read once the runtime has stopped running, or be treated as approximate.
+ *
+ * @author Ches Burks
+ */
+public class ScriptProfile {
+    /**
+     * Write out stacks and their counts, one per line.
+     *
+     * @param stacks The count for each stack.
+     * @return The folded stacks.
+     */
+    private static String fold(@NonNull Map<String, Long> stacks) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            result.append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * The script being profiled.
+     *
+     * @return The script.
+     */
+    @Getter
+    @SuppressWarnings("javadoc")
+    private final CompiledScript script;
+
+    /** The number of times each instruction ran, indexed by address. */
+    private final long[] addressCounts;
+
+    /** The number of times each type of instruction ran, indexed by ordinal. */
+    private final long[] typeCounts;
+
+    /** The nanoseconds spent in each call instruction, indexed by address. */
+    private final long[] callNanos;
+
+    /**
+     * Create an empty profile for a script.
+     *
+     * @param script The script we are profiling.
+     */
+    ScriptProfile(@NonNull CompiledScript script) {
+        this.script = script;
+        final int size = script.getInstructions().size();
+        addressCounts = new long[size];
+        typeCounts = new long[InstructionType.values().length];
+        callNanos = new long[size];
+    }
+
+    /**
+     * The time spent in calls, in the folded stack format. Each line in the source with calls on it
+     * has a frame for the method that was called, and the count is the number of nanoseconds spent
+     * in that method.
+     *
+     * @return The folded call times, one stack per line of text.
+     */
+    public String foldedCallTimes() {
+        Map<String, Long> stacks = new TreeMap<>();
+        final List<Instruction> instructions = script.getInstructions();
+        for (int address = 0; address < callNanos.length; ++address) {
+            if (addressCounts[address] == 0 || script.type(address) != InstructionType.CALL) {
+                continue;
+            }
+            final String method = instructions.get(address).firstLocation().value().toString();
+            stacks.merge(frame(address) + ";" + method, callNanos[address], Long::sum);
+        }
+        return ScriptProfile.fold(stacks);
+    }
+
+    /**
+     * The number of instructions that ran, in the folded stack format. Each line in the source has
+     * a frame for each type of instruction that ran on it, and the count is the number of times
+     * those instructions ran.
+     *
+     * @return The folded instruction counts, one stack per line of text.
+     */
+    public String foldedCounts() {
+        Map<String, Long> stacks = new TreeMap<>();
+        for (int address = 0; address < addressCounts.length; ++address) {
+            if (addressCounts[address] == 0) {
+                continue;
+            }
+            stacks.merge(
+                    frame(address) + ";" + script.type(address),
+                    addressCounts[address],
+                    Long::sum);
+        }
+        return ScriptProfile.fold(stacks);
+    }
+
+    /**
+     * Describe the line an instruction came from, as a frame for folded stacks.
+     *
+     * @param address The address of the instruction.
+     * @return The frame.
+     */
+    private String frame(int address) {
+        final int line = script.getLine(address);
+        return line > 0 ? "line " + line : "unknown line";
+    }
+
+    /**
+     * The total time spent in calls made by an instruction.
+     *
+     * @param address The address of the instruction.
+     * @return The time in nanoseconds, which is 0 for instructions that are not calls.
+     */
+    public long getCallNanos(int address) {
+        return callNanos[address];
+    }
+
+    /**
+     * The number of times the instruction at an address ran.
+     *
+     * @param address The address of the instruction.
+     * @return The number of times it ran.
+     */
+    public long getCount(int address) {
+        return addressCounts[address];
+    }
+
+    /**
+     * The number of times instructions of a type ran.
+     *
+     * @param type The type of instruction.
+     * @return The number of times instructions of that type ran.
+     */
+    public long getCount(@NonNull InstructionType type) {
+        return typeCounts[type.ordinal()];
+    }
+
+    /**
+     * The number of instructions that ran in total.
+     *
+     * @return The total number of instructions.
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (long count : typeCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Record that an instruction ran.
+     *
+     * @param address The address of the instruction.
+     * @param type The type of the instruction.
+     */
+    void record(int address, InstructionType type) {
+        ++addressCounts[address];
+        ++typeCounts[type.ordinal()];
+    }
+
+    /**
+     * Record time spent in a call.
+     *
+     * @param address The address of the call instruction.
+     * @param nanos The number of nanoseconds the call took.
+     */
+    void recordCall(int address, long nanos) {
+        callNanos[address] += nanos;
+    }
+}
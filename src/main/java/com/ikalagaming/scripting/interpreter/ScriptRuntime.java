@@ -4,19 +4,18 @@ import com.ikalagaming.scripting.ScriptManager;
 import com.ikalagaming.scripting.ast.Type;
 import com.ikalagaming.util.SafeResourceLoader;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
 import java.util.function.DoubleBinaryOperator;
 import java.util.function.IntBinaryOperator;
@@ -29,18 +28,41 @@ import java.util.function.IntPredicate;
  */
 @Slf4j
 @Getter
-@RequiredArgsConstructor
 public class ScriptRuntime {
 
     /** Used instead of null memory. */
     private static final MemoryItem VOID_MEMORY = new MemoryItem(Void.class, "void");
 
+    /**
+     * The default number of backward jumps a script makes before we compile it in the background.
+     */
+    public static final int DEFAULT_COMPILE_THRESHOLD = 1000;
+
+    /** The fewest stack entries we start out with, it grows as required. */
+    private static final int MIN_STACK_SIZE = 4;
+
+    /**
+     * The most stack entries we start out with, since the maximum depth is only an estimate for
+     * programs with many calls whose results are never used.
+     */
+    private static final int MAX_INITIAL_STACK_SIZE = 64;
+
     /** If we should stop running the program. */
     private boolean fatalError;
 
+    /** The compiled script we are executing, which may be shared with other runtimes. */
+    private final CompiledScript program;
+
     /** The actual program, a list of instructions. */
     private final List<Instruction> instructions;
 
+    /**
+     * The instructions with their operands resolved ahead of time, indexed by address. This is
+     * what the interpreter actually executes.
+     */
+    @Getter(value = AccessLevel.NONE)
+    private final Node[] nodes;
+
     /**
      * An equivalent to a register where the result of the last comparison is stored.
      *
@@ -53,13 +75,88 @@ public class ScriptRuntime {
     private int lastComparison;
 
     /** Where we are in the program. */
+    @Setter(value = AccessLevel.PACKAGE)
     private int programCounter = 0;
 
-    /** The stack. */
-    private ArrayDeque<MemoryItem> stack = new ArrayDeque<>();
+    /** The stack, where the top of the stack is the entry at {@link #stackSize} - 1. */
+    @Getter(value = AccessLevel.NONE)
+    private final ValueStore stack;
+
+    /** The number of items currently on the stack. */
+    private int stackSize = 0;
+
+    /**
+     * The variables in the program, which retain type information, for my own sanity. Indexed by
+     * the slot number the instruction generator assigned to each variable, and unset until the
+     * variable is first assigned.
+     */
+    @Getter(value = AccessLevel.NONE)
+    private final ValueStore variables;
+
+    /** The names of the variables, indexed by slot number, used for error messages. */
+    private final List<String> variableNames;
+
+    /**
+     * Inline caches for call instructions on objects, indexed by the address of the instruction.
+     * The array is created the first time a call on an object is made, and each cache the first
+     * time that call is executed.
+     */
+    @Getter(value = AccessLevel.NONE)
+    private CallSiteCache[] callSites;
+
+    /**
+     * The number of backward jumps before we compile the program in the background, or 0 to never
+     * compile it automatically.
+     */
+    @Getter(value = AccessLevel.NONE)
+    private final int compileThreshold;
+
+    /** The number of backward jumps the interpreter has made, used to find hot programs. */
+    @Getter(value = AccessLevel.NONE)
+    private int backwardJumps;
+
+    /** Set when the script yields, so that {@link #run(int)} stops there. */
+    @Getter(value = AccessLevel.NONE)
+    private boolean yielded;
+
+    /**
+     * The profile we record executed instructions in, or null if we are not profiling.
+     *
+     * @return The current profile, or null if we are not profiling.
+     * @see #startProfiling()
+     */
+    @SuppressWarnings("javadoc")
+    private ScriptProfile profile;
+
+    /**
+     * Create a new runtime to execute a compiled script. Only the state of this execution is
+     * created, everything about the program itself is shared with the script.
+     *
+     * @param program The script to execute.
+     * @see CompiledScript#createRuntime()
+     */
+    public ScriptRuntime(@NonNull CompiledScript program) {
+        this.program = program;
+        instructions = program.getInstructions();
+        variableNames = program.getVariableNames();
+        nodes = program.nodes;
+        variables = new ValueStore(program.getVariableCount());
+        final int depth = Math.max(ScriptRuntime.MIN_STACK_SIZE, program.getMaxStackDepth());
+        stack = new ValueStore(Math.min(ScriptRuntime.MAX_INITIAL_STACK_SIZE, depth));
+        compileThreshold = ScriptManager.getCompileThreshold();
+    }
 
-    /** The variables in the program, which retain type information, for my own sanity. */
-    private Map<String, MemoryItem> symbolTable = new HashMap<>();
+    /**
+     * Create a new runtime for the given program, compiling a script just for this runtime.
+     *
+     * @param instructions The instructions that make up the program.
+     * @param variableNames The names of each variable slot the instructions use, indexed by slot
+     *     number.
+     */
+    public ScriptRuntime(
+            @NonNull List<Instruction> instructions, @NonNull List<String> variableNames) {
+        this(new CompiledScript(instructions, variableNames, Map.of()));
+    }
 
     /**
      * Deal with logical operations on two booleans.
@@ -71,8 +168,8 @@ public class ScriptRuntime {
         final MemLocation firstLocation = i.firstLocation();
         final MemLocation secondLocation = i.secondLocation();
 
-        final MemoryItem firstItem = loadValue(firstLocation);
-        final MemoryItem secondItem = loadValue(secondLocation);
+        final boolean first = loadBoolean(firstLocation);
+        final boolean second = loadBoolean(secondLocation);
 
         if (fatalError) {
             return;
@@ -83,24 +180,7 @@ public class ScriptRuntime {
             return;
         }
 
-        boolean first;
-        boolean second;
-
-        try {
-            first = (Boolean) firstItem.value();
-            second = (Boolean) secondItem.value();
-        } catch (ClassCastException e) {
-            log.warn(
-                    SafeResourceLoader.getString("CAST_FAILED", ScriptManager.getResourceBundle()),
-                    firstItem.getClass(),
-                    Boolean.class);
-            halt();
-            return;
-        }
-
-        MemoryItem result = new MemoryItem(Boolean.class, operation.apply(first, second));
-
-        storeValue(result, i.targetLocation());
+        storeBoolean(operation.apply(first, second), i.targetLocation());
     }
 
     /**
@@ -132,11 +212,32 @@ public class ScriptRuntime {
             return;
         }
 
+        CallSiteCache cache = null;
         if (objectLocation != MemArea.IMMEDIATE) {
             final MemoryItem first = loadValue(i.firstLocation());
 
             object = first.value();
 
+            if (callSites == null) {
+                callSites = new CallSiteCache[instructions.size()];
+            }
+            cache = callSites[programCounter];
+            if (cache == null) {
+                cache = new CallSiteCache();
+                callSites[programCounter] = cache;
+            }
+            MethodHandle cached = cache.find(object.getClass(), parameters);
+            if (cached != null) {
+                if (!invoke(cached, object, parameters, methodName)) {
+                    log.warn(
+                            SafeResourceLoader.getString(
+                                    "UNKNOWN_METHOD", ScriptManager.getResourceBundle()),
+                            methodName);
+                    halt();
+                }
+                return;
+            }
+
             Method[] methods = object.getClass().getMethods();
 
             options = new ArrayList<>();
@@ -155,10 +256,21 @@ public class ScriptRuntime {
                 return;
             }
         } else {
+            CallLinker.LinkedCall linked = program.linker.get(programCounter);
+            if (linked != null && isViable(linked.method(), parameters)) {
+                if (!invoke(linked.invoker(), null, parameters, methodName)) {
+                    log.warn(
+                            SafeResourceLoader.getString(
+                                    "UNKNOWN_METHOD", ScriptManager.getResourceBundle()),
+                            methodName);
+                    halt();
+                }
+                return;
+            }
             options = ScriptManager.getMethods(methodName, numParams);
         }
 
-        if (!this.call(options, parameters, object)) {
+        if (!this.call(options, parameters, object, cache)) {
             log.warn(
                     SafeResourceLoader.getString(
                             "UNKNOWN_METHOD", ScriptManager.getResourceBundle()),
@@ -173,46 +285,37 @@ public class ScriptRuntime {
      * @param options The potential options we have for method calls.
      * @param parameters The actual parameters we are trying to match.
      * @param target The object to invoke the method on, may be null for static methods.
+     * @param cache The cache for the call site, which we add the method to if we find one. Null
+     *     for static calls, which are not cached and are invoked using reflection.
      * @return Whether we successfully called a method.
      */
     private boolean call(
-            @NonNull List<Method> options, @NonNull List<MemoryItem> parameters, Object target) {
+            @NonNull List<Method> options,
+            @NonNull List<MemoryItem> parameters,
+            Object target,
+            CallSiteCache cache) {
         if (options.isEmpty()) {
             return false;
         }
         for (Method option : options) {
-            Class<?>[] params = option.getParameterTypes();
-            boolean viable = true;
-            for (int i = 0; i < params.length; ++i) {
-                Class<?> expectedType = params[i];
-                Class<?> actualType = parameters.get(i).type();
-                viable = canAssign(expectedType, actualType);
-                if (!viable) {
-                    break;
-                }
-            }
-            if (!viable) {
+            if (!isViable(option, parameters)) {
                 continue;
             }
-            Object[] actualParams = new Object[parameters.size()];
-            for (int i = 0; i < parameters.size(); ++i) {
-                actualParams[i] = parameters.get(i).value();
+            if (cache == null) {
+                return invoke(option, target, parameters);
             }
+            MethodHandle invoker;
             try {
-                Object result = option.invoke(target, actualParams);
-                if (result != null) {
-                    stack.push(new MemoryItem(result));
-                }
-                return true;
-            } catch (IllegalAccessException
-                    | IllegalArgumentException
-                    | InvocationTargetException e) {
+                invoker = CallSiteCache.invoker(option);
+            } catch (IllegalAccessException e) {
                 log.warn(
                         SafeResourceLoader.getString(
                                 "METHOD_CALL_FAILED", ScriptManager.getResourceBundle()),
                         option.getName());
                 return false;
             }
+            cache.add(target.getClass(), parameters, invoker);
+            return invoke(invoker, target, parameters, option.getName());
         }
         return false;
     }
@@ -225,7 +328,7 @@ public class ScriptRuntime {
      * @param actual The actual type we have.
      * @return Whether this is a reasonable match.
      */
-    private boolean canAssign(Class<?> expected, Class<?> actual) {
+    static boolean canAssign(Class<?> expected, Class<?> actual) {
         if (expected.isPrimitive()) {
             return ((expected == int.class && actual == Integer.class)
                     || (expected == double.class && actual == Double.class)
@@ -264,7 +367,7 @@ public class ScriptRuntime {
         } else if (targetClass == Boolean.class) {
             target = castToBoolean(firstItem.value());
         } else if (targetClass == String.class) {
-            target = new MemoryItem(Character.class, firstItem.value().toString());
+            target = new MemoryItem(String.class, firstItem.value().toString());
         }
 
         if (target == null) {
@@ -396,18 +499,19 @@ public class ScriptRuntime {
     }
 
     /**
-     * Deal with any kind of math operation on two integers.
+     * Deal with any kind of math operation on two characters.
      *
      * @param i The instruction.
-     * @param operation The operation to perform on the two numbers.
+     * @param operation The operation to perform on the two characters, the result is truncated to a
+     *     character.
      */
-    private void charMath(Instruction i, BinaryOperator<Character> operation) {
+    private void charMath(Instruction i, IntBinaryOperator operation) {
 
         final MemLocation firstLocation = i.firstLocation();
         final MemLocation secondLocation = i.secondLocation();
 
-        final MemoryItem firstItem = loadValue(firstLocation);
-        final MemoryItem secondItem = loadValue(secondLocation);
+        final char firstNumber = loadChar(firstLocation);
+        final char secondNumber = loadChar(secondLocation);
 
         if (fatalError) {
             return;
@@ -418,37 +522,20 @@ public class ScriptRuntime {
             return;
         }
 
-        char firstNumber;
-        char secondNumber;
-
-        if (firstLocation.isChar()) {
-            firstNumber = (Character) firstItem.value();
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            firstNumber = 0;
-        }
-
-        if (secondLocation.isChar()) {
-            final char unboxed = (Character) secondItem.value();
-            secondNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            secondNumber = 0;
-        }
-
-        MemoryItem result =
-                new MemoryItem(Character.class, operation.apply(firstNumber, secondNumber));
-
-        storeValue(result, i.targetLocation());
+        storeChar((char) operation.applyAsInt(firstNumber, secondNumber), i.targetLocation());
     }
 
     /**
-     * Check the memory is the expected type, halt the program if not.
+     * Check the memory is the expected type, halt the program if not. Instructions the program was
+     * verified to use correctly are not checked again.
      *
      * @param memory The memory to check.
      * @param intended The type we are expecting to see or at least cast to.
      */
     private void checkType(MemLocation memory, Type.Base intended) {
+        if (program.isVerified(programCounter)) {
+            return;
+        }
         final String MEMORY_MISMATCH = "MEMORY_TYPE_MISMATCH";
         switch (intended) {
             case BOOLEAN:
@@ -511,32 +598,26 @@ public class ScriptRuntime {
         final MemLocation firstLocation = i.firstLocation();
         final MemLocation secondLocation = i.secondLocation();
 
-        final MemoryItem firstItem = loadValue(firstLocation);
-        final MemoryItem secondItem = loadValue(secondLocation);
-
-        if (fatalError) {
-            return;
-        }
-
         if ((firstLocation.isChar() || firstLocation.isDouble() || firstLocation.isInt())
                 && (secondLocation.isChar()
                         || secondLocation.isDouble()
                         || secondLocation.isInt())) {
+            // Just compare all numbers as doubles.
+            final double first = loadDouble(firstLocation);
+            final double second = loadDouble(secondLocation);
+
+            if (fatalError) {
+                return;
+            }
+
+            compareNumbers(first, second);
+            return;
+        }
+
+        final MemoryItem firstItem = loadValue(firstLocation);
+        final MemoryItem secondItem = loadValue(secondLocation);
 
-            doubleComparison(
-                    i,
-                    firstItem,
-                    secondItem,
-                    (a, b) -> {
-                        final double TOLERANCE = 0.000_01;
-                        if (Math.abs(a - b) < TOLERANCE) {
-                            lastComparison = 0;
-                        } else if (a < b) {
-                            lastComparison = -1;
-                        } else if (a > b) {
-                            lastComparison = 1;
-                        }
-                    });
+        if (fatalError) {
             return;
         }
 
@@ -551,78 +632,116 @@ public class ScriptRuntime {
     }
 
     /**
-     * Concatenate strings together. Automatically converts whatever is in the arguments to strings.
+     * Compare two items like {@link #compare(Instruction)}, then jump to the target address if the
+     * given function returns true when passed the result.
      *
-     * @param i The instruction we are executing.
+     * @param i The instruction to execute.
+     * @param operator The function that determines if we should jump.
      */
-    private void concatStrings(Instruction i) {
-        final MemLocation firstLocation = i.firstLocation();
-        final MemLocation secondLocation = i.secondLocation();
-
-        final MemoryItem firstItem = loadValue(firstLocation);
-        final MemoryItem secondItem = loadValue(secondLocation);
-
+    private void compareAndJump(Instruction i, IntPredicate operator) {
+        compare(i);
         if (fatalError) {
             return;
         }
+        jump(i.targetLocation(), operator);
+    }
 
-        String first = firstItem.value().toString();
-        String second = secondItem.value().toString();
-
-        MemoryItem result = new MemoryItem(String.class, first + second);
+    /**
+     * Compare two numbers, storing the result as the last comparison. Also used by compiled
+     * programs.
+     *
+     * @param first The first number.
+     * @param second The second number.
+     * @see #lastComparison
+     */
+    void compareNumbers(double first, double second) {
+        final double TOLERANCE = 0.000_01;
+        if (Math.abs(first - second) < TOLERANCE) {
+            lastComparison = 0;
+        } else if (first < second) {
+            lastComparison = -1;
+        } else if (first > second) {
+            lastComparison = 1;
+        }
+    }
 
-        storeValue(result, i.targetLocation());
+    /**
+     * Compile the program to JVM bytecode right away, so that {@link #run(int)} executes it
+     * directly instead of interpreting one instruction at a time. Programs that can't be compiled
+     * are still interpreted. This may be called at any point between instructions. Hot programs
+     * are compiled in the background automatically, see {@link
+     * ScriptManager#setCompileThreshold(int)}. The compiled program is shared with every runtime
+     * for the same script.
+     *
+     * @return Whether the program is compiled.
+     * @see CompiledScript#compile()
+     */
+    public boolean compile() {
+        return program.compile();
     }
 
     /**
-     * Compares the values of the given instruction as doubles using the provided function.
+     * Handle one step of a chain of string concatenations, which builds the whole string in one
+     * builder on the stack instead of creating a new string at every step.
      *
-     * @param i The instruction we are doing comparisons on.
-     * @param firstItem The first memory item.
-     * @param secondItem The second memory item.
-     * @param comparisonFunction The function to use for comparisons.
+     * @param i The instruction we are executing.
+     * @param begin Whether this step starts the chain with a new builder. Later steps take the
+     *     builder from the first input.
+     * @param end Whether this step ends the chain, storing the finished string instead of the
+     *     builder.
      */
-    private void doubleComparison(
-            Instruction i,
-            MemoryItem firstItem,
-            MemoryItem secondItem,
-            BiConsumer<Double, Double> comparisonFunction) {
-        final MemLocation firstLocation = i.firstLocation();
-        final MemLocation secondLocation = i.secondLocation();
+    private void concatChain(Instruction i, boolean begin, boolean end) {
+        final StringBuilder builder;
+        if (begin) {
+            builder = new StringBuilder(loadString(i.firstLocation()));
+        } else {
+            final Object first = loadValue(i.firstLocation()).value();
+            builder =
+                    first instanceof StringBuilder previous
+                            ? previous
+                            : new StringBuilder(String.valueOf(first));
+        }
+        final String second = loadString(i.secondLocation());
 
         if (fatalError) {
             return;
         }
 
-        // Just cast all numbers to doubles.
-        double first;
-        double second;
-
-        if (firstLocation.isInt()) {
-            first = (int) firstItem.value();
-        } else if (firstLocation.isChar()) {
-            first = (char) firstItem.value();
-        } else if (firstLocation.isDouble()) {
-            first = (double) firstItem.value();
+        builder.append(second);
+        if (end) {
+            storeObject(String.class, builder.toString(), i.targetLocation());
         } else {
-            // Should not happen
-            halt();
-            return;
+            storeObject(StringBuilder.class, builder, i.targetLocation());
         }
+    }
 
-        if (secondLocation.isInt()) {
-            second = (int) secondItem.value();
-        } else if (secondLocation.isChar()) {
-            second = (char) secondItem.value();
-        } else if (secondLocation.isDouble()) {
-            second = (double) secondItem.value();
-        } else {
-            // Should not happen
-            halt();
+    /**
+     * Concatenate strings together. Automatically converts whatever is in the arguments to strings.
+     *
+     * @param i The instruction we are executing.
+     */
+    private void concatStrings(Instruction i) {
+        final String first = loadString(i.firstLocation());
+        final String second = loadString(i.secondLocation());
+
+        if (fatalError) {
             return;
         }
 
-        comparisonFunction.accept(first, second);
+        storeObject(String.class, first + second, i.targetLocation());
+    }
+
+    /**
+     * Copy one variable to another, halting if the source is not set. Used by compiled programs.
+     *
+     * @param from The slot to copy from.
+     * @param to The slot to copy to, which must be valid.
+     */
+    void copyVariable(int from, int to) {
+        final int index = variableIndex(from);
+        if (index >= 0) {
+            variables.copy(index, variables, to);
+        }
     }
 
     /**
@@ -635,8 +754,8 @@ public class ScriptRuntime {
         final MemLocation firstLocation = i.firstLocation();
         final MemLocation secondLocation = i.secondLocation();
 
-        final MemoryItem firstItem = loadValue(firstLocation);
-        final MemoryItem secondItem = loadValue(secondLocation);
+        final double firstNumber = loadDouble(firstLocation);
+        final double secondNumber = loadDouble(secondLocation);
 
         if (fatalError) {
             return;
@@ -647,39 +766,7 @@ public class ScriptRuntime {
             return;
         }
 
-        double firstNumber;
-        double secondNumber;
-
-        if (firstLocation.isDouble()) {
-            firstNumber = (Double) firstItem.value();
-        } else if (firstLocation.isInt()) {
-            final int unboxed = (Integer) firstItem.value();
-            firstNumber = unboxed;
-        } else if (firstLocation.isChar()) {
-            final char unboxed = (Character) firstItem.value();
-            firstNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            firstNumber = 0;
-        }
-
-        if (secondLocation.isDouble()) {
-            secondNumber = (Double) secondItem.value();
-        } else if (secondLocation.isInt()) {
-            final int unboxed = (Integer) secondItem.value();
-            secondNumber = unboxed;
-        } else if (secondLocation.isChar()) {
-            final char unboxed = (Character) secondItem.value();
-            secondNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            secondNumber = 0;
-        }
-
-        MemoryItem result =
-                new MemoryItem(Double.class, operation.applyAsDouble(firstNumber, secondNumber));
-
-        storeValue(result, i.targetLocation());
+        storeDouble(operation.applyAsDouble(firstNumber, secondNumber), i.targetLocation());
     }
 
     private void execute(Instruction i) {
@@ -712,6 +799,36 @@ public class ScriptRuntime {
                 compare(i);
                 programCounter++;
                 break;
+            case CMP_JEQ:
+                compareAndJump(i, comp -> comp == 0);
+                break;
+            case CMP_JGE:
+                compareAndJump(i, comp -> comp >= 0);
+                break;
+            case CMP_JGT:
+                compareAndJump(i, comp -> comp > 0);
+                break;
+            case CMP_JLE:
+                compareAndJump(i, comp -> comp <= 0);
+                break;
+            case CMP_JLT:
+                compareAndJump(i, comp -> comp < 0);
+                break;
+            case CMP_JNE:
+                compareAndJump(i, comp -> comp != 0);
+                break;
+            case CONCAT_APPEND:
+                concatChain(i, false, false);
+                programCounter++;
+                break;
+            case CONCAT_BEGIN:
+                concatChain(i, true, false);
+                programCounter++;
+                break;
+            case CONCAT_END:
+                concatChain(i, false, true);
+                programCounter++;
+                break;
             case CONCAT_STRING:
                 concatStrings(i);
                 programCounter++;
@@ -731,26 +848,38 @@ public class ScriptRuntime {
             case HALT:
                 halt();
                 break;
+            case INC_JLE:
+                incrementAndJump(i, comp -> comp <= 0);
+                break;
+            case INC_JLT:
+                incrementAndJump(i, comp -> comp < 0);
+                break;
             case JEQ:
-                jump(i, comp -> comp == 0);
+                jump(i.firstLocation(), comp -> comp == 0);
                 break;
             case JGE:
-                jump(i, comp -> comp >= 0);
+                jump(i.firstLocation(), comp -> comp >= 0);
                 break;
             case JGT:
-                jump(i, comp -> comp > 0);
+                jump(i.firstLocation(), comp -> comp > 0);
                 break;
             case JLE:
-                jump(i, comp -> comp <= 0);
+                jump(i.firstLocation(), comp -> comp <= 0);
                 break;
             case JLT:
-                jump(i, comp -> comp < 0);
+                jump(i.firstLocation(), comp -> comp < 0);
                 break;
             case JMP:
-                jump(i, comp -> true);
+                jump(i.firstLocation(), comp -> true);
+                break;
+            case JMP_LOOKUP:
+                switchJump(i, false);
+                break;
+            case JMP_TABLE:
+                switchJump(i, true);
                 break;
             case JNE:
-                jump(i, comp -> comp != 0);
+                jump(i.firstLocation(), comp -> comp != 0);
                 break;
             case MOD_CHAR:
                 charMath(i, (a, b) -> (char) (a % b));
@@ -862,7 +991,33 @@ public class ScriptRuntime {
      * @return Whether we have terminated the program.
      */
     public boolean hasTerminated() {
-        return programCounter == instructions.size();
+        return fatalError || (programCounter < 0) || (programCounter >= instructions.size());
+    }
+
+    /**
+     * Add one to an integer variable and compare it with a bound, then jump to the target address
+     * if the given function returns true when passed the result.
+     *
+     * @param i The instruction to execute.
+     * @param operator The function that determines if we should jump.
+     */
+    private void incrementAndJump(Instruction i, IntPredicate operator) {
+        final MemLocation counter = i.firstLocation();
+        final int value = loadInt(counter) + 1;
+        if (fatalError) {
+            return;
+        }
+        checkType(counter, Type.Base.INT);
+        if (fatalError) {
+            return;
+        }
+        storeInt(value, counter);
+        final double bound = loadDouble(i.secondLocation());
+        if (fatalError) {
+            return;
+        }
+        compareNumbers(value, bound);
+        jump(i.targetLocation(), operator);
     }
 
     /**
@@ -876,8 +1031,8 @@ public class ScriptRuntime {
         final MemLocation firstLocation = i.firstLocation();
         final MemLocation secondLocation = i.secondLocation();
 
-        final MemoryItem firstItem = loadValue(firstLocation);
-        final MemoryItem secondItem = loadValue(secondLocation);
+        final int firstNumber = loadInt(firstLocation);
+        final int secondNumber = loadInt(secondLocation);
 
         if (fatalError) {
             return;
@@ -888,44 +1043,113 @@ public class ScriptRuntime {
             return;
         }
 
-        int firstNumber;
-        int secondNumber;
+        storeInt(operation.applyAsInt(firstNumber, secondNumber), i.targetLocation());
+    }
 
-        if (firstLocation.isInt()) {
-            firstNumber = (Integer) firstItem.value();
-        } else if (firstLocation.isChar()) {
-            final char unboxed = (Character) firstItem.value();
-            firstNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            firstNumber = 0;
-        }
+    /**
+     * Execute the instruction at the given address with the interpreter. Used by compiled programs
+     * for instructions they don't handle themselves.
+     *
+     * @param address The address of the instruction.
+     */
+    void interpret(int address) {
+        programCounter = address;
+        execute(instructions.get(address));
+    }
 
-        if (secondLocation.isInt()) {
-            secondNumber = (Integer) secondItem.value();
-        } else if (secondLocation.isChar()) {
-            final char unboxed = (Character) secondItem.value();
-            secondNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            secondNumber = 0;
+    /**
+     * Invoke a method using reflection and push the result, if there is one, on the stack.
+     *
+     * @param method The method to call.
+     * @param target The object to invoke the method on, may be null for static methods.
+     * @param parameters The parameters to pass.
+     * @return Whether we successfully called the method.
+     */
+    private boolean invoke(
+            @NonNull Method method, Object target, @NonNull List<MemoryItem> parameters) {
+        Object[] actualParams = new Object[parameters.size()];
+        for (int i = 0; i < parameters.size(); ++i) {
+            actualParams[i] = parameters.get(i).value();
+        }
+        try {
+            Object result = method.invoke(target, actualParams);
+            if (result != null) {
+                push(result);
+            }
+            return true;
+        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "METHOD_CALL_FAILED", ScriptManager.getResourceBundle()),
+                    method.getName());
+            return false;
         }
+    }
 
-        MemoryItem result =
-                new MemoryItem(Integer.class, operation.applyAsInt(firstNumber, secondNumber));
+    /**
+     * Invoke a resolved method and push the result, if there is one, on the stack.
+     *
+     * @param invoker The method handle to call, see {@link CallSiteCache#invoker(Method)}.
+     * @param target The object to invoke the method on, may be null for static methods.
+     * @param parameters The parameters to pass.
+     * @param methodName The name of the method, for error messages.
+     * @return Whether we successfully called the method.
+     */
+    private boolean invoke(
+            @NonNull MethodHandle invoker,
+            Object target,
+            @NonNull List<MemoryItem> parameters,
+            @NonNull String methodName) {
+        Object[] arguments = new Object[parameters.size() + 1];
+        arguments[0] = target;
+        for (int index = 0; index < parameters.size(); ++index) {
+            arguments[index + 1] = parameters.get(index).value();
+        }
+        try {
+            Object result = (Object) invoker.invokeExact(arguments);
+            if (result != null) {
+                push(result);
+            }
+            return true;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Anything the method itself throws is a failed call, like with reflection
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "METHOD_CALL_FAILED", ScriptManager.getResourceBundle()),
+                    methodName);
+            return false;
+        }
+    }
 
-        storeValue(result, i.targetLocation());
+    /**
+     * Check if a method can be called with the given parameters.
+     *
+     * @param method The method we want to call.
+     * @param parameters The actual parameters we are trying to match.
+     * @return Whether every parameter can be passed to the method.
+     */
+    private boolean isViable(@NonNull Method method, @NonNull List<MemoryItem> parameters) {
+        Class<?>[] params = method.getParameterTypes();
+        for (int i = 0; i < params.length; ++i) {
+            if (!ScriptRuntime.canAssign(params[i], parameters.get(i).type())) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
      * A conditional jump. We jump to the given location if the given function returns true when
      * passed the last comparison value. If we don't jump, we just move to the next instruction.
      *
-     * @param instruction The relevant jump instruction.
+     * @param destination The location holding the address to jump to, which is the first input of
+     *     plain jumps and the target of superinstructions that compare first.
      * @param operator The function that determines if we should jump.
      */
-    private void jump(Instruction instruction, IntPredicate operator) {
-        final int location = (Integer) instruction.firstLocation().value();
+    private void jump(MemLocation destination, IntPredicate operator) {
+        final int location = (Integer) destination.value();
         if (location < 0 || location > instructions.size()) {
             // instructions.size is for when we want to bail on the program.
             log.warn(
@@ -936,60 +1160,170 @@ public class ScriptRuntime {
             return;
         }
         if (operator.test(lastComparison)) {
-            programCounter = location;
+            takeJump(programCounter, location);
         } else {
             programCounter++;
         }
     }
 
     /**
-     * Read the value from the memory location. You should check if the program halted after using
+     * Read a boolean from the memory location. You should check if the program halted after using
      * this.
      *
      * @param from The location we are reading from.
-     * @return The appropriate value, will be void memory if the location is invalid.
+     * @return The value, false if the location is invalid.
      */
-    private MemoryItem loadValue(MemLocation from) {
-        switch (from.area()) {
-            case IMMEDIATE:
-                return new MemoryItem(from.type(), from.value());
-            case STACK:
-                if (stack.isEmpty()) {
-                    log.warn(
-                            SafeResourceLoader.getString(
-                                    "POPPING_TOO_FAR", ScriptManager.getResourceBundle()));
-                    halt();
-                    return ScriptRuntime.VOID_MEMORY;
-                }
-                return stack.pop();
-            case VARIABLE:
-                if (!symbolTable.containsKey(from.value())) {
-                    log.warn(
-                            SafeResourceLoader.getString(
-                                    "UNKNOWN_VARIABLE", ScriptManager.getResourceBundle()),
-                            from.value());
-                    halt();
-                    return ScriptRuntime.VOID_MEMORY;
-                }
-                return symbolTable.get(from.value());
-            default:
-                log.warn(
-                        SafeResourceLoader.getString(
-                                "UNKNOWN_MEMORY_AREA", ScriptManager.getResourceBundle()),
-                        from.area().toString());
-                halt();
-                return ScriptRuntime.VOID_MEMORY;
+    private boolean loadBoolean(MemLocation from) {
+        if (from.area() == MemArea.IMMEDIATE) {
+            return Boolean.TRUE.equals(from.value());
+        }
+        final int index = loadIndex(from);
+        if (index < 0) {
+            return false;
+        }
+        return memory(from.area()).getBoolean(index);
+    }
+
+    /**
+     * Read a character from the memory location. You should check if the program halted after
+     * using this.
+     *
+     * @param from The location we are reading from.
+     * @return The value, 0 if the location is invalid.
+     */
+    private char loadChar(MemLocation from) {
+        return (char) loadInt(from);
+    }
+
+    /**
+     * Read a double from the memory location, converting integers and characters. You should check
+     * if the program halted after using this.
+     *
+     * @param from The location we are reading from.
+     * @return The value, 0 if the location is invalid.
+     */
+    private double loadDouble(MemLocation from) {
+        if (from.area() == MemArea.IMMEDIATE) {
+            return ValueStore.doubleValue(from.value());
+        }
+        final int index = loadIndex(from);
+        if (index < 0) {
+            return 0;
+        }
+        return memory(from.area()).getDouble(index);
+    }
+
+    /**
+     * Find the index that a stack or variable location refers to, popping the stack if required.
+     * Halts the program if the location is not valid.
+     *
+     * @param from The location we are reading from.
+     * @return The index into the memory for that area, or -1 if the location is not valid.
+     */
+    private int loadIndex(MemLocation from) {
+        switch (from.area()) {
+            case STACK:
+                return popIndex();
+            case VARIABLE:
+                return variableIndex((Integer) from.value());
+            case IMMEDIATE:
+            default:
+                log.warn(
+                        SafeResourceLoader.getString(
+                                "UNKNOWN_MEMORY_AREA", ScriptManager.getResourceBundle()),
+                        from.area().toString());
+                halt();
+                return -1;
         }
     }
 
+    /**
+     * Read an integer from the memory location, converting characters. You should check if the
+     * program halted after using this.
+     *
+     * @param from The location we are reading from.
+     * @return The value, 0 if the location is invalid.
+     */
+    private int loadInt(MemLocation from) {
+        if (from.area() == MemArea.IMMEDIATE) {
+            return ValueStore.intValue(from.value());
+        }
+        final int index = loadIndex(from);
+        if (index < 0) {
+            return 0;
+        }
+        return memory(from.area()).getInt(index);
+    }
+
+    /**
+     * Read the value from the memory location as a string. You should check if the program halted
+     * after using this.
+     *
+     * @param from The location we are reading from.
+     * @return The string version of the value, will be an empty string if the location is invalid.
+     */
+    private String loadString(MemLocation from) {
+        if (from.area() == MemArea.IMMEDIATE) {
+            return String.valueOf(from.value());
+        }
+        final int index = loadIndex(from);
+        if (index < 0) {
+            return "";
+        }
+        return memory(from.area()).getString(index);
+    }
+
+    /**
+     * Read the value from the memory location. You should check if the program halted after using
+     * this. This boxes primitives, so the specific load methods should be preferred when we know
+     * the type.
+     *
+     * @param from The location we are reading from.
+     * @return The appropriate value, will be void memory if the location is invalid.
+     */
+    private MemoryItem loadValue(MemLocation from) {
+        if (from.area() == MemArea.IMMEDIATE) {
+            return new MemoryItem(from.type(), from.value());
+        }
+        final int index = loadIndex(from);
+        if (index < 0) {
+            return ScriptRuntime.VOID_MEMORY;
+        }
+        final ValueStore memory = memory(from.area());
+        return new MemoryItem(memory.getType(index), memory.getObject(index));
+    }
+
+    /**
+     * Find the memory for the stack or variables.
+     *
+     * @param area The area we are interested in, which must not be immediate.
+     * @return The memory used for that area.
+     */
+    private ValueStore memory(MemArea area) {
+        return area == MemArea.STACK ? stack : variables;
+    }
+
     /**
      * Execute a move instruction.
      *
      * @param i The instruction to execute.
      */
     private void move(@NonNull Instruction i) {
-        MemoryItem memory = loadValue(i.firstLocation());
-        storeValue(memory, i.targetLocation());
+        final MemLocation from = i.firstLocation();
+        final MemLocation to = i.targetLocation();
+        if (from.area() == MemArea.IMMEDIATE) {
+            storeObject(from.type(), from.value(), to);
+            return;
+        }
+        final int index = loadIndex(from);
+        if (index < 0) {
+            return;
+        }
+        final int targetIndex = storeIndex(to);
+        if (targetIndex < 0) {
+            return;
+        }
+        memory(from.area()).copy(index, memory(to.area()), targetIndex);
     }
 
     /**
@@ -999,7 +1333,7 @@ public class ScriptRuntime {
      */
     private void negateChar(Instruction i) {
         final MemLocation firstLocation = i.firstLocation();
-        final MemoryItem firstItem = loadValue(firstLocation);
+        final char firstNumber = loadChar(firstLocation);
 
         if (fatalError) {
             return;
@@ -1009,18 +1343,7 @@ public class ScriptRuntime {
             return;
         }
 
-        char firstNumber;
-
-        if (firstLocation.isChar()) {
-            firstNumber = (Character) firstItem.value();
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            firstNumber = 0;
-        }
-
-        MemoryItem result = new MemoryItem(Character.class, -firstNumber);
-
-        storeValue(result, i.targetLocation());
+        storeChar((char) -firstNumber, i.targetLocation());
     }
 
     /**
@@ -1030,7 +1353,7 @@ public class ScriptRuntime {
      */
     private void negateDouble(Instruction i) {
         final MemLocation firstLocation = i.firstLocation();
-        final MemoryItem firstItem = loadValue(firstLocation);
+        final double firstNumber = loadDouble(firstLocation);
 
         if (fatalError) {
             return;
@@ -1040,24 +1363,7 @@ public class ScriptRuntime {
             return;
         }
 
-        double firstNumber;
-
-        if (firstLocation.isDouble()) {
-            firstNumber = (Double) firstItem.value();
-        } else if (firstLocation.isInt()) {
-            final int unboxed = (Integer) firstItem.value();
-            firstNumber = unboxed;
-        } else if (firstLocation.isChar()) {
-            final char unboxed = (Character) firstItem.value();
-            firstNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            firstNumber = 0;
-        }
-
-        MemoryItem result = new MemoryItem(Double.class, -firstNumber);
-
-        storeValue(result, i.targetLocation());
+        storeDouble(-firstNumber, i.targetLocation());
     }
 
     /**
@@ -1067,7 +1373,7 @@ public class ScriptRuntime {
      */
     private void negateInt(Instruction i) {
         final MemLocation firstLocation = i.firstLocation();
-        final MemoryItem firstItem = loadValue(firstLocation);
+        final int firstNumber = loadInt(firstLocation);
 
         if (fatalError) {
             return;
@@ -1077,21 +1383,7 @@ public class ScriptRuntime {
             return;
         }
 
-        int firstNumber;
-
-        if (firstLocation.isInt()) {
-            firstNumber = (Integer) firstItem.value();
-        } else if (firstLocation.isChar()) {
-            final char unboxed = (Character) firstItem.value();
-            firstNumber = unboxed;
-        } else {
-            // Can't happen because of type checks, but just to be thorough
-            firstNumber = 0;
-        }
-
-        MemoryItem result = new MemoryItem(Integer.class, -firstNumber);
-
-        storeValue(result, i.targetLocation());
+        storeInt(-firstNumber, i.targetLocation());
     }
 
     /**
@@ -1101,7 +1393,7 @@ public class ScriptRuntime {
      */
     private void not(Instruction i) {
         final MemLocation firstLocation = i.firstLocation();
-        final MemoryItem firstItem = loadValue(firstLocation);
+        final boolean value = loadBoolean(firstLocation);
 
         if (fatalError) {
             return;
@@ -1111,11 +1403,168 @@ public class ScriptRuntime {
             return;
         }
 
-        boolean value = (Boolean) firstItem.value();
+        storeBoolean(!value, i.targetLocation());
+    }
+
+    /**
+     * Pop a boolean off the stack. Used by compiled programs, which should check if the program
+     * halted after using this.
+     *
+     * @return The value, false if the stack is empty.
+     */
+    boolean popBoolean() {
+        final int index = popIndex();
+        return index >= 0 && stack.getBoolean(index);
+    }
+
+    /**
+     * Pop a double off the stack, converting integers and characters. Used by compiled programs,
+     * which should check if the program halted after using this.
+     *
+     * @return The value, 0 if the stack is empty.
+     */
+    double popDouble() {
+        final int index = popIndex();
+        return index < 0 ? 0 : stack.getDouble(index);
+    }
+
+    /**
+     * Pop the top entry off the stack, halting the program if the stack is empty.
+     *
+     * @return The index of the entry that was on top of the stack, or -1 if the stack was empty.
+     */
+    private int popIndex() {
+        if (stackSize <= 0) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "POPPING_TOO_FAR", ScriptManager.getResourceBundle()));
+            halt();
+            return -1;
+        }
+        return --stackSize;
+    }
+
+    /**
+     * Pop an integer off the stack, converting characters. Used by compiled programs, which should
+     * check if the program halted after using this.
+     *
+     * @return The value, 0 if the stack is empty.
+     */
+    int popInt() {
+        final int index = popIndex();
+        return index < 0 ? 0 : stack.getInt(index);
+    }
+
+    /**
+     * Pop the top of the stack into a variable. Used by compiled programs.
+     *
+     * @param slot The variable slot, which must be valid.
+     */
+    void popToVariable(int slot) {
+        final int index = popIndex();
+        if (index >= 0) {
+            stack.copy(index, variables, slot);
+        }
+    }
+
+    /**
+     * Push an object onto the stack.
+     *
+     * @param value The value to push, which must not be null.
+     */
+    private void push(@NonNull Object value) {
+        stack.ensureCapacity(stackSize + 1);
+        stack.set(stackSize++, value.getClass(), value);
+    }
+
+    /**
+     * Push a boolean onto the stack. Used by compiled programs.
+     *
+     * @param value The value to push.
+     */
+    void pushBoolean(boolean value) {
+        stack.ensureCapacity(stackSize + 1);
+        stack.setBoolean(stackSize++, value);
+    }
+
+    /**
+     * Push a character onto the stack. Used by compiled programs.
+     *
+     * @param value The value to push.
+     */
+    void pushChar(char value) {
+        stack.ensureCapacity(stackSize + 1);
+        stack.setChar(stackSize++, value);
+    }
+
+    /**
+     * Push a double onto the stack. Used by compiled programs.
+     *
+     * @param value The value to push.
+     */
+    void pushDouble(double value) {
+        stack.ensureCapacity(stackSize + 1);
+        stack.setDouble(stackSize++, value);
+    }
+
+    /**
+     * Push an integer onto the stack. Used by compiled programs.
+     *
+     * @param value The value to push.
+     */
+    void pushInt(int value) {
+        stack.ensureCapacity(stackSize + 1);
+        stack.setInt(stackSize++, value);
+    }
+
+    /**
+     * Push a copy of a variable onto the stack, halting if it is not set. Used by compiled
+     * programs.
+     *
+     * @param slot The variable slot.
+     */
+    void pushVariable(int slot) {
+        final int index = variableIndex(slot);
+        if (index >= 0) {
+            stack.ensureCapacity(stackSize + 1);
+            variables.copy(index, stack, stackSize++);
+        }
+    }
+
+    /**
+     * Read a boolean variable, halting if it is not set. Used by compiled programs, which should
+     * check if the program halted after using this.
+     *
+     * @param slot The variable slot.
+     * @return The value, false if the variable is not set.
+     */
+    boolean readBoolean(int slot) {
+        final int index = variableIndex(slot);
+        return index >= 0 && variables.getBoolean(index);
+    }
 
-        MemoryItem result = new MemoryItem(Boolean.class, !value);
+    /**
+     * Read a variable as a double, converting integers and characters, halting if it is not set.
+     * Used by compiled programs, which should check if the program halted after using this.
+     *
+     * @param slot The variable slot.
+     * @return The value, 0 if the variable is not set.
+     */
+    double readDouble(int slot) {
+        final int index = variableIndex(slot);
+        return index < 0 ? 0 : variables.getDouble(index);
+    }
 
-        storeValue(result, i.targetLocation());
+    /**
+     * Read a variable as an integer, converting characters, halting if it is not set. Used by
+     * compiled programs, which should check if the program halted after using this.
+     *
+     * @param slot The variable slot.
+     * @return The value, 0 if the variable is not set.
+     */
+    int readInt(int slot) {
+        final int index = variableIndex(slot);
+        return index < 0 ? 0 : variables.getInt(index);
     }
 
     /**
@@ -1150,11 +1599,77 @@ public class ScriptRuntime {
             } else {
                 ScriptManager.yieldScript(this);
             }
+            yielded = true;
             return true;
         }
         return false;
     }
 
+    /**
+     * Execute up to the given number of instructions, stopping early if the program terminates or
+     * yields. Runs the compiled program if there is one, switching over as soon as it is available
+     * if it was compiled in the background.
+     *
+     * @param maxInstructions The maximum number of instructions to execute. Compiled programs only
+     *     check this at jumps, so may go slightly over.
+     * @return The number of instructions executed.
+     * @see #compile()
+     */
+    public int run(int maxInstructions) {
+        yielded = false;
+        if (profile != null) {
+            return runProfiled(maxInstructions);
+        }
+        int executed = 0;
+        while (executed < maxInstructions && !yielded && !hasTerminated()) {
+            final CompiledProgram compiled = program.getCompiled();
+            if (compiled != null) {
+                try {
+                    executed += compiled.run(this, maxInstructions - executed);
+                } catch (ClassCastException e) {
+                    typeMismatch(e);
+                    break;
+                }
+                if (executed >= maxInstructions || yielded || hasTerminated()) {
+                    break;
+                }
+            }
+            step();
+            ++executed;
+        }
+        return executed;
+    }
+
+    /**
+     * Execute up to the given number of instructions with the interpreter, recording each one in
+     * the profile. Compiled programs are not used while profiling, since they don't stop at every
+     * instruction.
+     *
+     * @param maxInstructions The maximum number of instructions to execute.
+     * @return The number of instructions executed.
+     */
+    private int runProfiled(int maxInstructions) {
+        int executed = 0;
+        while (executed < maxInstructions && !yielded && !hasTerminated()) {
+            final int address = programCounter;
+            final InstructionType type = program.type(address);
+            profile.record(address, type);
+            try {
+                if (type == InstructionType.CALL) {
+                    final long start = System.nanoTime();
+                    nodes[address].exec(this);
+                    profile.recordCall(address, System.nanoTime() - start);
+                } else {
+                    nodes[address].exec(this);
+                }
+            } catch (ClassCastException e) {
+                typeMismatch(e);
+            }
+            ++executed;
+        }
+        return executed;
+    }
+
     /**
      * Perform a set operation.
      *
@@ -1162,8 +1677,21 @@ public class ScriptRuntime {
      * @param operation The operation that takes the last comparison and outputs a boolean result.
      */
     private void set(Instruction instruction, IntPredicate operation) {
-        MemoryItem result = new MemoryItem(Boolean.class, operation.test(lastComparison));
-        storeValue(result, instruction.targetLocation());
+        storeBoolean(operation.test(lastComparison), instruction.targetLocation());
+    }
+
+    /**
+     * Start recording how often each instruction runs and how long calls take, replacing any
+     * profile we were already recording. Until profiling is stopped, {@link #run(int)} only uses
+     * the interpreter, which is slower than running compiled programs. There is no cost when we
+     * are not profiling.
+     *
+     * @return The new profile, which is updated as the script runs.
+     * @see #stopProfiling()
+     */
+    public ScriptProfile startProfiling() {
+        profile = new ScriptProfile(program);
+        return profile;
     }
 
     /** Execute one instruction. */
@@ -1172,38 +1700,90 @@ public class ScriptRuntime {
             // Stop executing
             return;
         }
-        execute(instructions.get(programCounter));
+        try {
+            nodes[programCounter].exec(this);
+        } catch (ClassCastException e) {
+            typeMismatch(e);
+        }
     }
 
     /**
-     * Store a value in the specified memory location. May halt the program if something goes wrong.
+     * Stop profiling, so that {@link #run(int)} goes back to running at full speed.
      *
-     * @param item The item to store.
-     * @param location The location to store the item in.
+     * @return The profile that was being recorded, or null if we were not profiling.
+     * @see #startProfiling()
      */
-    private void storeValue(MemoryItem item, MemLocation location) {
+    public ScriptProfile stopProfiling() {
+        ScriptProfile result = profile;
+        profile = null;
+        return result;
+    }
+
+    /**
+     * Store a boolean in the specified memory location. May halt the program if something goes
+     * wrong.
+     *
+     * @param value The value to store.
+     * @param location The location to store the value in.
+     */
+    private void storeBoolean(boolean value, MemLocation location) {
+        final int index = storeIndex(location);
+        if (index >= 0) {
+            memory(location.area()).setBoolean(index, value);
+        }
+    }
+
+    /**
+     * Store a character in the specified memory location. May halt the program if something goes
+     * wrong.
+     *
+     * @param value The value to store.
+     * @param location The location to store the value in.
+     */
+    private void storeChar(char value, MemLocation location) {
+        final int index = storeIndex(location);
+        if (index >= 0) {
+            memory(location.area()).setChar(index, value);
+        }
+    }
+
+    /**
+     * Store a double in the specified memory location. May halt the program if something goes
+     * wrong.
+     *
+     * @param value The value to store.
+     * @param location The location to store the value in.
+     */
+    private void storeDouble(double value, MemLocation location) {
+        final int index = storeIndex(location);
+        if (index >= 0) {
+            memory(location.area()).setDouble(index, value);
+        }
+    }
+
+    /**
+     * Find the index that a stack or variable location refers to for storing a value, pushing a
+     * new entry onto the stack if required. Halts the program if the location is not valid.
+     *
+     * @param location The location we are writing to.
+     * @return The index into the memory for that area, or -1 if the location is not valid.
+     */
+    private int storeIndex(MemLocation location) {
         switch (location.area()) {
             case STACK:
-                stack.push(item);
-                break;
+                stack.ensureCapacity(stackSize + 1);
+                return stackSize++;
             case VARIABLE:
-                final String variable = (String) location.value();
-                if (symbolTable.containsKey(variable)) {
-                    MemoryItem existingValue = symbolTable.get(variable);
-                    if (!existingValue.getClass().equals(item.getClass())) {
-                        log.warn(
-                                SafeResourceLoader.getString(
-                                        "VARIABLE_TYPE_MISMATCH",
-                                        ScriptManager.getResourceBundle()),
-                                item.getClass().getSimpleName(),
-                                variable,
-                                existingValue.getClass().getSimpleName());
-                        halt();
-                        break;
-                    }
+                final int slot = (Integer) location.value();
+                if (slot < 0 || slot >= variables.capacity()) {
+                    log.warn(
+                            SafeResourceLoader.getString(
+                                    "UNKNOWN_VARIABLE", ScriptManager.getResourceBundle()),
+                            variableName(slot));
+                    halt();
+                    return -1;
                 }
-                symbolTable.put(variable, item);
-                break;
+                return slot;
             case IMMEDIATE:
             default:
                 log.warn(
@@ -1211,7 +1791,187 @@ public class ScriptRuntime {
                                 "INVALID_MEMORY_LOCATION", ScriptManager.getResourceBundle()),
                         location.area());
                 halt();
-                break;
+                return -1;
         }
     }
+
+    /**
+     * Store an integer in the specified memory location. May halt the program if something goes
+     * wrong.
+     *
+     * @param value The value to store.
+     * @param location The location to store the value in.
+     */
+    private void storeInt(int value, MemLocation location) {
+        final int index = storeIndex(location);
+        if (index >= 0) {
+            memory(location.area()).setInt(index, value);
+        }
+    }
+
+    /**
+     * Store a value in the specified memory location. Primitives are unboxed. May halt the program
+     * if something goes wrong.
+     *
+     * @param type The type of the value, used if the value is null.
+     * @param value The value to store.
+     * @param location The location to store the value in.
+     */
+    private void storeObject(Class<?> type, Object value, MemLocation location) {
+        final int index = storeIndex(location);
+        if (index >= 0) {
+            memory(location.area()).set(index, type, value);
+        }
+    }
+
+    /**
+     * Store a value in the specified memory location. May halt the program if something goes wrong.
+     *
+     * @param item The item to store.
+     * @param location The location to store the item in.
+     */
+    private void storeValue(MemoryItem item, MemLocation location) {
+        storeObject(item.type(), item.value(), location);
+    }
+
+    /**
+     * Pick which entry of a table or lookup jump to take, and move to it. The entry is itself a
+     * jump, which is executed next. The first entry after the instruction is the default, taken if
+     * the value does not match any of the others.
+     *
+     * @param i The table or lookup jump instruction.
+     * @param table True for a table jump, false for a lookup jump.
+     */
+    private void switchJump(Instruction i, boolean table) {
+        final int count = (Integer) i.secondLocation().value();
+        final int firstEntry = programCounter + 2;
+        if (count < 0 || firstEntry + count > instructions.size()) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "INVALID_JUMP_LOCATION", ScriptManager.getResourceBundle()),
+                    firstEntry + count);
+            halt();
+            return;
+        }
+        int entry = programCounter + 1;
+        final int value = loadInt(i.firstLocation());
+        if (table && count > 0) {
+            final long index = (long) value - program.intValue(firstEntry, 1);
+            if (index >= 0 && index < count) {
+                entry = firstEntry + (int) index;
+            }
+        } else {
+            for (int key = firstEntry; key < firstEntry + count; ++key) {
+                if (value == program.intValue(key, 1)) {
+                    entry = key;
+                    break;
+                }
+            }
+        }
+        if (fatalError) {
+            return;
+        }
+        programCounter = entry;
+    }
+
+    /**
+     * Jump to a location, counting backward jumps so that hot programs get compiled in the
+     * background.
+     *
+     * @param from The address of the jump instruction.
+     * @param location The address to jump to, which must be valid.
+     */
+    void takeJump(int from, int location) {
+        if (location <= from && ++backwardJumps == compileThreshold) {
+            program.compileInBackground();
+        }
+        programCounter = location;
+    }
+
+    /**
+     * Halt the program because a value was read as a primitive type that it does not hold, which
+     * the checks before verified and compiled instructions can't rule out for values that came
+     * from method calls.
+     *
+     * @param e The exception thrown while reading the value, with the intended type as its
+     *     message.
+     */
+    private void typeMismatch(ClassCastException e) {
+        log.warn(
+                SafeResourceLoader.getString(
+                        "MEMORY_TYPE_MISMATCH", ScriptManager.getResourceBundle()),
+                e.getMessage());
+        halt();
+    }
+
+    /**
+     * Check that a variable slot is valid and has been set, halting the program if not.
+     *
+     * @param slot The variable slot.
+     * @return The slot, or -1 if it is not valid.
+     */
+    private int variableIndex(int slot) {
+        if (slot < 0 || slot >= variables.capacity() || !variables.isSet(slot)) {
+            log.warn(
+                    SafeResourceLoader.getString(
+                            "UNKNOWN_VARIABLE", ScriptManager.getResourceBundle()),
+                    variableName(slot));
+            halt();
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Look up the name of a variable for use in error messages.
+     *
+     * @param slot The slot number of the variable.
+     * @return The name of the variable, or the slot number if it is not a valid slot.
+     */
+    private String variableName(int slot) {
+        if (slot < 0 || slot >= variableNames.size()) {
+            return Integer.toString(slot);
+        }
+        return variableNames.get(slot);
+    }
+
+    /**
+     * Store a boolean in a variable.
+     *
+     * @param slot The variable slot, which must be valid.
+     * @param value The value to store.
+     */
+    void writeBoolean(int slot, boolean value) {
+        variables.setBoolean(slot, value);
+    }
+
+    /**
+     * Store a char in a variable.
+     *
+     * @param slot The variable slot, which must be valid.
+     * @param value The value to store.
+     */
+    void writeChar(int slot, char value) {
+        variables.setChar(slot, value);
+    }
+
+    /**
+     * Store a double in a variable.
+     *
+     * @param slot The variable slot, which must be valid.
+     * @param value The value to store.
+     */
+    void writeDouble(int slot, double value) {
+        variables.setDouble(slot, value);
+    }
+
+    /**
+     * Store an int in a variable.
+     *
+     * @param slot The variable slot, which must be valid.
+     * @param value The value to store.
+     */
+    void writeInt(int slot, int value) {
+        variables.setInt(slot, value);
+    }
 }
@@ -0,0 +1,356 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.ast.Type;
+
+import java.util.Arrays;
+
+/**
+ * A fixed number of slots that can each hold one script value, used for both the stack and
+ * variables. Ints, chars, booleans and doubles are kept unboxed in a primitive array so that
+ * numeric code does not allocate, anything else is stored as an object.
+ *
+ * <p>Ints and chars are stored as their numeric value, booleans as 1 or 0, and doubles as their raw
+ * bits. The type of each slot is stored separately so we know how to read it back out, and reading
+ * a slot as a primitive it does not hold throws a {@link ClassCastException} that the runtime
+ * halts the script for.
+ *
+ * @author Ches Burks
+ */
+class ValueStore {
+    /**
+     * The type of each slot, using the boxed classes for primitives. Null if nothing has been
+     * stored in the slot yet.
+     */
+    private Class<?>[] types;
+
+    /** Primitive values, encoded as described in the class documentation. */
+    private long[] primitives;
+
+    /** Values that are not primitives, null for primitive slots. */
+    private Object[] objects;
+
+    /**
+     * Create a new store.
+     *
+     * @param capacity The number of slots to start with.
+     */
+    ValueStore(int capacity) {
+        types = new Class<?>[capacity];
+        primitives = new long[capacity];
+        objects = new Object[capacity];
+    }
+
+    /**
+     * Convert a boxed value to the way we store it in the primitive array.
+     *
+     * @param value The value to encode.
+     * @return The encoded value.
+     * @throws ClassCastException If the value is not a primitive.
+     */
+    private static long encode(Object value) {
+        if (value instanceof Integer integer) {
+            return integer;
+        }
+        if (value instanceof Double doub) {
+            return Double.doubleToRawLongBits(doub);
+        }
+        if (value instanceof Character character) {
+            return character;
+        }
+        if (value instanceof Boolean bool) {
+            return Boolean.TRUE.equals(bool) ? 1 : 0;
+        }
+        throw new ClassCastException(Type.Base.INT.toString());
+    }
+
+    /**
+     * Convert a boxed value to a double, for immediate values that have not been stored.
+     *
+     * @param value The value to convert.
+     * @return The numeric value.
+     * @throws ClassCastException If the value is not a primitive.
+     */
+    static double doubleValue(Object value) {
+        if (value instanceof Double doub) {
+            return doub;
+        }
+        return ValueStore.encode(value);
+    }
+
+    /**
+     * Convert a boxed value to an int, for immediate values that have not been stored.
+     *
+     * @param value The value to convert.
+     * @return The numeric value.
+     * @throws ClassCastException If the value is not a primitive.
+     */
+    static int intValue(Object value) {
+        if (value instanceof Double doub) {
+            final double unboxed = doub;
+            return (int) unboxed;
+        }
+        return (int) ValueStore.encode(value);
+    }
+
+    /**
+     * Check if a type is a number, which includes characters.
+     *
+     * @param type The type of the value.
+     * @return True if the type can be read as an int or double.
+     */
+    private static boolean isNumber(Class<?> type) {
+        return type == Integer.class || type == Double.class || type == Character.class;
+    }
+
+    /**
+     * Check if a type is stored in the primitive array.
+     *
+     * @param type The type of the value.
+     * @return True if we store this type unboxed.
+     */
+    private static boolean isPrimitive(Class<?> type) {
+        return type == Integer.class
+                || type == Double.class
+                || type == Character.class
+                || type == Boolean.class;
+    }
+
+    /**
+     * The number of slots we have.
+     *
+     * @return The number of slots.
+     */
+    int capacity() {
+        return types.length;
+    }
+
+    /**
+     * Copy a slot into a slot of another (or the same) store, without boxing it.
+     *
+     * @param index The slot to copy from.
+     * @param target The store to copy to.
+     * @param targetIndex The slot in the target store to copy to.
+     */
+    void copy(int index, ValueStore target, int targetIndex) {
+        target.types[targetIndex] = types[index];
+        target.primitives[targetIndex] = primitives[index];
+        target.objects[targetIndex] = objects[index];
+    }
+
+    /**
+     * Make sure we have at least the given number of slots, growing if required. Existing slots
+     * are kept.
+     *
+     * @param minimum The minimum number of slots we need.
+     */
+    void ensureCapacity(int minimum) {
+        if (minimum <= types.length) {
+            return;
+        }
+        final int newCapacity = Math.max(minimum, types.length * 2);
+        types = Arrays.copyOf(types, newCapacity);
+        primitives = Arrays.copyOf(primitives, newCapacity);
+        objects = Arrays.copyOf(objects, newCapacity);
+    }
+
+    /**
+     * Read a slot as a boolean.
+     *
+     * @param index The slot to read.
+     * @return The value.
+     * @throws ClassCastException If the slot does not hold a boolean.
+     */
+    boolean getBoolean(int index) {
+        if (types[index] != Boolean.class) {
+            throw new ClassCastException(Type.Base.BOOLEAN.toString());
+        }
+        return primitives[index] != 0;
+    }
+
+    /**
+     * Read a slot as a character, converting numbers if required.
+     *
+     * @param index The slot to read.
+     * @return The value.
+     * @throws ClassCastException If the slot does not hold a number.
+     */
+    char getChar(int index) {
+        return (char) getInt(index);
+    }
+
+    /**
+     * Read a slot as a double, converting ints and chars if required.
+     *
+     * @param index The slot to read.
+     * @return The value.
+     * @throws ClassCastException If the slot does not hold a number.
+     */
+    double getDouble(int index) {
+        final Class<?> type = types[index];
+        if (type == Double.class) {
+            return Double.longBitsToDouble(primitives[index]);
+        }
+        if (!ValueStore.isNumber(type)) {
+            throw new ClassCastException(Type.Base.DOUBLE.toString());
+        }
+        return primitives[index];
+    }
+
+    /**
+     * Read a slot as an int, converting chars and doubles if required.
+     *
+     * @param index The slot to read.
+     * @return The value.
+     * @throws ClassCastException If the slot does not hold a number.
+     */
+    int getInt(int index) {
+        final Class<?> type = types[index];
+        if (type == Double.class) {
+            return (int) Double.longBitsToDouble(primitives[index]);
+        }
+        if (!ValueStore.isNumber(type)) {
+            throw new ClassCastException(Type.Base.INT.toString());
+        }
+        return (int) primitives[index];
+    }
+
+    /**
+     * Read a slot as an object, boxing primitives.
+     *
+     * @param index The slot to read.
+     * @return The value in the slot.
+     */
+    Object getObject(int index) {
+        final Class<?> type = types[index];
+        if (type == Integer.class) {
+            return (int) primitives[index];
+        }
+        if (type == Double.class) {
+            return Double.longBitsToDouble(primitives[index]);
+        }
+        if (type == Character.class) {
+            return (char) primitives[index];
+        }
+        if (type == Boolean.class) {
+            return primitives[index] != 0;
+        }
+        return objects[index];
+    }
+
+    /**
+     * The type of the value in a slot.
+     *
+     * @param index The slot to check.
+     * @return The type of the value, or null if nothing was stored there.
+     */
+    Class<?> getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * Convert a slot to a string, without boxing primitives.
+     *
+     * @param index The slot to read.
+     * @return The string representation of the value.
+     */
+    String getString(int index) {
+        final Class<?> type = types[index];
+        if (type == Integer.class) {
+            return Integer.toString((int) primitives[index]);
+        }
+        if (type == Double.class) {
+            return Double.toString(Double.longBitsToDouble(primitives[index]));
+        }
+        if (type == Character.class) {
+            return Character.toString((char) primitives[index]);
+        }
+        if (type == Boolean.class) {
+            return Boolean.toString(primitives[index] != 0);
+        }
+        return String.valueOf(objects[index]);
+    }
+
+    /**
+     * Check if a slot has had a value stored in it.
+     *
+     * @param index The slot to check.
+     * @return True if the slot has a value.
+     */
+    boolean isSet(int index) {
+        return types[index] != null;
+    }
+
+    /**
+     * Store a value, unboxing it if it is a primitive.
+     *
+     * @param index The slot to store in.
+     * @param type The type of the value, only used if the value is null since otherwise we use the
+     *     class of the value.
+     * @param value The value to store.
+     */
+    void set(int index, Class<?> type, Object value) {
+        if (value == null) {
+            types[index] = type;
+            primitives[index] = 0;
+            objects[index] = null;
+            return;
+        }
+        if (ValueStore.isPrimitive(value.getClass())) {
+            types[index] = value.getClass();
+            primitives[index] = ValueStore.encode(value);
+            objects[index] = null;
+            return;
+        }
+        types[index] = value.getClass();
+        primitives[index] = 0;
+        objects[index] = value;
+    }
+
+    /**
+     * Store a boolean.
+     *
+     * @param index The slot to store in.
+     * @param value The value to store.
+     */
+    void setBoolean(int index, boolean value) {
+        types[index] = Boolean.class;
+        primitives[index] = value ? 1 : 0;
+        objects[index] = null;
+    }
+
+    /**
+     * Store a character.
+     *
+     * @param index The slot to store in.
+     * @param value The value to store.
+     */
+    void setChar(int index, char value) {
+        types[index] = Character.class;
+        primitives[index] = value;
+        objects[index] = null;
+    }
+
+    /**
+     * Store a double.
+     *
+     * @param index The slot to store in.
+     * @param value The value to store.
+     */
+    void setDouble(int index, double value) {
+        types[index] = Double.class;
+        primitives[index] = Double.doubleToRawLongBits(value);
+        objects[index] = null;
+    }
+
+    /**
+     * Store an int.
+     *
+     * @param index The slot to store in.
+     * @param value The value to store.
+     */
+    void setInt(int index, int value) {
+        types[index] = Integer.class;
+        primitives[index] = value;
+        objects[index] = null;
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -43,6 +44,29 @@ public class TestEventManager {
         Assertions.assertTrue(EventAssert.wasFired(TestEvent.class, 1000), "Class was not fired");
     }
 
+    /** Test waiting for several events, and that bounded monitors only keep recent events. */
+    @Test
+    public void testEventFireCount() {
+        final int total = 50;
+        final int kept = 5;
+        EventAssert.listenFor(CustomEvent.class, kept);
+        for (int i = 0; i < total; ++i) {
+            EventManager.getInstance().fireEvent(new CustomEvent("" + i));
+        }
+        Assertions.assertTrue(
+                EventAssert.wasFiredAtLeast(CustomEvent.class, total, 1000),
+                "Events were not all fired");
+        Assertions.assertEquals(total, EventAssert.getFireCount(CustomEvent.class));
+
+        List<CustomEvent> recorded = EventAssert.getRecordedEvents(CustomEvent.class);
+        Assertions.assertEquals(kept, recorded.size());
+        Assertions.assertEquals("" + (total - kept), recorded.get(0).getTestString());
+        Assertions.assertEquals("" + (total - 1), recorded.get(kept - 1).getTestString());
+
+        Assertions.assertFalse(EventAssert.wasFiredAtLeast(CustomEvent.class, total + 1, 10));
+        EventAssert.stopListeningFor(CustomEvent.class);
+    }
+
     /** Tests the order that event listeners get called in, and that all get called. */
     @Test
     public void testEventOrder() {
@@ -4,6 +4,7 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -40,8 +41,8 @@ public class DebugMethods {
         }
     }
 
-    /** The output from the program. */
-    @Getter private static List<String> output = new ArrayList<>();
+    /** The output from the program, which scripts running on other threads may add to. */
+    @Getter private static List<String> output = Collections.synchronizedList(new ArrayList<>());
 
     /**
      * Checks if we have successfully validated the values in {@link #TEST_checkValues(String, int,
@@ -137,6 +138,15 @@ public class DebugMethods {
         return "Sample string!";
     }
 
+    /**
+     * Resume scripts that yielded with the given tag, from inside a script.
+     *
+     * @param tag The tag to resume.
+     */
+    public static void TEST_resume(String tag) {
+        ScriptManager.resume(tag);
+    }
+
     /**
      * Records a string as if printing. To be called by scripts to validate they function as
      * expected.
@@ -1,7 +1,10 @@
 package com.ikalagaming.scripting;
 
+import com.ikalagaming.scripting.interpreter.CompiledScript;
 import com.ikalagaming.scripting.interpreter.ScriptRuntime;
 
+import lombok.NonNull;
+
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.junit.jupiter.api.Assertions;
@@ -17,6 +20,241 @@ import java.util.Optional;
  * @author Ches Burks
  */
 class TestBehavior {
+    /** Sanity check so builds finish. */
+    private static final int MAX_INSTRUCTIONS = 1_000_000;
+
+    /**
+     * Check that a program prints the expected output, both when interpreted one instruction at a
+     * time and when compiled to bytecode.
+     *
+     * @param expected The lines we expect the program to print.
+     * @param program The program to run.
+     */
+    private static void assertOutput(@NonNull List<String> expected, @NonNull String program) {
+        Assertions.assertEquals(
+                expected, TestBehavior.run(program, false), "Interpreted output should match");
+        Assertions.assertEquals(
+                expected, TestBehavior.run(program, true), "Compiled output should match");
+    }
+
+    /**
+     * Parse a program and run it to completion.
+     *
+     * @param program The program to run.
+     * @param compiled Whether to compile the program to bytecode and run that, rather than
+     *     stepping through it in the interpreter.
+     * @return The lines the program printed.
+     */
+    private static List<String> run(@NonNull String program, boolean compiled) {
+        ScriptManager.registerClass(DebugMethods.class);
+        DebugMethods.reset();
+
+        CharStream stream = CharStreams.fromString(program);
+        Optional<ScriptRuntime> maybeRuntime = IkalaScriptCompiler.parse(stream);
+
+        Assertions.assertTrue(maybeRuntime.isPresent());
+        ScriptRuntime runtime = maybeRuntime.get();
+
+        if (compiled) {
+            Assertions.assertTrue(runtime.compile(), "Program should compile");
+            runtime.run(TestBehavior.MAX_INSTRUCTIONS);
+        } else {
+            int instructions = 0;
+            while (!runtime.hasTerminated() && instructions < TestBehavior.MAX_INSTRUCTIONS) {
+                runtime.step();
+                ++instructions;
+            }
+        }
+        Assertions.assertTrue(runtime.hasTerminated(), "Program should finish");
+
+        return List.copyOf(DebugMethods.getOutput());
+    }
+
+    /**
+     * Checks that a script gets the same results when it is compiled in the background and
+     * switches over to the compiled program part way through a loop.
+     */
+    @Test
+    void testBackgroundCompile() {
+        List<String> expected = new ArrayList<>();
+        int total = 0;
+        for (int i = 0; i < 100_000; ++i) {
+            total = total + i % 7;
+            if (i % 10_000 == 0) {
+                expected.add("" + total);
+            }
+        }
+        expected.add("" + total);
+
+        final String program =
+                """
+			int total = 0;
+			for (int i = 0; i < 100000; ++i) {
+				total = total + i % 7;
+				if (i % 10000 == 0) {
+					TEST_printString("" + total);
+				}
+			}
+			TEST_printString("" + total);
+			""";
+
+        ScriptManager.registerClass(DebugMethods.class);
+        DebugMethods.reset();
+        ScriptManager.setCompileThreshold(10);
+        Optional<ScriptRuntime> maybeRuntime;
+        try {
+            maybeRuntime = IkalaScriptCompiler.parse(CharStreams.fromString(program));
+        } finally {
+            ScriptManager.setCompileThreshold(ScriptRuntime.DEFAULT_COMPILE_THRESHOLD);
+        }
+        Assertions.assertTrue(maybeRuntime.isPresent());
+        ScriptRuntime runtime = maybeRuntime.get();
+
+        // Get past the threshold, then give the compiler time to finish before carrying on
+        while (DebugMethods.getOutput().size() < 2 && !runtime.hasTerminated()) {
+            runtime.run(100);
+        }
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int turns = 0;
+        while (!runtime.hasTerminated() && turns < TestBehavior.MAX_INSTRUCTIONS) {
+            runtime.run(100);
+            ++turns;
+        }
+
+        Assertions.assertTrue(runtime.hasTerminated(), "Program should finish");
+        Assertions.assertEquals(expected, DebugMethods.getOutput());
+        DebugMethods.reset();
+    }
+
+    /** Checks that a break inside a switch only leaves the switch, not the loop around it. */
+    @Test
+    void testBreakInSwitchInLoop() {
+        final String program =
+                """
+			int count = 0;
+			for (int i = 0; i < 5; ++i) {
+				switch (i) {
+					case 1: TEST_printString("one"); break;
+					case 2: break;
+					case 3: TEST_printString("three"); break;
+					default: break;
+				}
+				count++;
+			}
+			int j = 0;
+			while (j < 3) {
+				switch (j) {
+					case 0: TEST_printString("zero"); break;
+					default: TEST_printString("other"); break;
+				}
+				j++;
+			}
+			TEST_printString("count " + count);
+			""";
+        TestBehavior.assertOutput(
+                List.of("one", "three", "zero", "other", "other", "count 5"), program);
+    }
+
+    /**
+     * Checks chains of string concatenations that include method calls and ternaries, which
+     * branch in the middle of building the string.
+     */
+    @Test
+    void testConcatenationChains() {
+        final String program =
+                """
+			int x = TEST_getInt();
+			boolean b = x > 0;
+			TEST_printString("a" + TEST_getInt() + "b" + TEST_getString() + "c");
+			TEST_printString("x" + (b ? "y" : "n") + TEST_getChar() + (x < 0 ? x + 1 : x - 1));
+			TEST_printString((b ? "p" + x : "q" + x) + "-" + (x < 0 ? "r" + TEST_getDouble() : "s"));
+			string s = "";
+			for (int i = 0; i < 3; ++i) {
+				s = s + (i % 2 == 0 ? "e" : "o") + i + ",";
+			}
+			TEST_printString(s);
+			""";
+        TestBehavior.assertOutput(
+                List.of("a-4567bSample string!c", "xna-4566", "q-4567-r120.9214", "e0,o1,e2,"),
+                program);
+    }
+
+    /** Checks that continue still runs the update of a for loop, even from inside a switch. */
+    @Test
+    void testContinue() {
+        final String program =
+                """
+			int total = 0;
+			for (int i = 0; i < 10; ++i) {
+				if (i % 2 == 0) {
+					continue;
+				}
+				total = total + i;
+			}
+			TEST_printString("odd " + total);
+			int cases = 0;
+			for (int i = 0; i < 6; ++i) {
+				switch (i) {
+					case 1: continue;
+					case 2: continue;
+					case 4: continue;
+					default: break;
+				}
+				cases = cases + i;
+			}
+			TEST_printString("cases " + cases);
+			""";
+        TestBehavior.assertOutput(List.of("odd 25", "cases 8"), program);
+    }
+
+    /**
+     * Checks that copies keep the old value after the original changes, that values only known
+     * on one path are not treated as constants, and that overwritten stores don't matter.
+     */
+    @Test
+    void testCopiesAndConstants() {
+        final String program =
+                """
+			int x = TEST_getInt();
+			int a = 5;
+			int copy = 0;
+			copy = a;
+			a = a + 1;
+			TEST_printString("copy " + copy + " a " + a);
+			int path = 1;
+			if (x > 0) {
+				path = 2;
+			}
+			TEST_printString("path " + path);
+			int count = 0;
+			int last = 0;
+			while (count < 3) {
+				last = count * 10;
+				count = count + 1;
+			}
+			TEST_printString("last " + last + " count " + count);
+			int y = 0;
+			y = x;
+			x = 0;
+			TEST_printString("y " + y + " x " + x);
+			int overwritten = 7;
+			overwritten = x + 3;
+			overwritten = 9;
+			TEST_printString("overwritten " + overwritten);
+			""";
+        TestBehavior.assertOutput(
+                List.of(
+                        "copy 5 a 6",
+                        "path 1",
+                        "last 20 count 3",
+                        "y -4567 x 0",
+                        "overwritten 9"),
+                program);
+    }
 
     /** Tries to execute the fizzbuzz program. */
     @Test
@@ -57,31 +295,72 @@ class TestBehavior {
 			}
 			""";
 
-        CharStream stream = CharStreams.fromString(program);
-        Optional<ScriptRuntime> maybeRuntime = IkalaScriptCompiler.parse(stream);
-
-        ScriptManager.registerClass(DebugMethods.class);
-
-        Assertions.assertTrue(maybeRuntime.isPresent());
-        ScriptRuntime runtime = maybeRuntime.get();
-
-        // Sanity check so builds finish
-        final int MAX_INSTRUCTIONS = 10_000;
-        int instructions = 0;
-        while (!runtime.hasTerminated() && instructions < MAX_INSTRUCTIONS) {
-            runtime.step();
-            ++instructions;
-        }
-
-        List<String> actual = DebugMethods.getOutput();
-        Assertions.assertEquals(expected.size(), actual.size());
+        TestBehavior.assertOutput(expected, program);
+    }
 
-        for (int i = 0; i < expected.size(); ++i) {
-            Assertions.assertEquals(
-                    expected.get(i), actual.get(i), String.format("Value %d should match", i));
-        }
+    /**
+     * Checks loops where something jumps to the condition right after the increment, so they can't
+     * be fused into one instruction, as well as loops that never run and loops that always run
+     * once.
+     */
+    @Test
+    void testFusedJumpTargets() {
+        final String program =
+                """
+			int i = 0;
+			int total = 0;
+			while (i < 10) {
+				if (i == 4) {
+					i = i + 2;
+					continue;
+				}
+				total = total + i;
+				i++;
+			}
+			TEST_printString("total " + total);
+			int count = 0;
+			for (int j = 10; j < 5; ++j) {
+				count++;
+			}
+			TEST_printString("count " + count);
+			int n = 0;
+			do {
+				n++;
+			} while (n < 3);
+			TEST_printString("n " + n);
+			""";
+        TestBehavior.assertOutput(List.of("total 36", "count 0", "n 3"), program);
+    }
 
-        DebugMethods.reset();
+    /**
+     * Checks that a division by a variable that doesn't change in a loop is not moved out of the
+     * loop, since the branch around it, or the loop not running at all, keeps it from dividing by
+     * zero.
+     */
+    @Test
+    void testLoopInvariantDivision() {
+        final String program =
+                """
+			int d = TEST_getInt();
+			d = d + 4567;
+			int k = TEST_getInt();
+			int total = 0;
+			for (int i = 0; i < 6; ++i) {
+				if (d != 0) {
+					total = total + 100 / d;
+				}
+				int twice = k * 2;
+				total = total + twice % 7 + i;
+			}
+			TEST_printString("total " + total);
+			int never = 0;
+			for (int i = 0; i < d; ++i) {
+				never = never + k / d;
+			}
+			TEST_printString("never " + never);
+			""";
+        // d is 0 and k is -4567, so each iteration adds -9134 % 7 + i, which is -6 + i
+        TestBehavior.assertOutput(List.of("total -21", "never 0"), program);
     }
 
     /** Tests some method calls. */
@@ -101,24 +380,404 @@ class TestBehavior {
 			TEST_checkValues(s, i, d, o);
 			""";
 
-        CharStream stream = CharStreams.fromString(program);
-        Optional<ScriptRuntime> maybeRuntime = IkalaScriptCompiler.parse(stream);
+        for (boolean compiled : new boolean[] {false, true}) {
+            TestBehavior.run(program, compiled);
+            Assertions.assertTrue(
+                    DebugMethods.isCheckValuesMatched(),
+                    compiled ? "Compiled values should match" : "Interpreted values should match");
+        }
+    }
+
+    /**
+     * Checks that a script halts when a method returns a string that is then used as a number,
+     * rather than carrying on as if it were 0.
+     */
+    @Test
+    void testMismatchedCallResult() {
+        final String declared =
+                """
+			TEST_printString("start");
+			int v = TEST_getString();
+			TEST_printString("" + (v + 1));
+			""";
+        TestBehavior.assertOutput(List.of("start"), declared);
+
+        final String assigned =
+                """
+			int v = 0;
+			for (int i = 0; i < 3; ++i) {
+				TEST_printString("" + i);
+				if (i == 1) {
+					v = TEST_getString();
+				}
+				v = v * 2;
+			}
+			""";
+        TestBehavior.assertOutput(List.of("0", "1"), assigned);
+    }
+
+    /**
+     * Checks nested branches, where the end of an inner branch jumps to the end of the outer one,
+     * and booleans that are stored before they are branched on.
+     */
+    @Test
+    void testNestedBranches() {
+        final String program =
+                """
+			int x = TEST_getInt();
+			boolean small = x < 10;
+			int found = 0;
+			for (int i = 0; i < 8; ++i) {
+				if (i < 4) {
+					if (i % 2 == 0) {
+						found = found + 1;
+					} else {
+						found = found + 10;
+					}
+				} else {
+					if (small) {
+						found = found + 100;
+					}
+				}
+			}
+			TEST_printString("found " + found);
+			int steps = 0;
+			for (int i = 0; i < 100; ++i) {
+				steps++;
+				if (steps >= 5) {
+					break;
+				}
+			}
+			boolean big = steps > 3;
+			if (big) {
+				TEST_printString("big");
+			}
+			""";
+        TestBehavior.assertOutput(List.of("found 422", "big"), program);
+    }
 
+    /**
+     * Checks that runtimes created from the same compiled script share the program, but each keep
+     * their own variables and stack, when run a few instructions at a time in turn.
+     */
+    @Test
+    void testSharedProgram() {
+        final String program =
+                """
+			int total = 0;
+			for (int i = 1; i <= 100; ++i) {
+				total = total + i;
+				if (i == 50) {
+					TEST_printString("" + total);
+				}
+			}
+			TEST_printString("" + total);
+			""";
         ScriptManager.registerClass(DebugMethods.class);
+        Optional<CompiledScript> script =
+                IkalaScriptCompiler.compile(CharStreams.fromString(program));
+        Assertions.assertTrue(script.isPresent());
 
-        Assertions.assertTrue(maybeRuntime.isPresent());
-        ScriptRuntime runtime = maybeRuntime.get();
+        for (boolean compiled : new boolean[] {false, true}) {
+            DebugMethods.reset();
+            ScriptRuntime first = script.get().createRuntime();
+            ScriptRuntime second = script.get().createRuntime();
+            Assertions.assertSame(first.getProgram(), second.getProgram());
+            if (compiled) {
+                Assertions.assertTrue(first.compile(), "Program should compile");
+            }
 
-        // Sanity check so builds finish
-        final int MAX_INSTRUCTIONS = 10_000;
-        int instructions = 0;
-        while (!runtime.hasTerminated() && instructions < MAX_INSTRUCTIONS) {
-            runtime.step();
-            ++instructions;
+            int turns = 0;
+            while (!second.hasTerminated() && turns < TestBehavior.MAX_INSTRUCTIONS) {
+                // Stop part way through loop iterations, so both are always mid-calculation
+                first.run(3);
+                second.run(3);
+                ++turns;
+            }
+            Assertions.assertTrue(first.hasTerminated(), "Program should finish");
+            Assertions.assertTrue(second.hasTerminated(), "Program should finish");
+            Assertions.assertEquals(
+                    List.of("1275", "1275", "5050", "5050"),
+                    DebugMethods.getOutput(),
+                    compiled ? "Compiled output should match" : "Interpreted output should match");
         }
+        DebugMethods.reset();
+    }
 
-        Assertions.assertTrue(DebugMethods.isCheckValuesMatched());
+    /** Checks a switch over characters with dense cases, which uses a table jump. */
+    @Test
+    void testSwitchDenseChar() {
+        int expected = 0;
+        for (char c = 'a'; c < 'h'; ++c) {
+            switch (c) {
+                case 'a' -> expected = expected + 1;
+                case 'b' -> expected = expected + 2;
+                case 'c' -> expected = expected + 4;
+                case 'e' -> expected = expected + 8;
+                default -> expected = expected + 100;
+            }
+        }
+        final String program =
+                """
+			char c = 'a';
+			int total = 0;
+			while (c < 'h') {
+				switch (c) {
+					case 'a': total = total + 1; break;
+					case 'b': total = total + 2; break;
+					case 'c': total = total + 4; break;
+					case 'e': total = total + 8; break;
+					default: total = total + 100;
+				}
+				c++;
+			}
+			TEST_printString("chars " + total);
+			""";
+        TestBehavior.assertOutput(List.of("chars " + expected), program);
+    }
 
-        DebugMethods.reset();
+    /**
+     * Checks a switch over integers with dense cases, which uses a table jump, including fall
+     * through, shared labels, and values on both sides of the table.
+     */
+    @Test
+    void testSwitchDenseInt() {
+        final String program =
+                """
+			int hits = 0;
+			for (int i = -2; i < 14; i++) {
+				switch (i) {
+					case 0: TEST_printString("zero"); break;
+					case 1: TEST_printString("one");
+					case 2: TEST_printString("two"); break;
+					case 3:
+					case 4: TEST_printString("three-four"); break;
+					case 5: TEST_printString("five"); break;
+					case 7: TEST_printString("seven"); break;
+					case 8: hits = hits + 1; break;
+					default: TEST_printString("other " + i);
+				}
+			}
+			TEST_printString("hits " + hits);
+			""";
+        TestBehavior.assertOutput(
+                List.of(
+                        "other -2",
+                        "other -1",
+                        "zero",
+                        "one",
+                        "two",
+                        "two",
+                        "three-four",
+                        "three-four",
+                        "five",
+                        "other 6",
+                        "seven",
+                        "other 9",
+                        "other 10",
+                        "other 11",
+                        "other 12",
+                        "other 13",
+                        "hits 1"),
+                program);
+    }
+
+    /** Checks switches with fewer cases than it is worth building a table or lookup for. */
+    @Test
+    void testSwitchFewCases() {
+        final String program =
+                """
+			for (int i = 0; i < 4; ++i) {
+				switch (i) {
+					case 1: TEST_printString("one"); break;
+					case 2: TEST_printString("two"); break;
+					default: TEST_printString("default " + i);
+				}
+			}
+			for (int i = 0; i < 3; ++i) {
+				switch (i) {
+					case 2: TEST_printString("only two");
+				}
+			}
+			""";
+        TestBehavior.assertOutput(
+                List.of("default 0", "one", "two", "default 3", "only two"), program);
+    }
+
+    /** Checks switches with hundreds of cases, both dense and sparse. */
+    @Test
+    void testSwitchManyCases() {
+        final int cases = 200;
+        StringBuilder dense = new StringBuilder();
+        StringBuilder sparse = new StringBuilder();
+        for (int i = 0; i < cases; ++i) {
+            dense.append("case ").append(i).append(": total = total + ").append(i);
+            dense.append("; break;\n");
+            sparse.append("case ").append(i * 7).append(": total = total + ").append(i);
+            sparse.append("; break;\n");
+        }
+        final String program =
+                "int total = 0;\n"
+                        + "for (int i = 0; i < "
+                        + (cases + 10)
+                        + "; ++i) {\n"
+                        + "switch (i) {\n"
+                        + dense
+                        + "default: total = total + 1000;\n"
+                        + "}\n"
+                        + "}\n"
+                        + "TEST_printString(\"dense \" + total);\n"
+                        + "total = 0;\n"
+                        + "for (int i = 0; i < "
+                        + (cases * 7 + 100)
+                        + "; ++i) {\n"
+                        + "switch (i) {\n"
+                        + sparse
+                        + "}\n"
+                        + "}\n"
+                        + "TEST_printString(\"sparse \" + total);\n";
+
+        final int sum = cases * (cases - 1) / 2;
+        TestBehavior.assertOutput(
+                List.of("dense " + (sum + 10 * 1000), "sparse " + sum), program);
+    }
+
+    /** Checks that a switch without a matching case or a default skips the whole body. */
+    @Test
+    void testSwitchNoMatch() {
+        final String program =
+                """
+			int t = 9;
+			switch (t) {
+				case 1: TEST_printString("one"); break;
+				case 2: TEST_printString("two"); break;
+				case 3: TEST_printString("three"); break;
+			}
+			switch (t) {
+				case 1: TEST_printString("few one"); break;
+			}
+			TEST_printString("end");
+			""";
+        TestBehavior.assertOutput(List.of("end"), program);
+    }
+
+    /** Checks a switch over integers with sparse cases, which uses a lookup jump. */
+    @Test
+    void testSwitchSparse() {
+        int expected = 0;
+        for (int i = -700; i < 2000; i = i + 7) {
+            switch (i) {
+                case 7 -> expected = expected + 1;
+                case 700 -> expected = expected + 2;
+                case 1400 -> expected = expected + 4;
+                case 1995 -> expected = expected + 8;
+                default -> expected = expected + 0;
+            }
+        }
+        final String program =
+                """
+			int total = 0;
+			for (int i = -700; i < 2000; i = i + 7) {
+				switch (i) {
+					case 7: total = total + 1; break;
+					case 700: total = total + 2; break;
+					case 1400: total = total + 4; break;
+					case 1995: total = total + 8; break;
+					default: total = total + 0;
+				}
+			}
+			TEST_printString("sparse " + total);
+			""";
+        TestBehavior.assertOutput(List.of("sparse " + expected), program);
+    }
+
+    /** Checks that a case label at the very end of a switch, with no statements, works. */
+    @Test
+    void testSwitchTrailingCase() {
+        final String program =
+                """
+			for (int t = 1; t <= 4; ++t) {
+				switch (t) {
+					case 1: TEST_printString("t1"); break;
+					default: TEST_printString("default " + t); break;
+					case 3:
+				}
+			}
+			TEST_printString("end");
+			""";
+        TestBehavior.assertOutput(List.of("t1", "default 2", "default 4", "end"), program);
+    }
+
+    /**
+     * Checks loops that change their own counter in the body, which must not be unrolled as if
+     * they counted one step at a time, next to loops that can be unrolled.
+     */
+    @Test
+    void testUnrollModifiedCounter() {
+        int skipped = 0;
+        for (int i = 0; i < 10; ++i) {
+            skipped = skipped + i;
+            i = i + 1;
+        }
+        int jumped = 0;
+        for (int i = 0; i < 10; ++i) {
+            if (i == 3) {
+                i = i + 4;
+            }
+            jumped = jumped + i;
+        }
+        int doubled = 0;
+        for (int i = 1; i < 50; ++i) {
+            doubled = doubled + i;
+            i = i * 2;
+        }
+        int down = 0;
+        for (int i = 10; i > 0; i = i - 3) {
+            down = down * 10 + i;
+        }
+
+        final String program =
+                """
+			int skipped = 0;
+			for (int i = 0; i < 10; ++i) {
+				skipped = skipped + i;
+				i = i + 1;
+			}
+			TEST_printString("skipped " + skipped);
+			int jumped = 0;
+			for (int i = 0; i < 10; ++i) {
+				if (i == 3) {
+					i = i + 4;
+				}
+				jumped = jumped + i;
+			}
+			TEST_printString("jumped " + jumped);
+			int doubled = 0;
+			for (int i = 1; i < 50; ++i) {
+				doubled = doubled + i;
+				i = i * 2;
+			}
+			TEST_printString("doubled " + doubled);
+			int down = 0;
+			for (int i = 10; i > 0; i = i - 3) {
+				down = down * 10 + i;
+			}
+			TEST_printString("down " + down);
+			int sum = 0;
+			int counter = 0;
+			while (counter < 4) {
+				sum = sum + counter;
+				counter = counter + 1;
+			}
+			TEST_printString("sum " + sum + " counter " + counter);
+			""";
+        TestBehavior.assertOutput(
+                List.of(
+                        "skipped " + skipped,
+                        "jumped " + jumped,
+                        "doubled " + doubled,
+                        "down " + down,
+                        "sum 6 counter 4"),
+                program);
     }
 }
@@ -0,0 +1,159 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.CompiledScript;
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Tests saving and loading precompiled scripts.
+ *
+ * @author Ches Burks
+ */
+class TestScriptArtifact {
+    /** The folder the test scripts are written to. */
+    private Path folder;
+
+    /**
+     * Compile a script source file, and save the artifact for it.
+     *
+     * @param source The source file.
+     * @throws IOException If the source can't be read.
+     */
+    private static void compileAndWrite(Path source) throws IOException {
+        Optional<CompiledScript> script = IkalaScriptCompiler.compile(CharStreams.fromPath(source));
+        Assertions.assertTrue(script.isPresent());
+        Assertions.assertTrue(ScriptArtifact.write(source, script.get()));
+    }
+
+    /**
+     * Create a temporary folder for the scripts.
+     *
+     * @throws IOException If the folder can't be created.
+     */
+    @BeforeEach
+    void beforeEach() throws IOException {
+        folder = Files.createTempDirectory("artifacts");
+    }
+
+    /**
+     * Delete the temporary folder and everything in it.
+     *
+     * @throws IOException If the files can't be deleted.
+     */
+    @AfterEach
+    void afterEach() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+        DebugMethods.reset();
+    }
+
+    /**
+     * Checks that sources which only differ by extension don't share an artifact.
+     *
+     * @throws IOException If the files can't be written.
+     */
+    @Test
+    void testArtifactPerSource() throws IOException {
+        Path script = folder.resolve("foo.iks");
+        Path text = folder.resolve("foo.txt");
+        Assertions.assertEquals(
+                folder.resolve("foo.iks" + ScriptArtifact.EXTENSION),
+                ScriptArtifact.artifactPath(script));
+        Assertions.assertNotEquals(
+                ScriptArtifact.artifactPath(script), ScriptArtifact.artifactPath(text));
+
+        Files.writeString(script, "int a = 1;");
+        Files.writeString(text, "int b = 2;");
+        TestScriptArtifact.compileAndWrite(script);
+        TestScriptArtifact.compileAndWrite(text);
+        Assertions.assertTrue(ScriptArtifact.load(script).isPresent());
+        Assertions.assertTrue(ScriptArtifact.load(text).isPresent());
+    }
+
+    /**
+     * Checks that artifacts can be written and loaded for a source given as a bare file name,
+     * which has no parent folder.
+     *
+     * @throws IOException If the files can't be written.
+     */
+    @Test
+    void testRelativeSource() throws IOException {
+        Path source = Files.createTempFile(Path.of(""), "relative", ".iks");
+        Assertions.assertNull(source.getParent());
+        try {
+            Files.writeString(source, "int a = 1;");
+            TestScriptArtifact.compileAndWrite(source);
+            Assertions.assertTrue(ScriptArtifact.load(source).isPresent());
+        } finally {
+            Files.deleteIfExists(ScriptArtifact.artifactPath(source));
+            Files.deleteIfExists(source);
+        }
+    }
+
+    /**
+     * Checks that a loaded artifact runs the same as the source, and can be replaced.
+     *
+     * @throws IOException If the files can't be written.
+     */
+    @Test
+    void testRoundTrip() throws IOException {
+        ScriptManager.registerClass(DebugMethods.class);
+        Path source = folder.resolve("loop.iks");
+        Files.writeString(
+                source,
+                """
+				int total = 0;
+				for (int i = 0; i < 10; ++i) {
+					total = total + i;
+				}
+				TEST_printString("" + total);
+				""");
+        TestScriptArtifact.compileAndWrite(source);
+
+        Optional<CompiledScript> loaded = ScriptArtifact.load(source);
+        Assertions.assertTrue(loaded.isPresent());
+        ScriptRuntime runtime = loaded.get().createRuntime();
+        runtime.run(10_000);
+        Assertions.assertTrue(runtime.hasTerminated());
+        Assertions.assertEquals(List.of("45"), DebugMethods.getOutput());
+
+        // Replacing an artifact that was just loaded must work
+        Assertions.assertTrue(ScriptArtifact.write(source, loaded.get()));
+    }
+
+    /**
+     * Checks that changing the source invalidates the artifact, even if the size and modified
+     * time stay the same.
+     *
+     * @throws IOException If the files can't be written.
+     */
+    @Test
+    void testStaleSource() throws IOException {
+        Path source = folder.resolve("stale.iks");
+        Files.writeString(source, "int a = 1;");
+        TestScriptArtifact.compileAndWrite(source);
+        Assertions.assertTrue(ScriptArtifact.load(source).isPresent());
+
+        final FileTime modified = Files.getLastModifiedTime(source);
+        Files.writeString(source, "int a = 2;");
+        Files.setLastModifiedTime(source, modified);
+        Assertions.assertTrue(ScriptArtifact.load(source).isEmpty());
+    }
+}
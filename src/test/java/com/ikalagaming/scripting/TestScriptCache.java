@@ -0,0 +1,105 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.CompiledScript;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+/**
+ * Tests the cache of compiled scripts.
+ *
+ * @author Ches Burks
+ */
+class TestScriptCache {
+    /**
+     * Create a different small script for each number.
+     *
+     * @param number Which script to create.
+     * @return The script source.
+     */
+    private static String script(int number) {
+        return "int value = " + number + ";";
+    }
+
+    /** Checks that disabling the cache compiles every time. */
+    @Test
+    void testDisabled() {
+        ScriptCache cache = new ScriptCache();
+        cache.setMaxEntries(0);
+
+        Optional<CompiledScript> first = cache.compile(TestScriptCache.script(1));
+        Optional<CompiledScript> second = cache.compile(TestScriptCache.script(1));
+        Assertions.assertTrue(first.isPresent());
+        Assertions.assertTrue(second.isPresent());
+        Assertions.assertNotSame(first.get(), second.get());
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(0, cache.getHits());
+        Assertions.assertEquals(2, cache.getMisses());
+        Assertions.assertEquals(0, cache.getCurrentBytes());
+    }
+
+    /** Checks that the least recently used scripts are evicted past the entry limit. */
+    @Test
+    void testEvictByEntries() {
+        ScriptCache cache = new ScriptCache();
+        cache.setMaxEntries(2);
+
+        CompiledScript first = cache.compile(TestScriptCache.script(1)).orElseThrow();
+        cache.compile(TestScriptCache.script(2));
+        // Use the first one again, so the second is the least recently used
+        Assertions.assertSame(first, cache.compile(TestScriptCache.script(1)).orElseThrow());
+        cache.compile(TestScriptCache.script(3));
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(1, cache.getEvictions());
+        Assertions.assertSame(first, cache.compile(TestScriptCache.script(1)).orElseThrow());
+        final long misses = cache.getMisses();
+        cache.compile(TestScriptCache.script(2));
+        Assertions.assertEquals(misses + 1, cache.getMisses());
+    }
+
+    /** Checks that scripts are evicted to stay within the size limit. */
+    @Test
+    void testEvictBySize() {
+        ScriptCache cache = new ScriptCache();
+        cache.compile(TestScriptCache.script(1));
+        final long size = cache.getCurrentBytes();
+        Assertions.assertTrue(size > 0);
+
+        // Room for one script, but not two
+        cache.setMaxBytes(size + size / 2);
+        cache.compile(TestScriptCache.script(2));
+        Assertions.assertEquals(1, cache.size());
+        Assertions.assertEquals(1, cache.getEvictions());
+        Assertions.assertTrue(cache.getCurrentBytes() <= cache.getMaxBytes());
+
+        cache.setMaxBytes(0);
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(0, cache.getCurrentBytes());
+    }
+
+    /** Checks that scripts are only compiled once, and that hits and misses are counted. */
+    @Test
+    void testHitsAndMisses() {
+        ScriptCache cache = new ScriptCache();
+
+        Optional<CompiledScript> first = cache.compile(TestScriptCache.script(1));
+        Optional<CompiledScript> second = cache.compile(TestScriptCache.script(1));
+        Assertions.assertTrue(first.isPresent());
+        Assertions.assertTrue(second.isPresent());
+        Assertions.assertSame(first.get(), second.get());
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+
+        cache.compile(TestScriptCache.script(2));
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(2, cache.getMisses());
+
+        cache.clear();
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(0, cache.getCurrentBytes());
+        Assertions.assertEquals(1, cache.getHits());
+    }
+}
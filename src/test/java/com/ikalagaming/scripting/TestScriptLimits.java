@@ -0,0 +1,254 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.event.EventAssert;
+import com.ikalagaming.scripting.ScriptLimits.Limit;
+import com.ikalagaming.scripting.events.ScriptLimitExceeded;
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests holding scripts, and the plugins that run them, to their limits.
+ *
+ * @author Ches Burks
+ */
+class TestScriptLimits {
+    /** Adds up the numbers from 1 to 2000 and prints the result, 2001000. */
+    private static final String SUM =
+            """
+			int sum = 0;
+			for (int n = 1; n <= 2000; ++n) {
+				sum = sum + n;
+			}
+			TEST_printString("" + sum);
+			""";
+
+    /** Counts for a very long time, and then prints that it is done. */
+    private static final String ENDLESS =
+            """
+			int count = 0;
+			for (int n = 0; n < 2000000000; ++n) {
+				count = count + n % 3;
+			}
+			TEST_printString("done");
+			""";
+
+    /** How long to wait for scripts and events, in milliseconds. */
+    private static final long TIMEOUT = 5000;
+
+    /** How long to give scripts to do something they should not do, in milliseconds. */
+    private static final long SETTLE_TIME = 100;
+
+    /** The number of instructions it takes to run {@link #SUM}. */
+    private static long sumInstructions;
+
+    /** Set up before the tests, and count how many instructions the test script takes. */
+    @BeforeAll
+    static void beforeClass() {
+        ScriptManager.registerClass(DebugMethods.class);
+
+        Optional<ScriptRuntime> runtime =
+                IkalaScriptCompiler.parse(CharStreams.fromString(TestScriptLimits.SUM));
+        Assertions.assertTrue(runtime.isPresent());
+        long steps = 0;
+        while (!runtime.get().hasTerminated()) {
+            runtime.get().step();
+            ++steps;
+        }
+        TestScriptLimits.sumInstructions = steps;
+        DebugMethods.reset();
+    }
+
+    /**
+     * Wait for a script to go over a limit, and check what happened.
+     *
+     * @param limit The limit we expect to be exceeded.
+     * @param halted Whether we expect the script to be halted, rather than descheduled.
+     * @return The event that was fired.
+     */
+    private static ScriptLimitExceeded awaitExceeded(Limit limit, boolean halted) {
+        Assertions.assertTrue(
+                EventAssert.wasFired(ScriptLimitExceeded.class, TestScriptLimits.TIMEOUT),
+                "Going over a limit should fire an event");
+        ScriptLimitExceeded event = EventAssert.getRecordedEvents(ScriptLimitExceeded.class).get(0);
+        Assertions.assertEquals(limit, event.getLimit());
+        Assertions.assertEquals(halted, event.isHalted());
+        return event;
+    }
+
+    /**
+     * Wait until an account has been charged for a certain number of instructions.
+     *
+     * @param account The account.
+     * @param instructions The number of instructions.
+     */
+    private static void awaitInstructions(ScriptAccount account, long instructions) {
+        Awaitility.await()
+                .atMost(TestScriptLimits.TIMEOUT, TimeUnit.MILLISECONDS)
+                .until(() -> account.getInstructions() == instructions);
+    }
+
+    /**
+     * Wait until the scripts have printed a certain number of lines.
+     *
+     * @param lines The number of lines to wait for.
+     */
+    private static void awaitOutput(int lines) {
+        Awaitility.await()
+                .atMost(TestScriptLimits.TIMEOUT, TimeUnit.MILLISECONDS)
+                .until(() -> DebugMethods.getOutput().size() >= lines);
+    }
+
+    /** Give scripts time to run, so we can check they didn't do something they shouldn't. */
+    private static void settle() {
+        try {
+            Thread.sleep(TestScriptLimits.SETTLE_TIME);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start listening for limits being exceeded, and stop scripts from being compiled so that
+     * instructions are counted exactly.
+     */
+    @BeforeEach
+    void beforeEach() {
+        EventAssert.listenFor(ScriptLimitExceeded.class);
+        ScriptManager.setCompileThreshold(0);
+    }
+
+    /** Stop any scripts that are still running and go back to the default settings. */
+    @AfterEach
+    void afterEach() {
+        ScriptManager.shutdown();
+        EventAssert.stopListeningFor(ScriptLimitExceeded.class);
+        ScriptManager.setScriptLimits(ScriptLimits.NONE);
+        ScriptManager.setTickLength(ScriptManager.DEFAULT_TICK_LENGTH);
+        ScriptManager.setCompileThreshold(ScriptRuntime.DEFAULT_COMPILE_THRESHOLD);
+        DebugMethods.reset();
+    }
+
+    /** Checks that scripts that use up their instructions for a tick wait, then finish. */
+    @Test
+    void testDescheduledPerTick() {
+        ScriptManager.setTickLength(10);
+        ScriptManager.setScriptLimits(new ScriptLimits(TestScriptLimits.sumInstructions / 4, 0, 0));
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.SUM));
+
+        ScriptLimitExceeded event =
+                TestScriptLimits.awaitExceeded(Limit.INSTRUCTIONS_PER_TICK, false);
+        Assertions.assertSame(event.getAccount(), event.getExceeded());
+        TestScriptLimits.awaitOutput(1);
+        Assertions.assertEquals(List.of("2001000"), DebugMethods.getOutput());
+    }
+
+    /** Checks that the account of a plugin counts what all of its scripts executed. */
+    @Test
+    void testPluginAccountTotals() {
+        final String plugin = "counted";
+        Assertions.assertTrue(ScriptManager.getPluginAccount(plugin).isEmpty());
+
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.SUM, plugin));
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.SUM, plugin));
+        TestScriptLimits.awaitOutput(2);
+
+        ScriptAccount account = ScriptManager.getPluginAccount(plugin).orElseThrow();
+        TestScriptLimits.awaitInstructions(account, 2 * TestScriptLimits.sumInstructions);
+        Assertions.assertTrue(account.getRunTime() > 0);
+        Assertions.assertFalse(EventAssert.wasFired(ScriptLimitExceeded.class));
+    }
+
+    /** Checks that the limits of a plugin apply to all the scripts it runs together. */
+    @Test
+    void testPluginLimitsShared() {
+        final String plugin = "capped";
+        final long sum = TestScriptLimits.sumInstructions;
+        ScriptManager.setPluginLimits(plugin, new ScriptLimits(0, sum + sum / 2, 0));
+        ScriptAccount account = ScriptManager.getPluginAccount(plugin).orElseThrow();
+
+        // One script fits within the limit
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.SUM, plugin));
+        TestScriptLimits.awaitOutput(1);
+        TestScriptLimits.awaitInstructions(account, sum);
+        Assertions.assertFalse(EventAssert.wasFired(ScriptLimitExceeded.class));
+
+        // But the next one only gets what is left
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.SUM, plugin));
+        ScriptLimitExceeded event = TestScriptLimits.awaitExceeded(Limit.TOTAL_INSTRUCTIONS, true);
+        Assertions.assertSame(account, event.getExceeded());
+        Assertions.assertNotSame(account, event.getAccount());
+        Assertions.assertEquals(plugin, event.getAccount().getPlugin());
+        Assertions.assertEquals(sum + sum / 2, account.getInstructions());
+        TestScriptLimits.settle();
+        Assertions.assertEquals(1, DebugMethods.getOutput().size());
+    }
+
+    /**
+     * Checks that the instructions a turn is allowed can't be given to another script of the same
+     * plugin until the turn is charged, and that what the turn did not use is given back.
+     */
+    @Test
+    void testPluginLimitsReserved() {
+        final String plugin = "reserved";
+        ScriptManager.setPluginLimits(plugin, new ScriptLimits(0, 100, 0));
+        ScriptAccount pluginAccount = ScriptManager.getPluginAccount(plugin).orElseThrow();
+        ScriptAccount first = new ScriptAccount(plugin, ScriptLimits.NONE, pluginAccount);
+        ScriptAccount second = new ScriptAccount(plugin, ScriptLimits.NONE, pluginAccount);
+        Optional<ScriptRuntime> script =
+                IkalaScriptCompiler.parse(CharStreams.fromString(TestScriptLimits.SUM));
+        Assertions.assertTrue(script.isPresent());
+
+        Assertions.assertEquals(80, first.admit(script.get(), 80));
+        Assertions.assertEquals(20, second.admit(script.get(), 80));
+
+        first.charge(80, 30, 0);
+        Assertions.assertEquals(30, pluginAccount.getInstructions());
+        Assertions.assertEquals(50, second.admit(script.get(), 80));
+
+        second.charge(20, 20, 0);
+        second.charge(50, 50, 0);
+        Assertions.assertEquals(100, pluginAccount.getInstructions());
+        Assertions.assertEquals(70, second.getInstructions());
+        Assertions.assertFalse(script.get().hasTerminated());
+        Assertions.assertFalse(EventAssert.wasFired(ScriptLimitExceeded.class));
+    }
+
+    /** Checks that scripts which run for too long are halted. */
+    @Test
+    void testRunTimeHalted() {
+        ScriptManager.setScriptLimits(new ScriptLimits(0, 0, 1));
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.ENDLESS));
+
+        ScriptLimitExceeded event = TestScriptLimits.awaitExceeded(Limit.RUN_TIME, true);
+        Assertions.assertTrue(event.getScript().hasTerminated());
+        Assertions.assertTrue(event.getExceeded().getRunTime() >= 1_000_000L);
+        TestScriptLimits.settle();
+        Assertions.assertTrue(DebugMethods.getOutput().isEmpty());
+    }
+
+    /** Checks that scripts which run too many instructions in total are halted. */
+    @Test
+    void testTotalInstructionsHalted() {
+        final long limit = TestScriptLimits.sumInstructions / 2;
+        ScriptManager.setScriptLimits(new ScriptLimits(0, limit, 0));
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptLimits.SUM));
+
+        ScriptLimitExceeded event = TestScriptLimits.awaitExceeded(Limit.TOTAL_INSTRUCTIONS, true);
+        Assertions.assertTrue(event.getScript().hasTerminated());
+        Assertions.assertSame(event.getAccount(), event.getExceeded());
+        Assertions.assertEquals(limit, event.getExceeded().getInstructions());
+        TestScriptLimits.settle();
+        Assertions.assertTrue(DebugMethods.getOutput().isEmpty());
+    }
+}
@@ -0,0 +1,170 @@
+package com.ikalagaming.scripting;
+
+import com.ikalagaming.scripting.interpreter.Instruction;
+import com.ikalagaming.scripting.interpreter.InstructionType;
+import com.ikalagaming.scripting.interpreter.ScriptProfile;
+import com.ikalagaming.scripting.interpreter.ScriptRuntime;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Tests recording how often the instructions of a script run, and how long its calls take.
+ *
+ * @author Ches Burks
+ */
+class TestScriptProfile {
+    /**
+     * Adds a number from a call to a total 50 times in a loop on line 4, with calls on lines 2 and
+     * 6.
+     */
+    private static final String LOOP =
+            """
+			int total = 0;
+			int step = TEST_getInt();
+			for (int i = 0; i < 50; ++i) {
+				total = total + step;
+			}
+			TEST_printString("" + total);
+			""";
+
+    /** Sanity check so tests finish. */
+    private static final int MAX_INSTRUCTIONS = 1_000_000;
+
+    /**
+     * Parse the test script.
+     *
+     * @return A runtime for the script.
+     */
+    private static ScriptRuntime parse() {
+        Optional<ScriptRuntime> runtime =
+                IkalaScriptCompiler.parse(CharStreams.fromString(TestScriptProfile.LOOP));
+        Assertions.assertTrue(runtime.isPresent());
+        return runtime.get();
+    }
+
+    /**
+     * Run the test script to completion while profiling it.
+     *
+     * @return The profile.
+     */
+    private static ScriptProfile profile() {
+        ScriptRuntime runtime = TestScriptProfile.parse();
+        ScriptProfile profile = runtime.startProfiling();
+        runtime.run(TestScriptProfile.MAX_INSTRUCTIONS);
+        Assertions.assertTrue(runtime.hasTerminated(), "Program should finish");
+        Assertions.assertSame(profile, runtime.stopProfiling());
+        Assertions.assertEquals(
+                List.of("" + 50 * DebugMethods.TEST_getInt()), DebugMethods.getOutput());
+        return profile;
+    }
+
+    /** Register the methods the script calls. */
+    @BeforeAll
+    static void beforeClass() {
+        ScriptManager.registerClass(DebugMethods.class);
+    }
+
+    /** Clear the output of the script. */
+    @AfterEach
+    void afterEach() {
+        DebugMethods.reset();
+    }
+
+    /** Checks that time spent in calls is recorded for call instructions, and only for those. */
+    @Test
+    void testCallTimes() {
+        ScriptProfile profile = TestScriptProfile.profile();
+        List<Instruction> instructions = profile.getScript().getInstructions();
+
+        int calls = 0;
+        for (int address = 0; address < instructions.size(); ++address) {
+            if (instructions.get(address).type() == InstructionType.CALL) {
+                ++calls;
+                Assertions.assertTrue(profile.getCallNanos(address) > 0);
+            } else {
+                Assertions.assertEquals(0, profile.getCallNanos(address));
+            }
+        }
+        Assertions.assertEquals(2, calls);
+    }
+
+    /** Checks that every instruction that ran is counted, both by address and by type. */
+    @Test
+    void testCounts() {
+        ScriptProfile profile = TestScriptProfile.profile();
+        final int size = profile.getScript().getInstructions().size();
+
+        long byAddress = 0;
+        for (int address = 0; address < size; ++address) {
+            byAddress += profile.getCount(address);
+        }
+        long byType = 0;
+        for (InstructionType type : InstructionType.values()) {
+            byType += profile.getCount(type);
+        }
+        Assertions.assertEquals(profile.getTotalCount(), byAddress);
+        Assertions.assertEquals(profile.getTotalCount(), byType);
+        Assertions.assertEquals(2, profile.getCount(InstructionType.CALL));
+        Assertions.assertEquals(50, profile.getCount(InstructionType.ADD_INT));
+
+        // Profiling runs exactly the instructions stepping through the script does
+        DebugMethods.reset();
+        ScriptRuntime runtime = TestScriptProfile.parse();
+        long steps = 0;
+        while (!runtime.hasTerminated() && steps < TestScriptProfile.MAX_INSTRUCTIONS) {
+            runtime.step();
+            ++steps;
+        }
+        Assertions.assertEquals(steps, profile.getTotalCount());
+    }
+
+    /** Checks that call times are reported by line and method, with the time as the count. */
+    @Test
+    void testFoldedCallTimes() {
+        ScriptProfile profile = TestScriptProfile.profile();
+        List<Instruction> instructions = profile.getScript().getInstructions();
+
+        StringBuilder expected = new StringBuilder();
+        for (int address = 0; address < instructions.size(); ++address) {
+            final Instruction instruction = instructions.get(address);
+            if (instruction.type() != InstructionType.CALL) {
+                continue;
+            }
+            expected.append("line ")
+                    .append(profile.getScript().getLine(address))
+                    .append(';')
+                    .append(instruction.firstLocation().value())
+                    .append(' ')
+                    .append(profile.getCallNanos(address))
+                    .append('\n');
+        }
+        Assertions.assertEquals(expected.toString(), profile.foldedCallTimes());
+        Assertions.assertTrue(profile.foldedCallTimes().startsWith("line 2;TEST_getInt "));
+        Assertions.assertTrue(profile.foldedCallTimes().contains("\nline 6;TEST_printString "));
+    }
+
+    /** Checks that instruction counts are reported by line and instruction type. */
+    @Test
+    void testFoldedCounts() {
+        ScriptProfile profile = TestScriptProfile.profile();
+        final String folded = profile.foldedCounts();
+
+        long total = 0;
+        for (String stack : folded.split("\n")) {
+            Assertions.assertTrue(
+                    stack.matches("line [1-6];[A-Z_]+ [0-9]+"), "Unexpected stack " + stack);
+            total += Long.parseLong(stack.substring(stack.lastIndexOf(' ') + 1));
+        }
+        Assertions.assertEquals(profile.getTotalCount(), total);
+        Assertions.assertTrue(folded.contains("line 4;ADD_INT 50\n"), folded);
+        Assertions.assertTrue(folded.contains("line 2;CALL 1\n"), folded);
+        Assertions.assertTrue(folded.contains("line 6;CALL 1\n"), folded);
+    }
+}
@@ -0,0 +1,144 @@
+package com.ikalagaming.scripting;
+
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how the single threaded runner decides which script runs next.
+ *
+ * @author Ches Burks
+ */
+class TestScriptRunner {
+    /**
+     * Counts for a while and then prints the name of the script and how many times it has done so,
+     * three times over. Each round takes hundreds of thousands of instructions. Formatted with the
+     * name of the script.
+     */
+    private static final String BUSY =
+            """
+			int count = 0;
+			for (int i = 0; i < 3; ++i) {
+				for (int n = 0; n < 200000; ++n) {
+					count = count + 1;
+				}
+				TEST_printString("%s" + i);
+			}
+			""";
+
+    /** How long to wait for scripts to finish, in milliseconds. */
+    private static final long TIMEOUT = 10000;
+
+    /** How long to give scripts to do something they should not do, in milliseconds. */
+    private static final long SETTLE_TIME = 100;
+
+    /** Set up before the tests, registering the methods scripts call. */
+    @BeforeAll
+    static void beforeClass() {
+        ScriptManager.registerClass(DebugMethods.class);
+    }
+
+    /**
+     * Wait until the scripts have printed a certain number of lines.
+     *
+     * @param lines The number of lines to wait for.
+     */
+    private static void awaitOutput(int lines) {
+        Awaitility.await()
+                .atMost(TestScriptRunner.TIMEOUT, TimeUnit.MILLISECONDS)
+                .until(() -> DebugMethods.getOutput().size() >= lines);
+    }
+
+    /**
+     * Start two busy scripts, named a and b, and wait for them both to finish.
+     *
+     * @return What the scripts printed, in order.
+     */
+    private static List<String> runBusyScripts() {
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptRunner.BUSY.formatted("a")));
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptRunner.BUSY.formatted("b")));
+        TestScriptRunner.awaitOutput(6);
+        return List.copyOf(DebugMethods.getOutput());
+    }
+
+    /**
+     * Make sure scripts run on the single threaded runner, and clear anything other tests printed.
+     */
+    @BeforeEach
+    void beforeEach() {
+        ScriptManager.shutdown();
+        ScriptManager.setScriptThreadFactory(null);
+        ScriptManager.setWorkerThreads(1);
+        DebugMethods.reset();
+    }
+
+    /** Shut down the runner and go back to the default settings. */
+    @AfterEach
+    void afterEach() {
+        ScriptManager.shutdown();
+        ScriptManager.setInstructionQuantum(ScriptRunner.DEFAULT_INSTRUCTION_QUANTUM);
+        ScriptManager.setTimeSlice(0);
+        DebugMethods.reset();
+    }
+
+    /**
+     * Checks that scripts that never yield take turns, neither getting more than a quantum ahead of
+     * the other.
+     */
+    @Test
+    void testInterleaved() {
+        ScriptManager.setInstructionQuantum(100);
+        Assertions.assertEquals(
+                List.of("a0", "b0", "a1", "b1", "a2", "b2"), TestScriptRunner.runBusyScripts());
+    }
+
+    /** Checks that a script that never yields keeps running until its quantum is used up. */
+    @Test
+    void testRunsForQuantum() {
+        ScriptManager.setInstructionQuantum(Integer.MAX_VALUE);
+        Assertions.assertEquals(
+                List.of("a0", "a1", "a2", "b0", "b1", "b2"), TestScriptRunner.runBusyScripts());
+    }
+
+    /** Checks that a time slice ends turns that would otherwise run to the end of the script. */
+    @Test
+    void testTimeSlice() {
+        ScriptManager.setInstructionQuantum(Integer.MAX_VALUE);
+        ScriptManager.setTimeSlice(50);
+        List<String> output = TestScriptRunner.runBusyScripts();
+        Assertions.assertTrue(output.indexOf("b0") < output.indexOf("a2"), output.toString());
+        Assertions.assertTrue(output.indexOf("a0") < output.indexOf("b2"), output.toString());
+    }
+
+    /** Checks that yielding ends the turn right away, even with a quantum that is not used up. */
+    @Test
+    void testYieldEndsTurn() {
+        final String program =
+                """
+				TEST_printString("before");
+				yield();
+				TEST_printString("after");
+				""";
+        ScriptManager.setInstructionQuantum(Integer.MAX_VALUE);
+        Assertions.assertTrue(ScriptManager.runScript(program));
+        Assertions.assertTrue(ScriptManager.runScript(TestScriptRunner.BUSY.formatted("b")));
+        TestScriptRunner.awaitOutput(4);
+        Assertions.assertEquals(List.of("before", "b0", "b1", "b2"), DebugMethods.getOutput());
+
+        try {
+            Thread.sleep(TestScriptRunner.SETTLE_TIME);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Assertions.assertEquals(4, DebugMethods.getOutput().size());
+        ScriptManager.resume();
+        TestScriptRunner.awaitOutput(5);
+        Assertions.assertEquals("after", DebugMethods.getOutput().get(4));
+    }
+}
@@ -0,0 +1,177 @@
+package com.ikalagaming.scripting;
+
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests running scripts with each of the runners the script manager can use.
+ *
+ * @author Ches Burks
+ */
+class TestScriptRunners {
+    /**
+     * The ways scripts can be run.
+     *
+     * @author Ches Burks
+     */
+    private enum Mode {
+        /** Scripts take turns on a single runner thread. */
+        SINGLE_THREAD,
+        /** Scripts take turns on a pool of worker threads. */
+        WORKER_THREADS,
+        /** Each script runs on its own thread. */
+        THREAD_PER_SCRIPT;
+    }
+
+    /** Adds up the numbers from 1 to 1000 and prints the result, 500500. */
+    private static final String SUM =
+            """
+			int total = 0;
+			for (int i = 1; i <= 1000; ++i) {
+				total = total + i;
+			}
+			TEST_printString("" + total);
+			""";
+
+    /** How long to wait for scripts to finish, in milliseconds. */
+    private static final long TIMEOUT = 5000;
+
+    /** How long to give scripts to do something they should not do, in milliseconds. */
+    private static final long SETTLE_TIME = 100;
+
+    /** Set up before the tests, registering the methods scripts call. */
+    @BeforeAll
+    static void beforeClass() {
+        ScriptManager.registerClass(DebugMethods.class);
+    }
+
+    /**
+     * Wait until the scripts have printed a certain number of lines.
+     *
+     * @param lines The number of lines to wait for.
+     */
+    private static void awaitOutput(int lines) {
+        Awaitility.await()
+                .atMost(TestScriptRunners.TIMEOUT, TimeUnit.MILLISECONDS)
+                .until(() -> DebugMethods.getOutput().size() >= lines);
+    }
+
+    /**
+     * Run a test with each of the runners, shutting the runner down in between.
+     *
+     * @param test The test to run.
+     */
+    private static void forEachMode(Runnable test) {
+        for (Mode mode : Mode.values()) {
+            switch (mode) {
+                case SINGLE_THREAD -> ScriptManager.setWorkerThreads(1);
+                case WORKER_THREADS -> ScriptManager.setWorkerThreads(4);
+                case THREAD_PER_SCRIPT -> ScriptManager.setScriptThreadFactory(Thread::new);
+            }
+            try {
+                test.run();
+            } catch (AssertionError e) {
+                throw new AssertionError("Failed running scripts with " + mode, e);
+            } finally {
+                TestScriptRunners.reset();
+            }
+        }
+    }
+
+    /** Shut down the runner and go back to the default settings. */
+    private static void reset() {
+        ScriptManager.shutdown();
+        ScriptManager.setScriptThreadFactory(null);
+        ScriptManager.setWorkerThreads(1);
+        ScriptManager.setInstructionQuantum(ScriptRunner.DEFAULT_INSTRUCTION_QUANTUM);
+        DebugMethods.reset();
+    }
+
+    /** Clean up after each test, in case it failed part way through. */
+    @AfterEach
+    void afterEach() {
+        TestScriptRunners.reset();
+    }
+
+    /** Checks that a resume that happens in the same turn a script yields in is not lost. */
+    @Test
+    void testResumeBeforeYield() {
+        final String program =
+                """
+				TEST_printString("before");
+				TEST_resume("early");
+				yield("early");
+				TEST_printString("after");
+				""";
+        TestScriptRunners.forEachMode(
+                () -> {
+                    Assertions.assertTrue(ScriptManager.runScript(program));
+                    TestScriptRunners.awaitOutput(2);
+                    Assertions.assertEquals(List.of("before", "after"), DebugMethods.getOutput());
+                });
+    }
+
+    /** Runs several scripts to completion at once, taking many short turns each. */
+    @Test
+    void testRunToCompletion() {
+        final int scripts = 8;
+        TestScriptRunners.forEachMode(
+                () -> {
+                    ScriptManager.setInstructionQuantum(10);
+                    for (int i = 0; i < scripts; ++i) {
+                        Assertions.assertTrue(ScriptManager.runScript(TestScriptRunners.SUM));
+                    }
+                    TestScriptRunners.awaitOutput(scripts);
+                    List<String> output = List.copyOf(DebugMethods.getOutput());
+                    Assertions.assertEquals(scripts, output.size());
+                    for (String line : output) {
+                        Assertions.assertEquals("500500", line);
+                    }
+                });
+    }
+
+    /** Checks that scripts stay yielded until their own tag is resumed. */
+    @Test
+    void testYieldAndResume() {
+        final String tagged =
+                """
+				TEST_printString("tagged");
+				yield("tag");
+				TEST_printString("tag resumed");
+				""";
+        final String untagged =
+                """
+				TEST_printString("untagged");
+				yield();
+				TEST_printString("untagged resumed");
+				""";
+        TestScriptRunners.forEachMode(
+                () -> {
+                    Assertions.assertTrue(ScriptManager.runScript(tagged));
+                    Assertions.assertTrue(ScriptManager.runScript(untagged));
+                    TestScriptRunners.awaitOutput(2);
+
+                    ScriptManager.resume("other");
+                    try {
+                        Thread.sleep(TestScriptRunners.SETTLE_TIME);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    Assertions.assertEquals(2, DebugMethods.getOutput().size());
+
+                    ScriptManager.resume("tag");
+                    TestScriptRunners.awaitOutput(3);
+                    Assertions.assertEquals("tag resumed", DebugMethods.getOutput().get(2));
+
+                    ScriptManager.resume();
+                    TestScriptRunners.awaitOutput(4);
+                    Assertions.assertEquals("untagged resumed", DebugMethods.getOutput().get(3));
+                });
+    }
+}
@@ -0,0 +1,175 @@
+package com.ikalagaming.scripting.interpreter;
+
+import com.ikalagaming.scripting.IkalaScriptCompiler;
+import com.ikalagaming.scripting.ScriptManager;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Tests that static calls are linked against the functions that are registered when they run, not
+ * the ones that were registered when they were first linked.
+ *
+ * @author Ches Burks
+ */
+class TestCallLinker {
+    /**
+     * Functions that are registered to begin with.
+     *
+     * @author Ches Burks
+     */
+    public static class LinkFirst {
+        /** Record that this version was called. */
+        public static void LINK_mark() {
+            TestCallLinker.calls.add("first");
+        }
+
+        /**
+         * Accepts an integer.
+         *
+         * @param value The integer.
+         */
+        public static void LINK_take(int value) {
+            TestCallLinker.calls.add("int " + value);
+        }
+    }
+
+    /**
+     * Functions with the same names as {@link LinkFirst}, that replace or overload them.
+     *
+     * @author Ches Burks
+     */
+    public static class LinkSecond {
+        /** Record that this version was called. */
+        public static void LINK_mark() {
+            TestCallLinker.calls.add("second");
+        }
+
+        /**
+         * Accepts a string.
+         *
+         * @param value The string.
+         */
+        public static void LINK_take(String value) {
+            TestCallLinker.calls.add("string " + value);
+        }
+    }
+
+    /** The functions that have been called, in order. */
+    private static List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * A linker for a program with a single call.
+     *
+     * @param name The name of the method to call.
+     * @param arguments The argument types the compiler determined.
+     * @return The linker.
+     */
+    private static CallLinker linker(String name, List<Class<?>> arguments) {
+        Instruction call =
+                new Instruction(
+                        InstructionType.CALL,
+                        new MemLocation(MemArea.IMMEDIATE, String.class, name),
+                        new MemLocation(MemArea.IMMEDIATE, Integer.class, arguments.size()),
+                        null);
+        return new CallLinker(List.of(call), Map.of(0, arguments));
+    }
+
+    /**
+     * Look up a registered method.
+     *
+     * @param owner The class the method is in.
+     * @param name The name of the method.
+     * @param parameters The parameter types.
+     * @return The method.
+     */
+    private static Method method(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            return owner.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return Assertions.fail(e);
+        }
+    }
+
+    /** Register the functions we start with. */
+    @BeforeEach
+    void beforeEach() {
+        ScriptManager.registerClass(LinkFirst.class);
+    }
+
+    /** Unregister the functions so other tests don't see them. */
+    @AfterEach
+    void afterEach() {
+        ScriptManager.unregisterClass(LinkFirst.class);
+        ScriptManager.unregisterClass(LinkSecond.class);
+        TestCallLinker.calls.clear();
+    }
+
+    /** Checks that a call that was linked is linked again once a new overload is registered. */
+    @Test
+    void testOverloadRegistered() {
+        CallLinker typed = TestCallLinker.linker("LINK_take", List.of(Integer.class));
+        CallLinker untyped = TestCallLinker.linker("LINK_take", List.of(Object.class));
+        final Method takeInt = TestCallLinker.method(LinkFirst.class, "LINK_take", int.class);
+        final Method takeString =
+                TestCallLinker.method(LinkSecond.class, "LINK_take", String.class);
+        Assertions.assertEquals(takeInt, typed.get(0).method());
+        Assertions.assertEquals(takeInt, untyped.get(0).method());
+
+        ScriptManager.registerClass(LinkSecond.class);
+        Assertions.assertEquals(takeInt, typed.get(0).method(), "Only one overload takes an int");
+        Assertions.assertNull(untyped.get(0), "Either overload could take an unknown argument");
+
+        ScriptManager.unregisterClass(LinkFirst.class);
+        Assertions.assertNull(typed.get(0), "No overload takes an int any more");
+        Assertions.assertEquals(takeString, untyped.get(0).method());
+    }
+
+    /** Checks that a script calls whatever is registered when the call runs. */
+    @Test
+    void testScriptRelinked() {
+        Optional<ScriptRuntime> runtime =
+                IkalaScriptCompiler.parse(
+                        CharStreams.fromString(
+                                """
+								LINK_mark();
+								LINK_mark();
+								"""));
+        Assertions.assertTrue(runtime.isPresent());
+        while (TestCallLinker.calls.isEmpty() && !runtime.get().hasTerminated()) {
+            runtime.get().step();
+        }
+
+        ScriptManager.unregisterClass(LinkFirst.class);
+        ScriptManager.registerClass(LinkSecond.class);
+        runtime.get().run(1000);
+        Assertions.assertTrue(runtime.get().hasTerminated());
+        Assertions.assertEquals(List.of("first", "second"), TestCallLinker.calls);
+    }
+
+    /** Checks that a linked call is dropped, then replaced, when its method is unregistered. */
+    @Test
+    void testUnregistered() {
+        CallLinker linker = TestCallLinker.linker("LINK_mark", List.of());
+        linker.link();
+        Assertions.assertEquals(
+                TestCallLinker.method(LinkFirst.class, "LINK_mark"), linker.get(0).method());
+
+        ScriptManager.unregisterClass(LinkFirst.class);
+        Assertions.assertNull(linker.get(0), "There is nothing to link to");
+
+        ScriptManager.registerClass(LinkSecond.class);
+        Assertions.assertEquals(
+                TestCallLinker.method(LinkSecond.class, "LINK_mark"), linker.get(0).method());
+    }
+}
@@ -0,0 +1,95 @@
+package com.ikalagaming.scripting.interpreter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.CharBuffer;
+import java.util.List;
+
+/**
+ * Tests that call sites only reuse a resolved method for exactly the types it was resolved for.
+ *
+ * @author Ches Burks
+ */
+class TestCallSiteCache {
+    /** Different classes of character sequence, one for each entry a call site can cache. */
+    private static final List<Class<?>> RECEIVERS =
+            List.of(String.class, StringBuilder.class, StringBuffer.class, CharBuffer.class);
+
+    /**
+     * Create an invoker for a method, failing the test if we can't.
+     *
+     * @param owner The class the method is in.
+     * @param name The name of the method.
+     * @param parameters The parameter types.
+     * @return The method handle.
+     */
+    private static MethodHandle invoker(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            return CallSiteCache.invoker(owner.getMethod(name, parameters));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return Assertions.fail(e);
+        }
+    }
+
+    /** Checks that a call site that only sees one receiver class keeps finding its method. */
+    @Test
+    void testMonomorphicHit() throws Throwable {
+        CallSiteCache cache = new CallSiteCache();
+        final List<MemoryItem> arguments = List.of(new MemoryItem(1));
+        Assertions.assertNull(cache.find(String.class, arguments));
+
+        final MethodHandle charAt = TestCallSiteCache.invoker(String.class, "charAt", int.class);
+        cache.add(String.class, arguments, charAt);
+
+        final List<MemoryItem> others = List.of(new MemoryItem(2));
+        MethodHandle found = cache.find(String.class, others);
+        Assertions.assertSame(charAt, found, "Only the types of the arguments matter");
+        Assertions.assertEquals('c', found.invoke(new Object[] {"abc", 2}));
+        Assertions.assertNull(
+                cache.find(String.class, List.of(new MemoryItem("b"))),
+                "The argument types must match too");
+    }
+
+    /** Checks that once a call site has seen too many types, it stops caching new ones. */
+    @Test
+    void testPolymorphicFallback() {
+        CallSiteCache cache = new CallSiteCache();
+        final List<MemoryItem> arguments = List.of();
+        final MethodHandle length = TestCallSiteCache.invoker(CharSequence.class, "length");
+        for (Class<?> receiver : TestCallSiteCache.RECEIVERS) {
+            cache.add(receiver, arguments, length);
+        }
+        Assertions.assertEquals(CallSiteCache.MAX_ENTRIES, TestCallSiteCache.RECEIVERS.size());
+        for (Class<?> receiver : TestCallSiteCache.RECEIVERS) {
+            Assertions.assertSame(length, cache.find(receiver, arguments));
+        }
+
+        cache.add(CharSequence.class, arguments, length);
+        Assertions.assertNull(
+                cache.find(CharSequence.class, arguments),
+                "A megamorphic call site resolves new types every time");
+        Assertions.assertSame(length, cache.find(String.class, arguments));
+    }
+
+    /** Checks that a method found for one receiver class is not used for another. */
+    @Test
+    void testReceiverChanged() throws Throwable {
+        CallSiteCache cache = new CallSiteCache();
+        final List<MemoryItem> arguments = List.of();
+        final MethodHandle stringLength = TestCallSiteCache.invoker(String.class, "length");
+        cache.add(String.class, arguments, stringLength);
+
+        Assertions.assertNull(cache.find(StringBuilder.class, arguments));
+        Assertions.assertNull(cache.find(null, arguments), "Static calls have no receiver");
+
+        final MethodHandle builderLength =
+                TestCallSiteCache.invoker(StringBuilder.class, "length");
+        cache.add(StringBuilder.class, arguments, builderLength);
+        Assertions.assertSame(stringLength, cache.find(String.class, arguments));
+        MethodHandle found = cache.find(StringBuilder.class, arguments);
+        Assertions.assertSame(builderLength, found);
+        Assertions.assertEquals(2, found.invoke(new Object[] {new StringBuilder("ab")}));
+    }
+}
@@ -0,0 +1,217 @@
+package com.ikalagaming.scripting.interpreter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tests that the program verifier only proves instructions that can't fail the checks the runtime
+ * makes on their operands.
+ *
+ * @author Ches Burks
+ */
+class TestProgramVerifier {
+    /** The number of variable slots the test programs use. */
+    private static final int VARIABLES = 2;
+
+    /**
+     * An instruction that compares two integers, for the conditional jump after it.
+     *
+     * @return The comparison.
+     */
+    private static Instruction compare() {
+        return new Instruction(
+                InstructionType.CMP,
+                TestProgramVerifier.immediate(1),
+                TestProgramVerifier.immediate(2),
+                null);
+    }
+
+    /**
+     * An integer that is part of the instruction.
+     *
+     * @param value The value.
+     * @return The location of the value.
+     */
+    private static MemLocation immediate(int value) {
+        return new MemLocation(MemArea.IMMEDIATE, Integer.class, value);
+    }
+
+    /**
+     * A jump to an address.
+     *
+     * @param type The type of jump.
+     * @param target The address to jump to.
+     * @return The jump.
+     */
+    private static Instruction jump(InstructionType type, int target) {
+        return new Instruction(type, TestProgramVerifier.immediate(target), null, null);
+    }
+
+    /**
+     * An integer on the stack.
+     *
+     * @return The location of the stack.
+     */
+    private static MemLocation stack() {
+        return new MemLocation(MemArea.STACK, Integer.class);
+    }
+
+    /**
+     * An integer variable.
+     *
+     * @param slot The variable slot.
+     * @return The location of the variable.
+     */
+    private static MemLocation variable(int slot) {
+        return new MemLocation(MemArea.VARIABLE, Integer.class, slot);
+    }
+
+    /** Checks that using the result of a call is not verified, since it may not push one. */
+    @Test
+    void testCallResult() {
+        List<Instruction> program =
+                List.of(
+                        new Instruction(
+                                InstructionType.CALL,
+                                new MemLocation(MemArea.IMMEDIATE, String.class, "TEST_getInt"),
+                                TestProgramVerifier.immediate(0),
+                                TestProgramVerifier.stack()),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.stack(),
+                                null,
+                                TestProgramVerifier.variable(0)),
+                        new Instruction(
+                                InstructionType.ADD_INT,
+                                TestProgramVerifier.variable(0),
+                                TestProgramVerifier.immediate(1),
+                                TestProgramVerifier.stack()));
+
+        BitSet verified = ProgramVerifier.verify(program, TestProgramVerifier.VARIABLES);
+        Assertions.assertTrue(verified.get(0), "A call without arguments pops nothing");
+        Assertions.assertFalse(verified.get(1), "The call might not have pushed a result");
+        Assertions.assertTrue(verified.get(2), "The variable is assigned by the move");
+    }
+
+    /** Checks that nothing is verified when a jump goes outside the program. */
+    @Test
+    void testInvalidJump() {
+        List<Instruction> program =
+                List.of(
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.immediate(5),
+                                null,
+                                TestProgramVerifier.variable(0)),
+                        TestProgramVerifier.jump(InstructionType.JMP, 10));
+
+        Assertions.assertTrue(
+                ProgramVerifier.verify(program, TestProgramVerifier.VARIABLES).isEmpty());
+    }
+
+    /** Checks that a value pushed along only one path is not counted on where they join. */
+    @Test
+    void testStackAtJoin() {
+        List<Instruction> oneSided =
+                List.of(
+                        TestProgramVerifier.compare(),
+                        TestProgramVerifier.jump(InstructionType.JLT, 3),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.immediate(5),
+                                null,
+                                TestProgramVerifier.stack()),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.stack(),
+                                null,
+                                TestProgramVerifier.variable(0)));
+
+        BitSet verified = ProgramVerifier.verify(oneSided, TestProgramVerifier.VARIABLES);
+        Assertions.assertTrue(verified.get(2));
+        Assertions.assertFalse(verified.get(3), "The stack is empty when the jump is taken");
+
+        List<Instruction> bothSides =
+                List.of(
+                        TestProgramVerifier.compare(),
+                        TestProgramVerifier.jump(InstructionType.JLT, 4),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.immediate(5),
+                                null,
+                                TestProgramVerifier.stack()),
+                        TestProgramVerifier.jump(InstructionType.JMP, 5),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.immediate(6),
+                                null,
+                                TestProgramVerifier.stack()),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.stack(),
+                                null,
+                                TestProgramVerifier.variable(0)));
+
+        verified = ProgramVerifier.verify(bothSides, TestProgramVerifier.VARIABLES);
+        Assertions.assertTrue(verified.get(5), "Both paths push a value");
+    }
+
+    /** Checks that a variable assigned along only one path is not treated as assigned. */
+    @Test
+    void testUnassignedOnOnePath() {
+        List<Instruction> program =
+                List.of(
+                        TestProgramVerifier.compare(),
+                        TestProgramVerifier.jump(InstructionType.JLT, 3),
+                        new Instruction(
+                                InstructionType.MOV,
+                                TestProgramVerifier.immediate(5),
+                                null,
+                                TestProgramVerifier.variable(0)),
+                        new Instruction(
+                                InstructionType.ADD_INT,
+                                TestProgramVerifier.variable(0),
+                                TestProgramVerifier.immediate(1),
+                                TestProgramVerifier.variable(1)),
+                        new Instruction(
+                                InstructionType.ADD_INT,
+                                TestProgramVerifier.variable(1),
+                                TestProgramVerifier.immediate(1),
+                                TestProgramVerifier.variable(1)));
+
+        BitSet verified = ProgramVerifier.verify(program, TestProgramVerifier.VARIABLES);
+        Assertions.assertTrue(verified.get(2));
+        Assertions.assertFalse(verified.get(3), "The variable is unassigned if the jump is taken");
+        Assertions.assertTrue(verified.get(4), "The variable is assigned along every path");
+    }
+
+    /** Checks that instructions whose operands have the wrong types are not verified. */
+    @Test
+    void testWrongTypes() {
+        List<Instruction> program =
+                List.of(
+                        new Instruction(
+                                InstructionType.ADD_CHAR,
+                                TestProgramVerifier.immediate(1),
+                                new MemLocation(MemArea.IMMEDIATE, Character.class, 'a'),
+                                TestProgramVerifier.variable(0)),
+                        new Instruction(
+                                InstructionType.NOT,
+                                TestProgramVerifier.immediate(1),
+                                null,
+                                TestProgramVerifier.variable(1)),
+                        new Instruction(
+                                InstructionType.ADD_INT,
+                                new MemLocation(MemArea.IMMEDIATE, Character.class, 'a'),
+                                TestProgramVerifier.immediate(1),
+                                TestProgramVerifier.variable(0)));
+
+        BitSet verified = ProgramVerifier.verify(program, TestProgramVerifier.VARIABLES);
+        Assertions.assertFalse(verified.get(0), "Character math needs characters");
+        Assertions.assertFalse(verified.get(1), "Logic needs booleans");
+        Assertions.assertTrue(verified.get(2), "Characters can be used as integers");
+    }
+}